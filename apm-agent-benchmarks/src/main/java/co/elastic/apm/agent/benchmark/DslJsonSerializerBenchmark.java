@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing a transaction with 50 spans to ND-JSON.
+ * <p>
+ * Compare {@code stringCacheSize=0} with an enabled cache (see {@code serialization_string_cache_size}) to see the effect of serializing
+ * low-cardinality strings from the cache.
+ * The GC profiler of {@link AbstractBenchmark#run(Class)} reports the allocated bytes per operation ({@code gc.alloc.rate.norm}).
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DslJsonSerializerBenchmark extends AbstractBenchmark {
+
+    private static final int SPANS = 50;
+
+    @Param({"0", "256"})
+    public int stringCacheSize;
+
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer.Writer writer;
+    private Transaction transaction;
+    private final List<Span> spans = new ArrayList<>();
+
+    public static void main(String[] args) throws RunnerException {
+        run(DslJsonSerializerBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().buildAndStart();
+        DslJsonSerializer serializer = new DslJsonSerializer(
+            tracer.getConfig(StacktraceConfiguration.class),
+            new ApmServerClient(tracer.getConfigurationRegistry()),
+            new CompletableFuture<MetaData>(),
+            stringCacheSize);
+        writer = serializer.newWriter();
+        writer.setOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/users").withType("request").withResult("HTTP 2xx");
+        transaction.getTraceContext().setServiceInfo("benchmark-service", "1.0.0");
+        for (int i = 0; i < SPANS; i++) {
+            Span span = transaction.createSpan();
+            span.withName("SELECT FROM users").withType("db").withSubtype("mysql").withAction("query");
+            span.getContext().getDestination().withAddress("db.example.com").withPort(3306);
+            span.getContext().getServiceTarget().withType("mysql").withName("users");
+            spans.add(span);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int serializeTransactionWith50Spans() {
+        writer.serializeTransactionNdJson(transaction);
+        for (int i = 0; i < SPANS; i++) {
+            writer.serializeSpanNdJson(spans.get(i));
+        }
+        int bufferSize = writer.getBufferSize();
+        writer.flushToOutputStream();
+        return bufferSize;
+    }
+}
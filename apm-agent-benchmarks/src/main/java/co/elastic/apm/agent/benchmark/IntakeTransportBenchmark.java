@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@code http_transport} implementations by reporting transactions to a mock APM Server and waiting for each
+ * intake request to be completed.
+ * <p>
+ * Each invocation reports a transaction with a few spans and flushes the reporter,
+ * so that the results reflect the round trip of an intake request, including connection handling, rather than the throughput of
+ * the queue.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class IntakeTransportBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"blocking", "nio"})
+    public String httpTransport;
+
+    @Param({"10"})
+    public int spansPerTransaction;
+
+    public IntakeTransportBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(IntakeTransportBenchmark.class);
+    }
+
+    @Override
+    protected void addConfiguration(SimpleSource configSource) {
+        configSource.add("http_transport", httpTransport);
+    }
+
+    @Benchmark
+    public boolean reportAndFlush() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is not active");
+        }
+        transaction.withName("transaction");
+        for (int i = 0; i < spansPerTransaction; i++) {
+            Span span = transaction.createSpan();
+            span.withName("span").end();
+        }
+        transaction.end();
+        return tracer.getReporter().flush();
+    }
+}
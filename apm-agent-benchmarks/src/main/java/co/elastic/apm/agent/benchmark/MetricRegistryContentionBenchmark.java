@@ -0,0 +1,138 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.metrics.Counter;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.Timer;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of updating a timer and a counter of a single {@link Labels} key
+ * from an increasing number of threads, like request threads of the same endpoint do when breakdown metrics are enabled.
+ * <ul>
+ *     <li>{@code impl=registry} updates the timer and the counter via {@link MetricRegistry#updateTimer} and {@link MetricRegistry#incrementCounter}</li>
+ *     <li>{@code impl=striped} updates a shared striped {@link Timer} and {@link Counter} within a registry critical section</li>
+ *     <li>{@code impl=atomic} updates shared {@link AtomicLong}s within a registry critical section,
+ *     which is how timers and counters used to be implemented</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricRegistryContentionBenchmark extends AbstractBenchmark {
+
+    @Param({"registry", "striped", "atomic"})
+    public String impl;
+
+    private MetricRegistry registry;
+    private final Labels labels = Labels.Mutable.of()
+        .serviceName("benchmark")
+        .transactionName("GET /api/users")
+        .transactionType("request")
+        .spanType("db")
+        .spanSubType("mysql")
+        .immutableCopy();
+    private final Timer timer = new Timer();
+    private final Counter stripedCounter = new Counter();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong counter = new AtomicLong();
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricRegistryContentionBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        registry = new MetricRegistry(config.getConfig(ReporterConfiguration.class), config.getConfig(MetricsConfiguration.class));
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.flipPhaseAndReport(null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void update_1_thread() {
+        update();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void update_4_threads() {
+        update();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void update_16_threads() {
+        update();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void update_64_threads() {
+        update();
+    }
+
+    private void update() {
+        if ("atomic".equals(impl)) {
+            long criticalValueAtEnter = registry.writerCriticalSectionEnter();
+            try {
+                totalTime.addAndGet(42);
+                count.addAndGet(1);
+                counter.addAndGet(1);
+            } finally {
+                registry.writerCriticalSectionExit(criticalValueAtEnter);
+            }
+        } else if ("striped".equals(impl)) {
+            long criticalValueAtEnter = registry.writerCriticalSectionEnter();
+            try {
+                timer.update(42);
+                stripedCounter.add(1);
+            } finally {
+                registry.writerCriticalSectionExit(criticalValueAtEnter);
+            }
+        } else {
+            registry.updateTimer("span.self_time", labels, 42);
+            registry.incrementCounter("span.count", labels);
+        }
+    }
+}
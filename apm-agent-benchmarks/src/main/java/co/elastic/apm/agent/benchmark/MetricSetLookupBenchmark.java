@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link MetricRegistry#updateTimer} lookups which are performed when tracking the breakdown metrics of a transaction,
+ * mimicking {@code Transaction#trackMetrics}:
+ * the labels are filled once per transaction and the span type and subtype change for each timer.
+ * <p>
+ * Run with {@code -prof gc} to verify that the lookups don't allocate.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricSetLookupBenchmark extends AbstractBenchmark {
+
+    private static final String[] SPAN_TYPES = {"app", "db", "external", "template"};
+    private static final String[] SPAN_SUBTYPES = {null, "mysql", "http", "jsp"};
+
+    @Param({"10", "200"})
+    public int transactionNames;
+
+    private MetricRegistry registry;
+    private StringBuilder[] names;
+    private final Labels.Mutable labels = Labels.Mutable.of();
+    private int transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricSetLookupBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        registry = new MetricRegistry(config.getConfig(ReporterConfiguration.class), config.getConfig(MetricsConfiguration.class));
+        names = new StringBuilder[transactionNames];
+        for (int i = 0; i < transactionNames; i++) {
+            names[i] = new StringBuilder("GET /api/users/").append(i).append("/orders");
+        }
+        for (int i = 0; i < transactionNames; i++) {
+            trackMetrics();
+        }
+    }
+
+    /**
+     * Updates the timers of one transaction
+     */
+    @Benchmark
+    public void trackMetrics() {
+        StringBuilder name = names[transaction++ % transactionNames];
+        labels.resetState();
+        labels.serviceName("benchmark")
+            .transactionName(name)
+            .transactionType("request");
+        long criticalValueAtEnter = registry.writerCriticalSectionEnter();
+        try {
+            for (int i = 0; i < SPAN_TYPES.length; i++) {
+                labels.spanType(SPAN_TYPES[i]).spanSubType(SPAN_SUBTYPES[i]);
+                registry.updateTimer("span.self_time", labels, 42, 1);
+            }
+        } finally {
+            registry.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+}
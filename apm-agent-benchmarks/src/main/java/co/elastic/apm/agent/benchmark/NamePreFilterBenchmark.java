@@ -0,0 +1,214 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
+import co.elastic.apm.agent.bci.bytebuddy.NamePreFilterIndex;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+
+/**
+ * Compares evaluating the name-based pre-filters of all instrumentations one after another
+ * with evaluating them via a {@link NamePreFilterIndex} for each type of a large synthetic class path.
+ * <p>
+ * The pre-filters mirror the ones of the plugins.
+ * Just like the agent does when {@code -Delastic.apm.instrumentation_stats=true} is set,
+ * the time spent matching is tracked with a {@link MatcherTimer} whose totals are printed after each trial.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NamePreFilterBenchmark extends AbstractBenchmark {
+
+    private static final String[] PACKAGES = {
+        "com.example.shop.order", "com.example.shop.order.internal", "com.example.shop.customer.web", "com.example.shop.util",
+        "org.springframework.beans.factory.support", "org.springframework.web.servlet.mvc.method.annotation", "org.springframework.core.io",
+        "org.hibernate.engine.internal", "org.hibernate.loader.plan", "com.fasterxml.jackson.databind.deser.std",
+        "org.apache.catalina.core", "org.apache.tomcat.util.net", "io.netty.channel.nio", "io.netty.handler.codec.http",
+        "com.google.common.collect", "org.slf4j.impl", "ch.qos.logback.classic.spi", "java.util.concurrent", "sun.reflect.generics.tree",
+        "kotlin.collections", "scala.collection.immutable", "org.apache.commons.lang3.text", "reactor.core.publisher"
+    };
+    private static final String[] WORDS = {
+        "Abstract", "Default", "Simple", "Bean", "Type", "Method", "Property", "Order", "Customer", "Cache", "Buffer", "String",
+        "Node", "Value", "Map", "List", "Tree", "Resolver", "Factory", "Handler", "Support", "Utils", "Impl", "Adapter", "Builder",
+        "Descriptor", "Provider", "Registry", "Reader", "Writer", "Converter", "Visitor", "Strategy", "Request", "Filter", "Servlet",
+        "Connection", "Statement", "Executor", "Listener", "Session", "Pool", "Channel", "Logger"
+    };
+
+    @Param({"100000"})
+    public int classPathSize;
+
+    private final List<ElementMatcher<? super NamedElement>> preFilters = new ArrayList<>();
+    private NamePreFilterIndex index;
+    private List<ElementMatcher<NamedElement>> indexedPreFilters;
+    private NamedElement[] classPath;
+    private final MatcherTimer sequentialTimer = new MatcherTimer("sequential");
+    private final MatcherTimer indexedTimer = new MatcherTimer("indexed");
+    private long sequentialTypes;
+    private long indexedTypes;
+    private int next;
+
+    public static void main(String[] args) throws RunnerException {
+        run(NamePreFilterBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        preFilters.add(nameContains("Servlet").or(nameContains("Filter")));
+        preFilters.add(nameContains("Servlet").or(nameContains("AsyncContext")));
+        preFilters.add(nameContains("Filter").or(nameContains("Servlet")).or(nameContains("Initializer")));
+        preFilters.add(nameContains("Connection"));
+        preFilters.add(nameContains("Statement"));
+        preFilters.add(nameContains("Execut").or(nameContains("Pool")));
+        preFilters.add(nameContains("Executor").and(not(nameStartsWith("org.apache.tomcat."))));
+        preFilters.add(nameContains("HttpClient").or(nameContains("HttpAsyncClient")));
+        preFilters.add(nameContains("RedirectStrategy"));
+        preFilters.add(nameContains("URLConnection").or(nameContains("UrlConnection")));
+        preFilters.add(nameStartsWith("io.lettuce").or(nameStartsWith("com.lambdaworks.redis")));
+        preFilters.add(nameStartsWith("com.rabbitmq.client").and(nameContains("Channel")));
+        preFilters.add(nameStartsWith("io.grpc").and(nameContains("ServerImpl").or(nameContains("Listener"))));
+        preFilters.add(nameStartsWith("com.amazonaws.").or(nameStartsWith("software.amazon.awssdk.")));
+        preFilters.add(nameStartsWith("com.amazon.sqs.javamessaging"));
+        preFilters.add(nameStartsWith("com.ibm.db2.jcc"));
+        preFilters.add(nameStartsWith("io.vertx.core.http.impl").or(nameStartsWith("io.vertx.ext.web.impl")));
+        preFilters.add(nameStartsWith("sun.net.httpserver").and(nameContains("Filter")));
+        preFilters.add(nameStartsWith("org.springframework.").and(nameEndsWith("ApplicationContext")));
+        preFilters.add(nameContains("View").or(nameContains("Dispatch")));
+        preFilters.add(nameContains("ExchangeFunction"));
+        preFilters.add(nameContains("Appender").or(nameContains("Logger")));
+        preFilters.add(nameEndsWith("LogEventFactory"));
+        preFilters.add(nameStartsWith("java.util.logging.").and(nameContains("Logger")));
+        preFilters.add(nameContains("Session").or(nameContains("Command")));
+        preFilters.add(nameContains("Query").or(nameContains("Search")));
+        preFilters.add(nameContains("Request").or(nameEndsWith("Request")));
+        preFilters.add(nameContains("HttpRequest").or(nameContains("HttpContext")));
+        preFilters.add(nameContains("Chain").or(nameContains("ActionProxy")));
+        preFilters.add(nameContains("Container").or(nameContains("Lifecycle")));
+        preFilters.add(nameContains("Loop").or(nameContains("Channel")));
+        preFilters.add(nameContains("Director").or(nameContains("Tracer")));
+        preFilters.add(nameContainsIgnoreCase("jsp"));
+        index = NamePreFilterIndex.compile(preFilters);
+        indexedPreFilters = new ArrayList<>();
+        for (int i = 0; i < preFilters.size(); i++) {
+            indexedPreFilters.add(index.forInstrumentation(i));
+        }
+
+        Random random = new Random(42);
+        classPath = new NamedElement[classPathSize];
+        for (int i = 0; i < classPathSize; i++) {
+            StringBuilder name = new StringBuilder(PACKAGES[random.nextInt(PACKAGES.length)]).append('.');
+            for (int words = 1 + random.nextInt(3); words > 0; words--) {
+                name.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(10) == 0) {
+                name.append('$').append(random.nextInt(5));
+            }
+            classPath[i] = new SimpleNamedElement(name.toString());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println(MatcherTimer.getTableHeader());
+        System.out.println(sequentialTimer);
+        System.out.println(indexedTimer);
+        System.out.printf("Type matching time per type: sequential %d ns, indexed %d ns%n",
+            sequentialTimer.getTotalTime() / Math.max(1, sequentialTypes), indexedTimer.getTotalTime() / Math.max(1, indexedTypes));
+    }
+
+    /**
+     * Evaluates the pre-filters of all instrumentations, like the agent does without the index
+     */
+    @Benchmark
+    public int sequential() {
+        NamedElement type = nextType();
+        long start = System.nanoTime();
+        int candidates = 0;
+        for (int i = 0; i < preFilters.size(); i++) {
+            if (preFilters.get(i).matches(type)) {
+                candidates++;
+            }
+        }
+        sequentialTimer.addTypeMatchingDuration(System.nanoTime() - start);
+        sequentialTypes++;
+        return candidates;
+    }
+
+    /**
+     * Types without candidates are ignored with a single pass,
+     * for the others, the pre-filter of each instrumentation is looked up in the index
+     */
+    @Benchmark
+    public int indexed() {
+        NamedElement type = nextType();
+        long start = System.nanoTime();
+        int candidates = 0;
+        if (index.hasCandidates(type)) {
+            for (int i = 0; i < indexedPreFilters.size(); i++) {
+                if (indexedPreFilters.get(i).matches(type)) {
+                    candidates++;
+                }
+            }
+        }
+        indexedTimer.addTypeMatchingDuration(System.nanoTime() - start);
+        indexedTypes++;
+        return candidates;
+    }
+
+    private NamedElement nextType() {
+        NamedElement type = classPath[next];
+        if (++next == classPath.length) {
+            next = 0;
+        }
+        return type;
+    }
+
+    private static class SimpleNamedElement implements NamedElement {
+        private final String name;
+
+        private SimpleNamedElement(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getActualName() {
+            return name;
+        }
+    }
+}
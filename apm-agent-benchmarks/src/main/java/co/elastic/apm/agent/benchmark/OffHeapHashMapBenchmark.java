@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.profiler.collections.DirectBufferPool;
+import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
+import co.elastic.apm.agent.profiler.collections.OffHeapLong2LongHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the heap based {@link Long2LongHashMap} with the {@link OffHeapLong2LongHashMap}
+ * for the usage pattern of the JFR parser:
+ * the map is filled with the ids of the frames in a file, looked up while resolving stack traces and reset afterwards.
+ * <p>
+ * The heap map is {@linkplain Long2LongHashMap#clear() cleared}, which retains its capacity,
+ * whereas the off-heap map is {@linkplain OffHeapLong2LongHashMap#release() released} to its pool.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OffHeapHashMapBenchmark extends AbstractBenchmark {
+
+    private static final int LOOKUPS_PER_ENTRY = 4;
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private Long2LongHashMap heapMap;
+    private OffHeapLong2LongHashMap offHeapMap;
+
+    public static void main(String[] args) throws RunnerException {
+        run(OffHeapHashMapBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        heapMap = new Long2LongHashMap(-1);
+        offHeapMap = new OffHeapLong2LongHashMap(new DirectBufferPool(64 * 1024 * 1024), -1);
+    }
+
+    @Benchmark
+    public long heap() {
+        Long2LongHashMap map = this.heapMap;
+        for (long i = 0; i < entries; i++) {
+            map.put(i * 31, i);
+        }
+        long sum = 0;
+        for (int lookup = 0; lookup < LOOKUPS_PER_ENTRY; lookup++) {
+            for (long i = 0; i < entries; i++) {
+                sum += map.get(i * 31);
+            }
+        }
+        map.clear();
+        return sum;
+    }
+
+    @Benchmark
+    public long offHeap() {
+        OffHeapLong2LongHashMap map = this.offHeapMap;
+        for (long i = 0; i < entries; i++) {
+            map.put(i * 31, i);
+        }
+        long sum = 0;
+        for (int lookup = 0; lookup < LOOKUPS_PER_ENTRY; lookup++) {
+            for (long i = 0; i < entries; i++) {
+                sum += map.get(i * 31);
+            }
+        }
+        map.release();
+        return sum;
+    }
+}
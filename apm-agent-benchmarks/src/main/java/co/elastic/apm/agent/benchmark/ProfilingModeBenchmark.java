@@ -0,0 +1,70 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * Compares the overhead of inferred spans when profiling in bursts, which is the default,
+ * with the overhead when profiling continuously (see {@code profiling_inferred_spans_continuous}).
+ * <p>
+ * Use the {@link co.elastic.apm.agent.benchmark.profiler.CpuProfiler} to compare the CPU time per request
+ * and make sure that the measurement time of an iteration spans several profiling sessions, for example:
+ * {@code java -jar apm-agent-benchmarks/target/benchmarks.jar ProfilingModeBenchmark -prof co.elastic.apm.agent.benchmark.profiler.CpuProfiler -r 10s}
+ * </p>
+ */
+public class ProfilingModeBenchmark extends ElasticApmContinuousBenchmark {
+
+    @Param({"off", "burst", "continuous"})
+    public String profilingMode;
+
+    public ProfilingModeBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ProfilingModeBenchmark.class);
+    }
+
+    @Override
+    protected void addConfiguration(SimpleSource configSource) {
+        if (profilingMode.equals("off")) {
+            return;
+        }
+        configSource.add("profiling_inferred_spans_enabled", "true")
+            .add("profiling_inferred_spans_duration", "2s");
+        if (profilingMode.equals("burst")) {
+            configSource.add("profiling_inferred_spans_interval", "4s");
+        } else {
+            configSource.add("profiling_inferred_spans_continuous", "true");
+        }
+    }
+
+    @Benchmark
+    public int benchmarkWithApm(RequestState requestState) throws IOException, ServletException {
+        httpServlet.service(requestState.request, requestState.response);
+        return requestState.response.getStatus();
+    }
+}
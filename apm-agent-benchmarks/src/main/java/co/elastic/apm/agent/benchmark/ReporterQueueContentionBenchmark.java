@@ -0,0 +1,170 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ApmServerReporter;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.ReporterMonitor;
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.ReportingEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the producer-side cost of publishing events to the {@link ApmServerReporter} queue with an increasing number of threads.
+ * <p>
+ * The events are consumed by a {@link ReportingEventHandler} that discards them,
+ * so that the results reflect the contention on the ring buffer(s) rather than serialization and I/O costs.
+ * Compare {@code queueShards=1}, which is a single ring buffer shared by all threads,
+ * with a sharded queue for the different thread counts.
+ * </p>
+ * <p>
+ * The {@link co.elastic.apm.agent.benchmark.profiler.ReporterProfiler} shows how many events have been dropped because the
+ * queue was full.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReporterQueueContentionBenchmark extends AbstractBenchmark {
+
+    private static final byte[] EVENT = "{}".getBytes();
+
+    @Param({"1", "16"})
+    public int queueShards;
+
+    private ApmServerReporter reporter;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterQueueContentionBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add("max_queue_size", "16384")
+                .add("queue_shards", Integer.toString(queueShards)))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        reporter = new ApmServerReporter(true,
+            config.getConfig(ReporterConfiguration.class),
+            new DiscardingReportingEventHandler(),
+            ReporterMonitor.NOOP,
+            apmServerClient,
+            new DslJsonSerializer(config.getConfig(StacktraceConfiguration.class), apmServerClient, new CompletableFuture<MetaData>()),
+            new ObjectPoolFactory());
+        reporter.start();
+        System.getProperties().put(Reporter.class.getName(), reporter);
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.close();
+        System.getProperties().remove(Reporter.class.getName());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void report_1_thread() {
+        reporter.reportLog(EVENT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void report_4_threads() {
+        reporter.reportLog(EVENT);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void report_16_threads() {
+        reporter.reportLog(EVENT);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void report_64_threads() {
+        reporter.reportLog(EVENT);
+    }
+
+    private static class DiscardingReportingEventHandler implements ReportingEventHandler {
+
+        private volatile long processed = -1;
+        private long reported;
+
+        @Override
+        public void init(ApmServerReporter reporter) {
+        }
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+            if (!event.getType().isControl()) {
+                reported++;
+            }
+            event.end();
+            event.resetState();
+            processed = sequence;
+        }
+
+        @Override
+        public long getReported() {
+            return reported;
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public boolean isProcessed(long sequence) {
+            return processed >= sequence;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.report.disruptor.AdaptiveWaitStrategy;
+import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the wait strategies of the reporter thread under different loads.
+ * <p>
+ * The benchmark thread publishes an event stamped with {@link System#nanoTime()} and then burns {@link #backoffTokens} of CPU,
+ * which determines the arrival rate of the events.
+ * At the end of each iteration, the average end-to-end latency from publishing an event until it is handled,
+ * and the CPU time that the consumer thread used per event are printed.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReporterWaitStrategyBenchmark extends AbstractBenchmark {
+
+    private static final EventTranslatorOneArg<long[], Long> TRANSLATOR = new EventTranslatorOneArg<long[], Long>() {
+        @Override
+        public void translateTo(long[] event, long sequence, Long publishedNs) {
+            event[0] = publishedNs;
+        }
+    };
+
+    @Param({"sleeping", "adaptive"})
+    public String waitStrategy;
+
+    /**
+     * Roughly translates to 100ns (high load), 20us (medium load) and 2ms (light load) between two events
+     */
+    @Param({"50", "10000", "1000000"})
+    public long backoffTokens;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private Disruptor<long[]> disruptor;
+    private RingBuffer<long[]> ringBuffer;
+    private volatile Thread consumerThread;
+    private long consumerCpuTimeStart;
+    private long handledEventsStart;
+    private long latencySumStart;
+    // only written by the consumer thread
+    private volatile long handledEvents;
+    private volatile long latencySumNs;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterWaitStrategyBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        WaitStrategy strategy = "adaptive".equals(waitStrategy)
+            ? new AdaptiveWaitStrategy()
+            : new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000);
+        disruptor = new Disruptor<>(() -> new long[1], 16384, (ThreadFactory) runnable -> consumerThread = new Thread(runnable, "reporter"),
+            ProducerType.MULTI, strategy);
+        disruptor.handleEventsWith(new EventHandler<long[]>() {
+            @Override
+            public void onEvent(long[] event, long sequence, boolean endOfBatch) {
+                latencySumNs += System.nanoTime() - event[0];
+                handledEvents++;
+            }
+        });
+        ringBuffer = disruptor.start();
+    }
+
+    @Setup(Level.Iteration)
+    public void startMeasurement() {
+        consumerCpuTimeStart = threadMXBean.getThreadCpuTime(consumerThread.getId());
+        handledEventsStart = handledEvents;
+        latencySumStart = latencySumNs;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopMeasurement() {
+        long consumerCpuTime = threadMXBean.getThreadCpuTime(consumerThread.getId()) - consumerCpuTimeStart;
+        long events = handledEvents - handledEventsStart;
+        long latencySum = latencySumNs - latencySumStart;
+        if (events > 0) {
+            System.out.printf("%nevents: %d, avg latency: %.1f us, consumer cpu time per event: %.1f us%n",
+                events, latencySum / 1000.0 / events, consumerCpuTime / 1000.0 / events);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        disruptor.shutdown();
+    }
+
+    @Benchmark
+    public void publish() {
+        ringBuffer.tryPublishEvent(TRANSLATOR, System.nanoTime());
+        Blackhole.consumeCPU(backoffTokens);
+    }
+}
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.benchmark;
 
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.context.Db;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
@@ -27,6 +28,9 @@ import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.util.MathUtils;
 import org.ehcache.sizeof.SizeOf;
 
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+
 public class SizeOfSpan {
 
     public static void main(String[] args) {
@@ -45,5 +49,16 @@ public class SizeOfSpan {
             queueSize * 2 * sizeOfTransaction +
             queueSize * sizeOfError;
         System.out.println("sizeOfObjectPools: " + sizeOfObjectPools / 1024.0 / 1024.0 + " MiB");
+
+        // spans waiting in the compression buffer of their parent retain their context, including captured statements
+        final Db db = new Span(tracer).getContext().getDb();
+        final CharBuffer statementBuffer = db.withStatementBuffer();
+        while (statementBuffer.remaining() >= 16) {
+            statementBuffer.append("{\"match_all\":{}}");
+        }
+        ((Buffer) statementBuffer).flip();
+        System.out.println("sizeof db context of a buffered span with a " + statementBuffer.limit() + " chars statement: " + sizeOf.deepSizeOf(db));
+        db.moveStatementBufferOffHeap();
+        System.out.println("sizeof db context of a buffered span with an off-heap statement: " + sizeOf.deepSizeOf(db));
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.Reporter;
+import com.dslplatform.json.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the cost of ending compressible exit spans of a shared parent from an increasing number of threads,
+ * as it happens when a transaction fans out requests to the same backend.
+ * <p>
+ * All spans race for the compression buffer of the parent.
+ * With {@code subtypes=2}, consecutive spans alternate between two backends so that the buffered span is frequently replaced,
+ * which is where concurrent updates of the buffer have to be retried.
+ * The ratio of compressed spans is printed at the end of each iteration.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpanCompressionBenchmark extends AbstractBenchmark {
+
+    private static final String[] SUBTYPES = {"postgresql", "mysql"};
+
+    @Param({"1", "2"})
+    public int subtypes;
+
+    private final CountingReporter reporter = new CountingReporter();
+    private final LongAdder endedSpans = new LongAdder();
+    private ElasticApmTracer tracer;
+    private Transaction transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(SpanCompressionBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add("span_compression_enabled", "true")
+                .add("transaction_max_spans", Integer.toString(Integer.MAX_VALUE))
+                .add("span_min_duration", "0ms"))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .buildAndStart();
+    }
+
+    @Setup(Level.Iteration)
+    public void startTransaction() {
+        reporter.reset();
+        endedSpans.reset();
+        transaction = tracer.startRootTransaction(null).withName("fan-out");
+    }
+
+    @TearDown(Level.Iteration)
+    public void endTransaction() {
+        transaction.end();
+        long ended = endedSpans.sum();
+        long compressed = reporter.compressedSpans.sum();
+        System.out.printf("%n%d of %d spans have been compressed (%.2f%%)%n", compressed, ended, ended > 0 ? 100.0 * compressed / ended : 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void endSpan_1_thread() {
+        endSpan();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void endSpan_4_threads() {
+        endSpan();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void endSpan_16_threads() {
+        endSpan();
+    }
+
+    private void endSpan() {
+        String subtype = SUBTYPES[subtypes > 1 ? (int) (Thread.currentThread().getId() % subtypes) : 0];
+        Span span = transaction.createSpan().asExit().withName("SELECT").withType("db").withSubtype(subtype);
+        span.getContext().getDestination().withAddress("127.0.0.1").withPort(5432);
+        span.end();
+        endedSpans.increment();
+    }
+
+    private static class CountingReporter implements Reporter {
+
+        private final LongAdder compressedSpans = new LongAdder();
+
+        void reset() {
+            compressedSpans.reset();
+        }
+
+        @Override
+        public void report(Span span) {
+            if (span.isComposite()) {
+                compressedSpans.add(span.getComposite().getCount() - 1);
+            }
+            span.decrementReferences();
+        }
+
+        @Override
+        public void report(Transaction transaction) {
+            transaction.decrementReferences();
+        }
+
+        @Override
+        public void report(ErrorCapture error) {
+            error.recycle();
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void reportPartialTransaction(Transaction transaction) {
+        }
+
+        @Override
+        public void reportMetrics(JsonWriter jsonWriter) {
+        }
+
+        @Override
+        public void reportLog(String log) {
+        }
+
+        @Override
+        public void reportLog(byte[] log) {
+        }
+
+        @Override
+        public void reportAgentLog(byte[] log) {
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public long getReported() {
+            return 0;
+        }
+
+        @Override
+        public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+            return true;
+        }
+
+        @Override
+        public boolean flush() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
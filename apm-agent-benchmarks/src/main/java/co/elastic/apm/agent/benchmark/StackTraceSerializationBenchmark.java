@@ -0,0 +1,151 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing the stack traces of 20 inferred spans which have been called from the same code path,
+ * and of an error with a deep stack trace.
+ * <p>
+ * Compare {@code stackFrameCacheSize=0} with an enabled cache (see {@code serialization_stack_frame_cache_size})
+ * to see the effect of copying the encoded frames from the cache.
+ * The inferred spans either get a new list of frames each, like before, or share their callers via a {@link StackTraceDictionary}.
+ * The GC profiler of {@link AbstractBenchmark#run(Class)} reports the allocated bytes per operation ({@code gc.alloc.rate.norm}).
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StackTraceSerializationBenchmark extends AbstractBenchmark {
+
+    private static final int SPANS = 20;
+    private static final int COMMON_FRAMES = 40;
+
+    @Param({"0", "1024"})
+    public int stackFrameCacheSize;
+
+    @Param({"false", "true"})
+    public boolean interned;
+
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer.Writer writer;
+    private final List<Span> spans = new ArrayList<>();
+    private ErrorCapture error;
+
+    public static void main(String[] args) throws RunnerException {
+        run(StackTraceSerializationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().buildAndStart();
+        DslJsonSerializer serializer = new DslJsonSerializer(
+            tracer.getConfig(StacktraceConfiguration.class),
+            new ApmServerClient(tracer.getConfigurationRegistry()),
+            new CompletableFuture<MetaData>(),
+            0,
+            stackFrameCacheSize);
+        writer = serializer.newWriter();
+        writer.setOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        StackTraceDictionary dictionary = new StackTraceDictionary(1024, 1024);
+        Transaction transaction = tracer.startRootTransaction(null);
+        for (int i = 0; i < SPANS; i++) {
+            Span span = transaction.createSpan();
+            span.withName("OrderService#placeOrder").withType("app").withSubtype("inferred");
+            StackTraceDictionary.InternedStackTrace internedStackTrace = null;
+            List<StackFrame> stackTrace = new ArrayList<>();
+            for (int j = 0; j < COMMON_FRAMES; j++) {
+                StackFrame frame = new StackFrame("org.example.framework.Layer" + j, "handle");
+                internedStackTrace = dictionary.intern(frame, internedStackTrace);
+                stackTrace.add(0, frame);
+            }
+            StackFrame frame = new StackFrame("org.example.app.OrderService", "step" + (i % 4));
+            internedStackTrace = dictionary.intern(frame, internedStackTrace);
+            stackTrace.add(0, frame);
+            span.setStackTrace(interned ? internedStackTrace : stackTrace);
+            spans.add(span);
+        }
+
+        error = new ErrorCapture(tracer).asChildOf(transaction);
+        error.setException(createDeepException(COMMON_FRAMES));
+    }
+
+    private static Exception createDeepException(int depth) {
+        if (depth == 0) {
+            return new IllegalStateException("benchmark");
+        }
+        return createDeepException(depth - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int serializeInferredSpans() {
+        for (int i = 0; i < SPANS; i++) {
+            writer.serializeSpanNdJson(spans.get(i));
+        }
+        int bufferSize = writer.getBufferSize();
+        writer.flushToOutputStream();
+        return bufferSize;
+    }
+
+    @Benchmark
+    public int serializeError() {
+        writer.serializeErrorNdJson(error);
+        int bufferSize = writer.getBufferSize();
+        writer.flushToOutputStream();
+        return bufferSize;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.classloading.ClassDataSharingClassList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.util.Headers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Measures the time from launching a JVM with the agent until the APM Server receives the first transaction,
+ * with and without a class data sharing archive that has been created with the help of the {@code class_data_sharing_dir} option.
+ * <p>
+ * The application is a JDK {@link HttpServer} that handles a single request, which is traced by the JDK HTTP server plugin,
+ * and exits afterwards, which makes the agent flush the transaction.
+ * </p>
+ * <p>
+ * Requires the agent jar, which is looked up in {@code elastic-apm-agent/target} unless the {@code agent.jar} system property is set:
+ * {@code java -Dagent.jar=/path/to/elastic-apm-agent.jar -jar apm-agent-benchmarks/target/benchmarks.jar StartupBenchmark}
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+public class StartupBenchmark extends AbstractBenchmark {
+
+    private static final String ARCHIVE_FILE_NAME = "elastic-apm.jsa";
+
+    @Param({"false", "true"})
+    public boolean classDataSharing;
+
+    private Path workDir;
+    private File agentJar;
+    private File applicationJar;
+    private Undertow server;
+    private int serverPort;
+    private volatile CountDownLatch firstTransaction;
+    private Process application;
+
+    public static void main(String[] args) throws RunnerException {
+        run(StartupBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        agentJar = findAgentJar();
+        workDir = Files.createTempDirectory("startup-benchmark");
+        applicationJar = createApplicationJar(workDir.resolve("application.jar").toFile());
+        startApmServer();
+        if (classDataSharing) {
+            createArchive();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void startApplication() throws IOException {
+        firstTransaction = new CountDownLatch(1);
+        List<String> jvmArgs = new ArrayList<>();
+        if (classDataSharing) {
+            jvmArgs.add("-XX:SharedArchiveFile=" + workDir.resolve(ARCHIVE_FILE_NAME));
+        }
+        application = launchApplication(jvmArgs);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopApplication() throws InterruptedException {
+        application.destroy();
+        application.waitFor();
+    }
+
+    @Benchmark
+    public void timeToFirstTransaction() throws InterruptedException {
+        if (!firstTransaction.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The application did not report a transaction");
+        }
+    }
+
+    /**
+     * Executes a training run with the {@code class_data_sharing_dir} option and creates a static archive from the resulting class list.
+     */
+    private void createArchive() throws Exception {
+        Path cdsDir = workDir.resolve("cds");
+        firstTransaction = new CountDownLatch(1);
+        Process training = launchApplication(List.of("-Delastic.apm.class_data_sharing_dir=" + cdsDir));
+        if (training.waitFor() != 0) {
+            throw new IllegalStateException("Training run failed");
+        }
+        Process dump = new ProcessBuilder(getJavaExecutable(),
+            "-Xshare:dump",
+            "-XX:SharedClassListFile=" + cdsDir.resolve(ClassDataSharingClassList.CLASS_LIST_FILE_NAME),
+            "-XX:SharedArchiveFile=" + workDir.resolve(ARCHIVE_FILE_NAME),
+            "-cp", applicationJar.getAbsolutePath())
+            .inheritIO()
+            .start();
+        if (dump.waitFor() != 0) {
+            throw new IllegalStateException("Creating the archive failed");
+        }
+    }
+
+    private Process launchApplication(List<String> additionalJvmArgs) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(getJavaExecutable());
+        command.add("-javaagent:" + agentJar.getAbsolutePath());
+        command.add("-Delastic.apm.server_url=http://127.0.0.1:" + serverPort);
+        command.add("-Delastic.apm.service_name=startup-benchmark");
+        command.add("-Delastic.apm.central_config=false");
+        command.add("-Delastic.apm.cloud_provider=none");
+        command.add("-Delastic.apm.metrics_interval=0ms");
+        command.add("-Delastic.apm.log_level=warn");
+        command.addAll(additionalJvmArgs);
+        command.add("-cp");
+        command.add(applicationJar.getAbsolutePath());
+        command.add(Application.class.getName());
+        return new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    private void startApmServer() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                if (exchange.getRequestPath().startsWith("/intake/")) {
+                    byte[] payload;
+                    try (InputStream is = exchange.getInputStream()) {
+                        payload = "deflate".equals(exchange.getRequestHeaders().getFirst(Headers.CONTENT_ENCODING))
+                            ? new InflaterInputStream(is).readAllBytes()
+                            : is.readAllBytes();
+                    }
+                    if (new String(payload, StandardCharsets.UTF_8).contains("{\"transaction\":")) {
+                        firstTransaction.countDown();
+                    }
+                    exchange.setStatusCode(202).endExchange();
+                } else {
+                    exchange.getOutputStream().write("{\"version\":\"8.10.0\"}".getBytes(StandardCharsets.UTF_8));
+                    exchange.setStatusCode(200).endExchange();
+                }
+            })).build();
+        server.start();
+        serverPort = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    /**
+     * The application is packaged as a jar, as class data sharing does not support non-empty directories on the class path.
+     */
+    private static File createApplicationJar(File jar) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            for (Class<?> type : Arrays.asList(Application.class, Application.Handler.class)) {
+                String classFile = type.getName().replace('.', '/') + ".class";
+                try (InputStream in = type.getClassLoader().getResourceAsStream(classFile)) {
+                    out.putNextEntry(new JarEntry(classFile));
+                    out.write(in.readAllBytes());
+                    out.closeEntry();
+                }
+            }
+        }
+        return jar;
+    }
+
+    private static File findAgentJar() {
+        String agentJar = System.getProperty("agent.jar");
+        if (agentJar != null) {
+            return new File(agentJar);
+        }
+        for (String dir : Arrays.asList("elastic-apm-agent/target", "../elastic-apm-agent/target")) {
+            File[] jars = new File(dir).listFiles((d, name) -> name.startsWith("elastic-apm-agent-") && name.endsWith(".jar")
+                && !name.endsWith("-sources.jar") && !name.endsWith("-javadoc.jar"));
+            if (jars != null && jars.length > 0) {
+                return jars[0];
+            }
+        }
+        throw new IllegalStateException("Agent jar not found, build it with 'mvn package -pl elastic-apm-agent -am' or set -Dagent.jar");
+    }
+
+    private static String getJavaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    /**
+     * Only depends on JDK classes so that it can be packaged on its own.
+     * <p>
+     * The response is sent before the handler returns, but the agent only ends the transaction when it returns.
+     * Waiting for the handler thread avoids that the application exits before the transaction has ended.
+     * The handler is not a lambda, as the agent can't instrument lambda classes at runtime.
+     * </p>
+     */
+    public static class Application {
+        public static void main(String[] args) throws Exception {
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            ExecutorService handlerExecutor = Executors.newSingleThreadExecutor();
+            httpServer.setExecutor(handlerExecutor);
+            httpServer.createContext("/", new Handler());
+            httpServer.start();
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/").openConnection();
+            connection.getResponseCode();
+            connection.disconnect();
+            httpServer.stop(0);
+            handlerExecutor.shutdown();
+            handlerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        public static class Handler implements HttpHandler {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        }
+    }
+}
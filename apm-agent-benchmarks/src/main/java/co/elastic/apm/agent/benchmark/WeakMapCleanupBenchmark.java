@@ -0,0 +1,81 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.collections.WeakConcurrentProviderImpl;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the pause caused by cleaning up a weak map after all of its keys have been collected.
+ * <p>
+ * {@link #fullSweep()} expunges all stale entries at once, like the periodic backstop sweep over all maps does.
+ * {@link #incrementalPut()} is the first put after the keys have been collected,
+ * which only expunges a bounded number of stale entries.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WeakMapCleanupBenchmark extends AbstractBenchmark {
+
+    @Param({"1000000"})
+    public int entries;
+
+    private final Object liveKey = new Object();
+    private WeakMap<Object, Object> map;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WeakMapCleanupBenchmark.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws InterruptedException {
+        map = new WeakConcurrentProviderImpl().<Object, Object>weakMapBuilder()
+            .withInitialCapacity(entries)
+            .build();
+        for (int i = 0; i < entries; i++) {
+            map.put(new Object(), Boolean.TRUE);
+        }
+        System.gc();
+        System.gc();
+        // gives the reference handler thread time to enqueue the collected keys
+        Thread.sleep(500);
+    }
+
+    @Benchmark
+    public int fullSweep() {
+        WeakConcurrentProviderImpl.expungeStaleEntries();
+        return map.approximateSize();
+    }
+
+    @Benchmark
+    public int incrementalPut() {
+        map.put(liveKey, Boolean.TRUE);
+        return map.approximateSize();
+    }
+}
@@ -23,13 +23,17 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
+import org.jctools.queues.MpscArrayQueue;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
@@ -37,6 +41,7 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.runner.RunnerException;
 
+import javax.annotation.Nullable;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -50,6 +55,11 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> magazineObjectPool;
+    /**
+     * Hands the objects over from the producer threads to the consumer thread, like the ring buffer hands spans over to the reporter thread
+     */
+    private MpscArrayQueue<Transaction> handOff;
 
     public static void main(String[] args) throws RunnerException {
         run(ObjectPoolBenchmark.class);
@@ -63,11 +73,15 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        magazineObjectPool = MagazineObjectPool.ofRecyclable(256, 16, () -> new Transaction(tracer));
+        handOff = new MpscArrayQueue<>(1024);
     }
 
     @TearDown
     public void tearDown() {
         System.out.println("Objects created by agronaQueueObjectPool: " + agronaQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects created by jctoolsAtomicQueueObjectPool: " + jctoolsAtomicQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects created by magazineObjectPool: " + magazineObjectPool.getGarbageCreated());
     }
 
     //    @Benchmark
@@ -108,6 +122,62 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testMagazineObjectPool() {
+        Transaction transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueProducerConsumer")
+    @GroupThreads(7)
+    public Transaction testJctoolsAtomicQueueProducer() {
+        return produce(jctoolsAtomicQueueObjectPool);
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueProducerConsumer")
+    @GroupThreads(1)
+    @Nullable
+    public Transaction testJctoolsAtomicQueueConsumer() {
+        return consume(jctoolsAtomicQueueObjectPool);
+    }
+
+    @Benchmark
+    @Group("magazineProducerConsumer")
+    @GroupThreads(7)
+    public Transaction testMagazineProducer() {
+        return produce(magazineObjectPool);
+    }
+
+    @Benchmark
+    @Group("magazineProducerConsumer")
+    @GroupThreads(1)
+    @Nullable
+    public Transaction testMagazineConsumer() {
+        return consume(magazineObjectPool);
+    }
+
+    private Transaction produce(ObjectPool<Transaction> pool) {
+        Transaction transaction = pool.createInstance();
+        if (!handOff.offer(transaction)) {
+            // the consumer can't keep up, similar to discarding an event when the ring buffer is full
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
+    @Nullable
+    private Transaction consume(ObjectPool<Transaction> pool) {
+        Transaction transaction = handOff.poll();
+        if (transaction != null) {
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
     //    @Benchmark
     @Threads(8)
     public Transaction testThreadLocalObjectPool() {
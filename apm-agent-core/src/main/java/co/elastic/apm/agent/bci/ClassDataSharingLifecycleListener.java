@@ -0,0 +1,69 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.classloading.ClassDataSharingClassList;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Writes the files needed to create a class data sharing archive that contains the agent classes when the agent stops,
+ * see {@link CoreConfiguration#getClassDataSharingDir()}.
+ */
+public class ClassDataSharingLifecycleListener extends AbstractLifecycleListener {
+    private static final Logger logger = LoggerFactory.getLogger(ClassDataSharingLifecycleListener.class);
+
+    private String classDataSharingDir = "";
+
+    @Override
+    public void init(ElasticApmTracer tracer) {
+        classDataSharingDir = tracer.getConfig(CoreConfiguration.class).getClassDataSharingDir().trim();
+        if (!classDataSharingDir.isEmpty()) {
+            logger.info("Training run for class data sharing, the class list is written to {} when the JVM shuts down", classDataSharingDir);
+        }
+    }
+
+    @Override
+    public void stop() {
+        Instrumentation instrumentation = ElasticApmAgent.getInstrumentation();
+        if (classDataSharingDir.isEmpty() || instrumentation == null) {
+            return;
+        }
+        File dir = new File(classDataSharingDir);
+        try {
+            long start = System.nanoTime();
+            int agentClasses = ClassDataSharingClassList.write(instrumentation.getAllLoadedClasses(),
+                PrivilegedActionUtils.getClassLoader(ElasticApmAgent.class), ElasticApmAgent.getAgentJarFile(), dir);
+            logger.info("Wrote class list containing {} agent classes in {}ms. Create the archive with " +
+                    "'java -Xshare:dump -XX:SharedClassListFile={} -XX:SharedArchiveFile={} -cp <class path>'",
+                agentClasses, (System.nanoTime() - start) / 1_000_000,
+                new File(dir, ClassDataSharingClassList.CLASS_LIST_FILE_NAME).getAbsolutePath(),
+                new File(dir, "elastic-apm.jsa").getAbsolutePath());
+        } catch (Exception e) {
+            logger.warn("Failed to write the class list for class data sharing to " + dir.getAbsolutePath(), e);
+        }
+    }
+}
@@ -26,9 +26,11 @@ import co.elastic.apm.agent.bci.bytebuddy.InstallationListenerImpl;
 import co.elastic.apm.agent.bci.bytebuddy.Instrumented;
 import co.elastic.apm.agent.bci.bytebuddy.LruTypePoolCache;
 import co.elastic.apm.agent.bci.bytebuddy.MinimumClassFileVersionValidator;
+import co.elastic.apm.agent.bci.bytebuddy.NamePreFilterIndex;
 import co.elastic.apm.agent.bci.bytebuddy.NonInstrumented;
 import co.elastic.apm.agent.bci.bytebuddy.PatchBytecodeVersionTo51Transformer;
 import co.elastic.apm.agent.bci.bytebuddy.RootPackageCustomLocator;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchingCache;
 import co.elastic.apm.agent.sdk.bytebuddy.SimpleMethodSignatureOffsetMappingFactory;
 import co.elastic.apm.agent.bci.classloading.ExternalPluginClassLoader;
 import co.elastic.apm.agent.bci.modules.ModuleOpener;
@@ -49,6 +51,7 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.tracemethods.TraceMethodInstrumentation;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -127,6 +130,8 @@ public class ElasticApmAgent {
     private static Instrumentation instrumentation;
     @Nullable
     private static ResettableClassFileTransformer resettableClassFileTransformer;
+    @Nullable
+    private static TypeMatchingCache typeMatchingCache;
     private static final List<ResettableClassFileTransformer> dynamicClassFileTransformers = new ArrayList<>();
     private static final WeakMap<Class<?>, Set<Collection<Class<? extends ElasticApmInstrumentation>>>> dynamicallyInstrumentedClasses = WeakConcurrent.buildMap();
     @Nullable
@@ -287,8 +292,13 @@ public class ElasticApmAgent {
             logger.warn("Instrumentation has already been initialized");
             return;
         }
+        // when attaching at runtime, collect the type matchers to match the already loaded classes in parallel instead of letting Byte Buddy retransform them
+        @Nullable
+        List<AgentBuilder.RawMatcher> typeMatchers = !premain && coreConfig.getAttachRetransformationThreads() > 0
+            ? new ArrayList<AgentBuilder.RawMatcher>()
+            : null;
         // POOL_ONLY because we don't want to cause eager linking on startup as the class path may not be complete yet
-        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain);
+        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain, typeMatchers);
 
         // Warmup Byte Buddy and agent's invokedynamic linkage paths on the attaching thread before installing it
         if (tracer.getConfig(CoreConfiguration.class).shouldWarmupByteBuddy()) {
@@ -298,6 +308,13 @@ public class ElasticApmAgent {
         }
 
         resettableClassFileTransformer = agentBuilder.installOn(ElasticApmAgent.instrumentation);
+        if (typeMatchers != null) {
+            new ParallelRetransformer(ElasticApmAgent.instrumentation, getIgnoredTypes(coreConfig), getIgnoredClassLoaders(), typeMatchers, getLocationStrategy(logger),
+                coreConfig.getAttachRetransformationThreads(),
+                TimeUnit.MILLISECONDS.toNanos(coreConfig.getAttachRetransformationMaxPause().getMillis()),
+                instrumentationStats)
+                .retransformLoadedClasses();
+        }
         for (ConfigurationOption<?> instrumentationOption : coreConfig.getInstrumentationOptions()) {
             //noinspection Convert2Lambda
             instrumentationOption.addChangeListener(new ConfigurationOption.ChangeListener() {
@@ -342,42 +359,109 @@ public class ElasticApmAgent {
     static synchronized void doReInitInstrumentation(Iterable<ElasticApmInstrumentation> instrumentations) {
         Logger logger = getLogger();
         logger.info("Re initializing instrumentation");
-        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false);
+        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, null);
 
         resettableClassFileTransformer = agentBuilder.patchOn(instrumentation, resettableClassFileTransformer);
     }
 
+    /**
+     * @param typeMatchers if not {@code null}, Byte Buddy does not retransform already loaded classes and the type matchers of
+     *                     the applied instrumentations are added to this list so that the caller can retransform them
+     */
     private static AgentBuilder initAgentBuilder(ElasticApmTracer tracer, Instrumentation instrumentation,
                                                  Iterable<ElasticApmInstrumentation> instrumentations, Logger logger,
-                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain) {
+                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain,
+                                                 @Nullable List<AgentBuilder.RawMatcher> typeMatchers) {
         final CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
         ElasticApmAgent.instrumentation = instrumentation;
         final ByteBuddy byteBuddy = new ByteBuddy()
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
-        AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled()
-        );
-        int numberOfAdvices = 0;
+        typeMatchingCache = loadTypeMatchingCache(coreConfiguration, instrumentations);
+        instrumentationStats.setTypeMatchingCache(typeMatchingCache);
+        List<ElasticApmInstrumentation> includedInstrumentations = new ArrayList<>();
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
-                instrumentationStats.addInstrumentation(advice);
-                try {
-                    agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher());
-                    numberOfAdvices++;
-                } catch (Exception e) {
-                    logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
-                    // this should fail tests but skip the instrumentations in prod
-                    assert false;
-                }
+                includedInstrumentations.add(advice);
             } else {
                 logger.debug("Not applying excluded instrumentation {}", advice.getClass().getName());
             }
         }
+        NamePreFilterIndex preFilterIndex = null;
+        if (coreConfiguration.isTypeMatchingWithNamePreFilter()) {
+            List<ElementMatcher<? super NamedElement>> preFilters = new ArrayList<>(includedInstrumentations.size());
+            for (ElasticApmInstrumentation advice : includedInstrumentations) {
+                preFilters.add(advice.getTypeMatcherPreFilter());
+            }
+            preFilterIndex = NamePreFilterIndex.compile(preFilters);
+        }
+        AgentBuilder agentBuilder = getAgentBuilder(
+            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled(), typeMatchingCache,
+            typeMatchers == null, preFilterIndex
+        );
+        int numberOfAdvices = 0;
+        for (int i = 0; i < includedInstrumentations.size(); i++) {
+            ElasticApmInstrumentation advice = includedInstrumentations.get(i);
+            instrumentationStats.addInstrumentation(advice);
+            try {
+                ElementMatcher<? super NamedElement> typeMatcherPreFilter = advice.getTypeMatcherPreFilter();
+                if (preFilterIndex != null) {
+                    typeMatcherPreFilter = preFilterIndex.forInstrumentation(i);
+                }
+                agentBuilder = applyAdvice(tracer, agentBuilder, advice, typeMatcherPreFilter, advice.getTypeMatcher(), typeMatchers);
+                numberOfAdvices++;
+            } catch (Exception e) {
+                logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
+                // this should fail tests but skip the instrumentations in prod
+                assert false;
+            }
+        }
         logger.debug("Applied {} advices", numberOfAdvices);
         return agentBuilder;
     }
 
+    /**
+     * Loads the cache of classes that did not match any instrumentation in previous runs.
+     * The cache is only used if neither the agent version, the included instrumentations,
+     * nor the options that control which classes are instrumented have changed.
+     * When re-initializing the instrumentation, the results of the current cache are persisted before loading the new one.
+     */
+    @Nullable
+    private static TypeMatchingCache loadTypeMatchingCache(CoreConfiguration coreConfiguration, Iterable<ElasticApmInstrumentation> instrumentations) {
+        if (typeMatchingCache != null) {
+            typeMatchingCache.save();
+        }
+        String cacheFile = coreConfiguration.getTypeMatchingCacheFile().trim();
+        if (cacheFile.isEmpty()) {
+            return null;
+        }
+        List<String> includedInstrumentations = new ArrayList<>();
+        for (ElasticApmInstrumentation instrumentation : instrumentations) {
+            if (isIncluded(instrumentation, coreConfiguration)) {
+                Class<? extends ElasticApmInstrumentation> type = instrumentation.getClass();
+                includedInstrumentations.add(type.getName() + "@" + TypeMatchingCache.getJarFingerprint(type));
+            }
+        }
+        Collections.sort(includedInstrumentations);
+        List<String> fingerprintComponents = new ArrayList<>();
+        fingerprintComponents.add(VersionUtils.getAgentVersion());
+        for (ConfigurationOption<?> option : coreConfiguration.getTypeMatchingOptions()) {
+            fingerprintComponents.add(option.getKey() + "=" + option.getValueAsString());
+        }
+        fingerprintComponents.addAll(includedInstrumentations);
+        return TypeMatchingCache.load(new File(cacheFile), TypeMatchingCache.fingerprint(fingerprintComponents));
+    }
+
+    /**
+     * Persists the classes that did not match any instrumentation so that matching them can be skipped on the next start.
+     * Does nothing if the {@code type_matching_cache_file} option is not set.
+     */
+    static synchronized void saveTypeMatchingCache() {
+        if (typeMatchingCache != null) {
+            typeMatchingCache.save();
+        }
+    }
+
     private static boolean isIncluded(ElasticApmInstrumentation advice, CoreConfiguration coreConfiguration) {
         return isInstrumentationEnabled(advice, coreConfiguration) && coreConfiguration.isInstrumentationEnabled(advice.getInstrumentationGroupNames());
     }
@@ -387,13 +471,13 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super NamedElement> typeMatcherPreFilter,
+                                            final ElementMatcher<? super TypeDescription> typeMatcher, @Nullable List<AgentBuilder.RawMatcher> typeMatchers) {
         final Logger logger = getLogger();
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfiguration.class).isClassLoadingMatchingPreFilter();
         final boolean typeMatchingWithNamePreFilter = tracer.getConfig(CoreConfiguration.class).isTypeMatchingWithNamePreFilter();
         final ElementMatcher.Junction<ClassLoader> classLoaderMatcher = instrumentation.getClassLoaderMatcher();
-        final ElementMatcher<? super NamedElement> typeMatcherPreFilter = instrumentation.getTypeMatcherPreFilter();
         final ElementMatcher.Junction<ProtectionDomain> versionPostFilter = instrumentation.getProtectionDomainPostFilter();
         final ElementMatcher<? super MethodDescription> methodMatcher = new ElementMatcher.Junction.Conjunction<>(instrumentation.getMethodMatcher(), not(isAbstract()));
         final AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher() {
@@ -439,8 +523,12 @@ public class ElasticApmAgent {
                 }
             }
         };
+        AgentBuilder.RawMatcher typeMatcherToApply = instrumentationStats.shouldMeasureMatching() ? statsCollectingMatcher : matcher;
+        if (typeMatchers != null) {
+            typeMatchers.add(typeMatcherToApply);
+        }
         return agentBuilder
-            .type(instrumentationStats.shouldMeasureMatching() ? statsCollectingMatcher : matcher)
+            .type(typeMatcherToApply)
             .transform(new PatchBytecodeVersionTo51Transformer())
             .transform(getTransformer(instrumentation, logger, methodMatcher))
             .transform(new AgentBuilder.Transformer() {
@@ -620,6 +708,11 @@ public class ElasticApmAgent {
         return instrumentationStats;
     }
 
+    @Nullable
+    static Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
     // may help to debug classloading problems
     private static void logClassLoaderHierarchy(@Nullable ClassLoader classLoader, Logger logger, ElasticApmInstrumentation advice) {
         logger.trace("Advice {} is loaded by {}", advice.getClass().getName(), PrivilegedActionUtils.getClassLoader(advice.getClass()));
@@ -676,33 +769,19 @@ public class ElasticApmAgent {
         IndyPluginClassLoaderFactory.clear();
         adviceClassName2instrumentationClassLoader.clear();
         pluginPackages2pluginClassLoaderCustomizations.clear();
+        typeMatchingCache = null;
     }
 
     private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfiguration coreConfiguration, final Logger logger,
                                                 final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
-                                                final boolean useTypePoolCache) {
-        AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
-        if (agentJarFile != null) {
-            try {
-                locationStrategy = new AgentBuilder.LocationStrategy.Compound(
-                    // it's important to first try loading from the agent jar and not the class loader of the instrumented class
-                    // the latter may not have access to the agent resources:
-                    // when adding the agent to the bootstrap CL (appendToBootstrapClassLoaderSearch)
-                    // the bootstrap CL can load its classes but not its resources
-                    // the application class loader may cache the fact that a resource like AbstractSpan.class can't be resolved
-                    // and also refuse to load the class
-                    new AgentBuilder.LocationStrategy.Simple(ClassFileLocator.ForJarFile.of(agentJarFile)),
-                    AgentBuilder.LocationStrategy.ForClassLoader.WEAK,
-                    new AgentBuilder.LocationStrategy.Simple(new RootPackageCustomLocator("java.", ClassFileLocator.ForClassLoader.ofBootLoader()))
-                );
-            } catch (IOException e) {
-                logger.warn("Failed to add ClassFileLocator for the agent jar. Some instrumentations may not work", e);
-            }
-        }
-        return new AgentBuilder.Default(byteBuddy)
+                                                final boolean useTypePoolCache, @Nullable final TypeMatchingCache typeMatchingCache,
+                                                final boolean retransformLoadedClasses, @Nullable final NamePreFilterIndex preFilterIndex) {
+        AgentBuilder.Ignored agentBuilder = new AgentBuilder.Default(byteBuddy)
             .with(RedefinitionStrategy.RETRANSFORMATION)
             // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
             .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100))
+            // an explicit discovery without any types registers the transformer for retransformation without retransforming loaded classes
+            .with(retransformLoadedClasses ? RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE : new RedefinitionStrategy.DiscoveryStrategy.Explicit())
             .with(premain ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
             .with(new RedefinitionStrategy.Listener.Adapter() {
                 @Override
@@ -713,33 +792,75 @@ public class ElasticApmAgent {
                 }
             })
             .with(descriptionStrategy)
-            .with(locationStrategy)
+            .with(getLocationStrategy(logger))
             .with(new ErrorLoggingListener())
             // ReaderMode.FAST as we don't need to read method parameter names
             .with(useTypePoolCache
                 ? new LruTypePoolCache(TypePool.Default.ReaderMode.FAST).scheduleEntryEviction()
                 : AgentBuilder.PoolStrategy.Default.FAST)
-            .ignore(any(), isReflectionClassLoader())
-            .or(any(), classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader"))
-            .or(nameStartsWith("org.aspectj."))
+            .ignore(any(), getIgnoredClassLoaders())
+            .or(getIgnoredTypes(coreConfiguration));
+        if (preFilterIndex != null) {
+            // types that don't pass the pre-filter of any instrumentation can't match, this avoids evaluating the matchers of all instrumentations
+            agentBuilder = agentBuilder.or(preFilterIndex.withoutCandidates());
+        }
+        if (typeMatchingCache != null) {
+            // evaluated last so that only types are cached that are not excluded by any of the cheaper matchers above
+            return agentBuilder.or(typeMatchingCache)
+                .with(typeMatchingCache)
+                .disableClassFormatChanges();
+        }
+        return agentBuilder.disableClassFormatChanges();
+    }
+
+    private static AgentBuilder.LocationStrategy getLocationStrategy(Logger logger) {
+        AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
+        if (agentJarFile != null) {
+            try {
+                locationStrategy = new AgentBuilder.LocationStrategy.Compound(
+                    // it's important to first try loading from the agent jar and not the class loader of the instrumented class
+                    // the latter may not have access to the agent resources:
+                    // when adding the agent to the bootstrap CL (appendToBootstrapClassLoaderSearch)
+                    // the bootstrap CL can load its classes but not its resources
+                    // the application class loader may cache the fact that a resource like AbstractSpan.class can't be resolved
+                    // and also refuse to load the class
+                    new AgentBuilder.LocationStrategy.Simple(ClassFileLocator.ForJarFile.of(agentJarFile)),
+                    AgentBuilder.LocationStrategy.ForClassLoader.WEAK,
+                    new AgentBuilder.LocationStrategy.Simple(new RootPackageCustomLocator("java.", ClassFileLocator.ForClassLoader.ofBootLoader()))
+                );
+            } catch (IOException e) {
+                logger.warn("Failed to add ClassFileLocator for the agent jar. Some instrumentations may not work", e);
+            }
+        }
+        return locationStrategy;
+    }
+
+    private static ElementMatcher.Junction<ClassLoader> getIgnoredClassLoaders() {
+        return isReflectionClassLoader()
+            .or(classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader"))
+            .or(classLoaderWithNamePrefix("com.newrelic."))
+            .or(classLoaderWithNamePrefix("com.nr.agent."))
+            .or(classLoaderWithNamePrefix("com.dynatrace."))
+            // AppDynamics
+            .or(classLoaderWithNamePrefix("com.singularity"))
+            .or(classLoaderWithNamePrefix("com.appdynamics."))
+            .or(classLoaderWithNamePrefix("com.instana."))
+            .or(classLoaderWithNamePrefix("datadog."));
+    }
+
+    private static ElementMatcher.Junction<NamedElement> getIgnoredTypes(CoreConfiguration coreConfiguration) {
+        return ElementMatchers.<NamedElement>nameStartsWith("org.aspectj.")
             .or(nameStartsWith("org.groovy."))
             .or(nameStartsWith("com.p6spy."))
             .or(nameStartsWith("net.bytebuddy."))
             .or(nameStartsWith("org.stagemonitor."))
-            .or(any(), classLoaderWithNamePrefix("com.newrelic."))
             .or(nameStartsWith("com.newrelic."))
-            .or(any(), classLoaderWithNamePrefix("com.nr.agent."))
             .or(nameStartsWith("com.nr.agent."))
-            .or(any(), classLoaderWithNamePrefix("com.dynatrace."))
             .or(nameStartsWith("com.dynatrace."))
             // AppDynamics
-            .or(any(), classLoaderWithNamePrefix("com.singularity"))
             .or(nameStartsWith("com.singularity."))
-            .or(any(), classLoaderWithNamePrefix("com.appdynamics."))
             .or(nameStartsWith("com.appdynamics."))
-            .or(any(), classLoaderWithNamePrefix("com.instana."))
             .or(nameStartsWith("com.instana."))
-            .or(any(), classLoaderWithNamePrefix("datadog."))
             .or(nameStartsWith("datadog."))
             .or(nameStartsWith("org.glowroot."))
             .or(nameStartsWith("com.compuware."))
@@ -748,8 +869,7 @@ public class ElasticApmAgent {
             .or(nameContains("javassist"))
             .or(nameContains(".asm."))
             .or(anyMatch(coreConfiguration.getDefaultClassesExcludedFromInstrumentation()))
-            .or(anyMatch(coreConfiguration.getClassesExcludedFromInstrumentation()))
-            .disableClassFormatChanges();
+            .or(anyMatch(coreConfiguration.getClassesExcludedFromInstrumentation()));
     }
 
     /**
@@ -830,7 +950,7 @@ public class ElasticApmAgent {
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
         AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false
+            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false, null, true, null
         );
         for (Class<? extends ElasticApmInstrumentation> instrumentationClass : instrumentationClasses) {
             ElasticApmInstrumentation apmInstrumentation = instantiate(instrumentationClass);
@@ -839,7 +959,8 @@ public class ElasticApmAgent {
                 PrivilegedActionUtils.getClassLoader(instrumentationClass));
             ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
             if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, apmInstrumentation.getTypeMatcherPreFilter(),
+                    typeMatcher.and(apmInstrumentation.getTypeMatcher()), null);
             }
         }
         dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
@@ -19,8 +19,12 @@
 package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
+import co.elastic.apm.agent.bci.bytebuddy.RetransformationBatch;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchingCache;
 import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
 
+import javax.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,6 +35,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class InstrumentationStats {
 
@@ -42,11 +47,21 @@ public final class InstrumentationStats {
 
     private boolean measureMatching = false;
 
+    @Nullable
+    private volatile TypeMatchingCache typeMatchingCache;
+
+    private final List<RetransformationBatch> retransformationBatches = new CopyOnWriteArrayList<>();
+
+    private volatile long retransformationMatchingTime;
+
     void reset() {
         allInstrumentations.clear();
         usedInstrumentations.clear();
         matcherTimers.clear();
         measureMatching = false;
+        typeMatchingCache = null;
+        retransformationBatches.clear();
+        retransformationMatchingTime = 0;
     }
 
     void addInstrumentation(ElasticApmInstrumentation instrumentation) {
@@ -136,6 +151,53 @@ public final class InstrumentationStats {
         return totalTime;
     }
 
+    void setTypeMatchingCache(@Nullable TypeMatchingCache typeMatchingCache) {
+        this.typeMatchingCache = typeMatchingCache;
+    }
+
+    @Nullable
+    TypeMatchingCache getTypeMatchingCache() {
+        return typeMatchingCache;
+    }
+
+    /**
+     * @return the number of types for which matching has been skipped because they are known to not match any instrumentation
+     */
+    long getTypeMatchingCacheHits() {
+        TypeMatchingCache cache = typeMatchingCache;
+        return cache != null ? cache.getSkippedTypes() : 0;
+    }
+
+    /**
+     * @return the estimated time that has been saved by the type matching cache
+     */
+    long getTypeMatchingCacheSavedTime() {
+        TypeMatchingCache cache = typeMatchingCache;
+        return cache != null ? cache.getEstimatedSavedNanos() : 0;
+    }
+
+    void addRetransformationBatch(RetransformationBatch batch) {
+        retransformationBatches.add(batch);
+    }
+
+    /**
+     * @return the timings of the batches of classes which have been retransformed after attaching the agent at runtime
+     */
+    List<RetransformationBatch> getRetransformationBatches() {
+        return retransformationBatches;
+    }
+
+    void setRetransformationMatchingTime(long retransformationMatchingTime) {
+        this.retransformationMatchingTime = retransformationMatchingTime;
+    }
+
+    /**
+     * @return the time it took to find the loaded classes to retransform after attaching the agent at runtime
+     */
+    long getRetransformationMatchingTime() {
+        return retransformationMatchingTime;
+    }
+
     Collection<MatcherTimer> getMatcherTimers() {
         return matcherTimers.values();
     }
@@ -19,6 +19,8 @@
 package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
+import co.elastic.apm.agent.bci.bytebuddy.RetransformationBatch;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchingCache;
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -26,6 +28,7 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 public class InstrumentationStatsLifecycleListener extends AbstractLifecycleListener {
     private static final Logger logger = LoggerFactory.getLogger(InstrumentationStatsLifecycleListener.class);
@@ -41,18 +44,51 @@ public class InstrumentationStatsLifecycleListener extends AbstractLifecycleList
     public void stop() {
         InstrumentationStats instrumentationStats = ElasticApmAgent.getInstrumentationStats();
         logger.info("Used instrumentation groups: {}", instrumentationStats.getUsedInstrumentationGroups());
+        TypeMatchingCache typeMatchingCache = instrumentationStats.getTypeMatchingCache();
+        if (typeMatchingCache != null) {
+            logger.info("Type matching cache skipped matching {} types, saving an estimated {}ns. Recorded {} new non-matching types.",
+                instrumentationStats.getTypeMatchingCacheHits(),
+                String.format("%,d", instrumentationStats.getTypeMatchingCacheSavedTime()),
+                typeMatchingCache.getRecordedNonMatches());
+            ElasticApmAgent.saveTypeMatchingCache();
+        }
         if (instrumentationStats.shouldMeasureMatching()) {
             final ArrayList<MatcherTimer> matcherTimers = new ArrayList<>(instrumentationStats.getMatcherTimers());
             Collections.sort(matcherTimers);
             StringBuilder sb = new StringBuilder()
                 .append("Total time spent matching: ").append(String.format("%,d", instrumentationStats.getTotalMatcherTime())).append("ns")
-                .append('\n')
-                .append(MatcherTimer.getTableHeader())
                 .append('\n');
+            if (typeMatchingCache != null) {
+                sb.append("Estimated time saved by the type matching cache: ")
+                    .append(String.format("%,d", instrumentationStats.getTypeMatchingCacheSavedTime())).append("ns")
+                    .append('\n');
+            }
+            sb.append(MatcherTimer.getTableHeader()).append('\n');
             for (MatcherTimer matcherTimer : matcherTimers) {
                 sb.append(matcherTimer.toString()).append('\n');
             }
             logger.debug(sb.toString());
         }
+        List<RetransformationBatch> retransformationBatches = instrumentationStats.getRetransformationBatches();
+        if (!retransformationBatches.isEmpty() && logger.isDebugEnabled()) {
+            long totalTime = 0;
+            long maxTime = 0;
+            for (RetransformationBatch batch : retransformationBatches) {
+                totalTime += batch.getDurationNanos();
+                maxTime = Math.max(maxTime, batch.getDurationNanos());
+            }
+            StringBuilder sb = new StringBuilder()
+                .append("Time spent matching loaded classes: ").append(String.format("%,d", instrumentationStats.getRetransformationMatchingTime())).append("ns")
+                .append('\n')
+                .append("Time spent retransforming ").append(retransformationBatches.size()).append(" batches: ").append(String.format("%,d", totalTime)).append("ns")
+                .append(", longest batch: ").append(String.format("%,d", maxTime)).append("ns")
+                .append('\n')
+                .append(RetransformationBatch.getTableHeader())
+                .append('\n');
+            for (RetransformationBatch batch : retransformationBatches) {
+                sb.append(batch.toString()).append('\n');
+            }
+            logger.debug(sb.toString());
+        }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.bytebuddy.RetransformationBatch;
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.JavaModule;
+
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransforms the classes that have been loaded before the agent got attached at runtime.
+ * <p>
+ * Byte Buddy's built-in redefinition evaluates the matchers of all loaded classes sequentially on the attaching thread.
+ * This evaluates the matchers on a bounded thread pool instead.
+ * Like the agent builder, the types are described by a {@link TypePool} with the {@link AgentBuilder.DescriptionStrategy.Default#POOL_ONLY}
+ * strategy so that the matchers see the same descriptions and matching does not cause eager linking.
+ * The matching classes are then retransformed in batches whose size adapts to the duration of the previous batch,
+ * so that retransforming a single batch takes no longer than {@code maxPauseNanos}.
+ * As retransformation causes a stop-the-world pause, the attaching thread waits for {@code maxPauseNanos} in-between the batches.
+ * </p>
+ */
+class ParallelRetransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelRetransformer.class);
+
+    static final int INITIAL_BATCH_SIZE = 16;
+    static final int MAX_BATCH_SIZE = 1000;
+    /**
+     * Smaller chunks balance the load across the threads, as matching some classes is much more expensive than matching others
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final Instrumentation instrumentation;
+    private final ElementMatcher<? super TypeDescription> ignoredTypes;
+    private final ElementMatcher<? super ClassLoader> ignoredClassLoaders;
+    private final List<AgentBuilder.RawMatcher> typeMatchers;
+    private final AgentBuilder.LocationStrategy locationStrategy;
+    private final int threads;
+    private final long maxPauseNanos;
+    private final InstrumentationStats instrumentationStats;
+
+    ParallelRetransformer(Instrumentation instrumentation, ElementMatcher<? super TypeDescription> ignoredTypes,
+                          ElementMatcher<? super ClassLoader> ignoredClassLoaders, List<AgentBuilder.RawMatcher> typeMatchers,
+                          AgentBuilder.LocationStrategy locationStrategy, int threads, long maxPauseNanos,
+                          InstrumentationStats instrumentationStats) {
+        this.instrumentation = instrumentation;
+        this.ignoredTypes = ignoredTypes;
+        this.ignoredClassLoaders = ignoredClassLoaders;
+        this.typeMatchers = typeMatchers;
+        this.locationStrategy = locationStrategy;
+        this.threads = threads;
+        this.maxPauseNanos = maxPauseNanos;
+        this.instrumentationStats = instrumentationStats;
+    }
+
+    void retransformLoadedClasses() {
+        Class<?>[] loadedClasses = instrumentation.getAllLoadedClasses();
+        long start = System.nanoTime();
+        List<Class<?>> matchingClasses = findMatchingClasses(loadedClasses);
+        long matchingDuration = System.nanoTime() - start;
+        instrumentationStats.setRetransformationMatchingTime(matchingDuration);
+        retransform(matchingClasses);
+        logger.info("Retransformed {} of {} loaded classes in {}ms, matching took {}ms",
+            matchingClasses.size(), loadedClasses.length,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.NANOSECONDS.toMillis(matchingDuration));
+    }
+
+    List<Class<?>> findMatchingClasses(final Class<?>[] loadedClasses) {
+        int chunks = Math.max(1, threads * CHUNKS_PER_THREAD);
+        int chunkSize = (loadedClasses.length + chunks - 1) / chunks;
+        ThreadPoolExecutor executor = ExecutorUtils.createThreadDaemonPool("retransformation-matcher", threads, chunks);
+        List<Class<?>> matchingClasses = new ArrayList<>();
+        try {
+            List<Future<List<Class<?>>>> futures = new ArrayList<>(chunks);
+            for (int from = 0; from < loadedClasses.length; from += chunkSize) {
+                final int chunkStart = from;
+                final int chunkEnd = Math.min(from + chunkSize, loadedClasses.length);
+                futures.add(executor.submit(new Callable<List<Class<?>>>() {
+                    @Override
+                    public List<Class<?>> call() {
+                        List<Class<?>> matches = new ArrayList<>();
+                        // the type pools cache the descriptions of the types of a class loader, they are not shared across chunks
+                        Map<ClassLoader, TypePool> typePools = new HashMap<>();
+                        for (int i = chunkStart; i < chunkEnd; i++) {
+                            if (matches(loadedClasses[i], typePools)) {
+                                matches.add(loadedClasses[i]);
+                            }
+                        }
+                        return matches;
+                    }
+                }));
+            }
+            for (Future<List<Class<?>>> future : futures) {
+                matchingClasses.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Error while matching loaded classes", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return matchingClasses;
+    }
+
+    private boolean matches(Class<?> type, Map<ClassLoader, TypePool> typePools) {
+        if (type.isArray() || type.isPrimitive() || !instrumentation.isModifiableClass(type)) {
+            return false;
+        }
+        try {
+            ClassLoader classLoader = PrivilegedActionUtils.getClassLoader(type);
+            if (ignoredClassLoaders.matches(classLoader)) {
+                return false;
+            }
+            JavaModule module = JavaModule.ofType(type);
+            TypePool typePool = typePools.get(classLoader);
+            if (typePool == null) {
+                // ReaderMode.FAST as we don't need to read method parameter names
+                typePool = AgentBuilder.PoolStrategy.Default.FAST.typePool(locationStrategy.classFileLocator(classLoader, module), classLoader);
+                typePools.put(classLoader, typePool);
+            }
+            TypeDescription typeDescription = AgentBuilder.DescriptionStrategy.Default.POOL_ONLY.apply(TypeDescription.ForLoadedType.getName(type),
+                type, typePool, AgentBuilder.CircularityLock.Inactive.INSTANCE, classLoader, module);
+            if (ignoredTypes.matches(typeDescription)) {
+                return false;
+            }
+            ProtectionDomain protectionDomain = PrivilegedActionUtils.getProtectionDomain(type);
+            for (AgentBuilder.RawMatcher typeMatcher : typeMatchers) {
+                if (typeMatcher.matches(typeDescription, classLoader, module, type, protectionDomain)) {
+                    return true;
+                }
+            }
+        } catch (Throwable t) {
+            // for example, a type referenced by an annotation may be missing
+            logger.warn("Error while matching {}: {}", type.getName(), t.getMessage());
+            logger.debug(t.getMessage(), t);
+        }
+        return false;
+    }
+
+    void retransform(List<Class<?>> classes) {
+        int batchSize = INITIAL_BATCH_SIZE;
+        for (int i = 0; i < classes.size(); ) {
+            List<Class<?>> batch = classes.subList(i, Math.min(classes.size(), i + batchSize));
+            long start = System.nanoTime();
+            retransformBatch(batch);
+            long duration = System.nanoTime() - start;
+            instrumentationStats.addRetransformationBatch(new RetransformationBatch(batch.size(), duration));
+            i += batch.size();
+            batchSize = nextBatchSize(batch.size(), duration, maxPauseNanos);
+            if (i < classes.size()) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(maxPauseNanos);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while retransforming loaded classes, {} classes have not been retransformed", classes.size() - i);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void retransformBatch(List<Class<?>> batch) {
+        try {
+            instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+        } catch (Throwable t) {
+            if (batch.size() == 1) {
+                logger.warn("Error while retransforming {}: {}", batch.get(0).getName(), t.getMessage());
+                logger.debug(t.getMessage(), t);
+            } else {
+                // retry individually so that a single broken class does not prevent instrumenting the others in the batch
+                for (Class<?> type : batch) {
+                    retransformBatch(Collections.<Class<?>>singletonList(type));
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of classes that can be retransformed within {@code maxPauseNanos},
+     * based on the duration of the previous batch.
+     */
+    static int nextBatchSize(int batchSize, long durationNanos, long maxPauseNanos) {
+        if (durationNanos <= 0) {
+            return Math.min(MAX_BATCH_SIZE, batchSize * 2);
+        }
+        long nanosPerClass = Math.max(1, durationNanos / batchSize);
+        return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, maxPauseNanos / nanosPerClass));
+    }
+}
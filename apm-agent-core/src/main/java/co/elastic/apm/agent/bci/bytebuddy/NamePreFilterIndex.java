@@ -0,0 +1,687 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.DetachedThreadLocal;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.NegatingMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the {@linkplain co.elastic.apm.agent.sdk.ElasticApmInstrumentation#getTypeMatcherPreFilter() name-based pre-filters}
+ * of all instrumentations with a single pass over the name of a type.
+ * <p>
+ * Most pre-filters are disjunctions of {@code nameContains}, {@code nameStartsWith} and {@code nameEndsWith} matchers.
+ * The literals of all these matchers are compiled into an Aho-Corasick automaton,
+ * which finds all literals contained in a type name in one pass.
+ * An inverted index from literals to instrumentations then yields the candidate instrumentations for that type.
+ * Pre-filters that can't be decomposed into literals (for example negations, conjunctions or custom matchers)
+ * are evaluated as a boolean expression over the literal matches,
+ * where the parts that are not based on literals delegate to the original matcher.
+ * </p>
+ * <p>
+ * As all instrumentations evaluate their pre-filter for the same type one after another,
+ * the result for the last type a thread has evaluated is memoized per thread.
+ * This keeps the memoized result from being evicted by types that are loaded concurrently,
+ * and the arrays holding the result are reused for the next type of the same thread.
+ * </p>
+ */
+public class NamePreFilterIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(NamePreFilterIndex.class);
+
+    @Nullable
+    private static final Field JUNCTION_CONJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Conjunction.class, "matchers");
+    @Nullable
+    private static final Field JUNCTION_DISJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Disjunction.class, "matchers");
+    @Nullable
+    private static final Field NEGATING_MATCHER_MATCHER = getField(NegatingMatcher.class, "matcher");
+    @Nullable
+    private static final Field NAME_MATCHER_MATCHER = getField(NameMatcher.class, "matcher");
+    @Nullable
+    private static final Field STRING_MATCHER_VALUE = getField(StringMatcher.class, "value");
+    @Nullable
+    private static final Field STRING_MATCHER_MODE = getField(StringMatcher.class, "mode");
+    @Nullable
+    private static final Field BOOLEAN_MATCHER_MATCHES = getField(BooleanMatcher.class, "matches");
+
+    private final int size;
+    /**
+     * The instrumentations whose pre-filter is always {@code true}
+     */
+    private final long[] alwaysCandidates;
+    /**
+     * The pre-filters that are not a simple disjunction of literals, indexed by instrumentation.
+     * {@code null} for instrumentations whose pre-filter is covered by {@link #literalToInstrumentations}.
+     */
+    private final Node[] expressions;
+    private final int[] expressionIds;
+    private final StringMatcher.Mode[] literalModes;
+    private final int[][] literalToInstrumentations;
+    private final Automaton automaton;
+    private final DetachedThreadLocal<Evaluation> lastEvaluation = WeakConcurrent.buildThreadLocal();
+
+    private NamePreFilterIndex(int size, long[] alwaysCandidates, Node[] expressions, StringMatcher.Mode[] literalModes,
+                               int[][] literalToInstrumentations, Automaton automaton) {
+        this.size = size;
+        this.alwaysCandidates = alwaysCandidates;
+        this.expressions = expressions;
+        this.literalModes = literalModes;
+        this.literalToInstrumentations = literalToInstrumentations;
+        this.automaton = automaton;
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < expressions.length; i++) {
+            if (expressions[i] != null) {
+                ids.add(i);
+            }
+        }
+        this.expressionIds = new int[ids.size()];
+        for (int i = 0; i < expressionIds.length; i++) {
+            expressionIds[i] = ids.get(i);
+        }
+    }
+
+    /**
+     * @param preFilters the pre-filters of the instrumentations, the index in the list is used as the id of the instrumentation
+     * @return the compiled index
+     */
+    @SuppressWarnings("unchecked")
+    public static NamePreFilterIndex compile(List<? extends ElementMatcher<? super NamedElement>> preFilters) {
+        Literals literals = new Literals();
+        int size = preFilters.size();
+        long[] alwaysCandidates = new long[words(size)];
+        Node[] expressions = new Node[size];
+        List<List<Integer>> literalToInstrumentations = new ArrayList<>();
+        for (int id = 0; id < size; id++) {
+            Node node = decompose((ElementMatcher<? super NamedElement>) preFilters.get(id), literals);
+            int[] disjunction = node.getLiteralDisjunction();
+            if (node == Constant.TRUE) {
+                set(alwaysCandidates, id);
+            } else if (disjunction != null) {
+                for (int literal : disjunction) {
+                    while (literalToInstrumentations.size() <= literal) {
+                        literalToInstrumentations.add(new ArrayList<Integer>());
+                    }
+                    literalToInstrumentations.get(literal).add(id);
+                }
+            } else if (node != Constant.FALSE) {
+                expressions[id] = node;
+            }
+        }
+        int[][] inverted = new int[literals.size()][];
+        for (int literal = 0; literal < inverted.length; literal++) {
+            List<Integer> ids = literal < literalToInstrumentations.size() ? literalToInstrumentations.get(literal) : new ArrayList<Integer>();
+            inverted[literal] = new int[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                inverted[literal][i] = ids.get(i);
+            }
+        }
+        NamePreFilterIndex index = new NamePreFilterIndex(size, alwaysCandidates, expressions, literals.getModes(), inverted, literals.buildAutomaton());
+        logger.debug("Compiled the pre-filters of {} instrumentations into an automaton of {} literals and {} states, {} pre-filters need to be evaluated individually",
+            size, inverted.length, index.automaton.getStateCount(), index.expressionIds.length);
+        return index;
+    }
+
+    /**
+     * @param id the id of the instrumentation
+     * @return a matcher that is equivalent to the pre-filter of the instrumentation with the provided id
+     */
+    public ElementMatcher.Junction<NamedElement> forInstrumentation(final int id) {
+        return new ElementMatcher.Junction.AbstractBase<NamedElement>() {
+            @Override
+            public boolean matches(NamedElement target) {
+                return isCandidate(id, target);
+            }
+        };
+    }
+
+    /**
+     * @return a matcher for types that don't pass the pre-filter of any instrumentation
+     */
+    public ElementMatcher.Junction<NamedElement> withoutCandidates() {
+        return new ElementMatcher.Junction.AbstractBase<NamedElement>() {
+            @Override
+            public boolean matches(NamedElement target) {
+                return !hasCandidates(target);
+            }
+        };
+    }
+
+    public boolean isCandidate(int id, NamedElement element) {
+        return isSet(evaluate(element).candidates, id);
+    }
+
+    public boolean hasCandidates(NamedElement element) {
+        for (long word : evaluate(element).candidates) {
+            if (word != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Evaluation evaluate(NamedElement element) {
+        Evaluation evaluation = lastEvaluation.get();
+        if (evaluation == null) {
+            evaluation = new Evaluation(words(literalModes.length), alwaysCandidates.length);
+            lastEvaluation.set(evaluation);
+        }
+        if (evaluation.element == element) {
+            return evaluation;
+        }
+        // in case an expression evaluates another element on the same thread
+        evaluation.element = null;
+        String name = element.getActualName();
+        long[] literalMatches = evaluation.literalMatches;
+        long[] literalCandidates = evaluation.literalCandidates;
+        if (!name.equals(evaluation.name)) {
+            evaluation.name = null;
+            automaton.findLiterals(name, literalModes, literalMatches);
+            System.arraycopy(alwaysCandidates, 0, literalCandidates, 0, literalCandidates.length);
+            for (int literal = nextSetBit(literalMatches, 0); literal >= 0; literal = nextSetBit(literalMatches, literal + 1)) {
+                for (int id : literalToInstrumentations[literal]) {
+                    set(literalCandidates, id);
+                }
+            }
+            evaluation.name = name;
+        }
+        long[] candidates = evaluation.candidates;
+        System.arraycopy(literalCandidates, 0, candidates, 0, candidates.length);
+        for (int id : expressionIds) {
+            if (expressions[id].matches(literalMatches, element)) {
+                set(candidates, id);
+            }
+        }
+        evaluation.element = element;
+        return evaluation;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of pre-filters that can't be answered by the inverted index alone
+     */
+    public int getExpressionCount() {
+        return expressionIds.length;
+    }
+
+    public int getLiteralCount() {
+        return literalModes.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Node decompose(ElementMatcher<? super NamedElement> matcher, Literals literals) {
+        try {
+            if (matcher instanceof BooleanMatcher && BOOLEAN_MATCHER_MATCHES != null) {
+                return BOOLEAN_MATCHER_MATCHES.getBoolean(matcher) ? Constant.TRUE : Constant.FALSE;
+            }
+            if (matcher instanceof NameMatcher && NAME_MATCHER_MATCHER != null) {
+                Object stringMatcher = NAME_MATCHER_MATCHER.get(matcher);
+                if (stringMatcher instanceof StringMatcher && STRING_MATCHER_VALUE != null && STRING_MATCHER_MODE != null) {
+                    String value = (String) STRING_MATCHER_VALUE.get(stringMatcher);
+                    StringMatcher.Mode mode = (StringMatcher.Mode) STRING_MATCHER_MODE.get(stringMatcher);
+                    if (isLiteralMode(mode)) {
+                        if (value.isEmpty()) {
+                            return mode == StringMatcher.Mode.EQUALS_FULLY ? new Opaque(matcher) : Constant.TRUE;
+                        }
+                        return new Literal(literals.add(value, mode));
+                    }
+                }
+                return new Opaque(matcher);
+            }
+            if (matcher instanceof ElementMatcher.Junction.Conjunction && JUNCTION_CONJUNCTION_MATCHERS != null) {
+                return new And(decomposeAll((List<ElementMatcher<? super NamedElement>>) JUNCTION_CONJUNCTION_MATCHERS.get(matcher), literals));
+            }
+            if (matcher instanceof ElementMatcher.Junction.Disjunction && JUNCTION_DISJUNCTION_MATCHERS != null) {
+                return new Or(decomposeAll((List<ElementMatcher<? super NamedElement>>) JUNCTION_DISJUNCTION_MATCHERS.get(matcher), literals));
+            }
+            if (matcher instanceof NegatingMatcher && NEGATING_MATCHER_MATCHER != null) {
+                return new Not(decompose((ElementMatcher<? super NamedElement>) NEGATING_MATCHER_MATCHER.get(matcher), literals));
+            }
+        } catch (Exception e) {
+            logger.debug("Can't decompose pre-filter {}: {}", matcher, e.getMessage());
+        }
+        return new Opaque(matcher);
+    }
+
+    private static Node[] decomposeAll(List<ElementMatcher<? super NamedElement>> matchers, Literals literals) {
+        Node[] nodes = new Node[matchers.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = decompose(matchers.get(i), literals);
+        }
+        return nodes;
+    }
+
+    private static boolean isLiteralMode(StringMatcher.Mode mode) {
+        return mode == StringMatcher.Mode.CONTAINS
+            || mode == StringMatcher.Mode.STARTS_WITH
+            || mode == StringMatcher.Mode.ENDS_WITH
+            || mode == StringMatcher.Mode.EQUALS_FULLY;
+    }
+
+    @Nullable
+    private static Field getField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            logger.debug("Can't access {}#{}, pre-filters using this matcher are evaluated individually", type.getName(), name);
+            return null;
+        }
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static int nextSetBit(long[] bits, int fromIndex) {
+        int wordIndex = fromIndex >>> 6;
+        if (wordIndex >= bits.length) {
+            return -1;
+        }
+        long word = bits[wordIndex] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == bits.length) {
+                return -1;
+            }
+            word = bits[wordIndex];
+        }
+    }
+
+    /**
+     * The result of the last evaluation of a thread, which is reused for the next one
+     */
+    private static class Evaluation {
+        /**
+         * The element the expressions have been evaluated for.
+         * They may contain arbitrary matchers which can't be assumed to only depend on the name of the element.
+         */
+        @Nullable
+        private NamedElement element;
+        @Nullable
+        private String name;
+        private final long[] literalMatches;
+        /**
+         * The candidates that only depend on the name
+         */
+        private final long[] literalCandidates;
+        private final long[] candidates;
+
+        private Evaluation(int literalWords, int candidateWords) {
+            this.literalMatches = new long[literalWords];
+            this.literalCandidates = new long[candidateWords];
+            this.candidates = new long[candidateWords];
+        }
+    }
+
+    /**
+     * The distinct combinations of string and {@link StringMatcher.Mode} used in the pre-filters.
+     * A string that is used with different modes is only added once to the automaton.
+     */
+    private static class Literals {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<StringMatcher.Mode> modes = new ArrayList<>();
+        private final List<String> patterns = new ArrayList<>();
+        private final Map<String, List<Integer>> literalsByPattern = new HashMap<>();
+
+        int add(String value, StringMatcher.Mode mode) {
+            String key = mode.name() + ':' + value;
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = modes.size();
+                ids.put(key, id);
+                modes.add(mode);
+                List<Integer> literals = literalsByPattern.get(value);
+                if (literals == null) {
+                    literals = new ArrayList<>();
+                    literalsByPattern.put(value, literals);
+                    patterns.add(value);
+                }
+                literals.add(id);
+            }
+            return id;
+        }
+
+        int size() {
+            return modes.size();
+        }
+
+        StringMatcher.Mode[] getModes() {
+            return modes.toArray(new StringMatcher.Mode[0]);
+        }
+
+        Automaton buildAutomaton() {
+            int[][] patternLiterals = new int[patterns.size()][];
+            for (int i = 0; i < patterns.size(); i++) {
+                List<Integer> literals = literalsByPattern.get(patterns.get(i));
+                patternLiterals[i] = new int[literals.size()];
+                for (int j = 0; j < literals.size(); j++) {
+                    patternLiterals[i][j] = literals.get(j);
+                }
+            }
+            return Automaton.build(patterns, patternLiterals);
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton that finds all occurrences of a set of patterns in a single pass over the input.
+     * The failure links are resolved when building the automaton so that each character of the input requires exactly one transition.
+     * To keep the transition table small, it only has columns for the characters that occur in any of the patterns.
+     */
+    static class Automaton {
+        private static final int[] NO_OUTPUT = new int[0];
+
+        /**
+         * Maps a character to its column in the transition table, {@code 0} for characters that don't occur in any pattern
+         */
+        private final int[] charClasses;
+        private final int alphabetSize;
+        private final int[] transitions;
+        private final int[][] outputs;
+        private final int[] patternLengths;
+        private final int[][] patternLiterals;
+
+        private Automaton(int[] charClasses, int alphabetSize, int[] transitions, int[][] outputs,
+                          int[] patternLengths, int[][] patternLiterals) {
+            this.charClasses = charClasses;
+            this.alphabetSize = alphabetSize;
+            this.transitions = transitions;
+            this.outputs = outputs;
+            this.patternLengths = patternLengths;
+            this.patternLiterals = patternLiterals;
+        }
+
+        static Automaton build(List<String> patterns, int[][] patternLiterals) {
+            int maxChar = -1;
+            for (String pattern : patterns) {
+                for (int i = 0; i < pattern.length(); i++) {
+                    maxChar = Math.max(maxChar, pattern.charAt(i));
+                }
+            }
+            int[] charClasses = new int[maxChar + 1];
+            int alphabetSize = 1;
+            for (String pattern : patterns) {
+                for (int i = 0; i < pattern.length(); i++) {
+                    if (charClasses[pattern.charAt(i)] == 0) {
+                        charClasses[pattern.charAt(i)] = alphabetSize++;
+                    }
+                }
+            }
+
+            // the trie of all patterns, -1 denotes a missing edge
+            List<int[]> trie = new ArrayList<>();
+            List<List<Integer>> outputs = new ArrayList<>();
+            trie.add(newRow(alphabetSize));
+            outputs.add(new ArrayList<Integer>());
+            int[] patternLengths = new int[patterns.size()];
+            for (int pattern = 0; pattern < patterns.size(); pattern++) {
+                String value = patterns.get(pattern);
+                patternLengths[pattern] = value.length();
+                int state = 0;
+                for (int i = 0; i < value.length(); i++) {
+                    int charClass = charClasses[value.charAt(i)];
+                    if (trie.get(state)[charClass] < 0) {
+                        trie.get(state)[charClass] = trie.size();
+                        trie.add(newRow(alphabetSize));
+                        outputs.add(new ArrayList<Integer>());
+                    }
+                    state = trie.get(state)[charClass];
+                }
+                outputs.get(state).add(pattern);
+            }
+
+            // breadth-first, so that the transitions of the failure state are complete before they are needed
+            int states = trie.size();
+            int[] transitions = new int[states * alphabetSize];
+            int[] failure = new int[states];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int charClass = 1; charClass < alphabetSize; charClass++) {
+                int child = trie.get(0)[charClass];
+                if (child > 0) {
+                    transitions[charClass] = child;
+                    queue[tail++] = child;
+                }
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                outputs.get(state).addAll(outputs.get(failure[state]));
+                for (int charClass = 1; charClass < alphabetSize; charClass++) {
+                    int child = trie.get(state)[charClass];
+                    int fallback = transitions[failure[state] * alphabetSize + charClass];
+                    if (child > 0) {
+                        failure[child] = fallback;
+                        transitions[state * alphabetSize + charClass] = child;
+                        queue[tail++] = child;
+                    } else {
+                        transitions[state * alphabetSize + charClass] = fallback;
+                    }
+                }
+            }
+
+            int[][] outputArrays = new int[states][];
+            for (int state = 0; state < states; state++) {
+                List<Integer> output = outputs.get(state);
+                outputArrays[state] = output.isEmpty() ? NO_OUTPUT : new int[output.size()];
+                for (int i = 0; i < output.size(); i++) {
+                    outputArrays[state][i] = output.get(i);
+                }
+            }
+            return new Automaton(charClasses, alphabetSize, transitions, outputArrays, patternLengths, patternLiterals);
+        }
+
+        private static int[] newRow(int alphabetSize) {
+            int[] row = new int[alphabetSize];
+            Arrays.fill(row, -1);
+            return row;
+        }
+
+        /**
+         * @return a bit set of the literals that match the input, taking the {@link StringMatcher.Mode} of the literal into account
+         */
+        /**
+         * @param matches receives the literals contained in the input, must have a bit for each literal
+         */
+        void findLiterals(String input, StringMatcher.Mode[] literalModes, long[] matches) {
+            Arrays.fill(matches, 0);
+            int length = input.length();
+            int state = 0;
+            for (int i = 0; i < length; i++) {
+                char c = input.charAt(i);
+                state = c < charClasses.length ? transitions[state * alphabetSize + charClasses[c]] : 0;
+                int[] output = outputs[state];
+                for (int j = 0; j < output.length; j++) {
+                    int pattern = output[j];
+                    boolean atStart = i + 1 == patternLengths[pattern];
+                    boolean atEnd = i + 1 == length;
+                    for (int literal : patternLiterals[pattern]) {
+                        StringMatcher.Mode mode = literalModes[literal];
+                        if (mode == StringMatcher.Mode.CONTAINS
+                            || mode == StringMatcher.Mode.STARTS_WITH && atStart
+                            || mode == StringMatcher.Mode.ENDS_WITH && atEnd
+                            || mode == StringMatcher.Mode.EQUALS_FULLY && atStart && atEnd) {
+                            set(matches, literal);
+                        }
+                    }
+                }
+            }
+        }
+
+        int getStateCount() {
+            return outputs.length;
+        }
+    }
+
+    private abstract static class Node {
+
+        abstract boolean matches(long[] literalMatches, NamedElement element);
+
+        /**
+         * @return the literals if this node is a literal or a disjunction of literals, {@code null} otherwise
+         */
+        @Nullable
+        int[] getLiteralDisjunction() {
+            return null;
+        }
+    }
+
+    private static class Constant extends Node {
+        static final Constant TRUE = new Constant(true);
+        static final Constant FALSE = new Constant(false);
+
+        private final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            return value;
+        }
+    }
+
+    private static class Literal extends Node {
+        private final int literal;
+
+        private Literal(int literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            return isSet(literalMatches, literal);
+        }
+
+        @Override
+        int[] getLiteralDisjunction() {
+            return new int[]{literal};
+        }
+    }
+
+    private static class Opaque extends Node {
+        private final ElementMatcher<? super NamedElement> matcher;
+
+        private Opaque(ElementMatcher<? super NamedElement> matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            return matcher.matches(element);
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node node;
+
+        private Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            return !node.matches(literalMatches, element);
+        }
+    }
+
+    private static class And extends Node {
+        private final Node[] nodes;
+
+        private And(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            for (Node node : nodes) {
+                if (!node.matches(literalMatches, element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends Node {
+        private final Node[] nodes;
+
+        private Or(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matches(long[] literalMatches, NamedElement element) {
+            for (Node node : nodes) {
+                if (node.matches(literalMatches, element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int[] getLiteralDisjunction() {
+            List<Integer> literals = new ArrayList<>();
+            for (Node node : nodes) {
+                int[] disjunction = node.getLiteralDisjunction();
+                if (disjunction == null) {
+                    return null;
+                }
+                for (int literal : disjunction) {
+                    literals.add(literal);
+                }
+            }
+            int[] result = new int[literals.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = literals.get(i);
+            }
+            return result;
+        }
+    }
+}
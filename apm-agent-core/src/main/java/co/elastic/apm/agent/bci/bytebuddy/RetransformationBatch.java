@@ -0,0 +1,50 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+/**
+ * The timing of retransforming a batch of classes that have been loaded before the agent got attached.
+ */
+public class RetransformationBatch {
+
+    private final int size;
+    private final long durationNanos;
+
+    public RetransformationBatch(int size, long durationNanos) {
+        this.size = size;
+        this.durationNanos = durationNanos;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public static String getTableHeader() {
+        return String.format("| %-10s | %-15s | %-15s |", "Classes", "Duration ns", "Per class ns");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("| %,10d | %,15d | %,15d |", size, durationNanos, size > 0 ? durationNanos / size : 0);
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.DetachedThreadLocal;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the classes that did not match any instrumentation across restarts of the JVM,
+ * so that the type matching can be skipped for them on subsequent starts.
+ * <p>
+ * A class is identified by a 64 bit hash of its name, a fingerprint of the jar it has been loaded from,
+ * and a fingerprint of the class path of its class loader.
+ * The jar fingerprint consists of its location, size and modification date which avoids having to read the jar at startup.
+ * Classes that are not loaded from a jar file (for example from a directory or generated at runtime) are never cached.
+ * </p>
+ * <p>
+ * Whether a class matches also depends on classes outside of its jar,
+ * such as its supertypes and the classes the class loader matchers of the instrumentations look for.
+ * Therefore, the class path fingerprint includes the jars of the class loader and of all of its parents.
+ * It's supported for the built-in class loaders and for {@link URLClassLoader}s.
+ * Classes of other class loaders are never cached.
+ * Changes to the contents of directories on the class path are not detected.
+ * </p>
+ * <p>
+ * The cache file is only used if its fingerprint equals the {@link #fingerprint(List) fingerprint} of the current agent setup.
+ * The fingerprint is derived from the agent version, the enabled instrumentations and the options that control
+ * which classes are instrumented, so that a change in any of these invalidates the whole file.
+ * </p>
+ * <p>
+ * This class acts as the last {@linkplain AgentBuilder#ignore(AgentBuilder.RawMatcher) ignore matcher},
+ * which skips known non-matching classes,
+ * and as a {@link AgentBuilder.Listener} that records the classes that have been ignored after evaluating all matchers.
+ * </p>
+ */
+public class TypeMatchingCache extends AgentBuilder.Listener.Adapter implements AgentBuilder.RawMatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(TypeMatchingCache.class);
+
+    private static final int MAGIC = 0x454C544D;
+    private static final int FORMAT_VERSION = 2;
+    /**
+     * Caps the size of the file to 8MiB
+     */
+    static final int MAX_ENTRIES = 1 << 20;
+    private static final int MAX_CACHED_LOCATIONS = 16 * 1024;
+    private static final long NOT_CACHEABLE = 0;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final String fingerprint;
+    /**
+     * Sorted hashes of the classes which did not match any instrumentation in a previous run
+     */
+    private final long[] knownNonMatches;
+    private final long averageMatchingNanosOfPreviousRuns;
+    private final Set<Long> recordedNonMatches = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final ConcurrentMap<String, Long> locationFingerprints = new ConcurrentHashMap<>();
+    private final WeakMap<ClassLoader, Long> classLoaderFingerprints = WeakConcurrent.buildMap();
+    @Nullable
+    private volatile Long builtInClassLoaderFingerprint;
+    private final DetachedThreadLocal<Candidate> currentCandidate = WeakConcurrent.buildThreadLocal();
+    private final AtomicLong skippedTypes = new AtomicLong();
+    private final AtomicLong recordedMatchingNanos = new AtomicLong();
+
+    private TypeMatchingCache(File file, String fingerprint, long[] knownNonMatches, long averageMatchingNanosOfPreviousRuns) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.knownNonMatches = knownNonMatches;
+        this.averageMatchingNanosOfPreviousRuns = averageMatchingNanosOfPreviousRuns;
+    }
+
+    /**
+     * Loads the cache from the provided file.
+     * If the file does not exist, can't be read, or has been written with a different fingerprint, the returned cache is empty.
+     *
+     * @param file        the cache file
+     * @param fingerprint the fingerprint of the current agent setup, see {@link #fingerprint(List)}
+     * @return a cache that is backed by the provided file
+     */
+    public static TypeMatchingCache load(File file, String fingerprint) {
+        long[] knownNonMatches = new long[0];
+        long averageMatchingNanos = 0;
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    logger.info("Ignoring type matching cache {} as it has an unknown format", file);
+                } else if (!fingerprint.equals(in.readUTF())) {
+                    logger.info("Ignoring type matching cache {} as the agent version or instrumentation settings have changed", file);
+                } else {
+                    averageMatchingNanos = in.readLong();
+                    int size = in.readInt();
+                    if (size < 0 || size > MAX_ENTRIES) {
+                        throw new IOException("Invalid number of entries: " + size);
+                    }
+                    long[] entries = new long[size];
+                    for (int i = 0; i < size; i++) {
+                        entries[i] = in.readLong();
+                    }
+                    // the file is written in order but it's cheap to guard against manual modifications
+                    Arrays.sort(entries);
+                    knownNonMatches = entries;
+                    logger.debug("Loaded {} entries from type matching cache {}", size, file);
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to read type matching cache {}: {}", file, e.getMessage());
+                logger.debug(e.getMessage(), e);
+                knownNonMatches = new long[0];
+                averageMatchingNanos = 0;
+            }
+        }
+        return new TypeMatchingCache(file, fingerprint, knownNonMatches, averageMatchingNanos);
+    }
+
+    /**
+     * Creates a fingerprint of the agent setup that influences the outcome of type matching.
+     *
+     * @param components the agent version, instrumentation class names and relevant config values
+     * @return a hex string that changes if any of the components change
+     */
+    public static String fingerprint(List<String> components) {
+        long hash = FNV_OFFSET_BASIS;
+        for (String component : components) {
+            hash = hash(hash, component);
+            // separator, so that ["ab", "c"] and ["a", "bc"] lead to different fingerprints
+            hash = (hash ^ 0xff) * FNV_PRIME;
+        }
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * Returns {@code true} for classes that are known to not match any instrumentation, which makes Byte Buddy ignore them.
+     */
+    @Override
+    public boolean matches(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module,
+                           @Nullable Class<?> classBeingRedefined, @Nullable ProtectionDomain protectionDomain) {
+        long locationFingerprint = getLocationFingerprint(protectionDomain);
+        if (locationFingerprint == NOT_CACHEABLE) {
+            return false;
+        }
+        long classLoaderFingerprint = getClassLoaderFingerprint(classLoader);
+        if (classLoaderFingerprint == NOT_CACHEABLE) {
+            return false;
+        }
+        String typeName = typeDescription.getName();
+        long hash = hash(hash(locationFingerprint, classLoaderFingerprint), typeName);
+        if (Arrays.binarySearch(knownNonMatches, hash) >= 0) {
+            skippedTypes.incrementAndGet();
+            return true;
+        }
+        Candidate candidate = currentCandidate.get();
+        if (candidate == null) {
+            candidate = new Candidate();
+            currentCandidate.set(candidate);
+        }
+        candidate.typeName = typeName;
+        candidate.hash = hash;
+        candidate.startNanos = System.nanoTime();
+        return false;
+    }
+
+    /**
+     * Called when no instrumentation matched a type or when an ignore matcher excluded it.
+     * As this matcher is the last ignore matcher, a pending {@link Candidate} means that all instrumentation matchers have been evaluated.
+     */
+    @Override
+    public void onIgnored(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        Candidate candidate = currentCandidate.get();
+        if (candidate != null && candidate.typeName != null && candidate.typeName.equals(typeDescription.getName())) {
+            recordedMatchingNanos.addAndGet(System.nanoTime() - candidate.startNanos);
+            recordedNonMatches.add(candidate.hash);
+            candidate.typeName = null;
+        }
+    }
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded, DynamicType dynamicType) {
+        resetCandidate();
+    }
+
+    @Override
+    public void onComplete(String typeName, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        resetCandidate();
+    }
+
+    private void resetCandidate() {
+        Candidate candidate = currentCandidate.get();
+        if (candidate != null) {
+            candidate.typeName = null;
+        }
+    }
+
+    /**
+     * Writes the known and newly recorded non-matching classes to the cache file.
+     * The file is replaced atomically if the file system supports it so that a concurrently starting JVM does not read a partial file.
+     */
+    public void save() {
+        long[] entries = getEntriesToSave();
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile = null;
+        try {
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(fingerprint);
+                out.writeLong(getAverageMatchingNanos());
+                out.writeInt(entries.length);
+                for (long entry : entries) {
+                    out.writeLong(entry);
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.debug("Saved {} entries to type matching cache {}", entries.length, file);
+        } catch (IOException e) {
+            logger.warn("Failed to write type matching cache {}: {}", file, e.getMessage());
+            logger.debug(e.getMessage(), e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private long[] getEntriesToSave() {
+        long[] recorded = new long[recordedNonMatches.size()];
+        int size = 0;
+        for (Long hash : recordedNonMatches) {
+            if (size == recorded.length) {
+                // concurrently added
+                break;
+            }
+            recorded[size++] = hash;
+        }
+        long[] entries;
+        if (knownNonMatches.length + size <= MAX_ENTRIES) {
+            entries = Arrays.copyOf(knownNonMatches, knownNonMatches.length + size);
+            System.arraycopy(recorded, 0, entries, knownNonMatches.length, size);
+        } else {
+            // entries of outdated jars accumulate over time, start over with the entries of this run
+            entries = Arrays.copyOf(recorded, Math.min(size, MAX_ENTRIES));
+        }
+        Arrays.sort(entries);
+        return entries;
+    }
+
+    private long getAverageMatchingNanos() {
+        int recorded = recordedNonMatches.size();
+        if (recorded == 0) {
+            return averageMatchingNanosOfPreviousRuns;
+        }
+        return recordedMatchingNanos.get() / recorded;
+    }
+
+    private long getLocationFingerprint(@Nullable ProtectionDomain protectionDomain) {
+        String location = getLocation(protectionDomain);
+        if (location == null) {
+            return NOT_CACHEABLE;
+        }
+        Long fingerprint = locationFingerprints.get(location);
+        if (fingerprint == null) {
+            fingerprint = computeLocationFingerprint(location);
+            if (locationFingerprints.size() < MAX_CACHED_LOCATIONS) {
+                locationFingerprints.put(location, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    private long getClassLoaderFingerprint(@Nullable ClassLoader classLoader) {
+        if (classLoader == null) {
+            return getBuiltInClassLoaderFingerprint();
+        }
+        Long fingerprint = classLoaderFingerprints.get(classLoader);
+        if (fingerprint == null) {
+            fingerprint = computeClassLoaderFingerprint(classLoader);
+            classLoaderFingerprints.put(classLoader, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Combines the fingerprint of the parent with the class path of the provided class loader.
+     * The class path of a {@link URLClassLoader} may grow after it has been created,
+     * in which case the fingerprint only covers the class path at the time the first class has been matched.
+     */
+    private long computeClassLoaderFingerprint(ClassLoader classLoader) {
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+        for (ClassLoader builtIn = systemClassLoader.getParent(); builtIn != null; builtIn = builtIn.getParent()) {
+            if (builtIn == classLoader) {
+                return getBuiltInClassLoaderFingerprint();
+            }
+        }
+        long hash = getClassLoaderFingerprint(classLoader.getParent());
+        if (hash == NOT_CACHEABLE) {
+            return NOT_CACHEABLE;
+        }
+        hash = hash(hash, classLoader.getClass().getName());
+        if (classLoader == systemClassLoader) {
+            String classPath = PrivilegedActionUtils.getProperty("java.class.path");
+            if (classPath != null) {
+                for (String entry : classPath.split(File.pathSeparator)) {
+                    hash = hashClassPathEntry(hash, new File(entry).toURI().toString());
+                }
+            }
+        } else if (classLoader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                hash = hashClassPathEntry(hash, url.toExternalForm());
+            }
+        } else {
+            return NOT_CACHEABLE;
+        }
+        return hash != NOT_CACHEABLE ? hash : 1;
+    }
+
+    private static long hashClassPathEntry(long hash, String location) {
+        hash = hash(hash, location);
+        // directories are only hashed by their location
+        return hash(hash, computeLocationFingerprint(location));
+    }
+
+    /**
+     * The bootstrap, extension and platform class loaders only load classes of the JDK.
+     */
+    private long getBuiltInClassLoaderFingerprint() {
+        Long fingerprint = builtInClassLoaderFingerprint;
+        if (fingerprint == null) {
+            long hash = hash(FNV_OFFSET_BASIS, String.valueOf(PrivilegedActionUtils.getProperty("java.home")));
+            hash = hash(hash, String.valueOf(PrivilegedActionUtils.getProperty("java.version")));
+            builtInClassLoaderFingerprint = fingerprint = hash != NOT_CACHEABLE ? hash : 1;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns a fingerprint of the jar the provided type has been loaded from.
+     * Can be used as a {@link #fingerprint(List) fingerprint} component for instrumentations of external plugins.
+     *
+     * @param type the type to get the jar fingerprint for
+     * @return the hex encoded fingerprint of the jar or {@code "0"} if the type has not been loaded from a jar
+     */
+    public static String getJarFingerprint(Class<?> type) {
+        String location = getLocation(PrivilegedActionUtils.getProtectionDomain(type));
+        return Long.toHexString(location != null ? computeLocationFingerprint(location) : NOT_CACHEABLE);
+    }
+
+    @Nullable
+    private static String getLocation(@Nullable ProtectionDomain protectionDomain) {
+        if (protectionDomain == null) {
+            return null;
+        }
+        CodeSource codeSource = protectionDomain.getCodeSource();
+        if (codeSource == null) {
+            return null;
+        }
+        URL location = codeSource.getLocation();
+        // not using the URL as a map key as URL#hashCode may do a DNS lookup
+        return location != null ? location.toExternalForm() : null;
+    }
+
+    /**
+     * Supports plain jar files ({@code file:/app/lib/foo.jar})
+     * and jars nested in fat jars ({@code jar:file:/app/app.jar!/BOOT-INF/lib/foo.jar!/}),
+     * where the fingerprint of the outer jar is used.
+     */
+    static long computeLocationFingerprint(String location) {
+        String fileUrl = location;
+        if (fileUrl.startsWith("jar:")) {
+            int separator = fileUrl.indexOf("!/");
+            fileUrl = fileUrl.substring("jar:".length(), separator >= 0 ? separator : fileUrl.length());
+        }
+        if (!fileUrl.startsWith("file:")) {
+            return NOT_CACHEABLE;
+        }
+        File jar;
+        try {
+            jar = new File(new URL(fileUrl).toURI());
+        } catch (Exception e) {
+            return NOT_CACHEABLE;
+        }
+        if (!jar.isFile()) {
+            return NOT_CACHEABLE;
+        }
+        long hash = hash(FNV_OFFSET_BASIS, location);
+        hash = hash(hash, jar.length());
+        hash = hash(hash, jar.lastModified());
+        return hash != NOT_CACHEABLE ? hash : 1;
+    }
+
+    private static long hash(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of classes for which type matching has been skipped
+     */
+    public long getSkippedTypes() {
+        return skippedTypes.get();
+    }
+
+    /**
+     * @return the estimated matching time that has been saved by skipping known non-matching classes,
+     * based on the average matching time per class of the previous runs
+     */
+    public long getEstimatedSavedNanos() {
+        return skippedTypes.get() * averageMatchingNanosOfPreviousRuns;
+    }
+
+    /**
+     * @return the number of non-matching classes that have not been in the cache yet
+     */
+    public int getRecordedNonMatches() {
+        return recordedNonMatches.size();
+    }
+
+    public int getKnownNonMatches() {
+        return knownNonMatches.length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    private static class Candidate {
+        @Nullable
+        private String typeName;
+        private long hash;
+        private long startNanos;
+    }
+}
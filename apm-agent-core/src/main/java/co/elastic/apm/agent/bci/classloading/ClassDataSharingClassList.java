@@ -0,0 +1,264 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.classloading;
+
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Writes a class list that can be used to create a static class data sharing (CDS) archive with {@code java -Xshare:dump}
+ * that also contains the classes of the agent.
+ * <p>
+ * The JVM only archives classes of custom class loaders, like the {@code ShadedClassLoader} and the {@link IndyPluginClassLoader}s,
+ * if the class list contains the location of the class file and the ids of the super class and the interfaces.
+ * As the agent jar contains the shaded class files with a different name and extension,
+ * the class files of the agent are extracted into a separate jar.
+ * At runtime, the JVM only uses an archived class of a custom class loader if the class file that is defined has the same size and CRC32.
+ * </p>
+ * <p>
+ * Classes of the built-in class loaders are listed by name so that the JVM can load them from the runtime image or the class path.
+ * Classes that can't be archived are omitted, for example classes of other custom class loaders,
+ * classes that have been generated at runtime, and agent classes whose super types can't be archived.
+ * </p>
+ */
+public class ClassDataSharingClassList {
+
+    public static final String CLASS_LIST_FILE_NAME = "elastic-apm.classlist";
+    public static final String CLASSES_JAR_FILE_NAME = "elastic-apm-agent-classes.jar";
+    private static final int NOT_ARCHIVABLE = -1;
+
+    private final ClassLoader agentClassLoader;
+    @Nullable
+    private final ClassLoader systemClassLoader;
+    private final Set<ClassLoader> builtInClassLoaders = Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+    private final Set<File> classPath = new HashSet<>();
+    private final Map<Class<?>, Integer> ids = new IdentityHashMap<>();
+    private final Set<String> archivedAgentClasses = new HashSet<>();
+    private final List<String> lines = new ArrayList<>();
+    private final File classesJar;
+    private final JarOutputStream classesJarOutputStream;
+
+    private ClassDataSharingClassList(ClassLoader agentClassLoader, @Nullable File agentJar, File classesJar,
+                                      JarOutputStream classesJarOutputStream) {
+        this.agentClassLoader = agentClassLoader;
+        this.classesJar = classesJar;
+        this.classesJarOutputStream = classesJarOutputStream;
+        systemClassLoader = ClassLoader.getSystemClassLoader();
+        for (ClassLoader cl = systemClassLoader; cl != null; cl = cl.getParent()) {
+            builtInClassLoaders.add(cl);
+        }
+        String javaClassPath = PrivilegedActionUtils.getProperty("java.class.path");
+        if (javaClassPath != null) {
+            for (String entry : javaClassPath.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    classPath.add(new File(entry).getAbsoluteFile());
+                }
+            }
+        }
+        if (agentJar != null) {
+            // the agent jar is appended to the class path but it is not on the class path when creating the archive
+            classPath.remove(agentJar.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Writes the class list and the jar containing the class files of the agent to the provided directory.
+     *
+     * @param loadedClasses    all loaded classes, see {@link java.lang.instrument.Instrumentation#getAllLoadedClasses()}
+     * @param agentClassLoader the class loader that loads the agent
+     * @param agentJar         the agent jar, {@code null} if unknown
+     * @param dir              the directory to write the files to, created if it does not exist
+     * @return the number of agent classes that have been added to the class list
+     * @throws IOException if the files could not be written
+     */
+    public static int write(Class<?>[] loadedClasses, ClassLoader agentClassLoader, @Nullable File agentJar, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        File classesJar = new File(dir, CLASSES_JAR_FILE_NAME).getAbsoluteFile();
+        ClassDataSharingClassList classList;
+        try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(classesJar))) {
+            classList = new ClassDataSharingClassList(agentClassLoader, agentJar, classesJar, jarOutputStream);
+            for (Class<?> type : classList.sort(loadedClasses)) {
+                classList.add(type);
+            }
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, CLASS_LIST_FILE_NAME)), StandardCharsets.UTF_8)) {
+            writer.write("# Generated by the Elastic APM Java agent, see the documentation of the class_data_sharing_dir option\n");
+            for (String line : classList.lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return classList.archivedAgentClasses.size();
+    }
+
+    /**
+     * The classes of the agent class loader come first.
+     * If a plugin class loader has loaded a class with the same name, only the one from the agent class loader is archived.
+     */
+    private Class<?>[] sort(Class<?>[] loadedClasses) {
+        Class<?>[] sorted = loadedClasses.clone();
+        Arrays.sort(sorted, new Comparator<Class<?>>() {
+            @Override
+            public int compare(Class<?> c1, Class<?> c2) {
+                boolean agentClass1 = PrivilegedActionUtils.getClassLoader(c1) == agentClassLoader;
+                boolean agentClass2 = PrivilegedActionUtils.getClassLoader(c2) == agentClassLoader;
+                if (agentClass1 != agentClass2) {
+                    return agentClass1 ? -1 : 1;
+                }
+                return c1.getName().compareTo(c2.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return the id of the class in the class list or {@link #NOT_ARCHIVABLE}
+     */
+    private int add(Class<?> type) throws IOException {
+        Integer id = ids.get(type);
+        if (id != null) {
+            return id;
+        }
+        // guards against cycles, which can't happen in valid type hierarchies
+        ids.put(type, NOT_ARCHIVABLE);
+        id = addIfArchivable(type);
+        ids.put(type, id);
+        return id;
+    }
+
+    private int addIfArchivable(Class<?> type) throws IOException {
+        if (type.isArray() || type.isPrimitive() || isGenerated(type.getName())) {
+            return NOT_ARCHIVABLE;
+        }
+        String internalName = type.getName().replace('.', '/');
+        ClassLoader classLoader = PrivilegedActionUtils.getClassLoader(type);
+        if (classLoader == null || builtInClassLoaders.contains(classLoader)) {
+            if (classLoader == systemClassLoader && !isOnClassPath(type)) {
+                return NOT_ARCHIVABLE;
+            }
+            return addLine(internalName, "");
+        }
+        if (!isAgentClassLoader(classLoader) || archivedAgentClasses.contains(type.getName())) {
+            return NOT_ARCHIVABLE;
+        }
+        StringBuilder superTypes = new StringBuilder();
+        // the JVM requires a super class for interfaces of custom class loaders as well, which is always Object
+        Class<?> superClass = type.isInterface() ? Object.class : type.getSuperclass();
+        if (superClass != null) {
+            int superId = add(superClass);
+            if (superId == NOT_ARCHIVABLE) {
+                return NOT_ARCHIVABLE;
+            }
+            superTypes.append(" super: ").append(superId);
+        }
+        Class<?>[] interfaces = type.getInterfaces();
+        if (interfaces.length > 0) {
+            superTypes.append(" interfaces:");
+            for (Class<?> interfaceType : interfaces) {
+                int interfaceId = add(interfaceType);
+                if (interfaceId == NOT_ARCHIVABLE) {
+                    return NOT_ARCHIVABLE;
+                }
+                superTypes.append(' ').append(interfaceId);
+            }
+        }
+        if (!extractClassFile(classLoader, internalName)) {
+            return NOT_ARCHIVABLE;
+        }
+        archivedAgentClasses.add(type.getName());
+        return addLine(internalName, superTypes.append(" source: ").append(classesJar.getPath()).toString());
+    }
+
+    private int addLine(String internalName, String attributes) {
+        int id = lines.size();
+        lines.add(internalName + " id: " + id + attributes);
+        return id;
+    }
+
+    private boolean isAgentClassLoader(ClassLoader classLoader) {
+        return classLoader == agentClassLoader || classLoader instanceof IndyPluginClassLoader;
+    }
+
+    /**
+     * Hidden classes, lambdas and classes generated by Byte Buddy are not backed by a class file
+     */
+    private static boolean isGenerated(String name) {
+        return name.indexOf('/') >= 0 || name.contains("$$Lambda") || name.contains("$ByteBuddy$") || name.contains("$auxiliary$");
+    }
+
+    private boolean isOnClassPath(Class<?> type) {
+        ProtectionDomain protectionDomain = PrivilegedActionUtils.getProtectionDomain(type);
+        CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location == null || !"file".equals(location.getProtocol())) {
+            return false;
+        }
+        try {
+            return classPath.contains(new File(new URI(location.toString())).getAbsoluteFile());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the class file via the class loader that has defined the class.
+     * For the agent class loader, this resolves the shaded class file.
+     * For the plugin class loaders, this delegates to the class loader the plugin has been loaded from.
+     */
+    private boolean extractClassFile(ClassLoader classLoader, String internalName) throws IOException {
+        String classFileName = internalName + ".class";
+        try (InputStream classFile = classLoader.getResourceAsStream(classFileName)) {
+            if (classFile == null) {
+                return false;
+            }
+            classesJarOutputStream.putNextEntry(new JarEntry(classFileName));
+            byte[] buffer = new byte[8192];
+            for (int n = classFile.read(buffer); n != -1; n = classFile.read(buffer)) {
+                classesJarOutputStream.write(buffer, 0, n);
+            }
+            classesJarOutputStream.closeEntry();
+            return true;
+        }
+    }
+}
@@ -22,12 +22,95 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.weakconcurrent.CachedLookupKey;
 import com.blogspot.mydailyjava.weaklockfree.AbstractWeakConcurrentMap;
 
+import javax.annotation.Nullable;
+import java.lang.ref.Reference;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * A weak map that expunges the entries of collected keys incrementally.
+ * <p>
+ * Each map is the {@link java.lang.ref.ReferenceQueue} of its own keys.
+ * Every operation first removes at most {@link #MAX_EXPUNGED_ENTRIES_PER_OPERATION} entries whose keys have been collected.
+ * As each entry is added by exactly one operation, the stale entries can't pile up faster than they are expunged.
+ * As reads expunge as well, a map that is not modified anymore still releases its stale entries and their values.
+ * This bounds the cleanup work per operation, so that the {@link WeakMapCleaner} only has to sweep all maps rarely,
+ * as a backstop for maps that are not accessed anymore.
+ * If there are no stale entries, the check is a single read of the head of the reference queue.
+ * </p>
+ */
 public class CachedKeyWeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, CachedLookupKey<K>> implements WeakMap<K, V> {
 
+    static final int MAX_EXPUNGED_ENTRIES_PER_OPERATION = 16;
+
+    private final ConcurrentMap<WeakKey<K>, V> target;
+
     CachedKeyWeakConcurrentMap(ConcurrentMap<WeakKey<K>, V> target) {
         super(target);
+        this.target = target;
+    }
+
+    @Nullable
+    @Override
+    public V get(K key) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.get(key);
+    }
+
+    @Nullable
+    @Override
+    public V getIfPresent(K key) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.getIfPresent(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.containsKey(key);
+    }
+
+    @Nullable
+    @Override
+    public V put(K key, V value) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.put(key, value);
+    }
+
+    @Nullable
+    @Override
+    public V putIfAbsent(K key, V value) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.putIfAbsent(key, value);
+    }
+
+    @Nullable
+    @Override
+    public V putIfProbablyAbsent(K key, V value) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.putIfProbablyAbsent(key, value);
+    }
+
+    @Nullable
+    @Override
+    public V remove(K key) {
+        expungeStaleEntries(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+        return super.remove(key);
+    }
+
+    /**
+     * Removes the entries of up to {@code maxEntries} collected keys.
+     *
+     * @param maxEntries the maximum number of entries to remove
+     * @return the number of removed entries
+     */
+    int expungeStaleEntries(int maxEntries) {
+        int expunged = 0;
+        Reference<?> reference;
+        while (expunged < maxEntries && (reference = poll()) != null) {
+            target.remove(reference);
+            expunged++;
+        }
+        return expunged;
     }
 
     @Override
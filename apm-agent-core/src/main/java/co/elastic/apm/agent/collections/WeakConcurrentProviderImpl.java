@@ -102,6 +102,10 @@ public class WeakConcurrentProviderImpl implements WeakConcurrent.WeakConcurrent
      * causing the entries of already collected keys to be removed.
      * Avoids that the maps take unnecessary space for the {@link java.util.Map.Entry}, the {@link java.lang.ref.WeakReference} and the value.
      * Failing to call this does not mean the keys cannot be collected.
+     * <p>
+     * The maps expunge stale entries incrementally whenever they are accessed.
+     * This full sweep is called regularly by the {@link WeakMapCleaner} as a backstop for maps that are not accessed anymore.
+     * </p>
      */
     public static void expungeStaleEntries() {
         for (AbstractWeakConcurrentMap<?, ?, ?> weakMap : registeredMaps) {
@@ -28,10 +28,17 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Regularly calls {@link WeakConcurrentProviderImpl#expungeStaleEntries()}
+ * Calls {@link WeakConcurrentProviderImpl#expungeStaleEntries()} once a minute.
+ * <p>
+ * The weak maps expunge stale entries incrementally whenever they are accessed.
+ * This low-frequency sweep is a backstop for maps that are not accessed anymore,
+ * so that they still release the entries and values of collected keys.
+ * </p>
  */
 public class WeakMapCleaner extends AbstractLifecycleListener implements Runnable {
 
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
     private static final Logger logger = LoggerFactory.getLogger(WeakMapCleaner.class);
 
     private final ScheduledThreadPoolExecutor scheduler;
@@ -42,7 +49,7 @@ public class WeakMapCleaner extends AbstractLifecycleListener implements Runnabl
 
     @Override
     public void start(ElasticApmTracer tracer) {
-        scheduler.scheduleWithFixedDelay(this, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     @Override
@@ -239,6 +239,52 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> sampleTargetPerSecond = ConfigurationOption.doubleOption()
+        .key("transaction_sample_target_per_second")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("The target number of sampled root transactions per second. " +
+            "When set to a value greater than zero, the agent adapts the sample rate based on the rate of root transactions " +
+            "observed over the last 10 seconds, so that about this many transactions per second are sampled. " +
+            "The effective sample rate never exceeds <<config-transaction-sample-rate>>.\n\n" +
+            "The target applies to each agent, that is, to each service in the typical case of one service per JVM. " +
+            "Continued traces follow the sampling decision of the caller and are not counted.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 1_000_000d))
+        .buildWithDefault(0d);
+
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("When enabled, spans of root transactions that have not been sampled according to <<config-transaction-sample-rate>> " +
+            "are buffered in memory until their transaction ends. " +
+            "The full trace is then reported if the transaction failed, captured an error, or is slower than the " +
+            "<<config-tail-sampling-duration-percentile>> of recent transactions. Otherwise, the buffered spans are discarded.\n\n" +
+            "The decision is local to this agent: downstream services still see the trace as unsampled.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> tailSamplingBufferSize = ConfigurationOption.integerOption()
+        .key("tail_sampling_buffer_size")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("The maximum number of spans that are buffered while waiting for the tail sampling decision of their transaction. " +
+            "Transactions that start while the buffer is full are not considered for tail sampling, " +
+            "and spans that end while the buffer is full are dropped.")
+        .dynamic(false)
+        .addValidator(isInRange(1, 1_000_000))
+        .buildWithDefault(10_000);
+
+    private final ConfigurationOption<Double> tailSamplingDurationPercentile = ConfigurationOption.doubleOption()
+        .key("tail_sampling_duration_percentile")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("Buffered traces of transactions whose duration is at or above this percentile of recent transaction durations are kept.")
+        .dynamic(false)
+        .addValidator(isInRange(0d, 100d))
+        .buildWithDefault(99d);
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -506,6 +552,82 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "is available somewhere in the classpath where it never gets loaded unless this matching is applied.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<String> typeMatchingCacheFile = ConfigurationOption.stringOption()
+        .key("type_matching_cache_file")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("When set, the agent persists the names of the classes that did not match any instrumentation to this file \n" +
+            "when the JVM shuts down and skips the type matching for these classes on subsequent starts.\n" +
+            "This reduces the startup overhead of the agent for applications with many classes.\n" +
+            "\n" +
+            "Entries are keyed by the name of the class, the jar it has been loaded from, and the class path of its class loader\n" +
+            "and of the parents of the class loader. Jars are identified by their location, size and modification date.\n" +
+            "Classes that are not loaded from a jar file, and classes of class loaders other than the built-in class loaders\n" +
+            "and `java.net.URLClassLoader`, are always matched.\n" +
+            "The whole file is discarded when the agent version, the set of enabled instrumentations or the options that control\n" +
+            "which classes are instrumented change.\n" +
+            "Changes to the contents of directories on the class path, and jars added to a class loader after it has loaded its first class,\n" +
+            "are not detected. Delete the file after such changes.\n" +
+            "\n" +
+            "The file must be writable by the JVM. When the option is empty, the cache is disabled.")
+        .dynamic(false)
+        .buildWithDefault("");
+
+    private final ConfigurationOption<Integer> attachRetransformationThreads = ConfigurationOption.integerOption()
+        .key("attach_retransformation_threads")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("When the agent is attached at runtime, the classes that have already been loaded need to be retransformed.\n" +
+            "By default, the agent matches all loaded classes sequentially on the attaching thread and retransforms the matching\n" +
+            "classes in batches of 100, with a pause of 100ms in-between the batches.\n" +
+            "\n" +
+            "When set to a value greater than 0, the loaded classes are matched in parallel using the configured number of threads.\n" +
+            "The matching classes are then retransformed in batches whose size adapts so that retransforming a single batch\n" +
+            "takes no longer than <<config-attach-retransformation-max-pause, `attach_retransformation_max_pause`>>.\n" +
+            "\n" +
+            "This option has no effect when the agent is started with the `-javaagent` flag.")
+        .addValidator(isInRange(0, 64))
+        .dynamic(false)
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<TimeDuration> attachRetransformationMaxPause = TimeDurationValueConverter.durationOption("ms")
+        .key("attach_retransformation_max_pause")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("The targeted maximum duration of retransforming a single batch of classes when\n" +
+            "<<config-attach-retransformation-threads, `attach_retransformation_threads`>> is enabled.\n" +
+            "The retransformation of a batch causes a stop-the-world pause of the application.\n" +
+            "The agent also waits this long in-between the batches, so that the application can make progress.")
+        .addValidator(isInRange(TimeDuration.of("1ms"), TimeDuration.of("10s")))
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<String> classDataSharingDir = ConfigurationOption.stringOption()
+        .key("class_data_sharing_dir")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance", "added[1.43.0]", "experimental")
+        .description("When set, the agent writes the files that are needed to create a class data sharing (CDS) archive to this directory\n" +
+            "when the JVM shuts down. An archive reduces the startup time and the metaspace footprint of the agent,\n" +
+            "as the JVM maps the already parsed classes of the agent from the archive instead of loading them from the agent jar.\n" +
+            "\n" +
+            "The JVM only archives classes of custom class loaders, like the ones of the agent, in static archives that are created from a class list.\n" +
+            "Dynamic archives (`-XX:ArchiveClassesAtExit`) can only be created while a Java agent is attached with a diagnostic flag that is meant for testing.\n" +
+            "Therefore, the agent extracts the classes it has loaded into `elastic-apm-agent-classes.jar` and writes the class list `elastic-apm.classlist`,\n" +
+            "which also contains the JDK and application classes that have been loaded.\n" +
+            "\n" +
+            "To create and use the archive:\n" +
+            "\n" +
+            ". Start the application with this option set and let it handle some requests (training run).\n" +
+            ". After the application has been stopped, create the archive with the same Java version and class path:\n" +
+            "  `java -Xshare:dump -XX:SharedClassListFile=<dir>/elastic-apm.classlist -XX:SharedArchiveFile=<dir>/elastic-apm.jsa -cp <class path>`\n" +
+            ". Start the application with `-XX:SharedArchiveFile=<dir>/elastic-apm.jsa` and without this option.\n" +
+            "\n" +
+            "The JVM verifies that the archived classes are identical to the ones that are loaded and ignores the archive otherwise,\n" +
+            "for example after an update of the agent. Requires Java 11 or later.\n" +
+            "When the option is empty, no files are written.")
+        .dynamic(false)
+        .buildWithDefault("");
+
     private final ConfigurationOption<List<WildcardMatcher>> classesExcludedFromInstrumentation = ConfigurationOption
         .builder(new ValueConverter<List<WildcardMatcher>>() {
 
@@ -866,6 +988,16 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return Arrays.asList(instrument, traceMethods, enabledInstrumentations, disabledInstrumentations, enableExperimentalInstrumentations);
     }
 
+    /**
+     * @return the options which influence whether a class matches an instrumentation
+     */
+    public List<ConfigurationOption<?>> getTypeMatchingOptions() {
+        List<ConfigurationOption<?>> options = new ArrayList<ConfigurationOption<?>>(getInstrumentationOptions());
+        options.addAll(Arrays.<ConfigurationOption<?>>asList(classesExcludedFromInstrumentation, defaultClassesExcludedFromInstrumentation,
+            typeMatchingWithNamePreFilter, classLoadingMatchingPreFilter, instrumentAncientBytecode));
+        return options;
+    }
+
     @Override
     public String getServiceName() {
         return serviceName.get();
@@ -907,6 +1039,22 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return sampleRate;
     }
 
+    public ConfigurationOption<Double> getSampleTargetPerSecond() {
+        return sampleTargetPerSecond;
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public int getTailSamplingBufferSize() {
+        return tailSamplingBufferSize.get();
+    }
+
+    public double getTailSamplingDurationPercentile() {
+        return tailSamplingDurationPercentile.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -1005,6 +1153,22 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return classLoadingMatchingPreFilter.get();
     }
 
+    public String getTypeMatchingCacheFile() {
+        return typeMatchingCacheFile.get();
+    }
+
+    public int getAttachRetransformationThreads() {
+        return attachRetransformationThreads.get();
+    }
+
+    public TimeDuration getAttachRetransformationMaxPause() {
+        return attachRetransformationMaxPause.get();
+    }
+
+    public String getClassDataSharingDir() {
+        return classDataSharingDir.get();
+    }
+
     public List<WildcardMatcher> getClassesExcludedFromInstrumentation() {
         return classesExcludedFromInstrumentation.get();
     }
@@ -101,6 +101,20 @@ public class MetricsConfiguration extends ConfigurationOptionProvider implements
         .dynamic(false)
         .buildWithDefault(false);
 
+    private final ConfigurationOption<Boolean> spanSelfTimeHistogramEnabled = ConfigurationOption.booleanOption()
+        .key("span_self_time_histogram")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("In addition to the averaged `span.self_time` breakdown metrics,\n" +
+            "records the self-time of each span in a histogram per service, span type and span subtype.\n" +
+            "The histogram is reported as `span.self_time.histogram` and allows to calculate percentiles, such as p95 or p99,\n" +
+            "without having to send every span.\n" +
+            "Each histogram has a fixed memory footprint of about 5kb and a relative error of about 6%.\n" +
+            "\n" +
+            "NOTE: This has no effect when <<config-breakdown-metrics, `breakdown_metrics`>> is disabled.")
+        .tags("added[1.43.0]", "experimental")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     @Override
     public boolean isDedotCustomMetrics() {
         return dedotCustomMetrics.get();
@@ -118,6 +132,10 @@ public class MetricsConfiguration extends ConfigurationOptionProvider implements
         return overheadMetricsEnabled.get();
     }
 
+    public boolean isSpanSelfTimeHistogramEnabled() {
+        return spanSelfTimeHistogramEnabled.get();
+    }
+
     @Override
     public List<Double> getCustomMetricsHistogramBoundaries() {
         return customMetricsHistogramBoundaries.get();
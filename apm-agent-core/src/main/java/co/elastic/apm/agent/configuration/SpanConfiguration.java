@@ -57,6 +57,19 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Boolean> spanCompressionBufferOffHeap = ConfigurationOption.booleanOption()
+        .key("span_compression_buffer_off_heap")
+        .configurationCategory(HUGE_TRACES_CATEGORY)
+        .tags("added[1.43.0]", "experimental")
+        .description("When span compression is enabled, the last ended exit span of each parent is held back until the next sibling ends or until the parent ends, " +
+            "so that it can be compressed with its sibling.\n" +
+            "Setting this option to true encodes large captured DB statements, such as the bodies of Elasticsearch queries, " +
+            "of such buffered spans into compact records outside of the Java heap. " +
+            "They are decoded when the span is serialized.\n" +
+            "This reduces the heap usage for long running transactions with many concurrently open parent spans at the cost of encoding the statements.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
     private final ConfigurationOption<TimeDuration> exitSpanMinDuration = TimeDurationValueConverter.fineDurationOption()
         .key("exit_span_min_duration")
         .tags("added[1.30.0]")
@@ -79,6 +92,10 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
         return spanCompressionSameKindMaxDuration.get();
     }
 
+    public boolean isSpanCompressionBufferOffHeap() {
+        return spanCompressionBufferOffHeap.get();
+    }
+
     public TimeDuration getExitSpanMinDuration() {
         return exitSpanMinDuration.get();
     }
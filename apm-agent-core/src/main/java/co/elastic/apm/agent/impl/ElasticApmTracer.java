@@ -32,8 +32,10 @@ import co.elastic.apm.agent.context.LifecycleListener;
 import co.elastic.apm.agent.impl.baggage.Baggage;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataFuture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveRateSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.ElasticContext;
@@ -122,6 +124,10 @@ public class ElasticApmTracer implements Tracer {
     private final ScheduledThreadPoolExecutor sharedPool;
     private final int approximateContextSize;
     private Sampler sampler;
+    @Nullable
+    private final TailSampler tailSampler;
+    @Nullable
+    private AdaptiveRateSampler adaptiveRateSampler;
     boolean assertionsEnabled = false;
 
     /**
@@ -219,13 +225,27 @@ public class ElasticApmTracer implements Tracer {
         // span links pool allows for 10X the maximum allowed span links per span
         spanLinkPool = poolFactory.createSpanLinkPool(AbstractSpan.MAX_ALLOWED_SPAN_LINKS * 10, this);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+        sampler = createHeadSampler();
+        if (coreConfiguration.isTailSamplingEnabled()) {
+            tailSampler = new TailSampler(sampler, coreConfiguration.getTailSamplingBufferSize(),
+                coreConfiguration.getTailSamplingDurationPercentile(), reporter, metricRegistry);
+            sampler = tailSampler;
+        } else {
+            tailSampler = null;
+        }
+        ConfigurationOption.ChangeListener<Double> samplerChangeListener = new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+                Sampler headSampler = createHeadSampler();
+                if (tailSampler != null) {
+                    tailSampler.setHeadSampler(headSampler);
+                } else {
+                    sampler = headSampler;
+                }
             }
-        });
+        };
+        coreConfiguration.getSampleRate().addChangeListener(samplerChangeListener);
+        coreConfiguration.getSampleTargetPerSecond().addChangeListener(samplerChangeListener);
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
         IndyBootstrap.setFallbackLogExecutor(sharedPool);
@@ -461,6 +481,10 @@ public class ElasticApmTracer implements Tracer {
             AbstractSpan<?> parent = parentContext.getSpan();
             if (parent != null) {
                 error.asChildOf(parent);
+                Transaction parentTransaction = parent.getParentTransaction();
+                if (parentTransaction != null) {
+                    parentTransaction.setErrorCaptured();
+                }
                 // don't discard spans leading up to an error, otherwise they'd point to an invalid parent
                 parent.setNonDiscardable();
             } else {
@@ -504,6 +528,9 @@ public class ElasticApmTracer implements Tracer {
                     new RuntimeException("this exception is just used to record where the transaction has been ended from"));
             }
         }
+        if (tailSampler != null && !transaction.isNoop()) {
+            tailSampler.onTransactionEnd(transaction);
+        }
         if (!transaction.isNoop() &&
             (transaction.isSampled() || apmServerClient.supportsKeepingUnsampledTransaction())) {
             // we do report non-sampled transactions (without the context)
@@ -575,6 +602,10 @@ public class ElasticApmTracer implements Tracer {
                 span.withStacktrace(new Throwable());
             }
         }
+        if (tailSampler != null && span.getTraceContext().isTailSamplingCandidate()) {
+            tailSampler.buffer(span);
+            return;
+        }
         reporter.report(span);
     }
 
@@ -624,6 +655,7 @@ public class ElasticApmTracer implements Tracer {
         try {
             configurationRegistry.close();
             reporter.close();
+            apmServerClient.close();
         } catch (Exception e) {
             logger.warn("Suppressed exception while calling stop()", e);
         }
@@ -633,6 +665,22 @@ public class ElasticApmTracer implements Tracer {
         }
     }
 
+    private synchronized Sampler createHeadSampler() {
+        double sampleRate = coreConfiguration.getSampleRate().get();
+        double targetPerSecond = coreConfiguration.getSampleTargetPerSecond().get();
+        if (targetPerSecond <= 0) {
+            return ProbabilitySampler.of(sampleRate);
+        }
+        // keep the observed rate when the configuration changes
+        if (adaptiveRateSampler == null) {
+            adaptiveRateSampler = new AdaptiveRateSampler(targetPerSecond, sampleRate);
+        } else {
+            adaptiveRateSampler.setTargetPerSecond(targetPerSecond);
+            adaptiveRateSampler.setMaxSampleRate(sampleRate);
+        }
+        return adaptiveRateSampler;
+    }
+
     public Reporter getReporter() {
         return reporter;
     }
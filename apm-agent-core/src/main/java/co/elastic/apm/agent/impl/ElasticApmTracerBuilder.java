@@ -164,7 +164,9 @@ public class ElasticApmTracerBuilder {
         DslJsonSerializer payloadSerializer = new DslJsonSerializer(
             configurationRegistry.getConfig(StacktraceConfiguration.class),
             apmServerClient,
-            metaDataFuture
+            metaDataFuture,
+            configurationRegistry.getConfig(ReporterConfiguration.class).getSerializationStringCacheSize(),
+            configurationRegistry.getConfig(ReporterConfiguration.class).getSerializationStackFrameCacheSize()
         );
 
         if (addApmServerConfigSource) {
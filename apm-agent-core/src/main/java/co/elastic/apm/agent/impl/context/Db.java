@@ -24,10 +24,12 @@ import co.elastic.apm.agent.objectpool.Resetter;
 import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
+import co.elastic.apm.agent.util.OffHeapUtf8Arena;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
 import javax.annotation.Nullable;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 
 public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
@@ -46,6 +48,8 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
             }
         });
 
+    private static final OffHeapUtf8Arena statementArena = new OffHeapUtf8Arena(64 * 1024, 32);
+
     /**
      * Database instance name
      */
@@ -60,6 +64,12 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
     @Nullable
     private CharBuffer statementBuffer;
 
+    /**
+     * The UTF-8 encoded content of {@link #statementBuffer} after it has been moved off-heap via {@link #moveStatementBufferOffHeap()}
+     */
+    @Nullable
+    private ByteBuffer offHeapStatement;
+
     /**
      * Database type. For any SQL database, "sql". For others, the lower-case database category, e.g. "cassandra", "hbase", or "redis"
      */
@@ -112,6 +122,7 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
 
     @Override
     public CharBuffer withStatementBuffer() {
+        restoreStatementBuffer();
         if (this.statementBuffer == null) {
             this.statementBuffer = charBufferPool.createInstance();
         }
@@ -121,9 +132,42 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
     @Override
     @Nullable
     public CharBuffer getStatementBuffer() {
+        restoreStatementBuffer();
         return statementBuffer;
     }
 
+    /**
+     * Encodes the readable content of the statement buffer into a compact off-heap record and returns the buffer to its pool.
+     * The statement buffer is transparently restored on the next call to {@link #getStatementBuffer()} or {@link #withStatementBuffer()}.
+     * <p>
+     * This reduces the heap retained by spans that have ended but are not yet reported, for example because they are buffered for compression.
+     * Must only be called once the statement buffer is no longer written to and must not be called concurrently to reading the statement.
+     * </p>
+     */
+    public void moveStatementBufferOffHeap() {
+        if (statementBuffer == null || offHeapStatement != null) {
+            return;
+        }
+        ByteBuffer encoded = statementArena.encode(statementBuffer);
+        if (encoded != null) {
+            offHeapStatement = encoded;
+            charBufferPool.recycle(statementBuffer);
+            statementBuffer = null;
+        }
+    }
+
+    private void restoreStatementBuffer() {
+        ByteBuffer encoded = offHeapStatement;
+        if (encoded != null) {
+            CharBuffer buffer = charBufferPool.createInstance();
+            OffHeapUtf8Arena.decode(encoded, buffer);
+            ((Buffer) buffer).flip();
+            statementBuffer = buffer;
+            offHeapStatement = null;
+            statementArena.release(encoded);
+        }
+    }
+
     /**
      * Database type. For any SQL database, "sql". For others, the lower-case database category, e.g. "cassandra", "hbase", or "redis"
      */
@@ -192,6 +236,10 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
             charBufferPool.recycle(statementBuffer);
         }
         statementBuffer = null;
+        if (offHeapStatement != null) {
+            statementArena.release(offHeapStatement);
+        }
+        offHeapStatement = null;
         affectedRowsCount = -1;
     }
 
@@ -201,7 +249,8 @@ public class Db implements Recyclable, co.elastic.apm.agent.tracer.metadata.Db {
             type != null ||
             user != null ||
             dbLink != null ||
-            statementBuffer != null;
+            statementBuffer != null ||
+            offHeapStatement != null;
     }
 
     public void copyFrom(Db other) {
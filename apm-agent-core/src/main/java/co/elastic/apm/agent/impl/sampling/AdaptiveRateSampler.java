@@ -0,0 +1,177 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Sampler} which adapts its sample rate so that the number of sampled root transactions per second stays close
+ * to a target, never exceeding a maximum sample rate.
+ * <p>
+ * The rate of root transactions is observed over a sliding window of {@link #WINDOW_INTERVALS} intervals of at least one second.
+ * Whenever an interval completes, the effective sample rate is set to {@code min(maxSampleRate, target / observedRate)}.
+ * An interval is only completed by the first transaction after it has lasted one second,
+ * so under low traffic it may last much longer.
+ * The observed rate is based on the actual duration of the intervals,
+ * and the full seconds an interval lasted beyond its first one are recorded as empty intervals after it.
+ * The actual decision is delegated to a {@link ProbabilitySampler} for the effective sample rate,
+ * so that the {@code tracestate} header reflects the effective rate.
+ * </p>
+ * <p>
+ * Implementation notes:
+ * </p>
+ * {@link #getDecisionSampler()} and {@link #isSampled(Id)} are lock-free and allocation-free.
+ * The thread that observes the end of an interval claims it via compare-and-set and computes the new rate.
+ * A new {@link ProbabilitySampler} is only allocated if the (rounded) effective rate changes,
+ * which happens at most once per interval.
+ */
+public class AdaptiveRateSampler implements Sampler {
+
+    static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int WINDOW_INTERVALS = 10;
+    /**
+     * The lowest effective sample rate, unless the maximum sample rate is zero.
+     * Rounding a lower rate would otherwise result in a sample rate of zero, which would stop sampling altogether.
+     */
+    static final double MIN_SAMPLE_RATE = 1 / Math.pow(10, RoundedDoubleConverter.DEFAULT_PRECISION);
+
+    private final AtomicLong intervalStart;
+    private final AtomicLong intervalCount = new AtomicLong();
+    private final AtomicLongArray windowCounts = new AtomicLongArray(WINDOW_INTERVALS);
+    private final AtomicLongArray windowNanos = new AtomicLongArray(WINDOW_INTERVALS);
+    private final AtomicLong completedIntervals = new AtomicLong();
+    private volatile double targetPerSecond;
+    private volatile double maxSampleRate;
+    private volatile double observedPerSecond;
+    private volatile Sampler current;
+
+    public AdaptiveRateSampler(double targetPerSecond, double maxSampleRate) {
+        this.targetPerSecond = targetPerSecond;
+        this.maxSampleRate = maxSampleRate;
+        this.current = ProbabilitySampler.of(maxSampleRate);
+        this.intervalStart = new AtomicLong(nanoTime());
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        return getDecisionSampler().isSampled(traceId);
+    }
+
+    /**
+     * Counts the root transaction the returned sampler decides on.
+     *
+     * @return the {@link ProbabilitySampler} for the current effective sample rate
+     */
+    @Override
+    public Sampler getDecisionSampler() {
+        long now = nanoTime();
+        long start = intervalStart.get();
+        if (now - start >= INTERVAL_NANOS && intervalStart.compareAndSet(start, now)) {
+            // the next interval can only be claimed after another full interval,
+            // so that completing intervals practically never overlap
+            completeInterval(intervalCount.getAndSet(0), now - start);
+        }
+        intervalCount.incrementAndGet();
+        return current;
+    }
+
+    private void completeInterval(long count, long elapsedNanos) {
+        long fullIntervals = elapsedNanos / INTERVAL_NANOS;
+        long completed = recordInterval(count, elapsedNanos - (fullIntervals - 1) * INTERVAL_NANOS);
+        // when no transaction completed the interval in time, the seconds without traffic are accounted for as empty intervals
+        long emptyIntervals = Math.min(fullIntervals - 1, WINDOW_INTERVALS);
+        for (long i = 0; i < emptyIntervals; i++) {
+            completed = recordInterval(0, INTERVAL_NANOS);
+        }
+        int intervals = (int) Math.min(completed + 1, WINDOW_INTERVALS);
+        long countSum = 0;
+        long nanosSum = 0;
+        for (int i = 0; i < intervals; i++) {
+            countSum += windowCounts.get(i);
+            nanosSum += windowNanos.get(i);
+        }
+        observedPerSecond = (double) countSum * TimeUnit.SECONDS.toNanos(1) / nanosSum;
+        updateSampleRate();
+    }
+
+    /**
+     * @return the number of intervals that have been completed before this one
+     */
+    private long recordInterval(long count, long nanos) {
+        long completed = completedIntervals.getAndIncrement();
+        int slot = (int) (completed % WINDOW_INTERVALS);
+        windowCounts.set(slot, count);
+        windowNanos.set(slot, nanos);
+        return completed;
+    }
+
+    private void updateSampleRate() {
+        double sampleRate = maxSampleRate;
+        double observed = observedPerSecond;
+        if (observed > targetPerSecond && sampleRate > 0) {
+            sampleRate = RoundedDoubleConverter.withDefaultPrecision().round(Math.min(sampleRate, targetPerSecond / observed));
+            sampleRate = Math.max(MIN_SAMPLE_RATE, sampleRate);
+        }
+        if (sampleRate != current.getSampleRate()) {
+            current = ProbabilitySampler.of(sampleRate);
+        }
+    }
+
+    @Override
+    public double getSampleRate() {
+        return current.getSampleRate();
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return current.getTraceStateHeader();
+    }
+
+    @Override
+    public boolean isTailSamplingCandidate() {
+        return false;
+    }
+
+    /**
+     * @return the rate of root transactions per second, as observed over the sliding window
+     */
+    public double getObservedPerSecond() {
+        return observedPerSecond;
+    }
+
+    public void setTargetPerSecond(double targetPerSecond) {
+        this.targetPerSecond = targetPerSecond;
+        updateSampleRate();
+    }
+
+    public void setMaxSampleRate(double maxSampleRate) {
+        this.maxSampleRate = maxSampleRate;
+        updateSampleRate();
+    }
+
+    // visible for testing
+    long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -62,4 +62,14 @@ public class ConstantSampler implements Sampler {
     public String getTraceStateHeader() {
         return traceStateHeader;
     }
+
+    @Override
+    public boolean isTailSamplingCandidate() {
+        return false;
+    }
+
+    @Override
+    public Sampler getDecisionSampler() {
+        return this;
+    }
 }
@@ -84,4 +84,14 @@ public class ProbabilitySampler implements Sampler {
     public String getTraceStateHeader() {
         return traceStateHeader;
     }
+
+    @Override
+    public boolean isTailSamplingCandidate() {
+        return false;
+    }
+
+    @Override
+    public Sampler getDecisionSampler() {
+        return this;
+    }
 }
@@ -61,4 +61,22 @@ public interface Sampler {
      * </p>
      */
     String getTraceStateHeader();
+
+    /**
+     * @return {@code true} if a root transaction that is not {@linkplain #isSampled(Id) sampled}
+     * should still be recorded locally until a tail sampling decision has been made
+     */
+    boolean isTailSamplingCandidate();
+
+    /**
+     * Returns the sampler which makes the decision for the next root transaction.
+     * <p>
+     * The sample rate and the {@code tracestate} header of the returned sampler don't change,
+     * so that they are consistent with its decision, even if this sampler adapts its sample rate concurrently.
+     * This method is meant to be called once per root transaction, instead of {@link #isSampled(Id)}.
+     * </p>
+     *
+     * @return the sampler which makes the decision for the next root transaction
+     */
+    Sampler getDecisionSampler();
 }
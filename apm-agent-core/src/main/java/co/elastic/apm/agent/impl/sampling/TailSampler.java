@@ -0,0 +1,241 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.tracer.Outcome;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Sampler} which defers the sampling decision of root transactions that have not been sampled by the head sampler
+ * until the transaction ends.
+ * <p>
+ * While the transaction is running, it is recorded as if it was sampled, but its ended spans are buffered instead of
+ * being reported. When the transaction ends, the full trace is reported if the transaction
+ * </p>
+ * <ul>
+ *     <li>has a {@link Outcome#FAILURE failure} outcome,</li>
+ *     <li>has captured an error, or</li>
+ *     <li>is at least as slow as the configured percentile of recent transaction durations.</li>
+ * </ul>
+ * <p>
+ * Otherwise, the buffered spans are discarded and the transaction is reported like a non-sampled one.
+ * The decision is local: downstream services see such traces as non-sampled.
+ * </p>
+ * <p>
+ * The memory used by the buffer is bounded by the number of buffered spans.
+ * Transactions don't become candidates while the buffer is full, and spans that end while the buffer is full are dropped.
+ * </p>
+ */
+public class TailSampler implements Sampler {
+
+    static final String BUFFERED_SPANS_METRIC = "agent.tail_sampling.buffer.spans";
+    static final String BUFFER_OVERFLOW_METRIC = "agent.tail_sampling.buffer.overflow";
+    static final String DECISIONS_METRIC = "agent.tail_sampling.decisions";
+
+    /**
+     * The number of transaction durations after which the slow transaction threshold is recomputed
+     */
+    static final int DURATION_WINDOW_SIZE = 1000;
+
+    private static final Labels KEEP_ERROR_LABELS = Labels.Mutable.of("decision", "keep").add("reason", "error").immutableCopy();
+    private static final Labels KEEP_FAILURE_LABELS = Labels.Mutable.of("decision", "keep").add("reason", "failure").immutableCopy();
+    private static final Labels KEEP_SLOW_LABELS = Labels.Mutable.of("decision", "keep").add("reason", "slow").immutableCopy();
+    private static final Labels DROP_LABELS = Labels.Mutable.of("decision", "drop").add("reason", "none").immutableCopy();
+
+    public enum Decision {
+        PENDING,
+        KEEP,
+        DROP
+    }
+
+    private volatile Sampler headSampler;
+    private final int maxBufferedSpans;
+    private final double durationPercentile;
+    private final Reporter reporter;
+    private final MetricRegistry metricRegistry;
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+    private final Histogram durationWindow = new Histogram();
+    private final AtomicInteger durationWindowCount = new AtomicInteger();
+    private volatile long slowThresholdUs = Long.MAX_VALUE;
+
+    public TailSampler(Sampler headSampler, int maxBufferedSpans, double durationPercentile, Reporter reporter, MetricRegistry metricRegistry) {
+        this.headSampler = headSampler;
+        this.maxBufferedSpans = maxBufferedSpans;
+        this.durationPercentile = durationPercentile;
+        this.reporter = reporter;
+        this.metricRegistry = metricRegistry;
+        metricRegistry.add(BUFFERED_SPANS_METRIC, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return bufferedSpans.get();
+            }
+        });
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        return headSampler.isSampled(traceId);
+    }
+
+    @Override
+    public double getSampleRate() {
+        return headSampler.getSampleRate();
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return headSampler.getTraceStateHeader();
+    }
+
+    @Override
+    public Sampler getDecisionSampler() {
+        return headSampler.getDecisionSampler();
+    }
+
+    public Sampler getHeadSampler() {
+        return headSampler;
+    }
+
+    public void setHeadSampler(Sampler headSampler) {
+        this.headSampler = headSampler;
+    }
+
+    /**
+     * @return {@code true} if a root transaction that is not sampled by the head sampler should await the tail sampling decision
+     */
+    @Override
+    public boolean isTailSamplingCandidate() {
+        return bufferedSpans.get() < maxBufferedSpans;
+    }
+
+    public int getBufferedSpans() {
+        return bufferedSpans.get();
+    }
+
+    /**
+     * Buffers an ended span of a {@linkplain co.elastic.apm.agent.impl.transaction.TraceContext#isTailSamplingCandidate() candidate}
+     * until the decision for its transaction is made.
+     * Once the decision is made, the span is reported right away or discarded.
+     *
+     * @param span the ended span, the reference held by the caller is transferred to this sampler
+     */
+    public void buffer(Span span) {
+        Transaction transaction = span.getTransaction();
+        if (transaction == null) {
+            reporter.report(span);
+            return;
+        }
+        Decision decision = transaction.getTailSamplingDecision();
+        if (decision != Decision.PENDING) {
+            apply(decision, span);
+            return;
+        }
+        if (bufferedSpans.incrementAndGet() > maxBufferedSpans) {
+            bufferedSpans.decrementAndGet();
+            metricRegistry.incrementCounter(BUFFER_OVERFLOW_METRIC, Labels.EMPTY);
+            transaction.getSpanCount().getReported().decrementAndGet();
+            transaction.captureDroppedSpan(span);
+            span.decrementReferences();
+            return;
+        }
+        transaction.pushTailSampledSpan(span);
+        // the decision might have been made concurrently, after the transaction has been drained
+        // as both the decision and the stack are volatile, either this thread or the deciding thread drains the span
+        decision = transaction.getTailSamplingDecision();
+        if (decision != Decision.PENDING) {
+            drain(transaction, decision);
+        }
+    }
+
+    /**
+     * Makes the tail sampling decision for a candidate transaction that has ended and reports or discards its buffered spans.
+     * Also records the duration of every transaction to compute the slow transaction threshold.
+     *
+     * @param transaction the ended transaction
+     */
+    public void onTransactionEnd(Transaction transaction) {
+        long durationUs = transaction.getDuration();
+        recordDuration(durationUs);
+        if (!transaction.getTraceContext().isTailSamplingCandidate() || transaction.getTailSamplingDecision() != Decision.PENDING) {
+            return;
+        }
+        Labels reason = getKeepReason(transaction, durationUs);
+        Decision decision = reason != null ? Decision.KEEP : Decision.DROP;
+        transaction.setTailSamplingDecision(decision);
+        metricRegistry.incrementCounter(DECISIONS_METRIC, reason != null ? reason : DROP_LABELS);
+        drain(transaction, decision);
+    }
+
+    @Nullable
+    private Labels getKeepReason(Transaction transaction, long durationUs) {
+        if (transaction.getOutcome() == Outcome.FAILURE) {
+            return KEEP_FAILURE_LABELS;
+        }
+        if (transaction.isErrorCaptured()) {
+            return KEEP_ERROR_LABELS;
+        }
+        if (durationUs >= slowThresholdUs) {
+            return KEEP_SLOW_LABELS;
+        }
+        return null;
+    }
+
+    private void recordDuration(long durationUs) {
+        durationWindow.update(durationUs);
+        if (durationWindowCount.incrementAndGet() == DURATION_WINDOW_SIZE) {
+            // concurrent updates may be lost while resetting, which is fine for an approximation
+            slowThresholdUs = (long) durationWindow.getValueAtPercentile(durationPercentile);
+            durationWindow.resetState();
+            durationWindowCount.set(0);
+        }
+    }
+
+    long getSlowThresholdUs() {
+        return slowThresholdUs;
+    }
+
+    private void drain(Transaction transaction, Decision decision) {
+        Span span = transaction.drainTailSampledSpans();
+        while (span != null) {
+            // read the link before handing off the span, as it may be recycled right away
+            Span next = span.getTailSamplingNext();
+            bufferedSpans.decrementAndGet();
+            apply(decision, span);
+            span = next;
+        }
+    }
+
+    private void apply(Decision decision, Span span) {
+        if (decision == Decision.KEEP) {
+            reporter.report(span);
+        } else {
+            span.decrementReferences();
+        }
+    }
+}
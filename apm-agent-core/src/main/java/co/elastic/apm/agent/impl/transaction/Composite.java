@@ -32,12 +32,21 @@ public class Composite implements Recyclable {
 
     private final AtomicReference<String> compressionStrategy = new AtomicReference<>(null);
 
+    /**
+     * Turns a regular span into a composite span.
+     * The compression strategy is published before the count,
+     * so that a span which is {@linkplain Span#isComposite() composite} always has a compression strategy.
+     * Siblings may be compressed concurrently before the count has been incremented,
+     * which is why the sum and the count are incremented rather than set.
+     *
+     * @return {@code false} if the composite has already been initialized, possibly concurrently
+     */
     public boolean init(long sum, String compressionStrategy) {
-        if (!this.count.compareAndSet(0, 1)) {
+        if (!this.compressionStrategy.compareAndSet(null, compressionStrategy)) {
             return false;
         }
-        this.sum.set(sum);
-        this.compressionStrategy.set(compressionStrategy);
+        this.sum.addAndGet(sum);
+        this.count.incrementAndGet();
         return true;
     }
 
@@ -41,6 +41,12 @@ import java.util.concurrent.TimeUnit;
 public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.apm.agent.tracer.Span<Span> {
 
     private static final Logger logger = LoggerFactory.getLogger(Span.class);
+
+    /**
+     * The number of times a span tries to update the compression buffer of its parent while other spans update it concurrently.
+     * Each failed attempt means that another span has made progress, so bounding the attempts keeps ending a span wait-free.
+     */
+    static final int MAX_COMPRESSION_ATTEMPTS = 8;
     public static final long MAX_LOG_INTERVAL_MICRO_SECS = TimeUnit.MINUTES.toMicros(5);
     private static long lastSpanMaxWarningTimestamp;
 
@@ -72,6 +78,12 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
     @Nullable
     private List<StackFrame> stackFrames;
 
+    /**
+     * Links spans that await the tail sampling decision of their transaction, see {@link Transaction#pushTailSampledSpan(Span)}
+     */
+    @Nullable
+    Span tailSamplingNext;
+
     /**
      * If a span is non-discardable, all the spans leading up to it are non-discardable as well
      */
@@ -275,53 +287,13 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         this.incrementReferences();
         try {
             if (transaction != null && transaction.isSpanCompressionEnabled() && parent != null) {
-                Span parentBuffered = parent.bufferedSpan.incrementReferencesAndGet();
-                try {
-                    //per the reference, if it is not compression-eligible or if its parent has already ended, it is reported immediately
-                    if (parent.isFinished() || !isCompressionEligible()) {
-                        if (parentBuffered != null) {
-                            if (parent.bufferedSpan.compareAndSet(parentBuffered, null)) {
-                                this.tracer.endSpan(parentBuffered);
-                                logger.trace("parent span compression buffer was set to null and {} was ended", parentBuffered);
-                            }
-                        }
+                for (int attempt = 1; !tryToBuffer(parent); attempt++) {
+                    if (attempt == MAX_COMPRESSION_ATTEMPTS) {
+                        // give up to stay wait-free, this doesn't exactly diverge from the spec,
+                        // but it can lead to non-optimal compression under very high contention
+                        logger.trace("giving up compressing {} after {} concurrent updates of the compression buffer", this, attempt);
                         this.tracer.endSpan(this);
-                        return;
-                    }
-                    //since it wasn't reported, this span gets buffered
-                    if (parentBuffered == null) {
-                        if (!parent.bufferedSpan.compareAndSet(null, this)) {
-                            // the failed update would ideally lead to a compression attempt with the new buffer,
-                            // but we're dropping the compression attempt to keep things simple and avoid looping so this stays wait-free
-                            // this doesn't exactly diverge from the spec, but it can lead to non-optimal compression under high load
-                            this.tracer.endSpan(this);
-                        } else {
-                            logger.trace("parent span compression buffer was set to {}", this);
-                        }
-                        return;
-                    }
-                    //still trying to buffer this span
-                    if (!parentBuffered.tryToCompress(this)) {
-                        // we couldn't compress so replace the buffer with this
-                        if (parent.bufferedSpan.compareAndSet(parentBuffered, this)) {
-                            this.tracer.endSpan(parentBuffered);
-                            logger.trace("parent span compression buffer was set to {} and {} was ended", this, parentBuffered);
-                        } else {
-                            // the failed update would ideally lead to a compression attempt with the new buffer,
-                            // but we're dropping the compression attempt to keep things simple and avoid looping so this stays wait-free
-                            // this doesn't exactly diverge from the spec, but it can lead to non-optimal compression under high load
-                            this.tracer.endSpan(this);
-                        }
-                    } else {
-                        if (isSampled() && transaction != null) {
-                            transaction.getSpanCount().getDropped().incrementAndGet();
-                        }
-                        //drop the span by removing the reference allocated in onAfterStart() because it has been compressed
-                        decrementReferences();
-                    }
-                } finally {
-                    if (parentBuffered != null) {
-                        parentBuffered.decrementReferences();
+                        break;
                     }
                 }
             } else {
@@ -336,6 +308,71 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         }
     }
 
+    /**
+     * Compresses this span into the compression buffer of the parent, replaces the buffered span with this span or ends this span.
+     *
+     * @param parent the parent of this span
+     * @return {@code false} if the compression buffer has been updated concurrently, which requires to try again
+     */
+    private boolean tryToBuffer(AbstractSpan<?> parent) {
+        Span parentBuffered = parent.bufferedSpan.incrementReferencesAndGet();
+        try {
+            //per the reference, if it is not compression-eligible or if its parent has already ended, it is reported immediately
+            if (parent.isFinished() || !isCompressionEligible()) {
+                if (parentBuffered != null) {
+                    if (parent.bufferedSpan.compareAndSet(parentBuffered, null)) {
+                        this.tracer.endSpan(parentBuffered);
+                        logger.trace("parent span compression buffer was set to null and {} was ended", parentBuffered);
+                    }
+                }
+                this.tracer.endSpan(this);
+                return true;
+            }
+            //since it wasn't reported, this span gets buffered
+            if (parentBuffered == null) {
+                prepareForBuffering();
+                if (!parent.bufferedSpan.compareAndSet(null, this)) {
+                    // another span has been buffered in the meantime, which we may be able to compress this span into
+                    return false;
+                }
+                logger.trace("parent span compression buffer was set to {}", this);
+                return true;
+            }
+            //still trying to buffer this span
+            if (!parentBuffered.tryToCompress(this)) {
+                // we couldn't compress so replace the buffer with this
+                prepareForBuffering();
+                if (!parent.bufferedSpan.compareAndSet(parentBuffered, this)) {
+                    // the buffer has been updated in the meantime, we may be able to compress this span into the new buffered span
+                    return false;
+                }
+                this.tracer.endSpan(parentBuffered);
+                logger.trace("parent span compression buffer was set to {} and {} was ended", this, parentBuffered);
+            } else {
+                if (isSampled() && transaction != null) {
+                    transaction.getSpanCount().getDropped().incrementAndGet();
+                }
+                //drop the span by removing the reference allocated in onAfterStart() because it has been compressed
+                decrementReferences();
+            }
+            return true;
+        } finally {
+            if (parentBuffered != null) {
+                parentBuffered.decrementReferences();
+            }
+        }
+    }
+
+    /**
+     * Reduces the heap retained by this span while it is held in the compression buffer of its parent.
+     * This has to happen before the span is published to the buffer, as it may be reported by another thread right afterwards.
+     */
+    private void prepareForBuffering() {
+        if (transaction != null && transaction.isSpanCompressionBufferOffHeap()) {
+            context.getDb().moveStatementBufferOffHeap();
+        }
+    }
+
     private boolean isCompressionEligible() {
         return isExit() && isDiscardable() && (outcomeNotSet() || getOutcome() == Outcome.SUCCESS);
     }
@@ -432,7 +469,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
     private boolean tryToCompressComposite(Span sibling) {
         String compressionStrategy = composite.getCompressionStrategy();
         if (compressionStrategy == null) {
-            //lose the compression rather than retry, so that the application proceeds with minimum delay
+            // not reachable for siblings as the strategy is published before the composite count and before init fails
             return false;
         }
 
@@ -474,6 +511,12 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         // when trying to recycle this list by clearing it, we increase the static memory overhead of the agent
         // because all spans in the pool contain that list even if they are not used as inferred spans
         stackFrames = null;
+        tailSamplingNext = null;
+    }
+
+    @Nullable
+    public Span getTailSamplingNext() {
+        return tailSamplingNext;
     }
 
     @Override
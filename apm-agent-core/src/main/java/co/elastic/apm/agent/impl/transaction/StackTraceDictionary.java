@@ -0,0 +1,231 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A bounded dictionary which deduplicates {@link StackFrame}s and stack traces.
+ * <p>
+ * Frames are interned so that the same method is represented by a single {@link StackFrame} instance.
+ * Stack traces are stored as a trie of {@link InternedStackTrace} nodes,
+ * where each node consists of a frame and the node of its caller.
+ * Stack traces which share the same callers therefore share the nodes representing these callers,
+ * which makes it cheap to create the stack traces of many spans that have been called from the same code path.
+ * </p>
+ * <p>
+ * Once the dictionary is full, new frames and stack traces are not interned anymore but still returned.
+ * Interned nodes are immutable and stay valid after the dictionary has been {@linkplain #clear() cleared}.
+ * </p>
+ */
+public class StackTraceDictionary {
+
+    private final int maxFrames;
+    private final int maxStackTraces;
+    private final Map<StackFrame, StackFrame> frames = new HashMap<>();
+    private final Map<Key, InternedStackTrace> stackTraces = new HashMap<>();
+    /**
+     * Used to look up interned stack traces without allocating a new key
+     */
+    private final Key lookupKey = new Key();
+
+    /**
+     * @param maxFrames      the maximum number of distinct frames this dictionary holds
+     * @param maxStackTraces the maximum number of distinct stack trace nodes this dictionary holds
+     */
+    public StackTraceDictionary(int maxFrames, int maxStackTraces) {
+        this.maxFrames = maxFrames;
+        this.maxStackTraces = maxStackTraces;
+    }
+
+    /**
+     * Returns the interned instance of the provided frame.
+     *
+     * @param frame the frame to intern
+     * @return the frame instance which is equal to the provided one,
+     * or the provided frame itself if it's the first of its kind or if the dictionary is full
+     */
+    public synchronized StackFrame intern(StackFrame frame) {
+        StackFrame interned = frames.get(frame);
+        if (interned != null) {
+            return interned;
+        }
+        if (frames.size() < maxFrames) {
+            frames.put(frame, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the interned stack trace whose top-most frame is the provided frame, followed by the frames of the caller.
+     *
+     * @param frame  the top-most frame of the stack trace
+     * @param caller the stack trace of the caller of the frame, {@code null} if the frame is the bottom of the stack trace
+     * @return the stack trace consisting of the frame and the frames of the caller
+     */
+    public synchronized InternedStackTrace intern(StackFrame frame, @Nullable InternedStackTrace caller) {
+        frame = intern(frame);
+        lookupKey.set(frame, caller);
+        InternedStackTrace interned = stackTraces.get(lookupKey);
+        lookupKey.set(null, null);
+        if (interned != null) {
+            return interned;
+        }
+        interned = new InternedStackTrace(frame, caller);
+        if (stackTraces.size() < maxStackTraces) {
+            Key key = new Key();
+            key.set(frame, caller);
+            stackTraces.put(key, interned);
+        }
+        return interned;
+    }
+
+    public synchronized boolean isFull() {
+        return frames.size() >= maxFrames || stackTraces.size() >= maxStackTraces;
+    }
+
+    public synchronized int getFrameCount() {
+        return frames.size();
+    }
+
+    public synchronized int getStackTraceCount() {
+        return stackTraces.size();
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+        stackTraces.clear();
+    }
+
+    /**
+     * An immutable stack trace which consists of its top-most frame and the stack trace of the caller.
+     * <p>
+     * The frame at index {@code 0} is the top-most frame.
+     * As the frames are linked, random access is linear in the index.
+     * Prefer iterating via {@link #getFrame()} and {@link #getCaller()}.
+     * </p>
+     */
+    public static class InternedStackTrace extends AbstractList<StackFrame> {
+
+        private final StackFrame frame;
+        @Nullable
+        private final InternedStackTrace caller;
+        private final int size;
+
+        InternedStackTrace(StackFrame frame, @Nullable InternedStackTrace caller) {
+            this.frame = frame;
+            this.caller = caller;
+            this.size = caller != null ? caller.size + 1 : 1;
+        }
+
+        public StackFrame getFrame() {
+            return frame;
+        }
+
+        @Nullable
+        public InternedStackTrace getCaller() {
+            return caller;
+        }
+
+        @Override
+        public StackFrame get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            InternedStackTrace node = this;
+            for (int i = 0; i < index; i++) {
+                node = node.caller;
+                assert node != null;
+            }
+            return node.frame;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<StackFrame> iterator() {
+            return new Iterator<StackFrame>() {
+                @Nullable
+                private InternedStackTrace next = InternedStackTrace.this;
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public StackFrame next() {
+                    InternedStackTrace current = next;
+                    if (current == null) {
+                        throw new NoSuchElementException();
+                    }
+                    next = current.caller;
+                    return current.frame;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Identifies a stack trace node by its interned frame and caller, which is why comparing them by identity is sufficient.
+     */
+    private static class Key {
+        @Nullable
+        private StackFrame frame;
+        @Nullable
+        private InternedStackTrace caller;
+        private int hash;
+
+        private void set(@Nullable StackFrame frame, @Nullable InternedStackTrace caller) {
+            this.frame = frame;
+            this.caller = caller;
+            this.hash = 31 * System.identityHashCode(caller) + System.identityHashCode(frame);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return frame == that.frame && caller == that.caller;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
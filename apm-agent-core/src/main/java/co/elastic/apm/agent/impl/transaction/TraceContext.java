@@ -22,6 +22,7 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.Baggage;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSampler;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.dispatch.BinaryHeaderSetter;
@@ -215,6 +216,8 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
     // ???????1 -> maybe recorded
     // ???????0 -> not recorded
     private static final byte FLAG_RECORDED = 0b0000_0001;
+    // 1??????? -> recorded locally while awaiting the tail sampling decision, never propagated
+    private static final byte FLAG_TAIL_SAMPLING_CANDIDATE = (byte) 0b1000_0000;
     private final Id traceId = Id.new128BitId();
     private final ElasticApmTracer tracer;
     private final Id id;
@@ -339,7 +342,7 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = HexUtils.getNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+            flags = (byte) (HexUtils.getNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET) & ~FLAG_TAIL_SAMPLING_CANDIDATE);
             clock.init();
             return true;
         } catch (IllegalArgumentException e) {
@@ -397,7 +400,7 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = traceParentHeader[BINARY_FORMAT_FLAGS_OFFSET + 1];
+            flags = (byte) (traceParentHeader[BINARY_FORMAT_FLAGS_OFFSET + 1] & ~FLAG_TAIL_SAMPLING_CANDIDATE);
             clock.init();
             return true;
         } catch (IllegalArgumentException e) {
@@ -416,9 +419,14 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
         traceId.setToRandomValue();
         id.setToRandomValue();
         transactionId.copyFrom(id);
-        if (sampler.isSampled(traceId)) {
+        // the decision, the sample rate, and the tracestate header have to be consistent
+        Sampler decisionSampler = sampler.getDecisionSampler();
+        if (decisionSampler.isSampled(traceId)) {
             flags = FLAG_RECORDED;
-            traceState.set(sampler.getSampleRate(), sampler.getTraceStateHeader());
+            traceState.set(decisionSampler.getSampleRate(), decisionSampler.getTraceStateHeader());
+        } else if (sampler.isTailSamplingCandidate()) {
+            // recorded locally only, the sample rate stays unknown and downstream services see an unsampled trace
+            flags = FLAG_RECORDED | FLAG_TAIL_SAMPLING_CANDIDATE;
         }
         clock.init();
         onMutation();
@@ -516,6 +524,14 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
         }
     }
 
+    /**
+     * @return {@code true} when this trace has not been head-sampled but is recorded until the tail sampling decision is made
+     * @see TailSampler
+     */
+    public boolean isTailSamplingCandidate() {
+        return (flags & FLAG_TAIL_SAMPLING_CANDIDATE) == FLAG_TAIL_SAMPLING_CANDIDATE;
+    }
+
     void setNonDiscardable() {
         this.discardable = false;
     }
@@ -597,7 +613,7 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
                     // for unsampled traces, propagate the ID of the transaction in calls to downstream services
                     // such that the parentID of those transactions point to a transaction that exists
                     // remember that we do report unsampled transactions
-                    fillTraceParentHeader(outgoingTextHeader, isSampled() ? id : transactionId);
+                    fillTraceParentHeader(outgoingTextHeader, isSampledDownstream() ? id : transactionId);
                 }
             }
         }
@@ -610,7 +626,18 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
         sb.append('-');
         spanId.writeAsHex(sb);
         sb.append('-');
-        HexUtils.writeByteAsHex(flags, sb);
+        HexUtils.writeByteAsHex(getOutgoingFlags(), sb);
+    }
+
+    private boolean isSampledDownstream() {
+        return isSampled() && !isTailSamplingCandidate();
+    }
+
+    private byte getOutgoingFlags() {
+        if (isTailSamplingCandidate()) {
+            return (byte) (flags & ~(FLAG_RECORDED | FLAG_TAIL_SAMPLING_CANDIDATE));
+        }
+        return flags;
     }
 
     /**
@@ -631,10 +658,10 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
         // for unsampled traces, propagate the ID of the transaction in calls to downstream services
         // such that the parentID of those transactions point to a transaction that exists
         // remember that we do report unsampled transactions
-        Id parentId = isSampled() ? id : transactionId;
+        Id parentId = isSampledDownstream() ? id : transactionId;
         parentId.toBytes(buffer, BINARY_FORMAT_PARENT_ID_OFFSET + 1);
         buffer[BINARY_FORMAT_FLAGS_OFFSET] = BINARY_FORMAT_FLAGS_FIELD_ID;
-        buffer[BINARY_FORMAT_FLAGS_OFFSET + 1] = flags;
+        buffer[BINARY_FORMAT_FLAGS_OFFSET + 1] = getOutgoingFlags();
         return true;
     }
 
@@ -787,8 +814,11 @@ public class TraceContext implements Recyclable, co.elastic.apm.agent.tracer.Tra
         return id.dataEquals(serialized, traceId.getLength()) && traceId.dataEquals(serialized, 0);
     }
 
+    /**
+     * @return the W3C trace flags as seen by other services, without internal flags
+     */
     public byte getFlags() {
-        return flags;
+        return getOutgoingFlags();
     }
 
     public interface ChildContextCreator<T> {
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.Baggage;
@@ -27,6 +28,7 @@ import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
 import co.elastic.apm.agent.impl.context.Response;
 import co.elastic.apm.agent.impl.context.TransactionContext;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSampler;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.Timer;
@@ -40,6 +42,7 @@ import org.HdrHistogram.WriterReaderPhaser;
 import javax.annotation.Nullable;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static co.elastic.apm.agent.configuration.CoreConfiguration.TraceContinuationStrategy.RESTART;
 import static co.elastic.apm.agent.configuration.CoreConfiguration.TraceContinuationStrategy.RESTART_EXTERNAL;
@@ -55,6 +58,17 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
      */
     private final Labels.Mutable labelsMutable = Labels.Mutable.of();
 
+    /**
+     * Mutable labels used when recording the span self-time histogram.
+     * Spans of a transaction may end concurrently, that's why these are per thread.
+     */
+    private static final ThreadLocal<Labels.Mutable> histogramLabels = new ThreadLocal<Labels.Mutable>() {
+        @Override
+        protected Labels.Mutable initialValue() {
+            return Labels.Mutable.of();
+        }
+    };
+
     /**
      * Context
      * <p>
@@ -76,6 +90,7 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final CoreConfiguration coreConfig;
     private final SpanConfiguration spanConfig;
+    private final MetricsConfiguration metricsConfig;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -97,6 +112,10 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
 
     private long spanCompressionSameKindMaxDurationUs;
 
+    private boolean spanCompressionBufferOffHeap;
+
+    private boolean collectSelfTimeHistogram;
+
     @Nullable
     private String frameworkName;
 
@@ -114,6 +133,13 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
 
     private final AtomicBoolean wasActivated = new AtomicBoolean();
 
+    /**
+     * Head of a lock-free stack of ended spans that await the tail sampling decision, linked through {@link Span#tailSamplingNext}
+     */
+    private final AtomicReference<Span> tailSampledSpans = new AtomicReference<>();
+    private volatile TailSampler.Decision tailSamplingDecision = TailSampler.Decision.PENDING;
+    private volatile boolean errorCaptured;
+
     @Override
     public Transaction getParentTransaction() {
         return this;
@@ -123,6 +149,7 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         super(tracer);
         coreConfig = tracer.getConfig(CoreConfiguration.class);
         spanConfig = tracer.getConfig(SpanConfiguration.class);
+        metricsConfig = tracer.getConfig(MetricsConfiguration.class);
     }
 
     public <T> Transaction startRoot(long epochMicros, Sampler sampler, Baggage baggage) {
@@ -177,6 +204,8 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         spanCompressionEnabled = spanConfig.isSpanCompressionEnabled();
         spanCompressionExactMatchMaxDurationUs = spanConfig.getSpanCompressionExactMatchMaxDuration().getMicros();
         spanCompressionSameKindMaxDurationUs = spanConfig.getSpanCompressionSameKindMaxDuration().getMicros();
+        spanCompressionBufferOffHeap = spanConfig.isSpanCompressionBufferOffHeap();
+        collectSelfTimeHistogram = metricsConfig.isSpanSelfTimeHistogramEnabled();
 
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
@@ -302,6 +331,51 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         droppedSpanStats.captureDroppedSpan(span);
     }
 
+    /**
+     * Marks that an error has been captured within this transaction or one of its spans
+     */
+    public void setErrorCaptured() {
+        errorCaptured = true;
+    }
+
+    public boolean isErrorCaptured() {
+        return errorCaptured || hasCapturedExceptions();
+    }
+
+    public void pushTailSampledSpan(Span span) {
+        Span head;
+        do {
+            head = tailSampledSpans.get();
+            span.tailSamplingNext = head;
+        } while (!tailSampledSpans.compareAndSet(head, span));
+    }
+
+    /**
+     * Removes all spans that await the tail sampling decision
+     *
+     * @return the most recently buffered span, the others are linked through {@link Span#getTailSamplingNext()}
+     */
+    @Nullable
+    public Span drainTailSampledSpans() {
+        return tailSampledSpans.getAndSet(null);
+    }
+
+    public TailSampler.Decision getTailSamplingDecision() {
+        return tailSamplingDecision;
+    }
+
+    /**
+     * Applies the tail sampling decision.
+     * When dropping, the transaction is reported like a non-sampled one, without context and spans.
+     */
+    public void setTailSamplingDecision(TailSampler.Decision decision) {
+        if (decision == TailSampler.Decision.DROP) {
+            traceContext.setRecorded(false);
+            context.resetState();
+        }
+        tailSamplingDecision = decision;
+    }
+
     public DroppedSpanStats getDroppedSpanStats() {
         return droppedSpanStats;
     }
@@ -339,10 +413,15 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         spanCompressionEnabled = false;
         spanCompressionExactMatchMaxDurationUs = 0L;
         spanCompressionSameKindMaxDurationUs = 0L;
+        spanCompressionBufferOffHeap = false;
+        collectSelfTimeHistogram = false;
         frameworkName = null;
         frameworkVersion = null;
         faas.resetState();
         wasActivated.set(false);
+        tailSampledSpans.set(null);
+        tailSamplingDecision = TailSampler.Decision.PENDING;
+        errorCaptured = false;
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
     }
 
@@ -442,6 +521,10 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         return spanCompressionSameKindMaxDurationUs;
     }
 
+    public boolean isSpanCompressionBufferOffHeap() {
+        return spanCompressionBufferOffHeap;
+    }
+
     @Override
     public CharSequence getNameForSerialization() {
         WildcardMatcher match = WildcardMatcher.anyMatch(coreConfig.getTransactionNameGroups(), this.name);
@@ -483,6 +566,9 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
                 }
             }
             timer.update(duration);
+            if (collectSelfTimeHistogram) {
+                updateSelfTimeHistogram(type, subtype, duration);
+            }
             if (finished) {
                 // in case end()->trackMetrics() has been called concurrently
                 // don't leak timers
@@ -493,6 +579,20 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         }
     }
 
+    /**
+     * Unlike the {@code span.self_time} timers, the histogram is not aggregated per transaction but records each span's self-time.
+     * It's not labeled with the transaction name, as that may still change until the transaction ends.
+     */
+    private void updateSelfTimeHistogram(String type, String subtype, long duration) {
+        Labels.Mutable labels = histogramLabels.get();
+        labels.resetState();
+        labels.serviceName(getTraceContext().getServiceName())
+            .serviceVersion(getTraceContext().getServiceVersion())
+            .spanType(type)
+            .spanSubType(subtype.isEmpty() ? null : subtype);
+        tracer.getMetricRegistry().updateHistogram("span.self_time", labels, duration);
+    }
+
     private void trackMetrics() {
         try {
             phaser.readerLock();
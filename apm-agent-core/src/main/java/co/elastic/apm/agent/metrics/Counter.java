@@ -0,0 +1,45 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+/**
+ * A monotonic counter which is reset after each report.
+ * <p>
+ * The counter is striped across cells when it's updated concurrently (see {@link StripedCells}).
+ * </p>
+ */
+public class Counter implements Recyclable {
+
+    private final StripedCells cells = new StripedCells();
+
+    public void add(long count) {
+        cells.add(count, 0);
+    }
+
+    public long get() {
+        return cells.sumValue();
+    }
+
+    @Override
+    public void resetState() {
+        cells.reset();
+    }
+}
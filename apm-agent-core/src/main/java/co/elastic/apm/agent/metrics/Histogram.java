@@ -0,0 +1,147 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram with a log-linear bucket layout, similar to the one used by HdrHistogram.
+ * <p>
+ * Values below {@link #SUB_BUCKET_COUNT} are counted exactly.
+ * Each power of two above that is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets,
+ * which bounds the relative error of a recorded value to {@code 1 / SUB_BUCKET_COUNT}.
+ * Values greater than {@link #MAX_TRACKABLE_VALUE} are counted in the highest bucket.
+ * </p>
+ * <p>
+ * Recording is lock-free and allocation-free which allows to update a histogram within the critical section
+ * of a {@link org.HdrHistogram.WriterReaderPhaser}, the same way {@link Timer}s are updated.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 40;
+    /**
+     * About 12.7 days when recording microseconds
+     */
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+
+    public void update(long value) {
+        counts.incrementAndGet(getBucketIndex(value));
+        totalCount.incrementAndGet();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    static long getBucketWidth(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return 1;
+        }
+        return 1L << ((index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the value which represents all values recorded in the bucket with the given index.
+     * This is the midpoint of the bucket, or the exact value for buckets with a width of one.
+     *
+     * @param index the bucket index, between {@code 0} and {@link #getBucketCount()} (exclusive)
+     * @return the representative value of the bucket
+     */
+    public static double getBucketValue(int index) {
+        return getBucketLowerBound(index) + (getBucketWidth(index) - 1) / 2.0;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount(int index) {
+        return counts.get(index);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Returns the representative value of the bucket which contains the given percentile.
+     * Should only be called when there are no concurrent updates.
+     *
+     * @param percentile the percentile, between {@code 0} and {@code 100}
+     * @return the value at the given percentile, or {@code 0} if there are no recorded values
+     */
+    public double getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+            if (count >= countAtPercentile) {
+                return getBucketValue(i);
+            }
+        }
+        return getBucketValue(BUCKET_COUNT - 1);
+    }
+
+    public boolean hasContent() {
+        return totalCount.get() > 0;
+    }
+
+    @Override
+    public void resetState() {
+        if (totalCount.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+    }
+}
@@ -126,6 +126,14 @@ public interface Labels {
 
         @Override
         public int hashCode() {
+            return hashCode(prefixHashCode());
+        }
+
+        /**
+         * Hashes all labels except for the span type and subtype,
+         * which change most frequently when tracking breakdown metrics for a transaction.
+         */
+        final int prefixHashCode() {
             int h = 0;
             for (int i = 0; i < values.size(); i++) {
                 h = 31 * h + hashEntryAt(i);
@@ -134,6 +142,11 @@ public interface Labels {
             h = 31 * h + hash(getServiceVersion());
             h = 31 * h + hash(getTransactionName());
             h = 31 * h + (getTransactionType() != null ? getTransactionType().hashCode() : 0);
+            return h;
+        }
+
+        final int hashCode(int prefixHashCode) {
+            int h = prefixHashCode;
             h = 31 * h + (getSpanType() != null ? getSpanType().hashCode() : 0);
             h = 31 * h + (getSpanSubType() != null ? getSpanSubType().hashCode() : 0);
             return h;
@@ -169,6 +182,9 @@ public interface Labels {
         }
 
         private static boolean contentEquals(@Nullable CharSequence cs1, @Nullable CharSequence cs2) {
+            if (cs1 == cs2) {
+                return true;
+            }
             if (cs1 == null || cs2 == null) {
                 return cs1 == cs2;
             }
@@ -204,6 +220,16 @@ public interface Labels {
         }
     }
 
+    /**
+     * A mutable implementation of the {@link Labels} interface, used to look up {@link MetricSet}s without allocations.
+     * <p>
+     * The hash code is cached until a label changes.
+     * Labels which are only used for a lookup are typically reset and filled for each transaction,
+     * so the cache stays valid for all span types and subtypes of a transaction.
+     * Note that {@link CharSequence} values must not be modified after they have been added,
+     * as that would not invalidate the cached hash code.
+     * </p>
+     */
     class Mutable extends AbstractBase implements Recyclable {
 
         @Nullable
@@ -218,6 +244,11 @@ public interface Labels {
         private String spanType;
         @Nullable
         private String spanSubType;
+        /**
+         * Cached result of {@link #prefixHashCode()}, which doesn't include the span type and subtype
+         */
+        private int prefixHash;
+        private boolean prefixHashValid;
 
         private Mutable() {
             super(new ArrayList<String>(), new ArrayList<CharSequence>());
@@ -244,26 +275,31 @@ public interface Labels {
         public Labels add(String key, CharSequence value) {
             keys.add(key);
             values.add(value);
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable serviceName(@Nullable String serviceName) {
             this.serviceName = serviceName;
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable serviceVersion(@Nullable String serviceVersion) {
             this.serviceVersion = serviceVersion;
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable transactionName(@Nullable CharSequence transactionName) {
             this.transactionName = transactionName;
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable transactionType(@Nullable String transactionType) {
             this.transactionType = transactionType;
+            prefixHashValid = false;
             return this;
         }
 
@@ -308,12 +344,22 @@ public interface Labels {
             return spanSubType;
         }
 
+        @Override
+        public int hashCode() {
+            if (!prefixHashValid) {
+                prefixHash = prefixHashCode();
+                prefixHashValid = true;
+            }
+            return hashCode(prefixHash);
+        }
+
         public Labels.Immutable immutableCopy() {
             return new Immutable(this);
         }
 
         @Override
         public void resetState() {
+            prefixHashValid = false;
             keys.clear();
             values.clear();
             serviceName = null;
@@ -31,13 +31,11 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and {@link Histogram}s.
  * </p>
  */
 public class MetricRegistry {
@@ -52,13 +50,13 @@ public class MetricRegistry {
     /**
      * Groups {@link MetricSet}s by their unique labels.
      */
-    private volatile ConcurrentMap<Labels.Immutable, MetricSet> activeMetricSets = new ConcurrentHashMap<>();
-    private ConcurrentMap<Labels.Immutable, MetricSet> inactiveMetricSets = new ConcurrentHashMap<>();
+    private volatile MetricSetIndex activeMetricSets;
+    private MetricSetIndex inactiveMetricSets;
     /**
      * Final and thus stable references to the two different metric sets.
      * See {@link #getOrCreateMetricSet(Labels)}
      */
-    private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets1 = activeMetricSets, metricSets2 = inactiveMetricSets;
+    private final MetricSetIndex metricSets1, metricSets2;
 
     private final MetricCollector metricCollector = new MetricCollector() {
         @Override
@@ -73,6 +71,8 @@ public class MetricRegistry {
     public MetricRegistry(ReporterConfiguration reporterConfiguration, MetricsConfiguration metricsConfiguration) {
         this.reporterConfiguration = reporterConfiguration;
         this.metricSetLimit = metricsConfiguration.getMetricSetLimit();
+        this.activeMetricSets = this.metricSets1 = new MetricSetIndex(metricSetLimit);
+        this.inactiveMetricSets = this.metricSets2 = new MetricSetIndex(metricSetLimit);
     }
 
     public void addMetricsProvider(MetricsProvider provider) {
@@ -193,14 +193,14 @@ public class MetricRegistry {
                 provider.collectAndReset(metricCollector);
             }
 
-            ConcurrentMap<Labels.Immutable, MetricSet> temp = inactiveMetricSets;
+            MetricSetIndex temp = inactiveMetricSets;
             inactiveMetricSets = activeMetricSets;
             activeMetricSets = temp;
             phaser.flipPhase();
             if (metricsReporter != null) {
-                metricsReporter.report(inactiveMetricSets);
+                metricsReporter.report(inactiveMetricSets.getMetricSets());
             }
-            for (MetricSet metricSet : inactiveMetricSets.values()) {
+            for (MetricSet metricSet : inactiveMetricSets.getMetricSets().values()) {
                 metricSet.resetState();
             }
         } finally {
@@ -224,17 +224,37 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a single value in a {@link Histogram}, e.g. to be able to calculate latency percentiles.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        labels for the histogram
+     * @param value         the value to record, typically a duration in microseconds
+     */
+    public void updateHistogram(String histogramName, Labels labels, long value) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).update(value);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
      */
     @Nullable
     private MetricSet getOrCreateMetricSet(Labels labels) {
-        MetricSet metricSet = activeMetricSets.get(labels);
+        final MetricSetIndex metricSets = activeMetricSets;
+        MetricSet metricSet = metricSets.get(labels);
         if (metricSet != null) {
             return metricSet;
         }
-        if (activeMetricSets.size() < metricSetLimit) {
+        if (metricSets.size() < metricSetLimit) {
             return createMetricSet(labels.immutableCopy());
         }
         return null;
@@ -24,7 +24,6 @@ import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A metric set is a collection of metrics which have the same labels.
@@ -45,10 +44,12 @@ public class MetricSet implements Recyclable {
     private final ConcurrentMap<String, DoubleSupplier> gauges;
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
-    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(16, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, Double> rawValues = new ConcurrentHashMap<>();
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -90,14 +91,24 @@ public class MetricSet implements Recyclable {
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public void addToCounter(String name, long count) {
         hasNonEmptyCounter = true;
-        AtomicLong counter = counters.get(name);
+        Counter counter = counters.get(name);
         if (counter == null) {
-            counters.putIfAbsent(name, new AtomicLong());
+            counters.putIfAbsent(name, new Counter());
             counter = counters.get(name);
         }
-        counter.addAndGet(count);
+        counter.add(count);
     }
 
     public Map<String, Timer> getTimers() {
@@ -105,7 +116,7 @@ public class MetricSet implements Recyclable {
     }
 
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || !rawValues.isEmpty();
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram || !rawValues.isEmpty();
     }
 
     /**
@@ -115,18 +126,26 @@ public class MetricSet implements Recyclable {
         for (Timer timer : timers.values()) {
             timer.resetState();
         }
-        for (AtomicLong counter : counters.values()) {
-            counter.set(0);
+        for (Counter counter : counters.values()) {
+            counter.resetState();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
         }
         rawValues.clear();
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
-    public Map<String, AtomicLong> getCounters() {
+    public Map<String, Counter> getCounters() {
         return counters;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public Map<String, Double> getRawMetrics() {
         return rawValues;
     }
@@ -0,0 +1,126 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the {@link MetricSet}s of one phase of the {@link MetricRegistry}, grouped by their unique labels.
+ * <p>
+ * Next to the map, which is used for reporting, there's a fixed-size open-addressing index for lookups on the hot path,
+ * such as {@link MetricRegistry#updateTimer} on each span end.
+ * The index stores the hash codes of the labels in a primitive array that is probed before dereferencing any {@link MetricSet},
+ * so that a lookup typically only touches two cache lines and doesn't allocate.
+ * As metric sets are never removed and the number of metric sets is limited by {@code metric_set_limit},
+ * the index never has to be resized.
+ * </p>
+ */
+final class MetricSetIndex {
+
+    private static final int HASH_ABSENT = 0;
+
+    private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<MetricSet> table;
+    /**
+     * The hash codes of the labels of the metric sets in {@link #table}, mixed so that {@link #HASH_ABSENT} is never a valid value
+     */
+    private final AtomicIntegerArray hashes;
+    private final int mask;
+    private final int shift;
+
+    MetricSetIndex(int metricSetLimit) {
+        // keep the load factor below 0.5, even if the limit is slightly exceeded due to races
+        int capacity = Integer.highestOneBit(Math.max(metricSetLimit, 8) * 2 - 1) << 1;
+        table = new AtomicReferenceArray<>(capacity);
+        hashes = new AtomicIntegerArray(capacity);
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    ConcurrentMap<Labels.Immutable, MetricSet> getMetricSets() {
+        return metricSets;
+    }
+
+    int size() {
+        return metricSets.size();
+    }
+
+    @Nullable
+    MetricSet get(Labels labels) {
+        int hash = mix(labels.hashCode());
+        int i = hash >>> shift;
+        for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+            int h = hashes.get(i);
+            if (h == hash) {
+                MetricSet metricSet = table.get(i);
+                if (metricSet != null && metricSet.getLabels().equals(labels)) {
+                    return metricSet;
+                }
+            } else if (h == HASH_ABSENT && table.get(i) == null) {
+                break;
+            }
+        }
+        // not indexed yet, for example because the metric set has been created by the other phase
+        MetricSet metricSet = metricSets.get(labels);
+        if (metricSet != null) {
+            index(metricSet, hash);
+        }
+        return metricSet;
+    }
+
+    /**
+     * Adds the metric set to the map, unless there already is a metric set with the same labels
+     *
+     * @return the metric set which is already contained in the map, or {@code null} if the metric set has been added
+     */
+    @Nullable
+    MetricSet putIfAbsent(Labels.Immutable labels, MetricSet metricSet) {
+        return metricSets.putIfAbsent(labels, metricSet);
+    }
+
+    private void index(MetricSet metricSet, int hash) {
+        int i = hash >>> shift;
+        for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+            MetricSet current = table.get(i);
+            if (current == null) {
+                if (table.compareAndSet(i, null, metricSet)) {
+                    // concurrent lookups may not see the hash yet and fall back to the map
+                    hashes.set(i, hash);
+                    return;
+                }
+                current = table.get(i);
+            }
+            if (current == metricSet) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fibonacci hashing spreads the bits of the hash code, so that the upper bits can be used as the table index
+     */
+    private static int mix(int hashCode) {
+        int hash = hashCode * 0x9E3779B9;
+        return hash == HASH_ABSENT ? 1 : hash;
+    }
+}
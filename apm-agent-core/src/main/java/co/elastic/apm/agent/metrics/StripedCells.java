@@ -0,0 +1,218 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A pair of long sums (a value and a count) which is striped across cells when updated concurrently,
+ * similar to {@code java.util.concurrent.atomic.LongAdder}, which is not available on Java 7.
+ * <p>
+ * As long as there is no contention, updates are applied to the base values.
+ * When a compare-and-swap fails because of a concurrent update, the values are striped across padded cells,
+ * so that threads updating the same metric don't contend on the same cache line.
+ * The number of cells grows on contention, up to the number of available processors.
+ * </p>
+ * <p>
+ * The cells are only summed up when reading the values,
+ * which happens when reporting the inactive metric sets in {@link MetricRegistry#flipPhaseAndReport}.
+ * Reading and resetting the values is therefore only consistent when there are no concurrent updates.
+ * </p>
+ */
+final class StripedCells {
+
+    private static final int MAX_CELLS = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicLongFieldUpdater<StripedCells> BASE_VALUE = AtomicLongFieldUpdater.newUpdater(StripedCells.class, "baseValue");
+    private static final AtomicLongFieldUpdater<StripedCells> BASE_COUNT = AtomicLongFieldUpdater.newUpdater(StripedCells.class, "baseCount");
+    private static final AtomicIntegerFieldUpdater<StripedCells> CELLS_BUSY = AtomicIntegerFieldUpdater.newUpdater(StripedCells.class, "cellsBusy");
+
+    private volatile long baseValue;
+    private volatile long baseCount;
+    /**
+     * Spin lock used when creating or expanding the {@link #cells}
+     */
+    private volatile int cellsBusy;
+    @Nullable
+    private volatile Cell[] cells;
+
+    void add(long value, long count) {
+        Cell[] cs = cells;
+        if (cs == null) {
+            long base = baseValue;
+            if (BASE_VALUE.compareAndSet(this, base, base + value)) {
+                if (count != 0) {
+                    BASE_COUNT.addAndGet(this, count);
+                }
+                return;
+            }
+            cs = expand(null);
+        }
+        int hash = threadHash();
+        while (true) {
+            Cell cell = cs[hash & (cs.length - 1)];
+            if (cell.tryAdd(value, count)) {
+                return;
+            }
+            if (cs.length >= MAX_CELLS) {
+                cell.add(value, count);
+                return;
+            }
+            cs = expand(cs);
+        }
+    }
+
+    /**
+     * Doubles the number of cells, or creates the initial cells if {@code current} is {@code null}.
+     *
+     * @param current the cells which have been contended
+     * @return the current cells, which may have been expanded concurrently by another thread
+     */
+    private Cell[] expand(@Nullable Cell[] current) {
+        if (CELLS_BUSY.compareAndSet(this, 0, 1)) {
+            try {
+                if (cells == current) {
+                    Cell[] expanded = new Cell[current == null ? 2 : current.length << 1];
+                    int i = 0;
+                    if (current != null) {
+                        System.arraycopy(current, 0, expanded, 0, current.length);
+                        i = current.length;
+                    }
+                    for (; i < expanded.length; i++) {
+                        expanded[i] = new Cell();
+                    }
+                    cells = expanded;
+                }
+            } finally {
+                cellsBusy = 0;
+            }
+        }
+        Cell[] cs = cells;
+        while (cs == null) {
+            // another thread is creating the initial cells
+            Thread.yield();
+            cs = cells;
+        }
+        return cs;
+    }
+
+    long sumValue() {
+        long sum = baseValue;
+        Cell[] cs = cells;
+        if (cs != null) {
+            for (Cell cell : cs) {
+                sum += cell.value;
+            }
+        }
+        return sum;
+    }
+
+    long sumCount() {
+        long sum = baseCount;
+        Cell[] cs = cells;
+        if (cs != null) {
+            for (Cell cell : cs) {
+                sum += cell.count;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the sums but keeps the cells, as contended metrics are likely to be contended in the next reporting interval as well
+     */
+    void reset() {
+        baseValue = 0;
+        baseCount = 0;
+        Cell[] cs = cells;
+        if (cs != null) {
+            for (Cell cell : cs) {
+                cell.value = 0;
+                cell.count = 0;
+            }
+        }
+    }
+
+    private static int threadHash() {
+        // murmur3 finalizer, spreads sequential thread ids across the cells
+        long h = Thread.currentThread().getId();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static int nextPowerOfTwo(int i) {
+        return i <= 1 ? 1 : Integer.highestOneBit(i - 1) << 1;
+    }
+
+    static int getMaxCells() {
+        return MAX_CELLS;
+    }
+
+    int getCellCount() {
+        Cell[] cs = cells;
+        return cs == null ? 0 : cs.length;
+    }
+
+    @SuppressWarnings("unused")
+    static class LhsPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    static class CellValues extends LhsPadding {
+        volatile long value;
+        volatile long count;
+    }
+
+    /**
+     * Padded on both sides so that two cells never share a cache line, including the adjacent line fetched by some prefetchers
+     */
+    @SuppressWarnings("unused")
+    static final class Cell extends CellValues {
+        private static final AtomicLongFieldUpdater<CellValues> VALUE = AtomicLongFieldUpdater.newUpdater(CellValues.class, "value");
+        private static final AtomicLongFieldUpdater<CellValues> COUNT = AtomicLongFieldUpdater.newUpdater(CellValues.class, "count");
+
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+        long p30, p31, p32, p33, p34, p35, p36, p37;
+
+        boolean tryAdd(long value, long count) {
+            long current = this.value;
+            if (VALUE.compareAndSet(this, current, current + value)) {
+                if (count != 0) {
+                    COUNT.addAndGet(this, count);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        void add(long value, long count) {
+            VALUE.addAndGet(this, value);
+            if (count != 0) {
+                COUNT.addAndGet(this, count);
+            }
+        }
+    }
+}
@@ -21,45 +21,44 @@ package co.elastic.apm.agent.metrics;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This timer track the total time and the count of invocations so that it allows for calculating weighted averages.
+ * <p>
+ * The timer is striped across cells when it's updated concurrently (see {@link StripedCells}).
+ * </p>
  */
 public class Timer implements Recyclable {
     private static final double MS_IN_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
 
-    private AtomicLong totalTime = new AtomicLong();
-    private AtomicLong count = new AtomicLong();
+    private final StripedCells cells = new StripedCells();
 
     public void update(long durationUs) {
         update(durationUs, 1);
     }
 
     public void update(long durationUs, long count) {
-        this.totalTime.addAndGet(durationUs);
-        this.count.addAndGet(count);
+        cells.add(durationUs, count);
     }
 
     public long getTotalTimeUs() {
-        return totalTime.get();
+        return cells.sumValue();
     }
 
     public double getTotalTimeMs() {
-        return totalTime.get() / MS_IN_MICROS;
+        return cells.sumValue() / MS_IN_MICROS;
     }
 
     public long getCount() {
-        return count.get();
+        return cells.sumCount();
     }
 
     public boolean hasContent() {
-        return count.get() > 0;
+        return cells.sumCount() > 0;
     }
 
     @Override
     public void resetState() {
-        totalTime.set(0);
-        count.set(0);
+        cells.reset();
     }
 }
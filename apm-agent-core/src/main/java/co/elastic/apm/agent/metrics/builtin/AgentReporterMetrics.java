@@ -47,6 +47,8 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private static final String REQUEST_COUNT_METRIC = "agent.events.requests.count";
     private static final String REQUEST_BYTES_METRIC = "agent.events.requests.bytes";
 
+    private static final String SPILL_BYTES_METRIC = "agent.events.spill.bytes";
+
     private final boolean totalEventsMetricEnabled;
     private final boolean droppedEventsMetricEnabled;
 
@@ -57,9 +59,11 @@ public class AgentReporterMetrics implements ReporterMonitor {
 
     private final boolean requestBytesMetricEnabled;
 
+    private final boolean spillBytesMetricEnabled;
 
     private static final Labels QUEUE_REASON_LABEL = Labels.Mutable.of("reason", "queue").immutableCopy();
     private static final Labels ERROR_REASON_LABEL = Labels.Mutable.of("reason", "error").immutableCopy();
+    private static final Labels EVICTED_REASON_LABEL = Labels.Mutable.of("reason", "evicted").immutableCopy();
 
     private static final Labels TRANSACTION_LABEL = Labels.Mutable.of("event_type", "transaction").immutableCopy();
     private static final Labels SPAN_LABEL = Labels.Mutable.of("event_type", "span").immutableCopy();
@@ -72,6 +76,10 @@ public class AgentReporterMetrics implements ReporterMonitor {
 
     private static final Labels GENERIC_QUEUE_LABEL = Labels.Mutable.of("queue_name", "generic").immutableCopy();
 
+    private static final Labels SPILLED_LABEL = Labels.Mutable.of("operation", "spilled").immutableCopy();
+    private static final Labels REPLAYED_LABEL = Labels.Mutable.of("operation", "replayed").immutableCopy();
+    private static final Labels EVICTED_LABEL = Labels.Mutable.of("operation", "evicted").immutableCopy();
+
 
     private volatile double currentQueueUtilization = 0;
     private final AtomicDouble maxQueueSize = new AtomicDouble(0.0);
@@ -86,6 +94,7 @@ public class AgentReporterMetrics implements ReporterMonitor {
         this.maxQueueSizeMetricEnabled = allEnabled && !registry.isDisabled(MAX_QUEUE_SIZE_METRIC);
         this.requestCountMetricEnabled = allEnabled && !registry.isDisabled(REQUEST_COUNT_METRIC);
         this.requestBytesMetricEnabled = allEnabled && !registry.isDisabled(REQUEST_BYTES_METRIC);
+        this.spillBytesMetricEnabled = allEnabled && !registry.isDisabled(SPILL_BYTES_METRIC);
 
         if (anyQueueSizeMetricEnabled()) {
             registry.addMetricsProvider(new MetricsProvider() {
@@ -171,6 +180,30 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    @Override
+    public void spillSegmentWritten(long eventCount, long bytes) {
+        if (spillBytesMetricEnabled) {
+            metricRegistry.addToCounter(SPILL_BYTES_METRIC, SPILLED_LABEL, bytes);
+        }
+    }
+
+    @Override
+    public void spillSegmentReplayed(long eventCount, long bytes) {
+        if (spillBytesMetricEnabled) {
+            metricRegistry.addToCounter(SPILL_BYTES_METRIC, REPLAYED_LABEL, bytes);
+        }
+    }
+
+    @Override
+    public void spillSegmentEvicted(long eventCount, long bytes) {
+        if (droppedEventsMetricEnabled) {
+            metricRegistry.addToCounter(DROPPED_EVENTS_METRIC, EVICTED_REASON_LABEL, eventCount);
+        }
+        if (spillBytesMetricEnabled) {
+            metricRegistry.addToCounter(SPILL_BYTES_METRIC, EVICTED_LABEL, bytes);
+        }
+    }
+
     // package-protected for tests
     @Nullable
     static Labels getLabelFor(ReportingEvent.ReportingEventType type) {
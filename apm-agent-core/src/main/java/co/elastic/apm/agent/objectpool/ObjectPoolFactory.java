@@ -23,7 +23,9 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
@@ -43,6 +45,17 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
         return QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<T>((maxCapacity)), false, allocator);
     }
 
+    /**
+     * Creates a pool that caches objects per thread, see {@link MagazineObjectPool}.
+     *
+     * @param maxCapacity  the maximum number of objects that are shared between threads
+     * @param magazineSize the number of objects per magazine, each thread caches up to two magazines
+     * @param allocator    a factory used to create new instances of the recyclable object
+     */
+    public <T extends Recyclable> ObjectPool<T> createThreadLocalRecyclableObjectPool(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        return MagazineObjectPool.ofRecyclable(maxCapacity, magazineSize, allocator);
+    }
+
     @Override
     public <T> ObjectPool<ObjectHandle<T>> createHandlePool(Allocator<T> allocator) {
         ObjectHandle.Allocator<T> handleAlloc = new ObjectHandle.Allocator<T>(allocator);
@@ -75,12 +88,17 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
     }
 
     public ObjectPool<Span> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Span>() {
+        Allocator<Span> allocator = new Allocator<Span>() {
             @Override
             public Span createInstance() {
                 return new Span(tracer);
             }
-        });
+        };
+        int magazineSize = tracer.getConfig(ReporterConfiguration.class).getSpanPoolMagazineSize();
+        if (magazineSize > 0) {
+            return createThreadLocalRecyclableObjectPool(maxCapacity, magazineSize, allocator);
+        }
+        return createRecyclableObjectPool(maxCapacity, allocator);
     }
 
     public ObjectPool<ErrorCapture> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
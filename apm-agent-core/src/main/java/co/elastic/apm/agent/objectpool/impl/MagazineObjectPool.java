@@ -0,0 +1,194 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.tracer.pooling.Allocator;
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+
+/**
+ * An object pool that caches objects per thread, so that creating and recycling objects usually doesn't access shared state.
+ * <p>
+ * Each thread caches objects in up to two magazines, which are stacks of a fixed size.
+ * When both magazines of a thread are empty, it swaps an empty magazine for a full one from a shared depot.
+ * When both are full, it hands a full magazine over to the depot.
+ * This balances the objects between threads that mostly create objects, like application threads which create spans,
+ * and threads that mostly recycle them, like the reporter thread.
+ * As the depot is only accessed once per magazine, contention on the shared queues is much lower than with a {@link QueueBasedObjectPool}.
+ * </p>
+ * <p>
+ * The depot holds up to {@code maxCapacity} objects.
+ * In addition, each thread caches up to two magazines of objects.
+ * These are garbage collected when the thread terminates.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class MagazineObjectPool<T> extends AbstractObjectPool<T> {
+
+    private final int magazineSize;
+    private final MpmcAtomicArrayQueue<Magazine<T>> fullMagazines;
+    private final MpmcAtomicArrayQueue<Magazine<T>> emptyMagazines;
+    private final ThreadLocal<Cache<T>> caches = new ThreadLocal<Cache<T>>() {
+        @Override
+        protected Cache<T> initialValue() {
+            return new Cache<>(new Magazine<T>(magazineSize), new Magazine<T>(magazineSize));
+        }
+    };
+
+    /**
+     * Creates a magazine based pool for types that implement {@link Recyclable}.
+     *
+     * @param maxCapacity  the maximum number of objects in the shared depot
+     * @param magazineSize the number of objects per magazine
+     * @param allocator    a factory used to create new instances of the recyclable object when there are no objects in the pool
+     */
+    public static <T extends Recyclable> MagazineObjectPool<T> ofRecyclable(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        return new MagazineObjectPool<>(maxCapacity, magazineSize, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    public MagazineObjectPool(int maxCapacity, int magazineSize, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        super(allocator, resetter);
+        this.magazineSize = magazineSize;
+        // the queues require a capacity of at least two
+        int magazines = Math.max(2, maxCapacity / magazineSize);
+        this.fullMagazines = new MpmcAtomicArrayQueue<>(magazines);
+        this.emptyMagazines = new MpmcAtomicArrayQueue<>(magazines);
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        Cache<T> cache = caches.get();
+        if (cache.loaded.isEmpty()) {
+            if (!cache.previous.isEmpty()) {
+                cache.swap();
+            } else {
+                Magazine<T> full = fullMagazines.poll();
+                if (full == null) {
+                    return null;
+                }
+                emptyMagazines.offer(cache.loaded);
+                cache.loaded = full;
+            }
+        }
+        return cache.loaded.pop();
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        Cache<T> cache = caches.get();
+        if (cache.loaded.isFull()) {
+            if (!cache.previous.isFull()) {
+                cache.swap();
+            } else {
+                if (!fullMagazines.offer(cache.previous)) {
+                    // the depot is full
+                    return false;
+                }
+                cache.previous = cache.loaded;
+                Magazine<T> empty = emptyMagazines.poll();
+                cache.loaded = empty != null ? empty : new Magazine<T>(magazineSize);
+            }
+        }
+        cache.loaded.push(obj);
+        return true;
+    }
+
+    /**
+     * Returns the number of objects in the depot and the magazines of the current thread.
+     * The magazines of other threads are not taken into account.
+     *
+     * @return the number of objects available to the current thread
+     */
+    @Override
+    public int getObjectsInPool() {
+        Cache<T> cache = caches.get();
+        return fullMagazines.size() * magazineSize + cache.loaded.size() + cache.previous.size();
+    }
+
+    /**
+     * Clears the depot and the magazines of the current thread.
+     */
+    @Override
+    public void clear() {
+        fullMagazines.clear();
+        Cache<T> cache = caches.get();
+        cache.loaded.clear();
+        cache.previous.clear();
+    }
+
+    private static class Cache<T> {
+        private Magazine<T> loaded;
+        private Magazine<T> previous;
+
+        private Cache(Magazine<T> loaded, Magazine<T> previous) {
+            this.loaded = loaded;
+            this.previous = previous;
+        }
+
+        private void swap() {
+            Magazine<T> tmp = loaded;
+            loaded = previous;
+            previous = tmp;
+        }
+    }
+
+    private static class Magazine<T> {
+        private final Object[] objects;
+        private int size;
+
+        private Magazine(int capacity) {
+            objects = new Object[capacity];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private boolean isFull() {
+            return size == objects.length;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void push(T obj) {
+            objects[size++] = obj;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            T obj = (T) objects[--size];
+            objects[size] = null;
+            return obj;
+        }
+
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                objects[i] = null;
+            }
+            size = 0;
+        }
+    }
+}
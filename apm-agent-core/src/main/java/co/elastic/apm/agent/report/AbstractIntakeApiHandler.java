@@ -27,6 +27,7 @@ import org.stagemonitor.util.IOUtils;
 import javax.annotation.Nullable;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -45,6 +46,9 @@ public class AbstractIntakeApiHandler {
     protected final ApmServerClient apmServerClient;
     protected Deflater deflater;
     @Nullable
+    private final CompressionDictionary compressionDictionary;
+    private final MetaDataBuffer metaDataBuffer = new MetaDataBuffer();
+    @Nullable
     protected HttpURLConnection connection;
     @Nullable
     protected OutputStream os;
@@ -60,6 +64,7 @@ public class AbstractIntakeApiHandler {
         this.payloadSerializer = payloadSerializer.newWriter();
         this.apmServerClient = apmServerClient;
         this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.compressionDictionary = reporterConfiguration.isCompressionDictionary() ? new CompressionDictionary() : null;
     }
 
     /*
@@ -110,13 +115,18 @@ public class AbstractIntakeApiHandler {
                 connection.connect();
                 countingOs = new CountingOutputStream(connection.getOutputStream());
                 if (useCompression) {
-                    os = new DeflaterOutputStream(countingOs, deflater, true);
+                    os = createDeflaterOutputStream(countingOs);
                 } else {
                     os = countingOs;
                 }
-                payloadSerializer.setOutputStream(os);
-                payloadSerializer.appendMetaDataNdJsonToStream();
-                payloadSerializer.flushToOutputStream();
+                if (compressionDictionary != null && os instanceof DeflatedChunkOutputStream) {
+                    writeCompressedMetaData(compressionDictionary, (DeflatedChunkOutputStream) os);
+                    payloadSerializer.setOutputStream(os);
+                } else {
+                    payloadSerializer.setOutputStream(os);
+                    payloadSerializer.appendMetaDataNdJsonToStream();
+                    payloadSerializer.flushToOutputStream();
+                }
                 requestStartedNanos = System.nanoTime();
             } catch (IOException e) {
                 try {
@@ -154,6 +164,28 @@ public class AbstractIntakeApiHandler {
         return connection;
     }
 
+    /**
+     * Creates the stream that compresses the request body.
+     *
+     * @param os the stream of the request body
+     * @return the compressing stream
+     */
+    protected OutputStream createDeflaterOutputStream(OutputStream os) throws IOException {
+        return new DeflaterOutputStream(os, deflater, true);
+    }
+
+    /**
+     * Writes the {@code metadata} event, which is only compressed again if it has changed,
+     * and primes the compression of the events that follow with it.
+     */
+    private void writeCompressedMetaData(CompressionDictionary compressionDictionary, DeflatedChunkOutputStream os) throws Exception {
+        metaDataBuffer.reset();
+        payloadSerializer.setOutputStream(metaDataBuffer);
+        payloadSerializer.appendMetaDataNdJsonToStream();
+        payloadSerializer.fullFlush();
+        os.writeDictionary(compressionDictionary.update(metaDataBuffer.getBuffer(), metaDataBuffer.size()));
+    }
+
     private void closeAndSuppressErrors(HttpURLConnection connection) {
         try {
             connection.disconnect();
@@ -191,6 +223,9 @@ public class AbstractIntakeApiHandler {
         if (connection != null) {
             long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
             try {
+                if (os != null) {
+                    flushPendingEvents(os);
+                }
                 payloadSerializer.fullFlush();
                 if (os != null) {
                     os.close();
@@ -222,6 +257,14 @@ public class AbstractIntakeApiHandler {
         }
     }
 
+    /**
+     * Called before the current request is completed, to write events that have not been handed to the {@link #payloadSerializer} yet.
+     *
+     * @param os the stream of the current request
+     */
+    protected void flushPendingEvents(OutputStream os) throws IOException {
+    }
+
     protected boolean isApiRequestTimeExpired() {
         return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
     }
@@ -259,11 +302,15 @@ public class AbstractIntakeApiHandler {
         logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
         if (backoffTimeMillis > 0) {
+            final long jitteredBackoffTimeMillis = backoffTimeMillis + getRandomJitter(backoffTimeMillis);
+            if (deferBackoff(jitteredBackoffTimeMillis)) {
+                return;
+            }
             // back off because there are connection issues with the apm server
             try {
                 healthy = false;
                 synchronized (WAIT_LOCK) {
-                    WAIT_LOCK.wait(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+                    WAIT_LOCK.wait(jitteredBackoffTimeMillis);
                 }
             } catch (InterruptedException e) {
                 logger.info("APM Agent ReportingEventHandler had been interrupted", e);
@@ -273,6 +320,16 @@ public class AbstractIntakeApiHandler {
         }
     }
 
+    /**
+     * Allows subclasses to keep processing events instead of blocking the reporter thread while backing off.
+     *
+     * @param backoffTimeMillis the time to back off for
+     * @return {@code true} if the subclass takes care of backing off, {@code false} to block the reporter thread
+     */
+    protected boolean deferBackoff(long backoffTimeMillis) {
+        return false;
+    }
+
     public boolean isHealthy() {
         return healthy;
     }
@@ -287,4 +344,11 @@ public class AbstractIntakeApiHandler {
     protected void onRequestSuccess(long bytesWritten) {
         errorCount = 0;
     }
+
+    private static class MetaDataBuffer extends ByteArrayOutputStream {
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
 }
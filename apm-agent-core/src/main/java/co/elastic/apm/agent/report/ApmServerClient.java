@@ -22,9 +22,11 @@ import co.elastic.apm.agent.common.util.Version;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.ServerlessConfiguration;
 import co.elastic.apm.agent.report.ssl.SslUtils;
+import co.elastic.apm.agent.report.transport.HttpTransport;
+import co.elastic.apm.agent.report.transport.NioHttpTransport;
+import co.elastic.apm.agent.report.transport.UrlConnectionHttpTransport;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
-import co.elastic.apm.agent.util.UrlConnectionUtils;
 import co.elastic.apm.agent.util.VersionUtils;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationRegistry;
@@ -88,11 +90,26 @@ public class ApmServerClient {
 
     private final String userAgent;
 
+    private final HttpTransport transport;
+
     public ApmServerClient(ConfigurationRegistry configs) {
+        this(configs, createTransport(configs.getConfig(ReporterConfiguration.class)));
+    }
+
+    ApmServerClient(ConfigurationRegistry configs, HttpTransport transport) {
         this.reporterConfiguration = configs.getConfig(ReporterConfiguration.class);
         this.healthChecker = new ApmServerHealthChecker(this);
         this.serverlessConfiguration = configs.getConfig(ServerlessConfiguration.class);
         this.userAgent = getUserAgent(configs.getConfig(CoreConfiguration.class));
+        this.transport = transport;
+    }
+
+    private static HttpTransport createTransport(ReporterConfiguration reporterConfiguration) {
+        if (reporterConfiguration.getHttpTransport() == ReporterConfiguration.HttpTransportType.NIO) {
+            // allows to buffer a whole request, as the request size is only checked after having written an event
+            return new NioHttpTransport(new UrlConnectionHttpTransport(), 2 * reporterConfiguration.getApiRequestSize());
+        }
+        return new UrlConnectionHttpTransport();
     }
 
     public void start() {
@@ -117,6 +134,14 @@ public class ApmServerClient {
         setServerUrls(Collections.unmodifiableList(shuffledUrls));
     }
 
+    /**
+     * Releases the resources of the underlying {@link HttpTransport}.
+     */
+    public void close() {
+        transport.close();
+        healthChecker.close();
+    }
+
     /**
      * Only for testing.
      */
@@ -143,6 +168,13 @@ public class ApmServerClient {
         return copy;
     }
 
+    /**
+     * @return a future that completes with {@code true} if at least one APM Server is available
+     */
+    Future<Boolean> checkAvailability() {
+        return healthChecker.checkAvailability();
+    }
+
     @Nullable
     HttpURLConnection startRequest(String relativePath) throws IOException {
         URL url = appendPathToCurrentUrl(relativePath);
@@ -154,7 +186,7 @@ public class ApmServerClient {
 
     @Nonnull
     private HttpURLConnection startRequestToUrl(URL url) throws IOException {
-        final URLConnection connection = UrlConnectionUtils.openUrlConnectionThreadSafely(url, true);
+        final URLConnection connection = transport.openConnection(url);
 
         // change SSL socket factory to support both TLS fallback and disabling certificate validation
         if (connection instanceof HttpsURLConnection) {
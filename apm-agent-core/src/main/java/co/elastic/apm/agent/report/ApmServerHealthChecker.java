@@ -36,6 +36,7 @@ import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -47,6 +48,12 @@ public class ApmServerHealthChecker implements Callable<Version> {
     private static final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
 
     private final ApmServerClient apmServerClient;
+    /**
+     * Runs the {@linkplain #checkAvailability() availability checks}, which are repeated while the APM Server is unavailable.
+     * Created on the first check, its thread terminates when there are no more checks for a while.
+     */
+    @Nullable
+    private ThreadPoolExecutor availabilityCheckPool;
 
     public ApmServerHealthChecker(ApmServerClient apmServerClient) {
         this.apmServerClient = apmServerClient;
@@ -61,10 +68,54 @@ public class ApmServerHealthChecker implements Callable<Version> {
         }
     }
 
+    /**
+     * Asynchronously checks whether at least one of the configured APM Servers is available.
+     *
+     * @return a future that completes with {@code true} if at least one APM Server is available
+     */
+    public synchronized Future<Boolean> checkAvailability() {
+        ThreadPoolExecutor pool = availabilityCheckPool;
+        if (pool == null) {
+            pool = ExecutorUtils.createSingleThreadDaemonPool("server-availability-check", 1);
+            pool.setKeepAliveTime(1, TimeUnit.MINUTES);
+            pool.allowCoreThreadTimeOut(true);
+            availabilityCheckPool = pool;
+        }
+        return pool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (Version version : getVersions()) {
+                    if (version != null) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    public synchronized void close() {
+        if (availabilityCheckPool != null) {
+            availabilityCheckPool.shutdownNow();
+        }
+    }
+
     @Nullable
     @Override
     public Version call() {
-        List<Version> versions = apmServerClient.executeForAllUrls("/", new ApmServerClient.ConnectionHandler<Version>() {
+        List<Version> versions = getVersions();
+        versions.remove(null);
+        if (!versions.isEmpty()) {
+            return Collections.min(versions);
+        }
+        return UNKNOWN_VERSION;
+    }
+
+    /**
+     * @return the versions of all APM Servers, {@code null} for those that are not available
+     */
+    private List<Version> getVersions() {
+        return apmServerClient.executeForAllUrls("/", new ApmServerClient.ConnectionHandler<Version>() {
             @Override
             public Version withConnection(HttpURLConnection connection) {
                 try {
@@ -100,11 +151,6 @@ public class ApmServerHealthChecker implements Callable<Version> {
                 return null;
             }
         });
-        versions.remove(null);
-        if (!versions.isEmpty()) {
-            return Collections.min(versions);
-        }
-        return UNKNOWN_VERSION;
     }
 
     static Version parseVersion(String body) throws java.io.IOException {
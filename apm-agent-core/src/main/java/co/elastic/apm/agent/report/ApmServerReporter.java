@@ -22,7 +22,9 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
+import co.elastic.apm.agent.report.disruptor.AdaptiveWaitStrategy;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import co.elastic.apm.agent.report.disruptor.ShardedRingBuffer;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
@@ -34,6 +36,8 @@ import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 
@@ -47,11 +51,20 @@ import java.util.concurrent.locks.LockSupport;
  * <p>
  * It uses a Disruptor/ring buffer to decouple the {@link Transaction} producing threads from the thread that actually sends the payload
  * </p>
+ * <p>
+ * When {@link ReporterConfiguration#getQueueShards()} is greater than one, the events are published to a {@link ShardedRingBuffer}
+ * instead, so that application threads don't all contend on the same producer sequence.
+ * </p>
  */
 public class ApmServerReporter implements Reporter {
 
     private static final Logger logger = LoggerFactory.getLogger(ApmServerReporter.class);
 
+    /**
+     * Only used in the sharded mode, where control events don't share the ring buffer with regular events
+     */
+    private static final int CONTROL_QUEUE_SIZE = 64;
+
     private static final EventTranslatorOneArg<ReportingEvent, Transaction> TRANSACTION_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Transaction>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence, Transaction t) {
@@ -122,7 +135,15 @@ public class ApmServerReporter implements Reporter {
         }
     };
 
+    @Nullable
     private final Disruptor<ReportingEvent> disruptor;
+    @Nullable
+    private final ShardedRingBuffer<ReportingEvent> shardedRingBuffer;
+    /**
+     * The ring buffer for control events, like flush requests.
+     * In the non-sharded mode, this is the ring buffer all events are published to.
+     */
+    private final RingBuffer<ReportingEvent> controlRingBuffer;
     private final AtomicLong dropped = new AtomicLong();
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
@@ -144,21 +165,49 @@ public class ApmServerReporter implements Reporter {
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
         this.syncReport = reporterConfiguration.isReportSynchronously();
         this.monitor = monitor;
-        disruptor = new Disruptor<>(
-            new TransactionEventFactory(),
-            MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()),
-            new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
-            ProducerType.MULTI,
-            new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
         this.reportingEventHandler = reportingEventHandler;
-        disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        int queueSize = MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize());
+        if (reporterConfiguration.getQueueShards() > 1) {
+            int shards = Math.min(MathUtils.getNextPowerOf2(reporterConfiguration.getQueueShards()), queueSize);
+            disruptor = null;
+            shardedRingBuffer = new ShardedRingBuffer<>(
+                new TransactionEventFactory(),
+                reportingEventHandler,
+                shards,
+                queueSize / shards,
+                CONTROL_QUEUE_SIZE,
+                new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
+                100_000, 10_000_000);
+            controlRingBuffer = shardedRingBuffer.getControlRingBuffer();
+        } else {
+            shardedRingBuffer = null;
+            disruptor = new Disruptor<>(
+                new TransactionEventFactory(),
+                queueSize,
+                new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
+                ProducerType.MULTI,
+                createWaitStrategy(reporterConfiguration));
+            disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
+            disruptor.handleEventsWith(this.reportingEventHandler);
+            controlRingBuffer = disruptor.getRingBuffer();
+        }
         partialTransactionReporter = new PartialTransactionReporter(apmServer, serializer, poolFactory);
     }
 
+    private static WaitStrategy createWaitStrategy(ReporterConfiguration reporterConfiguration) {
+        if (reporterConfiguration.getWaitStrategy() == ReporterConfiguration.WaitStrategyType.ADAPTIVE) {
+            return new AdaptiveWaitStrategy();
+        }
+        return new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000);
+    }
+
     @Override
     public void start() {
-        disruptor.start();
+        if (shardedRingBuffer != null) {
+            shardedRingBuffer.start();
+        } else if (disruptor != null) {
+            disruptor.start();
+        }
         reportingEventHandler.init(this);
     }
 
@@ -207,7 +256,7 @@ public class ApmServerReporter implements Reporter {
     }
 
     public void scheduleWakeupEvent() {
-        disruptor.getRingBuffer().tryPublishEvent(WAKEUP_EVENT_TRANSLATOR);
+        controlRingBuffer.tryPublishEvent(WAKEUP_EVENT_TRANSLATOR);
     }
 
     @Override
@@ -232,11 +281,11 @@ public class ApmServerReporter implements Reporter {
         }
         do {
             try {
-                long sequence = disruptor.getRingBuffer().tryNext();
+                long sequence = controlRingBuffer.tryNext();
                 try {
-                    eventTranslator.translateTo(disruptor.get(sequence), sequence, Thread.currentThread());
+                    eventTranslator.translateTo(controlRingBuffer.get(sequence), sequence, Thread.currentThread());
                 } finally {
-                    disruptor.getRingBuffer().publish(sequence);
+                    controlRingBuffer.publish(sequence);
                 }
                 return waitForEventProcessed(sequence, thresholdNs);
             } catch (InsufficientCapacityException e) {
@@ -252,7 +301,7 @@ public class ApmServerReporter implements Reporter {
     private boolean waitForEventProcessed(long sequence, long thresholdNs) {
         ReportingEventHandler reportingEventHandler = this.reportingEventHandler;
         for (long nowNs = System.nanoTime();
-             nowNs < thresholdNs && reportingEventHandler.isHealthy() && !reportingEventHandler.isProcessed(sequence);
+             nowNs < thresholdNs && reportingEventHandler.isHealthy() && !isProcessed(sequence);
              nowNs = System.nanoTime()) {
 
             // periodically waking up to check if the connection turned unhealthy
@@ -264,7 +313,14 @@ public class ApmServerReporter implements Reporter {
                 break;
             }
         }
-        return reportingEventHandler.isProcessed(sequence);
+        return isProcessed(sequence);
+    }
+
+    private boolean isProcessed(long controlSequence) {
+        if (shardedRingBuffer != null) {
+            return shardedRingBuffer.isControlEventProcessed(controlSequence);
+        }
+        return reportingEventHandler.isProcessed(controlSequence);
     }
 
     @Override
@@ -273,7 +329,11 @@ public class ApmServerReporter implements Reporter {
         publishAndWaitForEvent(5, TimeUnit.SECONDS, SHUTDOWN_EVENT_TRANSLATOR);
         reportingEventHandler.close();
         try {
-            disruptor.shutdown(1, TimeUnit.SECONDS);
+            if (shardedRingBuffer != null) {
+                shardedRingBuffer.shutdown(1, TimeUnit.SECONDS);
+            } else if (disruptor != null) {
+                disruptor.shutdown(1, TimeUnit.SECONDS);
+            }
         } catch (com.lmax.disruptor.TimeoutException e) {
             logger.warn("Timeout while shutting down disruptor");
         }
@@ -332,18 +392,32 @@ public class ApmServerReporter implements Reporter {
     }
 
     long getQueueCapacity() {
-        return disruptor.getRingBuffer().getBufferSize();
+        if (shardedRingBuffer != null) {
+            return shardedRingBuffer.getBufferSize();
+        }
+        return controlRingBuffer.getBufferSize();
     }
 
     long getQueueElementCount() {
-        return disruptor.getRingBuffer().getBufferSize() - disruptor.getRingBuffer().remainingCapacity();
+        if (shardedRingBuffer != null) {
+            return shardedRingBuffer.getElementCount();
+        }
+        return controlRingBuffer.getBufferSize() - controlRingBuffer.remainingCapacity();
+    }
+
+    private RingBuffer<ReportingEvent> getProducerRingBuffer() {
+        if (shardedRingBuffer != null) {
+            return shardedRingBuffer.getShardForCurrentThread();
+        }
+        return controlRingBuffer;
     }
 
     private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator, ReportingEvent.ReportingEventType targetType) {
         long capacity = getQueueCapacity();
         monitor.eventCreated(targetType, capacity, getQueueElementCount());
+        RingBuffer<ReportingEvent> ringBuffer = getProducerRingBuffer();
         if (dropTransactionIfQueueFull) {
-            boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
+            boolean queueFull = !ringBuffer.tryPublishEvent(eventTranslator, event);
             if (queueFull) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
@@ -353,7 +427,7 @@ public class ApmServerReporter implements Reporter {
                 return false;
             }
         } else {
-            disruptor.getRingBuffer().publishEvent(eventTranslator, event);
+            ringBuffer.publishEvent(eventTranslator, event);
         }
         return true;
     }
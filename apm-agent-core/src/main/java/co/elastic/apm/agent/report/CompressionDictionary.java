@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The {@code metadata} event that starts each request, compressed once and reused by all requests.
+ * <p>
+ * The uncompressed {@code metadata} event also serves as the preset dictionary for the deflate data that follows it.
+ * Other than a zlib preset dictionary ({@code FDICT}), this does not require the APM Server to know the dictionary:
+ * deflate data can refer to any of the preceding 32K of uncompressed data in the stream,
+ * so it is fine to compress the data after the {@code metadata} event as if the {@code metadata} event had been compressed along with it.
+ * </p>
+ * <p>
+ * The state is replaced as a whole when the {@code metadata} event changes,
+ * so that the arrays can be read by the serialization workers without synchronization.
+ * </p>
+ */
+class CompressionDictionary {
+
+    /**
+     * The size of the deflate window
+     */
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream();
+    private final Adler32 adler32 = new Adler32();
+    private volatile State state = new State(new byte[0], new byte[0], 1);
+
+    /**
+     * Updates the dictionary if the {@code metadata} event has changed since the last call.
+     *
+     * @param metaData the buffer containing the serialized {@code metadata} event, including the trailing new line
+     * @param length   the length of the {@code metadata} event
+     * @return the current state
+     */
+    State update(byte[] metaData, int length) throws IOException {
+        State current = state;
+        if (current.uncompressed.length == length && equals(current.uncompressed, metaData, length)) {
+            return current;
+        }
+        byte[] uncompressed = Arrays.copyOf(metaData, length);
+        compressedBuffer.reset();
+        adler32.reset();
+        adler32.update(uncompressed, 0, length);
+        try {
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(compressedBuffer, deflater, true);
+            deflaterOutputStream.write(uncompressed);
+            // ends on a byte boundary without a final block
+            deflaterOutputStream.flush();
+        } finally {
+            deflater.reset();
+        }
+        current = new State(uncompressed, compressedBuffer.toByteArray(), adler32.getValue());
+        state = current;
+        return current;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class State {
+
+        private final byte[] uncompressed;
+        private final byte[] compressed;
+        private final long checksum;
+
+        private State(byte[] uncompressed, byte[] compressed, long checksum) {
+            this.uncompressed = uncompressed;
+            this.compressed = compressed;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Writes the compressed {@code metadata} event as a raw deflate chunk.
+         */
+        void writeTo(DeflatedChunkOutputStream os) throws IOException {
+            os.writeDeflatedChunk(compressed, 0, compressed.length, checksum, uncompressed.length);
+        }
+
+        /**
+         * Primes a {@code nowrap} deflater which has just been reset with the tail of the {@code metadata} event.
+         * Only valid if the data compressed by the deflater immediately follows the {@code metadata} event.
+         */
+        void setDictionary(Deflater deflater) {
+            int length = Math.min(uncompressed.length, MAX_DICTIONARY_SIZE);
+            deflater.setDictionary(uncompressed, uncompressed.length - length, length);
+        }
+
+        int getUncompressedLength() {
+            return uncompressed.length;
+        }
+
+        int getCompressedLength() {
+            return compressed.length;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A zlib ({@code Content-Encoding: deflate}) stream that can be assembled from chunks which have been compressed independently,
+ * for example by different threads.
+ * <p>
+ * Bytes written via {@link #write(byte[], int, int)} are compressed with the provided {@code nowrap} {@link Deflater}.
+ * {@link #writeDeflatedChunk(byte[], int, int, long, long)} appends raw deflate data as-is.
+ * Such a chunk has to be completed with {@link Deflater#SYNC_FLUSH} so that it ends on a byte boundary and does not contain the final
+ * block.
+ * As the chunks don't refer to data of previous chunks, they can simply be concatenated.
+ * </p>
+ * <p>
+ * The trailer, which is written on {@link #close()}, contains the Adler-32 checksum that is combined from the checksums of all chunks.
+ * </p>
+ * <p>
+ * If the stream starts with a {@link #writeDictionary dictionary}, the data that immediately follows it is compressed with the
+ * dictionary as a preset, no matter whether it is written via {@link #write(byte[], int, int)} or as a chunk
+ * (see {@link #takeDictionary()}).
+ * </p>
+ */
+class DeflatedChunkOutputStream extends OutputStream {
+
+    private static final int ADLER_BASE = 65521;
+    /**
+     * Deflate with a 32K window and the fastest compression level
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01};
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream deflaterOutputStream;
+    private final Adler32 adler32 = new Adler32();
+    private long checksum = 1;
+    /**
+     * The number of bytes that have been compressed by {@link #deflater} since the last chunk
+     */
+    private long pendingLength;
+    /**
+     * The dictionary that the next chunk may be primed with, as nothing has been written after it
+     */
+    @Nullable
+    private CompressionDictionary.State dictionary;
+    /**
+     * Whether the {@link #deflater} refers to data that precedes the next chunk
+     */
+    private boolean deflaterHasHistory;
+    private boolean closed;
+
+    /**
+     * @param out      the stream to write the zlib stream to
+     * @param deflater a {@code nowrap} deflater which is reset when this stream is closed
+     */
+    DeflatedChunkOutputStream(OutputStream out, Deflater deflater) throws IOException {
+        this.out = out;
+        this.deflater = deflater;
+        this.deflaterOutputStream = new DeflaterOutputStream(out, deflater, true);
+        out.write(ZLIB_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        dictionary = null;
+        deflaterOutputStream.write(b);
+        adler32.update(b);
+        pendingLength++;
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        dictionary = null;
+        deflaterOutputStream.write(b, off, len);
+        adler32.update(b, off, len);
+        pendingLength += len;
+    }
+
+    /**
+     * Appends a chunk of raw deflate data.
+     *
+     * @param chunk              the buffer containing the chunk
+     * @param off                the start offset of the chunk in the buffer
+     * @param len                the length of the chunk
+     * @param chunkChecksum      the Adler-32 checksum of the uncompressed data of the chunk
+     * @param uncompressedLength the length of the uncompressed data of the chunk
+     */
+    void writeDeflatedChunk(byte[] chunk, int off, int len, long chunkChecksum, long uncompressedLength) throws IOException {
+        if (pendingLength > 0) {
+            deflaterOutputStream.flush();
+            combinePending();
+            deflaterHasHistory = true;
+        }
+        if (deflaterHasHistory) {
+            // subsequent data must not refer to the data before the chunk
+            deflater.reset();
+            deflaterHasHistory = false;
+        }
+        dictionary = null;
+        out.write(chunk, off, len);
+        checksum = combine(checksum, chunkChecksum, uncompressedLength);
+    }
+
+    /**
+     * Writes the compressed {@code metadata} event and primes the compression of the data that follows with it.
+     * Must be called before anything else has been written to this stream.
+     *
+     * @param dictionary the compressed {@code metadata} event
+     */
+    void writeDictionary(CompressionDictionary.State dictionary) throws IOException {
+        dictionary.writeTo(this);
+        dictionary.setDictionary(deflater);
+        this.dictionary = dictionary;
+        this.deflaterHasHistory = true;
+    }
+
+    /**
+     * Returns the dictionary a chunk that is {@linkplain #writeDeflatedChunk written} next can be primed with.
+     * As only a single chunk can immediately follow the dictionary, subsequent calls return {@code null}.
+     *
+     * @return the dictionary to prime the next chunk with, or {@code null} if the next chunk must not refer to preceding data
+     */
+    @Nullable
+    CompressionDictionary.State takeDictionary() {
+        CompressionDictionary.State dictionary = this.dictionary;
+        this.dictionary = null;
+        return dictionary;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        deflaterOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            deflaterOutputStream.finish();
+            combinePending();
+            out.write((int) (checksum >>> 24) & 0xFF);
+            out.write((int) (checksum >>> 16) & 0xFF);
+            out.write((int) (checksum >>> 8) & 0xFF);
+            out.write((int) checksum & 0xFF);
+            out.close();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private void combinePending() {
+        checksum = combine(checksum, adler32.getValue(), pendingLength);
+        adler32.reset();
+        pendingLength = 0;
+    }
+
+    /**
+     * Combines two Adler-32 checksums, the equivalent of zlib's {@code adler32_combine}.
+     *
+     * @param adler1  the checksum of the first sequence of bytes
+     * @param adler2  the checksum of the second sequence of bytes
+     * @param length2 the length of the second sequence of bytes
+     * @return the checksum of both sequences of bytes
+     */
+    static long combine(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+}
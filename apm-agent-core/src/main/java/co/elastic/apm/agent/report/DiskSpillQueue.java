@@ -0,0 +1,207 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded FIFO queue of serialized and compressed intake request bodies (segments), which is backed by a memory-mapped file.
+ * <p>
+ * The file is used as a ring buffer.
+ * When there's not enough space for a new segment, the caller evicts the oldest segments by {@linkplain #removeOldest() removing} them.
+ * The segments only live as long as the agent, the file is deleted when the queue is closed.
+ * </p>
+ * <p>
+ * Not thread safe, must only be used by the reporter thread.
+ * </p>
+ */
+class DiskSpillQueue implements Closeable {
+
+    /**
+     * The maximum capacity, which ensures that a position plus the length of a segment can't overflow an {@code int}
+     */
+    static final int MAX_CAPACITY = 1024 * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final byte[] transferBuffer = new byte[8192];
+    private int writePosition;
+    private long usedBytes;
+
+    /**
+     * @param capacity the size of the file in bytes, at most {@link #MAX_CAPACITY}
+     * @throws IllegalArgumentException if the capacity is not positive or larger than {@link #MAX_CAPACITY}
+     */
+    DiskSpillQueue(long capacity) throws IOException {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("The capacity must be between 1b and 1gb but was " + capacity);
+        }
+        this.capacity = (int) capacity;
+        this.file = Files.createTempFile("elastic-apm-spill-", ".bin");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        MappedByteBuffer mappedBuffer;
+        try {
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.buffer = mappedBuffer;
+    }
+
+    /**
+     * @param length the size of the segment
+     * @return {@code true} if a segment of the given size can ever be stored in this queue
+     */
+    boolean canHold(int length) {
+        return length <= capacity;
+    }
+
+    /**
+     * @param length the size of the segment
+     * @return {@code true} if a segment of the given size can be added without having to evict older segments first
+     */
+    boolean hasSpaceFor(int length) {
+        return capacity - usedBytes >= length;
+    }
+
+    /**
+     * Appends a segment, which must {@linkplain #hasSpaceFor fit} into the free space.
+     *
+     * @param data       the data of the segment
+     * @param length     the number of bytes to use from {@code data}
+     * @param eventCount the number of events contained in the segment
+     */
+    void add(byte[] data, int length, int eventCount) {
+        if (!hasSpaceFor(length)) {
+            throw new IllegalStateException("Not enough space for a segment of " + length + " bytes");
+        }
+        int firstPart = Math.min(length, capacity - writePosition);
+        ((Buffer) buffer).position(writePosition);
+        buffer.put(data, 0, firstPart);
+        if (firstPart < length) {
+            ((Buffer) buffer).position(0);
+            buffer.put(data, firstPart, length - firstPart);
+        }
+        segments.add(new Segment(writePosition, length, eventCount));
+        writePosition = (writePosition + length) % capacity;
+        usedBytes += length;
+    }
+
+    /**
+     * @return the oldest segment, or {@code null} if the queue is empty
+     */
+    @Nullable
+    Segment peek() {
+        return segments.peek();
+    }
+
+    /**
+     * Writes the data of a segment to the provided stream.
+     *
+     * @param segment a segment of this queue
+     * @param os      the stream to write the data to
+     */
+    void writeTo(Segment segment, OutputStream os) throws IOException {
+        int position = segment.offset;
+        int remaining = segment.length;
+        while (remaining > 0) {
+            int length = Math.min(Math.min(remaining, transferBuffer.length), capacity - position);
+            ((Buffer) buffer).position(position);
+            buffer.get(transferBuffer, 0, length);
+            os.write(transferBuffer, 0, length);
+            position = (position + length) % capacity;
+            remaining -= length;
+        }
+    }
+
+    /**
+     * Removes the oldest segment, either because it has been replayed or to make space for a new segment.
+     *
+     * @return the removed segment
+     */
+    Segment removeOldest() {
+        Segment segment = segments.remove();
+        usedBytes -= segment.length;
+        return segment;
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    int size() {
+        return segments.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getUsedBytes() {
+        return usedBytes;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        usedBytes = 0;
+        // the mapping is released when the buffer is garbage collected,
+        // the file itself is deleted when the channel is closed at the latest (on Unix, it's unlinked right after opening it)
+        channel.close();
+    }
+
+    static class Segment {
+        private final int offset;
+        private final int length;
+        private final int eventCount;
+
+        private Segment(int offset, int length, int eventCount) {
+            this.offset = offset;
+            this.length = length;
+            this.eventCount = eventCount;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getEventCount() {
+            return eventCount;
+        }
+    }
+}
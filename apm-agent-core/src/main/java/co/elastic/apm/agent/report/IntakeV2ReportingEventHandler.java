@@ -27,11 +27,17 @@ import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
 import com.dslplatform.json.DslJson;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * This reporter supports the nd-json HTTP streaming based intake v2 protocol
@@ -43,6 +49,8 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     public static final String INTAKE_V2_URL = "/intake/v2/events";
     public static final String INTAKE_V2_FLUSH_URL = INTAKE_V2_URL + "?flushed=true";
 
+    private static final long AVAILABILITY_CHECK_POLL_MILLIS = 100;
+
     private static final Logger logsSupportLogger = LoggerUtils.logOnce(LoggerFactory.getLogger(IntakeV2ReportingEventHandler.class));
 
     private final ProcessorEventHandler processorEventHandler;
@@ -56,16 +64,56 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private final ReportingEventCounter inflightEvents = new ReportingEventCounter();
 
     private final DslJson<Object> dslJson;
+    @Nullable
+    private final SerializationPipeline serializationPipeline;
 
     private long reported;
     private long dropped;
 
+    /**
+     * Buffers events while the APM Server is unavailable, {@code null} if disabled.
+     */
+    @Nullable
+    private final DiskSpillQueue spillQueue;
+    private final SpillBuffer spillBuffer = new SpillBuffer();
+    @Nullable
+    private OutputStream spillOs;
+    private int spillSegmentEvents;
+    private long spillSegmentStartedNanos;
+    private volatile boolean spilling;
+    private long resumeAfterNanos;
+    @Nullable
+    private Future<Boolean> availabilityCheck;
+    private long nextReplayNanos;
+    private long scheduledWakeupNanos;
+
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
         super(reporterConfiguration, payloadSerializer, apmServerClient);
         this.processorEventHandler = processorEventHandler;
         this.dslJson = new DslJson<>(new DslJson.Settings<>());
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
+        int serializationThreads = reporterConfiguration.getSerializationThreads();
+        this.serializationPipeline = serializationThreads > 0 ? new SerializationPipeline(payloadSerializer, serializationThreads) : null;
+        this.spillQueue = createSpillQueue(reporterConfiguration);
+        this.nextReplayNanos = System.nanoTime();
+        this.scheduledWakeupNanos = nextReplayNanos;
+    }
+
+    @Nullable
+    private static DiskSpillQueue createSpillQueue(ReporterConfiguration reporterConfiguration) {
+        long spillQueueSize = reporterConfiguration.getSpillQueueSize();
+        if (spillQueueSize <= 0) {
+            return null;
+        }
+        try {
+            DiskSpillQueue spillQueue = new DiskSpillQueue(spillQueueSize);
+            logger.debug("Buffering events in {} while the APM Server is unavailable", spillQueue.getFile());
+            return spillQueue;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to create the spill queue, events will be dropped while the APM Server is unavailable", e);
+            return null;
+        }
     }
 
     @Override
@@ -89,7 +137,13 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                     logger.debug("Request flush because the request timeout occurred");
                     endRequest();
                 }
+                if (spilling) {
+                    updateSpilling();
+                }
                 dispatchEvent(event, sequence, endOfBatch);
+                if (!spilling && spillQueue != null && !spillQueue.isEmpty() && !shutDown) {
+                    replaySpilledEvents(spillQueue);
+                }
             }
         } finally {
             processed.set(sequence);
@@ -110,10 +164,13 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 break;
             case MAKE_FLUSH_REQUEST:
                 endRequest();
-                connection = startRequest(INTAKE_V2_FLUSH_URL);
+                if (!spilling) {
+                    connection = startRequest(INTAKE_V2_FLUSH_URL);
+                }
                 // continuing to behave as END_REQUEST
             case END_REQUEST:
                 endRequest();
+                finishSpillSegment();
                 break;
             case SHUTDOWN:
                 handleShutdownEvent();
@@ -134,17 +191,22 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void handleShutdownEvent() {
         shutDown = true;
         endRequest();
+        finishSpillSegment();
     }
 
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         processorEventHandler.onEvent(event, sequence, endOfBatch);
+        if (spilling) {
+            spillEvent(event);
+            return;
+        }
         try {
             inflightEvents.increment(event.getType());
             if (connection == null) {
                 connection = startRequest(INTAKE_V2_URL);
             }
             if (connection != null) {
-                writeEvent(event);
+                writeEvent(event, endOfBatch);
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Failed to get APM server connection, dropping event: {}", event);
@@ -164,6 +226,227 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
     }
 
+    /**
+     * Serializes the event into the current segment of the spill queue instead of sending it to the APM Server.
+     */
+    private void spillEvent(ReportingEvent event) {
+        if ((event.getBytesLog() != null || event.getStringLog() != null) && !logsSupported()) {
+            return;
+        }
+        try {
+            if (spillOs == null) {
+                payloadSerializer.blockUntilReady();
+                spillBuffer.reset();
+                spillOs = new DeflaterOutputStream(spillBuffer, deflater, true);
+                payloadSerializer.setOutputStream(spillOs);
+                payloadSerializer.appendMetaDataNdJsonToStream();
+                spillSegmentStartedNanos = System.nanoTime();
+            }
+            serialize(payloadSerializer, event);
+            spillSegmentEvents++;
+        } catch (Exception e) {
+            logger.error("Failed to spill event of type {} with this error: {}", event.getType(), e.getMessage());
+            logger.debug("Event spilling failure", e);
+            dropped++;
+            return;
+        }
+        if (spillBuffer.size() + payloadSerializer.getBufferSize() >= getMaxSpillSegmentSize()) {
+            finishSpillSegment();
+        }
+    }
+
+    private long getMaxSpillSegmentSize() {
+        return spillQueue != null ? Math.min(reporterConfiguration.getApiRequestSize(), spillQueue.getCapacity()) : 0;
+    }
+
+    /**
+     * Completes the current segment and stores it in the spill queue, evicting the oldest segments if there's not enough space.
+     */
+    private void finishSpillSegment() {
+        OutputStream spillOs = this.spillOs;
+        if (spillOs == null || spillQueue == null) {
+            return;
+        }
+        int eventCount = spillSegmentEvents;
+        try {
+            payloadSerializer.fullFlush();
+            spillOs.close();
+            int length = spillBuffer.size();
+            ReporterMonitor monitor = reporter != null ? reporter.getReporterMonitor() : ReporterMonitor.NOOP;
+            if (!spillQueue.canHold(length)) {
+                logger.debug("Dropping {} events, as they exceed the size of the spill queue", eventCount);
+                dropped += eventCount;
+                monitor.spillSegmentEvicted(eventCount, length);
+                return;
+            }
+            while (!spillQueue.hasSpaceFor(length)) {
+                DiskSpillQueue.Segment evicted = spillQueue.removeOldest();
+                logger.debug("Evicting {} events from the spill queue", evicted.getEventCount());
+                dropped += evicted.getEventCount();
+                monitor.spillSegmentEvicted(evicted.getEventCount(), evicted.getLength());
+            }
+            spillQueue.add(spillBuffer.getBuffer(), length, eventCount);
+            monitor.spillSegmentWritten(eventCount, length);
+        } catch (IOException e) {
+            logger.error("Failed to spill {} events: {}", eventCount, e.getMessage());
+            logger.debug("Event spilling failure", e);
+            dropped += eventCount;
+        } finally {
+            this.spillOs = null;
+            spillSegmentEvents = 0;
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Stops spilling once the backoff time has passed and the APM Server is available again.
+     * Otherwise, backs off further.
+     */
+    private void updateSpilling() {
+        long now = System.nanoTime();
+        if (spillOs != null && now - spillSegmentStartedNanos >= TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis())) {
+            finishSpillSegment();
+        }
+        if (now - resumeAfterNanos < 0) {
+            scheduleWakeup(TimeUnit.NANOSECONDS.toMillis(resumeAfterNanos - now) + 1);
+            return;
+        }
+        Future<Boolean> availabilityCheck = this.availabilityCheck;
+        if (availabilityCheck == null) {
+            this.availabilityCheck = apmServerClient.checkAvailability();
+            scheduleWakeup(AVAILABILITY_CHECK_POLL_MILLIS);
+            return;
+        }
+        if (!availabilityCheck.isDone()) {
+            scheduleWakeup(AVAILABILITY_CHECK_POLL_MILLIS);
+            return;
+        }
+        this.availabilityCheck = null;
+        boolean available = false;
+        try {
+            available = availabilityCheck.get();
+        } catch (Exception e) {
+            logger.debug("APM Server availability check failed", e);
+        }
+        if (available) {
+            logger.info("APM Server is available again, replaying {} spilled requests", spillQueue != null ? spillQueue.size() : 0);
+            finishSpillSegment();
+            spilling = false;
+        } else {
+            long backoffTimeMillis = TimeUnit.SECONDS.toMillis(getBackoffTimeSeconds(errorCount++));
+            logger.info("APM Server is still unavailable, backing off for {} seconds (+/-10%)", TimeUnit.MILLISECONDS.toSeconds(backoffTimeMillis));
+            deferBackoff(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+        }
+    }
+
+    /**
+     * Sends the oldest segment of the spill queue to the APM Server, limited to the configured replay rate.
+     */
+    private void replaySpilledEvents(DiskSpillQueue spillQueue) {
+        long now = System.nanoTime();
+        if (now - nextReplayNanos < 0) {
+            scheduleWakeup(TimeUnit.NANOSECONDS.toMillis(nextReplayNanos - now) + 1);
+            return;
+        }
+        DiskSpillQueue.Segment segment = spillQueue.peek();
+        if (segment == null) {
+            return;
+        }
+        int responseCode = replay(spillQueue, segment);
+        ReporterMonitor monitor = reporter != null ? reporter.getReporterMonitor() : ReporterMonitor.NOOP;
+        if (responseCode >= 200 && responseCode < 300) {
+            spillQueue.removeOldest();
+            reported += segment.getEventCount();
+            monitor.spillSegmentReplayed(segment.getEventCount(), segment.getLength());
+            errorCount = 0;
+        } else if (responseCode < 0 || responseCode == 429 || responseCode >= 500) {
+            if (responseCode != 429) {
+                apmServerClient.onConnectionError();
+            }
+            long backoffTimeMillis = TimeUnit.SECONDS.toMillis(getBackoffTimeSeconds(errorCount++));
+            deferBackoff(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+            return;
+        } else {
+            logger.warn("Dropping {} spilled events, as the APM Server rejected them with response code {}", segment.getEventCount(), responseCode);
+            spillQueue.removeOldest();
+            dropped += segment.getEventCount();
+            monitor.spillSegmentEvicted(segment.getEventCount(), segment.getLength());
+        }
+        nextReplayNanos = now + segment.getLength() * TimeUnit.SECONDS.toNanos(1) / reporterConfiguration.getSpillQueueReplayRate();
+        if (!spillQueue.isEmpty()) {
+            scheduleWakeup(TimeUnit.NANOSECONDS.toMillis(nextReplayNanos - now) + 1);
+        }
+    }
+
+    /**
+     * @return the response code, or {@code -1} if the request has failed
+     */
+    private int replay(DiskSpillQueue spillQueue, DiskSpillQueue.Segment segment) {
+        HttpURLConnection replayConnection = null;
+        try {
+            replayConnection = apmServerClient.startRequest(INTAKE_V2_URL);
+            if (replayConnection == null) {
+                return -1;
+            }
+            replayConnection.setRequestMethod("POST");
+            replayConnection.setDoOutput(true);
+            replayConnection.setFixedLengthStreamingMode(segment.getLength());
+            replayConnection.setRequestProperty("Content-Encoding", "deflate");
+            replayConnection.setRequestProperty("Content-Type", "application/x-ndjson");
+            replayConnection.setUseCaches(false);
+            OutputStream os = replayConnection.getOutputStream();
+            spillQueue.writeTo(segment, os);
+            os.close();
+            return replayConnection.getResponseCode();
+        } catch (IOException e) {
+            logger.error("Error replaying spilled events to APM server: {}", e.getMessage());
+            logger.debug("Replaying spilled events failed", e);
+            return -1;
+        } finally {
+            if (replayConnection != null) {
+                HttpUtils.consumeAndClose(replayConnection);
+            }
+        }
+    }
+
+    /**
+     * Wakes up the reporter thread after the provided delay, unless a wakeup is already pending.
+     */
+    private void scheduleWakeup(long delayMillis) {
+        long now = System.nanoTime();
+        if (timeoutTask == null || now - scheduledWakeupNanos < 0) {
+            return;
+        }
+        try {
+            timeoutTimer.schedule(timeoutTask, delayMillis, TimeUnit.MILLISECONDS);
+            scheduledWakeupNanos = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        } catch (RejectedExecutionException e) {
+            // the timer has been shut down
+        }
+    }
+
+    /**
+     * Instead of blocking the reporter thread, events are spilled to disk while backing off, if the spill queue is enabled.
+     */
+    @Override
+    protected boolean deferBackoff(long backoffTimeMillis) {
+        if (spillQueue == null || shutDown) {
+            return false;
+        }
+        if (!spilling) {
+            logger.info("Spilling events to disk while the APM Server is unavailable");
+        }
+        spilling = true;
+        resumeAfterNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffTimeMillis);
+        scheduleWakeup(backoffTimeMillis);
+        return true;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return super.isHealthy() && !spilling;
+    }
+
     private void handleConnectionError(ReportingEvent event, Exception e) {
         logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
         logger.debug("Event handling failure", e);
@@ -179,19 +462,33 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         return payloadSerializer.getBufferSize();
     }
 
-    private void writeEvent(ReportingEvent event) {
+    private void writeEvent(ReportingEvent event, boolean endOfBatch) throws IOException {
+        if ((event.getBytesLog() != null || event.getStringLog() != null) && !logsSupported()) {
+            return;
+        }
+        if (serializationPipeline != null && os != null) {
+            serializationPipeline.add(event, os);
+            if (endOfBatch) {
+                serializationPipeline.submit(os);
+            }
+        } else {
+            serialize(payloadSerializer, event);
+        }
+    }
+
+    static void serialize(DslJsonSerializer.Writer writer, ReportingEvent event) {
         if (event.getTransaction() != null) {
-            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            writer.serializeTransactionNdJson(event.getTransaction());
         } else if (event.getSpan() != null) {
-            payloadSerializer.serializeSpanNdJson(event.getSpan());
+            writer.serializeSpanNdJson(event.getSpan());
         } else if (event.getError() != null) {
-            payloadSerializer.serializeErrorNdJson(event.getError());
+            writer.serializeErrorNdJson(event.getError());
         } else if (event.getJsonWriter() != null) {
-            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
-        } else if (event.getBytesLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getBytesLog());
-        } else if (event.getStringLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getStringLog());
+            writer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+        } else if (event.getBytesLog() != null) {
+            writer.serializeLogNdJson(event.getBytesLog());
+        } else if (event.getStringLog() != null) {
+            writer.serializeLogNdJson(event.getStringLog());
         }
     }
 
@@ -204,6 +501,21 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         return false;
     }
 
+    @Override
+    protected OutputStream createDeflaterOutputStream(OutputStream os) throws IOException {
+        if (serializationPipeline != null) {
+            return serializationPipeline.createDeflaterOutputStream(os);
+        }
+        return super.createDeflaterOutputStream(os);
+    }
+
+    @Override
+    protected void flushPendingEvents(OutputStream os) throws IOException {
+        if (serializationPipeline != null) {
+            serializationPipeline.flush(os);
+        }
+    }
+
     @Override
     @Nullable
     protected HttpURLConnection startRequest(String endpoint) throws Exception {
@@ -271,6 +583,23 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         logger.info("Reported events: {}", reported);
         logger.info("Dropped events: {}", dropped);
         timeoutTimer.shutdownNow();
+        if (serializationPipeline != null) {
+            serializationPipeline.close();
+        }
+        if (spillQueue != null) {
+            try {
+                spillQueue.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the spill queue", e);
+            }
+        }
+    }
+
+    private static class SpillBuffer extends ByteArrayOutputStream {
+
+        private byte[] getBuffer() {
+            return buf;
+        }
     }
 
     /**
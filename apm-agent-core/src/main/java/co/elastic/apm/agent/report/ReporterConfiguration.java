@@ -35,12 +35,14 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isInRange;
 import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isNotInRange;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider implements co.elastic.apm.agent.tracer.configuration.ReporterConfiguration {
 
     public static final String REPORTER_CATEGORY = "Reporter";
     public static final URL LOCAL_APM_SERVER_URL = UrlValueConverter.INSTANCE.convert("http://127.0.0.1:8200");
+    private static final long MAX_SPILL_QUEUE_SIZE = DiskSpillQueue.MAX_CAPACITY;
 
     private final ConfigurationOption<String> secretToken = ConfigurationOption.stringOption()
         .key("secret_token")
@@ -155,6 +157,183 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<Integer> queueShards = ConfigurationOption.integerOption()
+        .key("queue_shards")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of ring buffers the events are distributed across before they are sent to the APM Server.\n" +
+            "\n" +
+            "By default, all application threads publish their events to a single ring buffer.\n" +
+            "On hosts with many cores and a high throughput of spans, the shared producer sequence of that ring buffer can become a " +
+            "point of contention.\n" +
+            "When set to a value greater than `1`, each thread publishes to one of several ring buffers, based on its thread id.\n" +
+            "All ring buffers are drained by the same reporter thread.\n" +
+            "The value is rounded up to the next power of two.\n" +
+            "\n" +
+            "The <<config-max-queue-size>> is split evenly across the ring buffers.")
+        .dynamic(false)
+        .addValidator(isInRange(1, 64))
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<WaitStrategyType> waitStrategy = ConfigurationOption.enumOption(WaitStrategyType.class)
+        .key("reporter_wait_strategy")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("How the reporter thread waits for new events when the queue is empty.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "\n" +
+            "* 'sleeping': The default behavior. The reporter thread sleeps for an exponentially increasing time of up to 10ms. " +
+            "This adds up to 10ms of latency under light load and wakes up the reporter thread periodically even if there are no events.\n" +
+            "* 'adaptive': Tracks how long the reporter thread recently had to wait for events and switches between spinning, " +
+            "yielding, sleeping and blocking accordingly. " +
+            "When blocked, the reporter thread is woken up by the application thread that queues the next event. " +
+            "This reduces the latency and the number of wakeups under light load.\n" +
+            "\n" +
+            "Has no effect if <<config-queue-shards>> is greater than `1`.")
+        .dynamic(false)
+        .buildWithDefault(WaitStrategyType.SLEEPING);
+
+    private final ConfigurationOption<Integer> spanPoolMagazineSize = ConfigurationOption.integerOption()
+        .key("span_pool_magazine_size")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of recycled spans a thread caches in each of its two magazines.\n" +
+            "\n" +
+            "By default, all threads take spans from and return spans to a single shared pool.\n" +
+            "With a high throughput of spans, that pool can become a point of contention, " +
+            "especially as spans are created by application threads but returned by the reporter thread.\n" +
+            "When set to a value greater than `0`, each thread caches spans locally and only exchanges full or empty magazines " +
+            "with the shared pool.\n" +
+            "This increases the number of spans that are kept in memory by up to twice this value per thread that creates spans.\n" +
+            "\n" +
+            "Set to `0` to use the shared pool only.")
+        .dynamic(false)
+        .addValidator(isInRange(0, 256))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Integer> serializationThreads = ConfigurationOption.integerOption()
+        .key("serialization_threads")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of threads that serialize and compress events before they are sent to the APM Server.\n" +
+            "\n" +
+            "By default, the reporter thread serializes and compresses each event before writing it to the request body.\n" +
+            "When set to a value greater than `0`, batches of events are serialized and compressed by dedicated threads instead.\n" +
+            "The reporter thread only writes the compressed batches to the request body, in the order the events have been queued.\n" +
+            "This makes it less likely that events are dropped because the queue is full when the throughput is high.\n" +
+            "See also <<config-max-queue-size>>.")
+        .dynamic(false)
+        .addValidator(isInRange(0, 64))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Integer> serializationStringCacheSize = ConfigurationOption.integerOption()
+        .key("serialization_string_cache_size")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of JSON encoded strings the serializer caches, like span types, service target names and destination resources.\n" +
+            "\n" +
+            "Values with a low cardinality are serialized by copying the cached bytes instead of encoding them character by character.\n" +
+            "Only values of up to 128 characters which have been seen repeatedly are cached.\n" +
+            "The size is rounded up to the next power of two.\n" +
+            "Set to `0` to disable the cache.")
+        .dynamic(false)
+        .addValidator(isInRange(0, 4096))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Integer> serializationStackFrameCacheSize = ConfigurationOption.integerOption()
+        .key("serialization_stack_frame_cache_size")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of JSON encoded stack frames the serializer caches, for the stack traces of errors, spans and inferred spans.\n" +
+            "\n" +
+            "Frames which are serialized repeatedly are written by copying the cached bytes instead of encoding their file, class and method names again.\n" +
+            "The size is rounded up to the next power of two.\n" +
+            "Set to `0` to disable the cache.")
+        .dynamic(false)
+        .addValidator(isInRange(0, 16384))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Boolean> compressionDictionary = ConfigurationOption.booleanOption()
+        .key("compression_dictionary")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Primes the compression of the events that are serialized on the <<config-serialization-threads>> " +
+            "with the `metadata` event that starts each request to the APM Server.\n" +
+            "\n" +
+            "As the events are compressed independently of the rest of the request, they can't refer to data that precedes them, " +
+            "like the field names and values of the `metadata` event.\n" +
+            "With this option, the first events after the `metadata` event are compressed as if they had been compressed along with it, " +
+            "which especially reduces the size of small requests.\n" +
+            "In addition, the `metadata` event is only compressed once and reused by all requests.\n" +
+            "The resulting request is a regular `deflate` stream that does not require a preset dictionary to be decompressed.\n" +
+            "\n" +
+            "Has no effect if <<config-serialization-threads>> is `0`, as events and metadata are compressed as a single stream then, " +
+            "or for requests to `localhost`, which are not compressed.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<HttpTransportType> httpTransport = ConfigurationOption.enumOption(HttpTransportType.class)
+        .key("http_transport")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The HTTP client used to communicate with the APM Server.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "\n" +
+            "* 'blocking': The default behavior. Uses the `HttpURLConnection` of the JDK.\n" +
+            "* 'nio': Uses non-blocking sockets that are served by a single thread and keeps the connections alive between requests. " +
+            "The reporter thread does not block while the APM Server is slow to read a request, " +
+            "as up to twice the <<config-api-request-size>> of request data is buffered.\n" +
+            "Connections via `https` or via a proxy always use the `blocking` client.")
+        .dynamic(false)
+        .buildWithDefault(HttpTransportType.BLOCKING);
+
+    private final ConfigurationOption<ByteValue> spillQueueSize = ByteValueConverter.byteOption()
+        .key("spill_queue_size")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum size of a file in the temp directory which buffers events while the APM Server is unavailable.\n" +
+            "Instead of dropping events while backing off after a failed request, the agent writes the compressed events to this file " +
+            "and replays them once the APM Server is healthy again, at the rate configured by <<config-spill-queue-replay-rate>>.\n" +
+            "When the file is full, the oldest events are evicted.\n" +
+            "The buffered events don't survive a restart of the application.\n" +
+            "\n" +
+            "Set to `0b` to disable buffering events on disk.\n" +
+            "The maximum value is `1gb`.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .addValidator(new ConfigurationOption.Validator<ByteValue>() {
+            @Override
+            public void assertValid(@Nullable ByteValue value) {
+                if (value != null && value.getBytes() > MAX_SPILL_QUEUE_SIZE) {
+                    throw new IllegalArgumentException("The spill queue size must not be larger than 1gb");
+                }
+            }
+        })
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<ByteValue> spillQueueReplayRate = ByteValueConverter.byteOption()
+        .key("spill_queue_replay_rate")
+        .tags("added[1.43.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum number of compressed bytes per second which are replayed from the <<config-spill-queue-size, spill queue>> " +
+            "once the APM Server is available again.\n" +
+            "This avoids overwhelming an APM Server that has just recovered.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .addValidator(new ConfigurationOption.Validator<ByteValue>() {
+            @Override
+            public void assertValid(@Nullable ByteValue value) {
+                if (value != null && value.getBytes() <= 0) {
+                    throw new IllegalArgumentException("The spill queue replay rate must be positive");
+                }
+            }
+        })
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("1mb"));
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -279,6 +458,46 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
         return maxQueueSize.get();
     }
 
+    public int getQueueShards() {
+        return queueShards.get();
+    }
+
+    public WaitStrategyType getWaitStrategy() {
+        return waitStrategy.get();
+    }
+
+    public int getSpanPoolMagazineSize() {
+        return spanPoolMagazineSize.get();
+    }
+
+    public int getSerializationThreads() {
+        return serializationThreads.get();
+    }
+
+    public int getSerializationStringCacheSize() {
+        return serializationStringCacheSize.get();
+    }
+
+    public int getSerializationStackFrameCacheSize() {
+        return serializationStackFrameCacheSize.get();
+    }
+
+    public boolean isCompressionDictionary() {
+        return compressionDictionary.get();
+    }
+
+    public HttpTransportType getHttpTransport() {
+        return httpTransport.get();
+    }
+
+    public long getSpillQueueSize() {
+        return spillQueueSize.get().getBytes();
+    }
+
+    public long getSpillQueueReplayRate() {
+        return spillQueueReplayRate.get().getBytes();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -313,4 +532,24 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum HttpTransportType {
+        BLOCKING,
+        NIO;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum WaitStrategyType {
+        SLEEPING,
+        ADAPTIVE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
@@ -30,6 +30,12 @@ public interface ReporterMonitor {
 
     void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success);
 
+    void spillSegmentWritten(long eventCount, long bytes);
+
+    void spillSegmentReplayed(long eventCount, long bytes);
+
+    void spillSegmentEvicted(long eventCount, long bytes);
+
 
     ReporterMonitor NOOP = new ReporterMonitor() {
 
@@ -57,5 +63,20 @@ public interface ReporterMonitor {
         public void requestFinished(ReportingEventCounter contents, long acceptedEventCount, long bytesWritten, boolean success) {
 
         }
+
+        @Override
+        public void spillSegmentWritten(long eventCount, long bytes) {
+
+        }
+
+        @Override
+        public void spillSegmentReplayed(long eventCount, long bytes) {
+
+        }
+
+        @Override
+        public void spillSegmentEvicted(long eventCount, long bytes) {
+
+        }
     };
 }
@@ -180,6 +180,29 @@ public class ReportingEvent {
         }
     }
 
+    /**
+     * Moves the payload of this event to another event, which takes over the responsibility to {@link #end()} it.
+     * The thread to unpark after this event has been processed is not moved.
+     *
+     * @param target the event to move the payload to
+     */
+    public void moveTo(ReportingEvent target) {
+        target.type = type;
+        target.transaction = transaction;
+        target.span = span;
+        target.error = error;
+        target.jsonWriter = jsonWriter;
+        target.stringLog = stringLog;
+        target.bytesLog = bytesLog;
+        target.agentLog = agentLog;
+        transaction = null;
+        span = null;
+        error = null;
+        jsonWriter = null;
+        stringLog = null;
+        bytesLog = null;
+    }
+
     public void unparkAfterProcessed(@Nullable Thread thread) {
         unparkAfterProcessed = thread;
     }
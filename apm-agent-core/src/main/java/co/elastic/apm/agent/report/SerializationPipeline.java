@@ -0,0 +1,301 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Serializes and compresses batches of {@link ReportingEvent}s on dedicated worker threads.
+ * <p>
+ * The reporter thread {@linkplain #add moves} events into a batch, which is handed to a worker once it is full or when the
+ * reporter thread has drained the queue.
+ * Workers serialize the events of a batch into a chunk, which is compressed independently of the other chunks if the request is
+ * compressed (see {@link DeflatedChunkOutputStream}).
+ * Only the first chunk of a request can be primed with a {@link CompressionDictionary}.
+ * The reporter thread writes the completed chunks to the request body in the order the batches have been created.
+ * This preserves the order of the events within a request.
+ * </p>
+ * <p>
+ * The number of batches is limited.
+ * When all of them are in use, the reporter thread waits for the oldest one to complete.
+ * </p>
+ * <p>
+ * Except for the worker threads, all methods must only be called by the reporter thread.
+ * </p>
+ */
+class SerializationPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializationPipeline.class);
+
+    static final int MAX_BATCH_SIZE = 128;
+    private static final int BATCHES_PER_THREAD = 2;
+
+    private final ThreadPoolExecutor executor;
+    private final ArrayDeque<Batch> freeBatches;
+    private final ArrayDeque<Batch> pendingBatches;
+    private final Deflater deflater;
+    @Nullable
+    private Batch currentBatch;
+
+    SerializationPipeline(DslJsonSerializer serializer, int threads) {
+        int batches = threads * BATCHES_PER_THREAD;
+        this.executor = ExecutorUtils.createThreadDaemonPool("serialization-worker", threads, batches);
+        this.freeBatches = new ArrayDeque<>(batches);
+        this.pendingBatches = new ArrayDeque<>(batches);
+        for (int i = 0; i < batches; i++) {
+            freeBatches.add(new Batch(serializer.newWriter()));
+        }
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    /**
+     * Creates the compressing stream for a request.
+     * Only if the request body is written to the returned stream, the chunks are compressed.
+     *
+     * @param os the stream of the request body
+     * @return the compressing stream to write the request body to
+     */
+    OutputStream createDeflaterOutputStream(OutputStream os) throws IOException {
+        return new DeflatedChunkOutputStream(os, deflater);
+    }
+
+    /**
+     * Moves the payload of the event into the current batch.
+     *
+     * @param event the event to add
+     * @param os    the stream of the current request
+     */
+    void add(ReportingEvent event, OutputStream os) throws IOException {
+        Batch batch = currentBatch;
+        if (batch == null) {
+            batch = currentBatch = acquireBatch(os);
+        }
+        batch.add(event);
+        if (batch.isFull()) {
+            submit(os);
+        }
+    }
+
+    /**
+     * Hands the current batch to a worker and writes the chunks of all batches that have already completed.
+     *
+     * @param os the stream of the current request
+     */
+    void submit(OutputStream os) throws IOException {
+        Batch batch = currentBatch;
+        if (batch != null) {
+            currentBatch = null;
+            if (os instanceof DeflatedChunkOutputStream) {
+                batch.submit(true, ((DeflatedChunkOutputStream) os).takeDictionary());
+            } else {
+                batch.submit(false, null);
+            }
+            pendingBatches.add(batch);
+            try {
+                executor.execute(batch);
+            } catch (RejectedExecutionException e) {
+                // the pipeline has been closed
+                batch.run();
+            }
+        }
+        while (!pendingBatches.isEmpty() && pendingBatches.peek().isCompleted()) {
+            writeOldestBatch(os);
+        }
+    }
+
+    /**
+     * Writes the chunks of all events that have been added, waiting for the serialization to complete.
+     * Must be called before the request is completed.
+     *
+     * @param os the stream of the current request
+     */
+    void flush(OutputStream os) throws IOException {
+        submit(os);
+        try {
+            while (!pendingBatches.isEmpty()) {
+                writeOldestBatch(os);
+            }
+        } catch (IOException e) {
+            discardPendingBatches();
+            throw e;
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+        deflater.end();
+    }
+
+    private Batch acquireBatch(OutputStream os) throws IOException {
+        if (freeBatches.isEmpty()) {
+            // all batches are in use, which is our means of back pressure
+            writeOldestBatch(os);
+        }
+        return freeBatches.remove();
+    }
+
+    private void writeOldestBatch(OutputStream os) throws IOException {
+        Batch batch = pendingBatches.remove();
+        try {
+            batch.awaitCompletion();
+            batch.writeTo(os);
+        } finally {
+            batch.resetState();
+            freeBatches.add(batch);
+        }
+    }
+
+    private void discardPendingBatches() {
+        while (!pendingBatches.isEmpty()) {
+            Batch batch = pendingBatches.remove();
+            batch.awaitCompletion();
+            batch.resetState();
+            freeBatches.add(batch);
+        }
+    }
+
+    private static class Batch implements Runnable {
+
+        private final ReportingEvent[] events = new ReportingEvent[MAX_BATCH_SIZE];
+        private final DslJsonSerializer.Writer writer;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final Adler32 adler32 = new Adler32();
+        private final ChunkBuffer chunk = new ChunkBuffer();
+        private final OutputStream deflaterOutputStream = new CheckedOutputStream(new DeflaterOutputStream(chunk, deflater, true), adler32);
+        private int size;
+        private boolean compress;
+        @Nullable
+        private CompressionDictionary.State dictionary;
+        private long checksum;
+        private long uncompressedLength;
+        @Nullable
+        private Exception failure;
+        @Nullable
+        private Thread waiter;
+        private volatile boolean completed;
+
+        private Batch(DslJsonSerializer.Writer writer) {
+            this.writer = writer;
+            for (int i = 0; i < events.length; i++) {
+                events[i] = new ReportingEvent();
+            }
+        }
+
+        private void add(ReportingEvent event) {
+            event.moveTo(events[size++]);
+        }
+
+        private boolean isFull() {
+            return size == events.length;
+        }
+
+        private void submit(boolean compress, @Nullable CompressionDictionary.State dictionary) {
+            this.compress = compress;
+            this.dictionary = dictionary;
+            this.waiter = Thread.currentThread();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (dictionary != null) {
+                    dictionary.setDictionary(deflater);
+                }
+                writer.setOutputStream(compress ? deflaterOutputStream : chunk);
+                for (int i = 0; i < size; i++) {
+                    IntakeV2ReportingEventHandler.serialize(writer, events[i]);
+                }
+                writer.fullFlush();
+                checksum = adler32.getValue();
+                uncompressedLength = deflater.getBytesRead();
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                for (int i = 0; i < size; i++) {
+                    events[i].end();
+                    events[i].resetState();
+                }
+                completed = true;
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        private boolean isCompleted() {
+            return completed;
+        }
+
+        private void awaitCompletion() {
+            while (!completed) {
+                LockSupport.park(this);
+            }
+        }
+
+        private void writeTo(OutputStream os) throws IOException {
+            if (failure != null) {
+                logger.error("Failed to serialize {} events, dropping them: {}", size, failure.getMessage());
+                logger.debug("Serialization failure", failure);
+            } else if (compress) {
+                ((DeflatedChunkOutputStream) os).writeDeflatedChunk(chunk.getBuffer(), 0, chunk.size(), checksum, uncompressedLength);
+            } else {
+                chunk.writeTo(os);
+            }
+        }
+
+        private void resetState() {
+            writer.resetState();
+            deflater.reset();
+            adler32.reset();
+            chunk.reset();
+            size = 0;
+            compress = false;
+            dictionary = null;
+            failure = null;
+            waiter = null;
+            completed = false;
+        }
+    }
+
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        private ChunkBuffer() {
+            super(SerializationConstants.BUFFER_SIZE);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import com.lmax.disruptor.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wait strategy that adapts to the rate at which events arrive.
+ * <p>
+ * The strategy keeps an exponentially weighted moving average of how long the consumer had to wait for the next event.
+ * When waiting, it escalates through spinning, yielding, parking and blocking,
+ * but skips the phases that are unlikely to pay off given the recent average wait time:
+ * </p>
+ * <ul>
+ *     <li>Under high load, events typically arrive within a few microseconds, which is covered by spinning.</li>
+ *     <li>Under medium load, the consumer yields and parks for short intervals before it blocks.</li>
+ *     <li>Under light load, the consumer blocks right away and is woken up by the producer that publishes the next event.</li>
+ * </ul>
+ * <p>
+ * In contrast to {@link ExponentionallyIncreasingSleepingWaitStrategy}, this avoids latencies of up to the maximum sleep time under light load
+ * and avoids periodic wakeups when there are no events at all.
+ * Producers only have to signal the consumer when it is blocked,
+ * otherwise publishing an event only adds a volatile read to {@link #signalAllWhenBlocking()}.
+ * </p>
+ * <p>
+ * Spinning and yielding are skipped on single core machines.
+ * This strategy must only be used by a single consumer thread.
+ * </p>
+ */
+public final class AdaptiveWaitStrategy implements WaitStrategy {
+
+    /**
+     * The weight of a new observation for the moving average is {@code 1 / 2^AVERAGE_SHIFT}
+     */
+    private static final int AVERAGE_SHIFT = 3;
+
+    /**
+     * On a single core, spinning and yielding only delay the producer which is about to publish the next event
+     */
+    private static final boolean MULTI_CORE = Runtime.getRuntime().availableProcessors() > 1;
+
+    private final long spinNsMax;
+    private final long yieldNsMax;
+    private final long parkNsMax;
+    private final long blockTimeoutNs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition eventPublished = lock.newCondition();
+    private final AtomicBoolean consumerBlocked = new AtomicBoolean();
+
+    /**
+     * Only accessed by the consumer thread
+     */
+    private long averageWaitNs;
+
+    public AdaptiveWaitStrategy() {
+        this(TimeUnit.MICROSECONDS.toNanos(20), TimeUnit.MICROSECONDS.toNanos(200), TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    /**
+     * @param spinNsMax      the maximum time to spin, spinning is skipped if the average wait time exceeds this value
+     * @param yieldNsMax     the maximum time to yield, yielding is skipped if the average wait time exceeds this value
+     * @param parkNsMax      the maximum time to park, parking is skipped if the average wait time exceeds this value
+     * @param blockTimeoutNs the maximum time to block without a signal from a producer before re-checking for events
+     */
+    public AdaptiveWaitStrategy(long spinNsMax, long yieldNsMax, long parkNsMax, long blockTimeoutNs) {
+        this.spinNsMax = spinNsMax;
+        this.yieldNsMax = yieldNsMax;
+        this.parkNsMax = parkNsMax;
+        this.blockTimeoutNs = blockTimeoutNs;
+    }
+
+    @Override
+    public long waitFor(long sequence, Sequence cursor, Sequence dependentSequence, SequenceBarrier barrier) throws AlertException, InterruptedException {
+        long availableSequence = dependentSequence.get();
+        if (availableSequence >= sequence) {
+            averageWaitNs -= averageWaitNs >> AVERAGE_SHIFT;
+            return availableSequence;
+        }
+
+        long start = System.nanoTime();
+        long expectedWaitNs = averageWaitNs;
+        if (MULTI_CORE && expectedWaitNs <= spinNsMax) {
+            long spinUntil = start + spinNsMax;
+            while ((availableSequence = dependentSequence.get()) < sequence) {
+                barrier.checkAlert();
+                if (System.nanoTime() - spinUntil > 0) {
+                    break;
+                }
+            }
+        }
+        if (MULTI_CORE && availableSequence < sequence && expectedWaitNs <= yieldNsMax) {
+            long yieldUntil = start + yieldNsMax;
+            while ((availableSequence = dependentSequence.get()) < sequence) {
+                barrier.checkAlert();
+                if (System.nanoTime() - yieldUntil > 0) {
+                    break;
+                }
+                Thread.yield();
+            }
+        }
+        if (availableSequence < sequence && expectedWaitNs <= parkNsMax) {
+            long parkUntil = start + parkNsMax;
+            long parkNs = Math.max(1000, expectedWaitNs >> 2);
+            while ((availableSequence = dependentSequence.get()) < sequence) {
+                barrier.checkAlert();
+                if (System.nanoTime() - parkUntil > 0) {
+                    break;
+                }
+                LockSupport.parkNanos(parkNs);
+                parkNs = Math.min(parkNs * 2, parkNsMax);
+            }
+        }
+        if (availableSequence < sequence) {
+            block(sequence, cursor, barrier);
+            while ((availableSequence = dependentSequence.get()) < sequence) {
+                barrier.checkAlert();
+            }
+        }
+
+        // capping long idle periods, so that the average recovers quickly when the load increases again
+        long waitedNs = Math.min(System.nanoTime() - start, 2 * parkNsMax);
+        averageWaitNs += (waitedNs - averageWaitNs) >> AVERAGE_SHIFT;
+        return availableSequence;
+    }
+
+    private void block(long sequence, Sequence cursor, SequenceBarrier barrier) throws AlertException, InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                // Setting the flag before re-checking the cursor guarantees that a producer that advances the cursor afterwards observes the flag
+                // The cursor of a multi-producer ring buffer is advanced with a CAS, which is ordered before the producer reads the flag
+                consumerBlocked.set(true);
+                if (cursor.get() >= sequence) {
+                    break;
+                }
+                barrier.checkAlert();
+                eventPublished.awaitNanos(blockTimeoutNs);
+            }
+        } finally {
+            consumerBlocked.set(false);
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        if (consumerBlocked.get() && consumerBlocked.compareAndSet(true, false)) {
+            lock.lock();
+            try {
+                eventPublished.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the moving average of the time the consumer had to wait for an event in nanoseconds
+     */
+    long getAverageWaitNs() {
+        return averageWaitNs;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.WaitStrategy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A set of multi-producer ring buffers (shards) which are drained by a single consumer thread.
+ * <p>
+ * Producers are assigned to a shard based on their thread id.
+ * As a consequence, producing threads only contend on the claim sequence of their own shard instead of on one sequence that is
+ * shared by all application threads.
+ * </p>
+ * <p>
+ * Control events, like flush or shutdown requests, are published to a dedicated control ring buffer.
+ * Before the consumer handles a control event, it drains all shards up to their highest published sequence.
+ * This guarantees that all events which have been published before a control event are handled before the control event itself,
+ * which is what callers waiting for a flush to complete rely on.
+ * </p>
+ * <p>
+ * The sequences that are passed to {@link EventHandler#onEvent(Object, long, boolean)} are assigned by the consumer and are
+ * monotonically increasing across all shards.
+ * Use {@link #isControlEventProcessed(long)} to find out whether a control event has been handled.
+ * </p>
+ * <p>
+ * When idle, the consumer thread sleeps for an exponentially increasing amount of time,
+ * just like {@link ExponentionallyIncreasingSleepingWaitStrategy}.
+ * </p>
+ *
+ * @param <T> the event type
+ */
+public class ShardedRingBuffer<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedRingBuffer.class);
+
+    private final RingBuffer<T>[] shards;
+    private final Sequence[] shardSequences;
+    private final SequenceBarrier[] shardBarriers;
+    private final RingBuffer<T> controlRingBuffer;
+    private final Sequence controlSequence;
+    private final SequenceBarrier controlBarrier;
+    private final int shardMask;
+    private final int maxBatchSize;
+    private final int sleepTimeNsStart;
+    private final int sleepTimeNsMax;
+    private final Thread consumerThread;
+    private final EventHandler<T> eventHandler;
+    private volatile boolean running;
+    /**
+     * Only accessed by the consumer thread
+     */
+    private long nextSequence;
+
+    /**
+     * @param eventFactory     creates the pre-allocated events
+     * @param eventHandler     handles the events of all shards on the consumer thread
+     * @param shardCount       the number of shards, must be a power of 2
+     * @param shardSize        the size of each shard, must be a power of 2
+     * @param controlSize      the size of the control ring buffer, must be a power of 2
+     * @param threadFactory    creates the consumer thread
+     * @param sleepTimeNsStart the initial time the consumer sleeps when there are no events
+     * @param sleepTimeNsMax   the maximum time the consumer sleeps when there are no events
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedRingBuffer(EventFactory<T> eventFactory, EventHandler<T> eventHandler, int shardCount, int shardSize, int controlSize,
+                             ThreadFactory threadFactory, int sleepTimeNsStart, int sleepTimeNsMax) {
+        if (Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("shardCount must be a power of 2");
+        }
+        this.shards = new RingBuffer[shardCount];
+        this.shardSequences = new Sequence[shardCount];
+        this.shardBarriers = new SequenceBarrier[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = RingBuffer.createMultiProducer(eventFactory, shardSize, NonBlockingWaitStrategy.INSTANCE);
+            shardSequences[i] = new Sequence();
+            shardBarriers[i] = shards[i].newBarrier();
+            shards[i].addGatingSequences(shardSequences[i]);
+        }
+        this.controlRingBuffer = RingBuffer.createMultiProducer(eventFactory, controlSize, NonBlockingWaitStrategy.INSTANCE);
+        this.controlSequence = new Sequence();
+        this.controlBarrier = controlRingBuffer.newBarrier();
+        this.controlRingBuffer.addGatingSequences(controlSequence);
+        this.eventHandler = eventHandler;
+        this.shardMask = shardCount - 1;
+        this.maxBatchSize = shardSize;
+        this.sleepTimeNsStart = sleepTimeNsStart;
+        this.sleepTimeNsMax = sleepTimeNsMax;
+        this.consumerThread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        });
+    }
+
+    public void start() {
+        running = true;
+        consumerThread.start();
+    }
+
+    /**
+     * Returns the shard the current thread publishes its events to.
+     *
+     * @return the shard the current thread publishes its events to
+     */
+    public RingBuffer<T> getShardForCurrentThread() {
+        return shards[(int) (Thread.currentThread().getId() & shardMask)];
+    }
+
+    public RingBuffer<T> getControlRingBuffer() {
+        return controlRingBuffer;
+    }
+
+    /**
+     * @param sequence a sequence of the {@linkplain #getControlRingBuffer() control ring buffer}
+     * @return {@code true} if the event handler has processed the control event with the provided sequence
+     */
+    public boolean isControlEventProcessed(long sequence) {
+        return controlSequence.get() >= sequence;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the combined capacity of all shards
+     */
+    public long getBufferSize() {
+        long bufferSize = 0;
+        for (RingBuffer<T> shard : shards) {
+            bufferSize += shard.getBufferSize();
+        }
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of events in all shards that have not been processed yet
+     */
+    public long getElementCount() {
+        long elementCount = 0;
+        for (RingBuffer<T> shard : shards) {
+            elementCount += shard.getBufferSize() - shard.remainingCapacity();
+        }
+        return elementCount;
+    }
+
+    /**
+     * Waits until all shards are drained and stops the consumer thread afterwards.
+     *
+     * @param timeout the maximum time to wait for all events to be processed
+     * @param unit    the unit of the timeout
+     * @throws TimeoutException if not all events have been processed within the timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws TimeoutException {
+        long thresholdNs = System.nanoTime() + unit.toNanos(timeout);
+        while (hasBacklog()) {
+            if (System.nanoTime() > thresholdNs) {
+                halt();
+                throw TimeoutException.INSTANCE;
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+        halt();
+    }
+
+    private void halt() {
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    private boolean hasBacklog() {
+        if (controlRingBuffer.getCursor() > controlSequence.get()) {
+            return true;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].getCursor() > shardSequences[i].get()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void consume() {
+        int currentSleep = sleepTimeNsStart;
+        while (running) {
+            int processed = drainControlRingBuffer();
+            for (int i = 0; i < shards.length; i++) {
+                processed += drainShard(i, maxBatchSize);
+            }
+            if (processed > 0) {
+                currentSleep = sleepTimeNsStart;
+            } else {
+                LockSupport.parkNanos(currentSleep);
+                if (currentSleep < sleepTimeNsMax) {
+                    currentSleep = Math.min(currentSleep * 2, sleepTimeNsMax);
+                }
+            }
+        }
+    }
+
+    private int drainControlRingBuffer() {
+        long next = controlSequence.get() + 1;
+        long available = getAvailableSequence(controlBarrier, next);
+        int processed = 0;
+        for (long sequence = next; sequence <= available; sequence++) {
+            // making sure all events that have been published before the control event are handled first
+            for (int i = 0; i < shards.length; i++) {
+                processed += drainShard(i, Integer.MAX_VALUE);
+            }
+            onEvent(controlRingBuffer.get(sequence), sequence == available);
+            controlSequence.set(sequence);
+            processed++;
+        }
+        return processed;
+    }
+
+    private int drainShard(int shard, int maxEvents) {
+        Sequence shardSequence = shardSequences[shard];
+        long next = shardSequence.get() + 1;
+        long available = getAvailableSequence(shardBarriers[shard], next);
+        if (available < next) {
+            return 0;
+        }
+        available = Math.min(available, next + maxEvents - 1);
+        RingBuffer<T> ringBuffer = shards[shard];
+        for (long sequence = next; sequence <= available; sequence++) {
+            onEvent(ringBuffer.get(sequence), sequence == available);
+        }
+        shardSequence.set(available);
+        return (int) (available - next + 1);
+    }
+
+    private long getAvailableSequence(SequenceBarrier barrier, long next) {
+        try {
+            return barrier.waitFor(next);
+        } catch (AlertException | InterruptedException | TimeoutException e) {
+            // not expected with the non-blocking wait strategy
+            return next - 1;
+        }
+    }
+
+    private void onEvent(T event, boolean endOfBatch) {
+        try {
+            eventHandler.onEvent(event, nextSequence++, endOfBatch);
+        } catch (Exception e) {
+            logger.debug("Exception while handling event {}", event, e);
+        }
+    }
+
+    /**
+     * Returns the currently published sequence without waiting.
+     * The waiting is done in {@link ShardedRingBuffer#consume()} as it has to take all shards into account.
+     */
+    private enum NonBlockingWaitStrategy implements WaitStrategy {
+        INSTANCE;
+
+        @Override
+        public long waitFor(long sequence, Sequence cursor, Sequence dependentSequence, SequenceBarrier barrier) {
+            return dependentSequence.get();
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+}
@@ -57,6 +57,7 @@ import co.elastic.apm.agent.impl.transaction.OTelSpanKind;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.SpanCount;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.metrics.Labels;
@@ -82,6 +83,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -102,6 +104,38 @@ public class DslJsonSerializer {
     private static final String[] DISALLOWED_IN_PROPERTY_NAME = new String[]{".", "*", "\""};
     private static final List<String> excludedStackFramesPrefixes = Arrays.asList("java.lang.reflect.", "com.sun.", "sun.", "jdk.internal.");
 
+    /*
+     * The field names that are written for every transaction or span are encoded once,
+     * so that they can be copied to the output buffer as a whole instead of character by character.
+     */
+    private static final byte[] TRANSACTION_NDJSON_PREFIX = encodeNdJsonPrefix("transaction");
+    private static final byte[] SPAN_NDJSON_PREFIX = encodeNdJsonPrefix("span");
+    private static final byte[] NAME_FIELD = encodeFieldName("name");
+    private static final byte[] TIMESTAMP_FIELD = encodeFieldName("timestamp");
+    private static final byte[] ID_FIELD = encodeFieldName("id");
+    private static final byte[] TRACE_ID_FIELD = encodeFieldName("trace_id");
+    private static final byte[] TRANSACTION_ID_FIELD = encodeFieldName("transaction_id");
+    private static final byte[] PARENT_ID_FIELD = encodeFieldName("parent_id");
+    private static final byte[] TYPE_FIELD = encodeFieldName("type");
+    private static final byte[] DURATION_FIELD = encodeFieldName("duration");
+    private static final byte[] RESULT_FIELD = encodeFieldName("result");
+    private static final byte[] OUTCOME_FIELD = encodeFieldName("outcome");
+    private static final byte[] SYNC_FIELD = encodeFieldName("sync");
+    private static final byte[] SAMPLE_RATE_FIELD = encodeFieldName("sample_rate");
+    private static final byte[] SAMPLED_FIELD = encodeFieldName("sampled");
+    private static final byte[] CONTEXT_FIELD = encodeFieldName("context");
+    private static final byte[] SERVICE_FIELD = encodeFieldName("service");
+    private static final byte[] VERSION_FIELD = encodeFieldName("version");
+    private static final byte[] TARGET_FIELD = encodeFieldName("target");
+    private static final byte[] TAGS_FIELD = encodeFieldName("tags");
+    private static final byte[] DESTINATION_FIELD = encodeFieldName("destination");
+    private static final byte[] ADDRESS_FIELD = encodeFieldName("address");
+    private static final byte[] PORT_FIELD = encodeFieldName("port");
+    private static final byte[] RESOURCE_FIELD = encodeFieldName("resource");
+    private static final byte[] SPAN_COUNT_FIELD = encodeFieldName("span_count");
+    private static final byte[] DROPPED_FIELD = encodeFieldName("dropped");
+    private static final byte[] STARTED_FIELD = encodeFieldName("started");
+
 
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
@@ -110,11 +144,32 @@ public class DslJsonSerializer {
     @Nullable
     private byte[] serializedMetaData;
     private boolean serializedActivationMethod;
+    private final int stringCacheSize;
+    private final int stackFrameCacheSize;
 
     public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData) {
+        this(stacktraceConfiguration, apmServerClient, metaData, 0);
+    }
+
+    /**
+     * @param stringCacheSize the number of encoded low-cardinality strings each {@link Writer} caches, {@code 0} to disable the cache
+     */
+    public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData,
+                             int stringCacheSize) {
+        this(stacktraceConfiguration, apmServerClient, metaData, stringCacheSize, 0);
+    }
+
+    /**
+     * @param stringCacheSize     the number of encoded low-cardinality strings each {@link Writer} caches, {@code 0} to disable the cache
+     * @param stackFrameCacheSize the number of encoded stack frames each {@link Writer} caches, {@code 0} to disable the cache
+     */
+    public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData,
+                             int stringCacheSize, int stackFrameCacheSize) {
         this.stacktraceConfiguration = stacktraceConfiguration;
         this.apmServerClient = apmServerClient;
         this.metaData = metaData;
+        this.stringCacheSize = stringCacheSize;
+        this.stackFrameCacheSize = stackFrameCacheSize;
     }
 
     public Writer newWriter() {
@@ -219,23 +274,24 @@ public class DslJsonSerializer {
         jw.writeByte(JsonWriter.OBJECT_END);
     }
 
-    private static void serializeService(@Nullable final CharSequence serviceName, @Nullable final CharSequence serviceVersion, @Nullable ServiceTarget serviceTarget, final StringBuilder replaceBuilder, final JsonWriter jw) {
+    private static void serializeService(@Nullable final CharSequence serviceName, @Nullable final CharSequence serviceVersion, @Nullable ServiceTarget serviceTarget,
+                                         final StringBuilder replaceBuilder, @Nullable EncodedStringCache stringCache, final JsonWriter jw) {
         boolean hasServiceTarget = (serviceTarget != null && serviceTarget.hasContent());
         if (serviceName == null && !hasServiceTarget) {
             return;
         }
 
-        writeFieldName("service", jw);
+        writeFieldName(SERVICE_FIELD, jw);
         jw.writeByte(OBJECT_START);
 
         if (serviceName != null) {
-            writeFieldName("name", jw);
-            writeStringValue(serviceName, replaceBuilder, jw);
+            writeFieldName(NAME_FIELD, jw);
+            writeStringValue(serviceName, replaceBuilder, stringCache, jw);
 
             if (serviceVersion != null) {
                 jw.writeByte(COMMA);
-                writeFieldName("version", jw);
-                writeStringValue(serviceVersion, replaceBuilder, jw);
+                writeFieldName(VERSION_FIELD, jw);
+                writeStringValue(serviceVersion, replaceBuilder, stringCache, jw);
             }
         }
 
@@ -243,22 +299,22 @@ public class DslJsonSerializer {
             if (serviceName != null) {
                 jw.writeByte(COMMA);
             }
-            writeFieldName("target", jw);
+            writeFieldName(TARGET_FIELD, jw);
             jw.writeByte(OBJECT_START);
             CharSequence targetType = serviceTarget.getType();
             CharSequence targetName = serviceTarget.getName();
 
             if (targetType != null) {
-                writeFieldName("type", jw);
-                writeStringValue(targetType, replaceBuilder, jw);
+                writeFieldName(TYPE_FIELD, jw);
+                writeStringValue(targetType, replaceBuilder, stringCache, jw);
             }
 
             if (targetName != null) {
                 if (targetType != null) {
                     jw.writeByte(COMMA);
                 }
-                writeFieldName("name", jw);
-                writeStringValue(targetName, replaceBuilder, jw);
+                writeFieldName(NAME_FIELD, jw);
+                writeStringValue(targetName, replaceBuilder, stringCache, jw);
             }
 
             jw.writeByte(OBJECT_END);
@@ -268,7 +324,7 @@ public class DslJsonSerializer {
     }
 
     private static void serializeService(@Nullable String name, @Nullable String version, StringBuilder replaceBuilder, JsonWriter jw) {
-        serializeService(name, version, null, replaceBuilder, jw);
+        serializeService(name, version, null, replaceBuilder, null, jw);
     }
 
     private static void serializeAgent(final Agent agent, final StringBuilder replaceBuilder, final JsonWriter jw, boolean supportsAgentActivationMethod) {
@@ -621,6 +677,15 @@ public class DslJsonSerializer {
         jw.writeString(value);
     }
 
+    /**
+     * Writes the value using the encoded bytes of the cache if possible.
+     */
+    private static void writeStringValue(CharSequence value, final StringBuilder replaceBuilder, @Nullable EncodedStringCache stringCache, final JsonWriter jw) {
+        if (stringCache == null || !stringCache.writeString(value, jw)) {
+            writeStringValue(value, replaceBuilder, jw);
+        }
+    }
+
     public static void writeStringValue(CharSequence value, final StringBuilder replaceBuilder, final JsonWriter jw) {
         if (value.length() > SerializationConstants.MAX_VALUE_LENGTH) {
             replaceBuilder.setLength(0);
@@ -671,6 +736,70 @@ public class DslJsonSerializer {
         jw.writeByte(JsonWriter.SEMI);
     }
 
+    /**
+     * @param fieldName a field name which has been encoded by {@link #encodeFieldName(String)}
+     */
+    private static void writeFieldName(final byte[] fieldName, final JsonWriter jw) {
+        jw.writeAscii(fieldName);
+    }
+
+    private static byte[] encodeFieldName(String fieldName) {
+        return ("\"" + fieldName + "\":").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] encodeNdJsonPrefix(String eventType) {
+        return ("{\"" + eventType + "\":").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void serializeStackTraceElement(StackTraceElement stacktrace, boolean libraryFrame, StringBuilder replaceBuilder, JsonWriter jw) {
+        jw.writeByte(OBJECT_START);
+        writeField("filename", stacktrace.getFileName(), replaceBuilder, jw);
+        writeField("classname", stacktrace.getClassName(), replaceBuilder, jw);
+        writeField("function", stacktrace.getMethodName(), replaceBuilder, jw);
+        writeFieldName("library_frame", jw);
+        BoolConverter.serialize(libraryFrame, jw);
+        jw.writeByte(COMMA);
+        writeField("lineno", stacktrace.getLineNumber(), jw);
+        serializeStackFrameModule(stacktrace.getClassName(), replaceBuilder, jw);
+        jw.writeByte(OBJECT_END);
+    }
+
+    private static void serializeStackFrameModule(final String fullyQualifiedClassName, StringBuilder replaceBuilder, JsonWriter jw) {
+        writeFieldName("module", jw);
+        replaceBuilder.setLength(0);
+        final int lastDotIndex = fullyQualifiedClassName.lastIndexOf('.');
+        if (lastDotIndex > 0) {
+            replaceBuilder.append(fullyQualifiedClassName, 0, lastDotIndex);
+        }
+        writeStringBuilderValue(replaceBuilder, jw);
+    }
+
+    private static void serializeStackTraceElement(StackFrame frame, boolean libraryFrame, StringBuilder replaceBuilder, JsonWriter jw) {
+        jw.writeByte(OBJECT_START);
+        replaceBuilder.setLength(0);
+        frame.appendFileName(replaceBuilder);
+        writeField("filename", replaceBuilder, replaceBuilder, jw);
+        writeField("function", frame.getMethodName(), replaceBuilder, jw);
+        writeFieldName("library_frame", jw);
+        BoolConverter.serialize(libraryFrame, jw);
+        jw.writeByte(COMMA);
+        writeFieldName("lineno", jw);
+        NumberConverter.serialize(-1, jw);
+        jw.writeByte(OBJECT_END);
+    }
+
+    private static boolean isLibraryFrame(@Nullable String className, Collection<String> applicationPackages) {
+        if (className == null) {
+            return true;
+        }
+        for (String applicationPackage : applicationPackages) {
+            if (className.startsWith(applicationPackage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     static void writeField(final String fieldName, final List<String> values, final JsonWriter jw) {
         if (values.size() > 0) {
             writeFieldName(fieldName, jw);
@@ -701,11 +830,17 @@ public class DslJsonSerializer {
         final JsonWriter jw;
         private final StringBuilder replaceBuilder;
         @Nullable
+        private final EncodedStringCache stringCache;
+        @Nullable
+        private final EncodedStackFrameCache stackFrameCache;
+        @Nullable
         private OutputStream os;
 
         private Writer() {
             jw = new DslJson<>(new DslJson.Settings<>()).newWriter(SerializationConstants.BUFFER_SIZE);
             this.replaceBuilder = new StringBuilder(SerializationConstants.getMaxLongStringValueLength() + 1);
+            this.stringCache = stringCacheSize > 0 ? new EncodedStringCache(stringCacheSize) : null;
+            this.stackFrameCache = stackFrameCacheSize > 0 ? new EncodedStackFrameCache(stackFrameCacheSize) : null;
         }
 
         @Override
@@ -808,16 +943,14 @@ public class DslJsonSerializer {
         }
 
         public void serializeTransactionNdJson(Transaction transaction) {
-            jw.writeByte(JsonWriter.OBJECT_START);
-            writeFieldName("transaction");
+            jw.writeAscii(TRANSACTION_NDJSON_PREFIX);
             serializeTransaction(transaction);
             jw.writeByte(JsonWriter.OBJECT_END);
             jw.writeByte(NEW_LINE);
         }
 
         public void serializeSpanNdJson(Span span) {
-            jw.writeByte(JsonWriter.OBJECT_START);
-            writeFieldName("span");
+            jw.writeAscii(SPAN_NDJSON_PREFIX);
             serializeSpan(span);
             jw.writeByte(JsonWriter.OBJECT_END);
             jw.writeByte(NEW_LINE);
@@ -999,13 +1132,13 @@ public class DslJsonSerializer {
 
             jw.writeByte(OBJECT_START);
             writeTimestamp(transaction.getTimestamp());
-            writeField("name", transaction.getNameForSerialization());
+            writeCachedField(NAME_FIELD, transaction.getNameForSerialization());
             serializeTraceContext(traceContext, false);
             serializeSpanLinks(transaction.getSpanLinks());
-            writeField("type", transaction.getType());
-            writeField("duration", transaction.getDurationMs());
-            writeField("result", transaction.getResult());
-            writeField("outcome", transaction.getOutcome().toString());
+            writeCachedField(TYPE_FIELD, transaction.getType());
+            writeField(DURATION_FIELD, transaction.getDurationMs());
+            writeCachedField(RESULT_FIELD, transaction.getResult());
+            writeCachedField(OUTCOME_FIELD, transaction.getOutcome().toString());
             serializeFaas(transaction.getFaas());
             serializeContext(transaction, transaction.getContext(), traceContext);
             serializeSpanCount(transaction.getSpanCount());
@@ -1015,23 +1148,23 @@ public class DslJsonSerializer {
             serializeOTel(transaction);
             double sampleRate = traceContext.getSampleRate();
             if (!Double.isNaN(sampleRate)) {
-                writeField("sample_rate", sampleRate);
+                writeField(SAMPLE_RATE_FIELD, sampleRate);
             }
-            writeLastField("sampled", transaction.isSampled());
+            writeLastField(SAMPLED_FIELD, transaction.isSampled());
             jw.writeByte(OBJECT_END);
         }
 
         private void serializeTraceContext(TraceContext traceContext, boolean serializeTransactionId) {
             // errors might only have an id
-            writeNonLastIdField("id", traceContext.getId());
+            writeNonLastIdField(ID_FIELD, traceContext.getId());
             if (!traceContext.getTraceId().isEmpty()) {
-                writeNonLastIdField("trace_id", traceContext.getTraceId());
+                writeNonLastIdField(TRACE_ID_FIELD, traceContext.getTraceId());
                 // transaction_id and parent_id may only be sent alongside a valid trace_id
                 if (serializeTransactionId && !traceContext.getTransactionId().isEmpty()) {
-                    writeNonLastIdField("transaction_id", traceContext.getTransactionId());
+                    writeNonLastIdField(TRANSACTION_ID_FIELD, traceContext.getTransactionId());
                 }
                 if (!traceContext.getParentId().isEmpty()) {
-                    writeNonLastIdField("parent_id", traceContext.getParentId());
+                    writeNonLastIdField(PARENT_ID_FIELD, traceContext.getParentId());
                 }
             }
         }
@@ -1039,16 +1172,16 @@ public class DslJsonSerializer {
         private void serializeSpan(final Span span) {
             TraceContext traceContext = span.getTraceContext();
             jw.writeByte(OBJECT_START);
-            writeField("name", span.getNameForSerialization());
+            writeCachedField(NAME_FIELD, span.getNameForSerialization());
             writeTimestamp(span.getTimestamp());
             if (!span.isSync()) {
                 // in java default is blocking, thus we only report when it's async (false)
-                writeField("sync", false);
+                writeField(SYNC_FIELD, false);
             }
-            writeField("outcome", span.getOutcome().toString());
+            writeCachedField(OUTCOME_FIELD, span.getOutcome().toString());
             serializeTraceContext(traceContext, true);
             serializeSpanLinks(span.getSpanLinks());
-            writeField("duration", span.getDurationMs());
+            writeField(DURATION_FIELD, span.getDurationMs());
             if (span.getStacktrace() != null) {
                 serializeStacktrace(span.getStacktrace().getStackTrace());
             } else if (span.getStackFrames() != null) {
@@ -1058,7 +1191,7 @@ public class DslJsonSerializer {
             writeHexArray("child_ids", span.getChildIds());
             double sampleRate = traceContext.getSampleRate();
             if (!Double.isNaN(sampleRate)) {
-                writeField("sample_rate", sampleRate);
+                writeField(SAMPLE_RATE_FIELD, sampleRate);
             }
             serializeOTel(span);
             if (span.isComposite() && span.getComposite().getCount() > 1) {
@@ -1157,7 +1290,7 @@ public class DslJsonSerializer {
             String serviceVersion = traceContext.getServiceVersion();
             boolean isFrameworkNameNotNull = transaction != null && transaction.getFrameworkName() != null;
             if (serviceName != null || serviceVersion != null || isFrameworkNameNotNull || serviceOrigin.hasContent()) {
-                writeFieldName("service");
+                writeFieldName(SERVICE_FIELD);
                 jw.writeByte(OBJECT_START);
                 if (serviceOrigin.hasContent()) {
                     serializeServiceOrigin(serviceOrigin);
@@ -1165,8 +1298,13 @@ public class DslJsonSerializer {
                 if (isFrameworkNameNotNull) {
                     serializeFramework(transaction.getFrameworkName(), transaction.getFrameworkVersion());
                 }
-                writeField("name", serviceName);
-                writeLastField("version", serviceVersion);
+                writeCachedField(NAME_FIELD, serviceName);
+                writeFieldName(VERSION_FIELD);
+                if (serviceVersion != null && serviceVersion.length() > 0) {
+                    writeCachedStringValue(serviceVersion);
+                } else {
+                    jw.writeNull();
+                }
                 jw.writeByte(OBJECT_END);
                 jw.writeByte(COMMA);
             }
@@ -1223,7 +1361,7 @@ public class DslJsonSerializer {
          * @param span serialized span
          */
         private void serializeSpanType(Span span) {
-            writeFieldName("type");
+            writeFieldName(TYPE_FIELD);
             String type = span.getType();
             if (type != null) {
                 replaceBuilder.setLength(0);
@@ -1245,7 +1383,7 @@ public class DslJsonSerializer {
                         replace(replaceBuilder, ".", "_", replaceStartIndex);
                     }
                 }
-                writeStringValue(replaceBuilder);
+                writeCachedStringValue(replaceBuilder);
             } else {
                 jw.writeNull();
             }
@@ -1290,33 +1428,23 @@ public class DslJsonSerializer {
         }
 
         private void serializeStackTraceElement(StackTraceElement stacktrace) {
-            jw.writeByte(OBJECT_START);
-            writeField("filename", stacktrace.getFileName());
-            writeField("classname", stacktrace.getClassName());
-            writeField("function", stacktrace.getMethodName());
-            writeField("library_frame", isLibraryFrame(stacktrace.getClassName()));
-            writeField("lineno", stacktrace.getLineNumber());
-            serializeStackFrameModule(stacktrace.getClassName());
-            jw.writeByte(OBJECT_END);
-        }
-
-        private void serializeStackFrameModule(final String fullyQualifiedClassName) {
-            writeFieldName("module");
-            replaceBuilder.setLength(0);
-            final int lastDotIndex = fullyQualifiedClassName.lastIndexOf('.');
-            if (lastDotIndex > 0) {
-                replaceBuilder.append(fullyQualifiedClassName, 0, lastDotIndex);
+            EncodedStackFrameCache stackFrameCache = this.stackFrameCache;
+            if (stackFrameCache == null) {
+                DslJsonSerializer.serializeStackTraceElement(stacktrace, isLibraryFrame(stacktrace.getClassName()), replaceBuilder, jw);
+                return;
+            }
+            Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+            byte[] encoded = stackFrameCache.get(stacktrace, applicationPackages);
+            if (encoded == null) {
+                JsonWriter encoder = stackFrameCache.startEncoding();
+                DslJsonSerializer.serializeStackTraceElement(stacktrace, DslJsonSerializer.isLibraryFrame(stacktrace.getClassName(), applicationPackages), replaceBuilder, encoder);
+                encoded = stackFrameCache.put(stacktrace, encoder);
             }
-            DslJsonSerializer.writeStringBuilderValue(replaceBuilder, jw);
+            jw.writeAscii(encoded);
         }
 
-        private boolean isLibraryFrame(String className) {
-            for (String applicationPackage : stacktraceConfiguration.getApplicationPackages()) {
-                if (className.startsWith(applicationPackage)) {
-                    return false;
-                }
-            }
-            return true;
+        private boolean isLibraryFrame(@Nullable String className) {
+            return DslJsonSerializer.isLibraryFrame(className, stacktraceConfiguration.getApplicationPackages());
         }
 
         private void serializeStackTrace(List<StackFrame> stackTrace) {
@@ -1325,40 +1453,53 @@ public class DslJsonSerializer {
             }
             writeFieldName("stacktrace");
             jw.writeByte(ARRAY_START);
-            StringBuilder replaceBuilder = this.replaceBuilder;
-            for (int i = 0, size = stackTrace.size(); i < size; i++) {
-                if (i != 0) {
-                    jw.writeByte(COMMA);
+            if (stackTrace instanceof StackTraceDictionary.InternedStackTrace) {
+                // walks the linked frames as random access is not constant time
+                for (StackTraceDictionary.InternedStackTrace node = (StackTraceDictionary.InternedStackTrace) stackTrace; node != null; node = node.getCaller()) {
+                    if (node != stackTrace) {
+                        jw.writeByte(COMMA);
+                    }
+                    serializeStackTraceElement(node.getFrame());
+                }
+            } else {
+                for (int i = 0, size = stackTrace.size(); i < size; i++) {
+                    if (i != 0) {
+                        jw.writeByte(COMMA);
+                    }
+                    serializeStackTraceElement(stackTrace.get(i));
                 }
-                serializeStackTraceElement(stackTrace.get(i), replaceBuilder);
             }
             jw.writeByte(ARRAY_END);
             jw.writeByte(COMMA);
         }
 
-        private void serializeStackTraceElement(StackFrame frame, StringBuilder replaceBuilder) {
-            jw.writeByte(OBJECT_START);
-
-            replaceBuilder.setLength(0);
-            frame.appendFileName(replaceBuilder);
-            writeField("filename", replaceBuilder);
-            writeField("function", frame.getMethodName());
-            writeField("library_frame", isLibraryFrame(frame.getClassName()));
-            writeLastField("lineno", -1);
-            jw.writeByte(OBJECT_END);
+        private void serializeStackTraceElement(StackFrame frame) {
+            EncodedStackFrameCache stackFrameCache = this.stackFrameCache;
+            if (stackFrameCache == null) {
+                DslJsonSerializer.serializeStackTraceElement(frame, isLibraryFrame(frame.getClassName()), replaceBuilder, jw);
+                return;
+            }
+            Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+            byte[] encoded = stackFrameCache.get(frame, applicationPackages);
+            if (encoded == null) {
+                JsonWriter encoder = stackFrameCache.startEncoding();
+                DslJsonSerializer.serializeStackTraceElement(frame, DslJsonSerializer.isLibraryFrame(frame.getClassName(), applicationPackages), replaceBuilder, encoder);
+                encoded = stackFrameCache.put(frame, encoder);
+            }
+            jw.writeAscii(encoded);
         }
 
         private void serializeSpanContext(SpanContext context, TraceContext traceContext) {
-            writeFieldName("context");
+            writeFieldName(CONTEXT_FIELD);
             jw.writeByte(OBJECT_START);
 
-            DslJsonSerializer.serializeService(traceContext.getServiceName(), traceContext.getServiceVersion(), context.getServiceTarget(), replaceBuilder, jw);
+            DslJsonSerializer.serializeService(traceContext.getServiceName(), traceContext.getServiceVersion(), context.getServiceTarget(), replaceBuilder, stringCache, jw);
             serializeMessageContext(context.getMessage());
             serializeDbContext(context.getDb());
             serializeHttpContext(context.getHttp());
             serializeDestination(context.getDestination(), context.getServiceTarget().getDestinationResource());
 
-            writeFieldName("tags");
+            writeFieldName(TAGS_FIELD);
             serializeLabels(context);
 
             jw.writeByte(OBJECT_END);
@@ -1367,7 +1508,7 @@ public class DslJsonSerializer {
 
         private void serializeDestination(Destination destination, @Nullable CharSequence resource) {
             if (destination.hasContent() || resource != null) {
-                writeFieldName("destination");
+                writeFieldName(DESTINATION_FIELD);
                 jw.writeByte(OBJECT_START);
                 boolean hasAddress = destination.getAddress().length() > 0;
                 boolean hasPort = destination.getPort() > 0;
@@ -1376,17 +1517,17 @@ public class DslJsonSerializer {
                 boolean hasCloudContent = destination.getCloud().hasContent();
 
                 if (hasAddress) {
+                    writeFieldName(ADDRESS_FIELD);
+                    writeCachedStringValue(destination.getAddress());
                     if (hasPort || hasServiceContent || hasCloudContent) {
-                        writeField("address", destination.getAddress());
-                    } else {
-                        writeLastField("address", destination.getAddress());
+                        jw.writeByte(COMMA);
                     }
                 }
                 if (hasPort) {
+                    writeFieldName(PORT_FIELD);
+                    NumberConverter.serialize(destination.getPort(), jw);
                     if (hasServiceContent || hasCloudContent) {
-                        writeField("port", destination.getPort());
-                    } else {
-                        writeLastField("port", destination.getPort());
+                        jw.writeByte(COMMA);
                     }
                 }
 
@@ -1401,11 +1542,16 @@ public class DslJsonSerializer {
         }
 
         private void serializeService(boolean hasCloudContent, CharSequence resource) {
-            writeFieldName("service");
+            writeFieldName(SERVICE_FIELD);
             jw.writeByte(OBJECT_START);
             writeEmptyField("name");
             writeEmptyField("type");
-            writeLastField("resource", resource);
+            writeFieldName(RESOURCE_FIELD);
+            if (resource.length() > 0) {
+                writeCachedStringValue(resource);
+            } else {
+                jw.writeNull();
+            }
             jw.writeByte(OBJECT_END);
             if (hasCloudContent) {
                 jw.writeByte(COMMA);
@@ -1541,10 +1687,10 @@ public class DslJsonSerializer {
         }
 
         private void serializeSpanCount(final SpanCount spanCount) {
-            writeFieldName("span_count");
+            writeFieldName(SPAN_COUNT_FIELD);
             jw.writeByte(OBJECT_START);
-            writeField("dropped", spanCount.getDropped().get());
-            writeLastField("started", spanCount.getReported().get());
+            writeField(DROPPED_FIELD, spanCount.getDropped().get());
+            writeLastField(STARTED_FIELD, spanCount.getReported().get());
             jw.writeByte(OBJECT_END);
             jw.writeByte(COMMA);
         }
@@ -1581,7 +1727,7 @@ public class DslJsonSerializer {
         }
 
         private void serializeContext(@Nullable final Transaction transaction, final TransactionContext context, TraceContext traceContext) {
-            writeFieldName("context");
+            writeFieldName(CONTEXT_FIELD);
             jw.writeByte(OBJECT_START);
             serializeServiceNameWithFramework(transaction, traceContext, context.getServiceOrigin());
 
@@ -1601,7 +1747,7 @@ public class DslJsonSerializer {
                 serializeCloudOrigin(context.getCloudOrigin());
             }
 
-            writeFieldName("tags");
+            writeFieldName(TAGS_FIELD);
             serializeLabels(context);
             jw.writeByte(OBJECT_END);
             jw.writeByte(COMMA);
@@ -1791,6 +1937,22 @@ public class DslJsonSerializer {
             DslJsonSerializer.writeStringValue(value, replaceBuilder, jw);
         }
 
+        /**
+         * Writes a string value which is expected to be of low cardinality,
+         * using the {@link EncodedStringCache} if enabled.
+         */
+        private void writeCachedStringValue(CharSequence value) {
+            DslJsonSerializer.writeStringValue(value, replaceBuilder, stringCache, jw);
+        }
+
+        private void writeCachedField(final byte[] fieldName, @Nullable final CharSequence value) {
+            if (value != null) {
+                writeFieldName(fieldName);
+                writeCachedStringValue(value);
+                jw.writeByte(COMMA);
+            }
+        }
+
         private void writeLongStringValue(CharSequence value) {
             DslJsonSerializer.writeLongStringValue(value, replaceBuilder, jw);
         }
@@ -1832,6 +1994,34 @@ public class DslJsonSerializer {
             jw.writeByte(COMMA);
         }
 
+        private void writeField(final byte[] fieldName, final double value) {
+            writeFieldName(fieldName);
+            NumberConverter.serialize(value, jw);
+            jw.writeByte(COMMA);
+        }
+
+        private void writeField(final byte[] fieldName, final int value) {
+            writeFieldName(fieldName);
+            NumberConverter.serialize(value, jw);
+            jw.writeByte(COMMA);
+        }
+
+        private void writeLastField(final byte[] fieldName, final int value) {
+            writeFieldName(fieldName);
+            NumberConverter.serialize(value, jw);
+        }
+
+        private void writeField(final byte[] fieldName, final boolean value) {
+            writeFieldName(fieldName);
+            BoolConverter.serialize(value, jw);
+            jw.writeByte(COMMA);
+        }
+
+        private void writeLastField(final byte[] fieldName, final boolean value) {
+            writeFieldName(fieldName);
+            BoolConverter.serialize(value, jw);
+        }
+
         void writeLastField(final String fieldName, @Nullable final CharSequence value) {
             DslJsonSerializer.writeLastField(fieldName, value, replaceBuilder, jw);
         }
@@ -1840,11 +2030,23 @@ public class DslJsonSerializer {
             DslJsonSerializer.writeFieldName(fieldName, jw);
         }
 
+        private void writeFieldName(final byte[] fieldName) {
+            DslJsonSerializer.writeFieldName(fieldName, jw);
+        }
+
         private void writeNonLastIdField(String fieldName, Id id) {
             writeIdField(fieldName, id);
             jw.writeByte(COMMA);
         }
 
+        private void writeNonLastIdField(byte[] fieldName, Id id) {
+            writeFieldName(fieldName);
+            jw.writeByte(JsonWriter.QUOTE);
+            id.writeAsHex(jw);
+            jw.writeByte(JsonWriter.QUOTE);
+            jw.writeByte(COMMA);
+        }
+
         private void writeIdField(String fieldName, Id id) {
             writeFieldName(fieldName);
             jw.writeByte(JsonWriter.QUOTE);
@@ -1853,7 +2055,7 @@ public class DslJsonSerializer {
         }
 
         private void writeTimestamp(final long epochMicros) {
-            writeFieldName("timestamp");
+            writeFieldName(TIMESTAMP_FIELD);
             NumberConverter.serialize(epochMicros, jw);
             jw.writeByte(COMMA);
         }
@@ -0,0 +1,129 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded cache of the JSON encoded bytes of stack frame objects,
+ * like the frames of {@link StackTraceElement}s or {@link co.elastic.apm.agent.impl.transaction.StackFrame}s.
+ * <p>
+ * Stack traces of errors and spans tend to consist of the same frames over and over again.
+ * Instead of encoding the file name, class name, method name and module of each frame character by character,
+ * the encoded frame is copied from this cache.
+ * </p>
+ * <p>
+ * Frames are stored in a direct-mapped table which is indexed by their hash,
+ * so that the cache never grows and lookups don't allocate.
+ * Frames are compared by identity first which makes lookups of interned frames cheap.
+ * As the encoded frames depend on the configured application packages,
+ * the cache is invalidated whenever they change.
+ * </p>
+ * <p>
+ * Not thread safe, every {@link DslJsonSerializer.Writer} has its own cache.
+ * </p>
+ */
+class EncodedStackFrameCache {
+
+    private final Object[] keys;
+    private final byte[][] values;
+    private final int mask;
+    @Nullable
+    private JsonWriter encoder;
+    @Nullable
+    private Object version;
+
+    /**
+     * @param size the maximum number of cached frames, rounded up to the next power of two
+     */
+    EncodedStackFrameCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 1));
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        keys = new Object[capacity];
+        values = new byte[capacity][];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the encoded bytes of the frame.
+     *
+     * @param frame   the frame, a {@link StackTraceElement} or a {@link co.elastic.apm.agent.impl.transaction.StackFrame}
+     * @param version an object whose identity changes whenever the encoding of frames changes, like the list of application packages
+     * @return the encoded frame or {@code null} if the frame is not cached
+     */
+    @Nullable
+    byte[] get(Object frame, Object version) {
+        if (this.version != version) {
+            clear();
+            this.version = version;
+            return null;
+        }
+        int index = index(frame);
+        Object key = keys[index];
+        if (key != null && (key == frame || key.equals(frame))) {
+            return values[index];
+        }
+        return null;
+    }
+
+    /**
+     * Returns a reset writer which the frame should be encoded to before calling {@link #put(Object, JsonWriter)}.
+     */
+    JsonWriter startEncoding() {
+        JsonWriter encoder = this.encoder;
+        if (encoder == null) {
+            encoder = new DslJson<>(new DslJson.Settings<>()).newWriter(512);
+            this.encoder = encoder;
+        }
+        encoder.reset();
+        return encoder;
+    }
+
+    /**
+     * Caches the encoded frame, replacing the frame that has previously been cached in the same slot.
+     *
+     * @param frame   the frame which has been encoded
+     * @param encoder the writer returned by {@link #startEncoding()} which contains the encoded frame
+     * @return the encoded frame
+     */
+    byte[] put(Object frame, JsonWriter encoder) {
+        byte[] encoded = encoder.toByteArray();
+        int index = index(frame);
+        keys[index] = frame;
+        values[index] = encoded;
+        return encoded;
+    }
+
+    private int index(Object frame) {
+        int hash = frame.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+    }
+}
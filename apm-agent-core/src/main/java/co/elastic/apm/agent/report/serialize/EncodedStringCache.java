@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded cache of the JSON encoded bytes of low-cardinality strings, like span types or service target names.
+ * <p>
+ * Values are stored in a direct-mapped table which is indexed by the hash of their content,
+ * so that the cache never grows and lookups don't allocate.
+ * As values may be mutable {@link CharSequence}s like {@link StringBuilder}s, a lookup compares the content of the value with the cached key,
+ * unless the value is the very same {@link String} instance.
+ * A value is only encoded and cached once it has been seen twice in a row for its slot,
+ * so that high-cardinality values don't cause allocations.
+ * </p>
+ * <p>
+ * Not thread safe, every {@link DslJsonSerializer.Writer} has its own cache.
+ * </p>
+ */
+class EncodedStringCache {
+
+    static final int MAX_CACHED_VALUE_LENGTH = 128;
+
+    private final String[] keys;
+    private final byte[][] values;
+    private final int[] seenHashes;
+    private final boolean[] seen;
+    private final int mask;
+    @Nullable
+    private JsonWriter encoder;
+
+    /**
+     * @param size the maximum number of cached values, rounded up to the next power of two
+     */
+    EncodedStringCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 1));
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new byte[capacity][];
+        seenHashes = new int[capacity];
+        seen = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Writes the value as JSON string, including the quotes.
+     *
+     * @param value the value to write
+     * @param jw    the writer to write the value to
+     * @return {@code false} if the value is too long to be cached, in which case nothing has been written
+     */
+    boolean writeString(CharSequence value, JsonWriter jw) {
+        if (value.length() > MAX_CACHED_VALUE_LENGTH) {
+            return false;
+        }
+        int hash = hash(value);
+        int index = (hash ^ (hash >>> 16)) & mask;
+        String key = keys[index];
+        if (key != null && (key == value || contentEquals(key, value))) {
+            jw.writeAscii(values[index]);
+            return true;
+        }
+        if (seen[index] && seenHashes[index] == hash) {
+            key = value.toString();
+            byte[] encoded = encode(key);
+            keys[index] = key;
+            values[index] = encoded;
+            seen[index] = false;
+            jw.writeAscii(encoded);
+        } else {
+            seen[index] = true;
+            seenHashes[index] = hash;
+            jw.writeString(value);
+        }
+        return true;
+    }
+
+    private byte[] encode(String value) {
+        JsonWriter encoder = this.encoder;
+        if (encoder == null) {
+            encoder = new DslJson<>(new DslJson.Settings<>()).newWriter(MAX_CACHED_VALUE_LENGTH * 6 + 2);
+            this.encoder = encoder;
+        }
+        encoder.reset();
+        encoder.writeString(value);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Same as {@link String#hashCode()}, so that the hash of a {@link String} does not have to be computed more than once.
+     */
+    private static int hash(CharSequence value) {
+        if (value instanceof String) {
+            return value.hashCode();
+        }
+        int hash = 0;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean contentEquals(String key, CharSequence value) {
+        int length = key.length();
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,7 +19,9 @@
 package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.configuration.ServiceInfo;
+import co.elastic.apm.agent.metrics.Counter;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import com.dslplatform.json.DslJson;
@@ -30,7 +32,6 @@ import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class MetricRegistrySerializer {
 
@@ -92,6 +93,7 @@ public class MetricRegistrySerializer {
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 hasSamples |= serializeRawMetrics(metricSet.getRawMetrics(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
@@ -165,15 +167,15 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static boolean serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
+    private static boolean serializeCounters(Map<String, Counter> counters, boolean hasSamples, JsonWriter jw) {
         final int size = counters.size();
         if (size > 0) {
-            final Iterator<Map.Entry<String, AtomicLong>> iterator = counters.entrySet().iterator();
+            final Iterator<Map.Entry<String, Counter>> iterator = counters.entrySet().iterator();
 
             // serialize first valid value
-            AtomicLong value = null;
+            Counter value = null;
             while (iterator.hasNext() && value == null) {
-                Map.Entry<String, AtomicLong> kv = iterator.next();
+                Map.Entry<String, Counter> kv = iterator.next();
                 if (kv.getValue().get() > 0) {
                     value = kv.getValue();
                     if (hasSamples) {
@@ -186,7 +188,7 @@ public class MetricRegistrySerializer {
 
             // serialize rest
             while (iterator.hasNext()) {
-                Map.Entry<String, AtomicLong> kv = iterator.next();
+                Map.Entry<String, Counter> kv = iterator.next();
                 value = kv.getValue();
                 if (kv.getValue().get() > 0) {
                     jw.writeByte(JsonWriter.COMMA);
@@ -197,6 +199,21 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (histograms.isEmpty()) {
+            return hasSamples;
+        }
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            if (kv.getValue().hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeHistogram(kv.getKey(), kv.getValue(), jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
 
     private static boolean serializeRawMetrics(Map<String, Double> rawValues, boolean hasSamples, JsonWriter jw) {
         //TODO: refactor this class?
@@ -227,7 +244,7 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
+    private static void serializeCounter(String key, Counter value, JsonWriter jw) {
         serializeValueStart(key, "", jw);
         NumberConverter.serialize(value.get(), jw);
         jw.writeByte(JsonWriter.OBJECT_END);
@@ -243,6 +260,50 @@ public class MetricRegistrySerializer {
         serializeValue(key, ".sum.us", timer.getTotalTimeUs(), jw);
     }
 
+    /**
+     * Serializes the histogram in the intake {@code histogram} format.
+     * Only non-empty buckets are serialized, with the bucket midpoints as {@code values}
+     * and the non-cumulative number of recorded values per bucket as {@code counts}.
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeAscii(key);
+        jw.writeAscii(".histogram");
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeByte(JsonWriter.SEMI);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        jw.writeAscii("\"values\":");
+        jw.writeByte(JsonWriter.ARRAY_START);
+        final int bucketCount = Histogram.getBucketCount();
+        boolean first = true;
+        for (int i = 0; i < bucketCount; i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(Histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeAscii(",\"counts\":");
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < bucketCount; i++) {
+            long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeAscii(",\"type\":\"histogram\"");
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeValue(String key, double value, JsonWriter jw) {
         serializeValue(key, "", value, jw);
     }
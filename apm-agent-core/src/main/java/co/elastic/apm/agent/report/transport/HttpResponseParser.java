@@ -0,0 +1,283 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An incremental parser for HTTP/1.1 responses.
+ * <p>
+ * The data can be fed in arbitrary portions, as it is read from the socket.
+ * The body is buffered in memory, which is fine as the responses of the APM Server are small.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+class HttpResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State {
+        STATUS_LINE,
+        HEADERS,
+        BODY,
+        BODY_UNTIL_CLOSE,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILERS,
+        DONE
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private final List<String> headerNames = new ArrayList<>();
+    private final List<String> headerValues = new ArrayList<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private State state = State.STATUS_LINE;
+    private String statusLine = "";
+    private int statusCode = -1;
+    private boolean keepAlive;
+    private long remaining;
+
+    /**
+     * Parses the next portion of the response.
+     *
+     * @param buffer a heap buffer containing the next portion of the response, which is consumed up until the end of the response
+     * @return {@code true} if the response is complete
+     * @throws IOException if the response is malformed
+     */
+    boolean parse(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    int length = (int) Math.min(remaining, buffer.remaining());
+                    body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                    ((Buffer) buffer).position(buffer.position() + length);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.DONE : State.CHUNK_DATA_END;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    ((Buffer) buffer).position(buffer.limit());
+                    break;
+                default:
+                    if (readLine(buffer)) {
+                        onLine(line.toString());
+                        line.setLength(0);
+                    }
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * To be called when the server has closed the connection.
+     *
+     * @return {@code true} if the response is complete
+     */
+    boolean onEndOfStream() {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        return state == State.DONE;
+    }
+
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c == '\n') {
+                return true;
+            } else if (c != '\r') {
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Malformed HTTP response, line exceeds " + MAX_LINE_LENGTH + " characters");
+                }
+                line.append(c);
+            }
+        }
+        return false;
+    }
+
+    private void onLine(String line) throws IOException {
+        switch (state) {
+            case STATUS_LINE:
+                parseStatusLine(line);
+                state = State.HEADERS;
+                break;
+            case HEADERS:
+                if (line.isEmpty()) {
+                    onHeadersComplete();
+                } else {
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) {
+                        throw new IOException("Malformed HTTP header: " + line);
+                    }
+                    headerNames.add(line.substring(0, colon).trim());
+                    headerValues.add(line.substring(colon + 1).trim());
+                }
+                break;
+            case CHUNK_SIZE:
+                int extension = line.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + line);
+                }
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_DATA_END:
+                if (!line.isEmpty()) {
+                    throw new IOException("Malformed chunk, expected CRLF");
+                }
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (line.isEmpty()) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state " + state);
+        }
+    }
+
+    private void parseStatusLine(String line) throws IOException {
+        // HTTP/1.1 200 OK
+        if (!line.startsWith("HTTP/1.") || line.length() < 12) {
+            throw new IOException("Malformed HTTP status line: " + line);
+        }
+        try {
+            statusCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP status line: " + line);
+        }
+        statusLine = line;
+        keepAlive = !line.startsWith("HTTP/1.0");
+    }
+
+    private void onHeadersComplete() {
+        if (statusCode >= 100 && statusCode < 200) {
+            // interim response, like 100 Continue
+            headerNames.clear();
+            headerValues.clear();
+            state = State.STATUS_LINE;
+            return;
+        }
+        String connection = getHeaderField("Connection");
+        if (connection != null) {
+            keepAlive = !"close".equalsIgnoreCase(connection);
+        }
+        String transferEncoding = getHeaderField("Transfer-Encoding");
+        String contentLength = getHeaderField("Content-Length");
+        if (statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            remaining = Long.parseLong(contentLength);
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else {
+            keepAlive = false;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * @return {@code true} if the connection can be reused for subsequent requests
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    byte[] getBody() {
+        return body.toByteArray();
+    }
+
+    /**
+     * Like {@link java.net.URLConnection#getHeaderField(String)}, returns the last value if a header is present multiple times.
+     *
+     * @param name the case-insensitive name of the header
+     * @return the value of the header or {@code null}
+     */
+    @Nullable
+    String getHeaderField(String name) {
+        for (int i = headerNames.size() - 1; i >= 0; i--) {
+            if (headerNames.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    int getHeaderCount() {
+        return headerNames.size();
+    }
+
+    String getHeaderName(int index) {
+        return headerNames.get(index);
+    }
+
+    String getHeaderValue(int index) {
+        return headerValues.get(index);
+    }
+
+    /**
+     * @return all headers, the status line is mapped to the {@code null} key, like in {@link java.net.URLConnection#getHeaderFields()}
+     */
+    Map<String, List<String>> getHeaderFields() {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put(null, Collections.singletonList(statusLine));
+        for (int i = 0; i < headerNames.size(); i++) {
+            List<String> values = headers.get(headerNames.get(i));
+            if (values == null) {
+                values = new ArrayList<>(1);
+                headers.put(headerNames.get(i), values);
+            }
+            values.add(headerValues.get(i));
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+}
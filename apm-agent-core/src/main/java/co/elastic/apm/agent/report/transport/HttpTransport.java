@@ -0,0 +1,48 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Creates the connections that are used to communicate with the APM Server,
+ * for intake requests as well as for health checks and configuration polls.
+ * <p>
+ * Implementations hand out {@link HttpURLConnection}s so that the callers don't depend on how the requests are actually executed.
+ * Implementations must be thread safe.
+ * </p>
+ */
+public interface HttpTransport {
+
+    /**
+     * Creates a connection to the provided URL which is not yet connected.
+     *
+     * @param url the URL to connect to
+     * @return a new connection
+     * @throws IOException if the connection could not be created
+     */
+    HttpURLConnection openConnection(URL url) throws IOException;
+
+    /**
+     * Releases all resources, like pooled connections or threads, held by this transport.
+     */
+    void close();
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A keep-alive HTTP connection that is driven by the selector thread of a {@link NioHttpTransport}.
+ * <p>
+ * The thread executing the request {@linkplain #send enqueues} the request data which is written by the selector thread as soon as
+ * the socket is writable.
+ * Therefore, writing the request never blocks on a slow APM Server.
+ * Instead, the amount of pending data is limited and exceeding it fails the request.
+ * The response is parsed by the selector thread and handed over when it's complete.
+ * </p>
+ * <p>
+ * The methods that are prefixed with {@code on} must only be called by the selector thread.
+ * </p>
+ */
+class NioConnection {
+
+    private static final int MAX_RECYCLED_BUFFER_CAPACITY = 64 * 1024;
+
+    private final NioHttpTransport transport;
+    private final String poolKey;
+    private final SocketChannel channel;
+    private final long maxBufferedBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    // only accessed by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    @Nullable
+    private volatile Exchange exchange;
+    @Nullable
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private volatile long idleSinceNanos;
+
+    NioConnection(NioHttpTransport transport, String poolKey, SocketChannel channel, long maxBufferedBytes) {
+        this.transport = transport;
+        this.poolKey = poolKey;
+        this.channel = channel;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    String getPoolKey() {
+        return poolKey;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void awaitConnected(int timeoutMillis) throws IOException {
+        if (!await(connected, timeoutMillis)) {
+            close();
+            throw new SocketTimeoutException("Connect timed out after " + timeoutMillis + "ms");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Starts a new request/response exchange on this connection.
+     */
+    void startExchange() throws IOException {
+        checkFailure();
+        exchange = new Exchange();
+    }
+
+    /**
+     * Returns a buffer which can be passed to {@link #send}, reusing buffers that have already been written to the socket.
+     *
+     * @param capacity the minimum capacity of the buffer
+     * @return a cleared buffer
+     */
+    ByteBuffer acquireBuffer(int capacity) {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null || buffer.capacity() < capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+    /**
+     * Enqueues data to be written by the selector thread.
+     *
+     * @param buffer the flipped buffer to send
+     * @throws IOException if the connection has failed or if too much data is pending because the APM Server does not keep up
+     */
+    void send(ByteBuffer buffer) throws IOException {
+        checkFailure();
+        if (bufferedBytes.addAndGet(buffer.remaining()) > maxBufferedBytes) {
+            IOException e = new IOException("More than " + maxBufferedBytes + " bytes are pending to be sent to the APM Server");
+            failure = e;
+            close();
+            throw e;
+        }
+        outbound.add(buffer);
+        transport.updateInterest(this);
+    }
+
+    /**
+     * Waits until the response for the current exchange has been received.
+     *
+     * @param timeoutMillis the maximum time to wait, {@code 0} meaning infinite
+     * @return the response
+     * @throws IOException if the connection has failed or if the response has not been received in time
+     */
+    HttpResponseParser awaitResponse(int timeoutMillis) throws IOException {
+        Exchange exchange = this.exchange;
+        if (exchange == null) {
+            throw new IllegalStateException("No request has been sent");
+        }
+        if (!await(exchange.done, timeoutMillis)) {
+            close();
+            throw new SocketTimeoutException("Read timed out after " + timeoutMillis + "ms");
+        }
+        checkFailure();
+        return exchange.response;
+    }
+
+    /**
+     * @return {@code true} if the connection can be reused for another request
+     */
+    boolean isReusable() {
+        Exchange exchange = this.exchange;
+        return !closed && failure == null && outbound.isEmpty()
+            && (exchange == null || exchange.response.isComplete() && exchange.response.isKeepAlive());
+    }
+
+    void markIdle() {
+        exchange = null;
+        idleSinceNanos = System.nanoTime();
+    }
+
+    boolean isIdleLongerThan(long nanos) {
+        return System.nanoTime() - idleSinceNanos > nanos;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * @return the operations the selector thread is interested in, depending on the current state
+     */
+    int interestOps() {
+        if (connected.getCount() > 0) {
+            return SelectionKey.OP_CONNECT;
+        }
+        return outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            connected.countDown();
+        }
+    }
+
+    void onWritable() throws IOException {
+        for (ByteBuffer buffer = outbound.peek(); buffer != null; buffer = outbound.peek()) {
+            int written = channel.write(buffer);
+            bufferedBytes.addAndGet(-written);
+            if (buffer.hasRemaining()) {
+                // the socket send buffer is full, continue when the socket is writable again
+                return;
+            }
+            outbound.poll();
+            if (!buffer.isReadOnly() && buffer.capacity() <= MAX_RECYCLED_BUFFER_CAPACITY) {
+                freeBuffers.add(buffer);
+            }
+        }
+    }
+
+    void onReadable() throws IOException {
+        ((Buffer) readBuffer).clear();
+        int read = channel.read(readBuffer);
+        Exchange exchange = this.exchange;
+        if (read == -1) {
+            if (exchange != null && exchange.response.onEndOfStream()) {
+                exchange.done.countDown();
+                close();
+            } else {
+                onFailure(new EOFException("The APM Server has closed the connection"));
+            }
+            return;
+        }
+        ((Buffer) readBuffer).flip();
+        if (exchange == null || exchange.response.isComplete()) {
+            onFailure(new IOException("Received unexpected data from the APM Server"));
+            return;
+        }
+        if (exchange.response.parse(readBuffer)) {
+            exchange.done.countDown();
+        }
+    }
+
+    void onFailure(IOException e) {
+        failure = e;
+        close();
+        connected.countDown();
+        Exchange exchange = this.exchange;
+        if (exchange != null) {
+            exchange.done.countDown();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException("Connection has been closed");
+        }
+    }
+
+    private static boolean await(CountDownLatch latch, int timeoutMillis) throws IOException {
+        try {
+            if (timeoutMillis == 0) {
+                latch.await();
+                return true;
+            }
+            return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the APM Server", e);
+        }
+    }
+
+    private static class Exchange {
+        private final HttpResponseParser response = new HttpResponseParser();
+        private final CountDownLatch done = new CountDownLatch(1);
+    }
+}
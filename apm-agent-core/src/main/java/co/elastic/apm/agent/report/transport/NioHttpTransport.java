@@ -0,0 +1,293 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport based on non-blocking sockets which are all served by a single selector thread.
+ * <p>
+ * Connections are kept alive and reused across requests.
+ * Request data is buffered and written by the selector thread,
+ * so that the reporter thread does not block on socket writes while the APM Server is slow to read the request body.
+ * Instead, it only waits for the response after the request body has been completed, which is bounded by {@code server_timeout}.
+ * </p>
+ * <p>
+ * Only plain text HTTP connections without a proxy are supported.
+ * Requests to {@code https} URLs or requests that would go through a proxy are delegated to a fallback transport.
+ * </p>
+ */
+public class NioHttpTransport implements HttpTransport, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioHttpTransport.class);
+
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final HttpTransport fallback;
+    private final long maxBufferedBytes;
+    private final ConcurrentMap<String, Queue<NioConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final Queue<NioConnection> pendingInterestUpdates = new ConcurrentLinkedQueue<>();
+    @Nullable
+    private volatile Selector selector;
+    private volatile boolean closed;
+
+    /**
+     * @param fallback         the transport used for requests that are not supported by this transport
+     * @param maxBufferedBytes the maximum number of bytes of a request that may be pending to be written to the socket
+     */
+    public NioHttpTransport(HttpTransport fallback, long maxBufferedBytes) {
+        this.fallback = fallback;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        if (!"http".equals(url.getProtocol()) || isProxied(url)) {
+            return fallback.openConnection(url);
+        }
+        return new NioHttpURLConnection(url, this);
+    }
+
+    private static boolean isProxied(URL url) {
+        ProxySelector proxySelector = PrivilegedActionUtils.getDefaultProxySelector();
+        if (proxySelector == null) {
+            return false;
+        }
+        try {
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            if (proxies != null) {
+                for (Proxy proxy : proxies) {
+                    if (proxy.type() != Proxy.Type.DIRECT) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (URISyntaxException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns an idle connection to the host of the URL or opens a new one.
+     *
+     * @param url                  the URL to connect to
+     * @param connectTimeoutMillis the maximum time to wait for a new connection to be established, {@code 0} meaning infinite
+     * @return a connected connection
+     */
+    NioConnection acquire(URL url, int connectTimeoutMillis) throws IOException {
+        if (closed) {
+            throw new IOException("The transport has been closed");
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String poolKey = host + ":" + port;
+        Queue<NioConnection> idle = idleConnections.get(poolKey);
+        if (idle != null) {
+            for (NioConnection connection = idle.poll(); connection != null; connection = idle.poll()) {
+                if (!connection.isClosed() && !connection.isIdleLongerThan(IDLE_TIMEOUT_NANOS)) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+            NioConnection connection = new NioConnection(this, poolKey, channel, maxBufferedBytes);
+            updateInterest(connection);
+            connection.awaitConnected(connectTimeoutMillis);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the connection to the pool if it can be reused, otherwise closes it.
+     *
+     * @param connection a connection that has been {@linkplain #acquire acquired} before
+     */
+    void release(NioConnection connection) {
+        if (!closed && connection.isReusable()) {
+            connection.markIdle();
+            Queue<NioConnection> idle = idleConnections.get(connection.getPoolKey());
+            if (idle == null) {
+                idleConnections.putIfAbsent(connection.getPoolKey(), new ConcurrentLinkedQueue<NioConnection>());
+                idle = idleConnections.get(connection.getPoolKey());
+            }
+            idle.add(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Lets the selector thread re-evaluate the {@linkplain NioConnection#interestOps() interest} of the connection,
+     * registering it with the selector if necessary.
+     */
+    void updateInterest(NioConnection connection) throws IOException {
+        Selector selector = this.selector;
+        if (selector == null) {
+            selector = start();
+        }
+        pendingInterestUpdates.add(connection);
+        selector.wakeup();
+    }
+
+    private synchronized Selector start() throws IOException {
+        Selector selector = this.selector;
+        if (selector == null) {
+            if (closed) {
+                throw new IOException("The transport has been closed");
+            }
+            selector = Selector.open();
+            this.selector = selector;
+            new ExecutorUtils.SingleNamedThreadFactory("nio-http-transport").newThread(this).start();
+        }
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        Selector selector = this.selector;
+        if (selector == null) {
+            return;
+        }
+        try {
+            while (!closed) {
+                selector.select();
+                processPendingInterestUpdates(selector);
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    process(key, (NioConnection) key.attachment());
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.error("The NIO HTTP transport has stopped unexpectedly", e);
+        } finally {
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).onFailure(new IOException("The transport has been closed"));
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void processPendingInterestUpdates(Selector selector) {
+        for (NioConnection connection = pendingInterestUpdates.poll(); connection != null; connection = pendingInterestUpdates.poll()) {
+            SocketChannel channel = connection.getChannel();
+            if (!channel.isOpen()) {
+                continue;
+            }
+            try {
+                SelectionKey key = channel.keyFor(selector);
+                if (key == null) {
+                    key = channel.register(selector, 0, connection);
+                    if (!channel.isConnectionPending()) {
+                        // connected immediately, like it's common for loopback connections
+                        connection.onConnectable();
+                    }
+                }
+                key.interestOps(connection.interestOps());
+            } catch (IOException e) {
+                connection.onFailure(e);
+            } catch (CancelledKeyException e) {
+                connection.onFailure(new IOException("The connection has been closed", e));
+            }
+        }
+    }
+
+    private static void process(SelectionKey key, NioConnection connection) {
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                connection.onConnectable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid()) {
+                key.interestOps(connection.interestOps());
+            }
+        } catch (IOException e) {
+            connection.onFailure(e);
+        } catch (CancelledKeyException e) {
+            connection.onFailure(new IOException("The connection has been closed", e));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Selector selector;
+        synchronized (this) {
+            selector = this.selector;
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+        for (Queue<NioConnection> idle : idleConnections.values()) {
+            for (NioConnection connection = idle.poll(); connection != null; connection = idle.poll()) {
+                connection.close();
+            }
+        }
+        fallback.close();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapts a {@link NioConnection} to the {@link HttpURLConnection} API so that the callers of the {@link HttpTransport} don't have to
+ * care about which transport is used.
+ * <p>
+ * The request body is always sent with chunked transfer encoding.
+ * The connection is returned to the pool of the {@link NioHttpTransport} as soon as the response has been received.
+ * </p>
+ */
+class NioHttpURLConnection extends HttpURLConnection {
+
+    private static final int DEFAULT_CHUNK_SIZE = 8192;
+    private static final ByteBuffer LAST_CHUNK = ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+
+    private final NioHttpTransport transport;
+    @Nullable
+    private NioConnection connection;
+    @Nullable
+    private Map<String, List<String>> requestHeaders;
+    @Nullable
+    private ChunkedOutputStream outputStream;
+    @Nullable
+    private HttpResponseParser response;
+    private boolean released;
+
+    NioHttpURLConnection(URL url, NioHttpTransport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        // the request properties can't be read any more after having connected
+        requestHeaders = getRequestProperties();
+        connection = transport.acquire(url, getConnectTimeout());
+        connected = true;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("Cannot write output before setting doOutput to true");
+        }
+        if (response != null) {
+            throw new ProtocolException("Cannot write output after reading input");
+        }
+        if (outputStream == null) {
+            if ("GET".equals(method)) {
+                method = "POST";
+            }
+            sendRequestHeaders(true);
+            outputStream = new ChunkedOutputStream(connectedConnection(), chunkLength > 0 ? chunkLength : DEFAULT_CHUNK_SIZE);
+        }
+        return outputStream;
+    }
+
+    private void sendRequestHeaders(boolean chunked) throws IOException {
+        NioConnection connection = connectedConnection();
+        StringBuilder headers = new StringBuilder(256);
+        String file = url.getFile();
+        headers.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        headers.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            headers.append(':').append(url.getPort());
+        }
+        headers.append("\r\n");
+        if (requestHeaders != null) {
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    headers.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+        if (chunked) {
+            headers.append("Transfer-Encoding: chunked\r\n");
+        } else if ("POST".equals(method) || "PUT".equals(method)) {
+            headers.append("Content-Length: 0\r\n");
+        }
+        headers.append("\r\n");
+        connection.startExchange();
+        byte[] bytes = headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = connection.acquireBuffer(bytes.length);
+        buffer.put(bytes);
+        ((Buffer) buffer).flip();
+        connection.send(buffer);
+    }
+
+    private NioConnection connectedConnection() throws IOException {
+        connect();
+        NioConnection connection = this.connection;
+        if (connection == null || released) {
+            throw new IOException("Connection has already been released");
+        }
+        return connection;
+    }
+
+    private HttpResponseParser getResponse() throws IOException {
+        HttpResponseParser response = this.response;
+        if (response == null) {
+            NioConnection connection = connectedConnection();
+            if (outputStream == null) {
+                sendRequestHeaders(false);
+            } else {
+                outputStream.close();
+            }
+            try {
+                response = connection.awaitResponse(getReadTimeout());
+            } catch (IOException e) {
+                release();
+                throw e;
+            }
+            this.response = response;
+            responseCode = response.getStatusCode();
+            String statusLine = response.getStatusLine();
+            responseMessage = statusLine.length() > 13 ? statusLine.substring(13) : "";
+            release();
+        }
+        return response;
+    }
+
+    private void release() {
+        if (!released && connection != null) {
+            released = true;
+            transport.release(connection);
+        }
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return getResponse().getStatusCode();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!doInput) {
+            throw new ProtocolException("Cannot read input if doInput is false");
+        }
+        HttpResponseParser response = getResponse();
+        if (response.getStatusCode() == HTTP_NOT_FOUND) {
+            throw new FileNotFoundException(url.toString());
+        } else if (response.getStatusCode() >= HTTP_BAD_REQUEST) {
+            throw new IOException("Server returned HTTP response code: " + response.getStatusCode() + " for URL: " + url);
+        }
+        return new ByteArrayInputStream(response.getBody());
+    }
+
+    @Nullable
+    @Override
+    public InputStream getErrorStream() {
+        HttpResponseParser response = this.response;
+        if (response == null || response.getStatusCode() < HTTP_BAD_REQUEST) {
+            return null;
+        }
+        return new ByteArrayInputStream(response.getBody());
+    }
+
+    @Nullable
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            return getResponse().getHeaderField(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            HttpResponseParser response = getResponse();
+            if (n == 0) {
+                return response.getStatusLine();
+            }
+            return n <= response.getHeaderCount() ? response.getHeaderValue(n - 1) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            HttpResponseParser response = getResponse();
+            return n > 0 && n <= response.getHeaderCount() ? response.getHeaderName(n - 1) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            return getResponse().getHeaderFields();
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (!released && connection != null) {
+            released = true;
+            connection.close();
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private final NioConnection connection;
+        private final byte[] buffer;
+        private int count;
+        private boolean closed;
+
+        private ChunkedOutputStream(NioConnection connection, int chunkSize) {
+            this.connection = connection;
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                int length = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, length);
+                count += length;
+                off += length;
+                len -= length;
+                if (count == buffer.length) {
+                    sendChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            if (count > 0) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (count > 0) {
+                sendChunk();
+            }
+            connection.send(LAST_CHUNK.duplicate());
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream has been closed");
+            }
+        }
+
+        private void sendChunk() throws IOException {
+            String size = Integer.toHexString(count);
+            ByteBuffer chunk = connection.acquireBuffer(size.length() + count + 4);
+            for (int i = 0; i < size.length(); i++) {
+                chunk.put((byte) size.charAt(i));
+            }
+            chunk.put((byte) '\r').put((byte) '\n');
+            chunk.put(buffer, 0, count);
+            chunk.put((byte) '\r').put((byte) '\n');
+            ((Buffer) chunk).flip();
+            count = 0;
+            connection.send(chunk);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.util;
+
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.tracer.pooling.Allocator;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Stores character sequences as compact UTF-8 records in pooled direct {@link ByteBuffer}s.
+ * <p>
+ * This is used to move large, write-once text such as captured DB statements out of the heap while the owning event waits
+ * to be reported. The buffers are pooled in power-of-two size classes, so that a record never occupies more than twice its encoded size.
+ * Text that does not fit into the largest size class is not encoded.
+ * </p>
+ */
+public class OffHeapUtf8Arena {
+
+    private static final int MIN_CAPACITY = 256;
+
+    private final ObjectPool<ByteBuffer>[] sizeClasses;
+
+    /**
+     * @param maxCapacity        the maximum size of an encoded record in bytes, rounded up to the next power of two
+     * @param buffersPerSizeClass the maximum number of buffers that are pooled for each size class
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapUtf8Arena(int maxCapacity, int buffersPerSizeClass) {
+        int numSizeClasses = Integer.numberOfTrailingZeros(MathUtils.getNextPowerOf2(Math.max(maxCapacity, MIN_CAPACITY)) / MIN_CAPACITY) + 1;
+        sizeClasses = new ObjectPool[numSizeClasses];
+        for (int i = 0; i < numSizeClasses; i++) {
+            final int capacity = MIN_CAPACITY << i;
+            sizeClasses[i] = QueueBasedObjectPool.of(new MpmcAtomicArrayQueue<ByteBuffer>(buffersPerSizeClass), false,
+                new Allocator<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer createInstance() {
+                        return ByteBuffer.allocateDirect(capacity);
+                    }
+                },
+                new Resetter<ByteBuffer>() {
+                    @Override
+                    public void recycle(ByteBuffer object) {
+                        ((Buffer) object).clear();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Encodes the provided characters into a pooled direct buffer.
+     *
+     * @param chars the characters to encode
+     * @return a buffer which is ready to be read and contains the UTF-8 encoded characters,
+     * or {@code null} if the encoded characters exceed the capacity of the largest size class
+     */
+    @Nullable
+    public ByteBuffer encode(CharSequence chars) {
+        int encodedLength = encodedLength(chars);
+        int sizeClass = sizeClassOf(encodedLength);
+        if (sizeClass >= sizeClasses.length) {
+            return null;
+        }
+        ByteBuffer record = sizeClasses[sizeClass].createInstance();
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                record.put((byte) c);
+            } else if (c < 0x800) {
+                record.put((byte) (0xC0 | (c >> 6)));
+                record.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                record.put((byte) (0xF0 | (codePoint >> 18)));
+                record.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                record.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                record.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                record.put((byte) '?');
+            } else {
+                record.put((byte) (0xE0 | (c >> 12)));
+                record.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                record.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    /**
+     * Decodes a record created by {@link #encode(CharSequence)} into the provided buffer without consuming the record.
+     * Characters that don't fit into the remaining capacity of the target buffer are discarded.
+     *
+     * @param record the record to decode
+     * @param target the buffer to append the decoded characters to
+     */
+    public static void decode(ByteBuffer record, CharBuffer target) {
+        int limit = record.limit();
+        int i = record.position();
+        while (i < limit && target.hasRemaining()) {
+            int b = record.get(i++);
+            if (b >= 0) {
+                target.put((char) b);
+            } else if ((b & 0xE0) == 0xC0) {
+                target.put((char) (((b & 0x1F) << 6) | (record.get(i++) & 0x3F)));
+            } else if ((b & 0xF0) == 0xE0) {
+                target.put((char) (((b & 0x0F) << 12) | ((record.get(i++) & 0x3F) << 6) | (record.get(i++) & 0x3F)));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((record.get(i++) & 0x3F) << 12) | ((record.get(i++) & 0x3F) << 6) | (record.get(i++) & 0x3F);
+                if (target.remaining() < 2) {
+                    break;
+                }
+                target.put(Character.highSurrogate(codePoint));
+                target.put(Character.lowSurrogate(codePoint));
+            }
+        }
+    }
+
+    /**
+     * Returns a record to the pool.
+     *
+     * @param record a record created by {@link #encode(CharSequence)} which must not be used anymore
+     */
+    public void release(ByteBuffer record) {
+        int sizeClass = sizeClassOf(record.capacity());
+        if (sizeClass < sizeClasses.length) {
+            sizeClasses[sizeClass].recycle(record);
+        }
+    }
+
+    private static int encodedLength(CharSequence chars) {
+        int length = chars.length();
+        int encodedLength = length;
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    // 4 bytes for two chars
+                    encodedLength += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    encodedLength += 2;
+                }
+            } else if (c >= 0x80) {
+                encodedLength++;
+            }
+        }
+        return encodedLength;
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size <= MIN_CAPACITY) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+}
@@ -48,11 +48,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledOnJre;
 import org.junit.jupiter.api.condition.JRE;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.event.SubstituteLoggingEvent;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -154,6 +156,25 @@ class InstrumentationTest {
         assertThat(interceptMe()).isEmpty();
     }
 
+    @Test
+    void testTypeMatchingCache(@TempDir Path tempDir) {
+        Path cacheFile = tempDir.resolve("type-matching.cache");
+        doReturn(cacheFile.toString()).when(coreConfig).getTypeMatchingCacheFile();
+        init(List.of(new TestInstrumentation()));
+        assertThat(interceptMe()).isEqualTo("intercepted");
+
+        ElasticApmAgent.saveTypeMatchingCache();
+        assertThat(cacheFile).exists();
+    }
+
+    @Test
+    void testParallelRetransformation() {
+        doReturn(2).when(coreConfig).getAttachRetransformationThreads();
+        init(List.of(new TestInstrumentation()));
+        assertThat(interceptMe()).isEqualTo("intercepted");
+        assertThat(ElasticApmAgent.getInstrumentationStats().getRetransformationBatches()).isNotEmpty();
+    }
+
     @Test
     void testEnsureInstrumented() {
         init(List.of());
@@ -0,0 +1,128 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.bytebuddy.RetransformationBatch;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class ParallelRetransformerTest {
+
+    private final List<List<Class<?>>> retransformedBatches = new ArrayList<>();
+    private Instrumentation instrumentation;
+    private InstrumentationStats stats;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        instrumentation = mock(Instrumentation.class);
+        doReturn(true).when(instrumentation).isModifiableClass(any());
+        doAnswer(invocation -> {
+            Class<?>[] classes = (Class<?>[]) invocation.getRawArguments()[0];
+            if (classes.length > 1 && Arrays.asList(classes).contains(Long.class)) {
+                throw new UnmodifiableClassException();
+            }
+            retransformedBatches.add(Arrays.asList(classes));
+            return null;
+        }).when(instrumentation).retransformClasses(any(Class[].class));
+        stats = new InstrumentationStats();
+    }
+
+    @Test
+    void testFindMatchingClasses() {
+        AgentBuilder.RawMatcher integerMatcher = (typeDescription, classLoader, module, classBeingRedefined, protectionDomain) ->
+            typeDescription.getName().equals(Integer.class.getName()) || typeDescription.getName().equals(List.class.getName());
+        ParallelRetransformer retransformer = new ParallelRetransformer(instrumentation, nameStartsWith("java.util."), none(),
+            List.of(integerMatcher), AgentBuilder.LocationStrategy.ForClassLoader.WEAK, 2, 0, stats);
+
+        List<Class<?>> matchingClasses = retransformer.findMatchingClasses(new Class<?>[]{String.class, Integer.class, Long.class, List.class, int.class, Integer[].class});
+
+        // java.util.List is excluded by the ignore matcher
+        assertThat(matchingClasses).containsExactly(Integer.class);
+    }
+
+    @Test
+    void testDescribesTypesWithTypePool() {
+        List<TypeDescription> descriptions = new CopyOnWriteArrayList<>();
+        AgentBuilder.RawMatcher recordingMatcher = (typeDescription, classLoader, module, classBeingRedefined, protectionDomain) ->
+            descriptions.add(typeDescription);
+        ParallelRetransformer retransformer = new ParallelRetransformer(instrumentation, none(), none(),
+            List.of(recordingMatcher), AgentBuilder.LocationStrategy.ForClassLoader.WEAK, 1, 0, stats);
+
+        List<Class<?>> matchingClasses = retransformer.findMatchingClasses(new Class<?>[]{String.class, ParallelRetransformerTest.class});
+
+        assertThat(matchingClasses).containsExactly(String.class, ParallelRetransformerTest.class);
+        assertThat(descriptions).extracting(TypeDescription::getName).containsExactly(String.class.getName(), ParallelRetransformerTest.class.getName());
+        assertThat(descriptions).noneMatch(description -> description instanceof TypeDescription.ForLoadedType);
+    }
+
+    @Test
+    void testRetransformInBatches() {
+        ParallelRetransformer retransformer = new ParallelRetransformer(instrumentation, none(), none(), List.of(), AgentBuilder.LocationStrategy.ForClassLoader.WEAK, 1, 0, stats);
+        List<Class<?>> classes = new ArrayList<>();
+        for (int i = 0; i < ParallelRetransformer.INITIAL_BATCH_SIZE * 3; i++) {
+            classes.add(i % 2 == 0 ? String.class : Integer.class);
+        }
+
+        retransformer.retransform(classes);
+
+        assertThat(retransformedBatches.get(0)).hasSize(ParallelRetransformer.INITIAL_BATCH_SIZE);
+        assertThat(retransformedBatches.stream().mapToInt(List::size).sum()).isEqualTo(classes.size());
+        assertThat(stats.getRetransformationBatches().stream().mapToInt(RetransformationBatch::getSize).sum()).isEqualTo(classes.size());
+    }
+
+    @Test
+    void testRetriesFailedBatchIndividually() {
+        ParallelRetransformer retransformer = new ParallelRetransformer(instrumentation, none(), none(), List.of(), AgentBuilder.LocationStrategy.ForClassLoader.WEAK, 1, 0, stats);
+
+        retransformer.retransform(List.of(String.class, Long.class, Integer.class));
+
+        assertThat(retransformedBatches).containsExactly(List.of(String.class), List.of(Long.class), List.of(Integer.class));
+        assertThat(stats.getRetransformationBatches()).hasSize(1);
+    }
+
+    @Test
+    void testNextBatchSize() {
+        long maxPause = TimeUnit.MILLISECONDS.toNanos(50);
+        // 1ms per class
+        assertThat(ParallelRetransformer.nextBatchSize(10, TimeUnit.MILLISECONDS.toNanos(10), maxPause)).isEqualTo(50);
+        // slower than the max pause
+        assertThat(ParallelRetransformer.nextBatchSize(10, TimeUnit.MILLISECONDS.toNanos(1000), maxPause)).isEqualTo(1);
+        // very fast
+        assertThat(ParallelRetransformer.nextBatchSize(10, 10, maxPause)).isEqualTo(ParallelRetransformer.MAX_BATCH_SIZE);
+        assertThat(ParallelRetransformer.nextBatchSize(10, 0, maxPause)).isEqualTo(20);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NamePreFilterIndexTest {
+
+    private static final List<ElementMatcher<? super NamedElement>> PRE_FILTERS = List.of(
+        nameContains("Servlet").or(nameContains("Filter")),
+        nameStartsWith("org.apache.http.").and(nameEndsWith("Client")),
+        nameStartsWith("java.sql.").or(nameContains("jdbc")),
+        named("com.example.Exact"),
+        not(nameStartsWith("java.")).and(nameContains("Executor")),
+        nameContainsIgnoreCase("jsp"),
+        any(),
+        none(),
+        nameEndsWith("Filter"),
+        nameContains("Servlet").or(nameEndsWith("Servlet")),
+        nameHasLength(19)
+    );
+
+    private static final List<String> NAMES = List.of(
+        "javax.servlet.http.HttpServlet",
+        "com.example.MyServletFilter",
+        "org.apache.http.impl.client.CloseableHttpClient",
+        "org.apache.http.impl.client.HttpClients",
+        "java.sql.Connection",
+        "org.postgresql.jdbc.PgConnection",
+        "com.example.Exact",
+        "com.example.ExactNot",
+        "java.util.concurrent.ThreadPoolExecutor",
+        "com.example.CustomExecutorService",
+        "org.apache.jasper.JspServlet",
+        "com.example.index_jSp",
+        "com.example.Unrelated",
+        "",
+        "Filter"
+    );
+
+    @Test
+    void testEquivalentToPreFilters() {
+        NamePreFilterIndex index = NamePreFilterIndex.compile(PRE_FILTERS);
+
+        for (String name : NAMES) {
+            NamedElement element = namedElement(name);
+            boolean anyMatch = false;
+            for (int i = 0; i < PRE_FILTERS.size(); i++) {
+                boolean expected = PRE_FILTERS.get(i).matches(element);
+                anyMatch |= expected;
+                assertThat(index.isCandidate(i, element))
+                    .describedAs("%s for %s", PRE_FILTERS.get(i), name)
+                    .isEqualTo(expected);
+                assertThat(index.forInstrumentation(i).matches(element)).isEqualTo(expected);
+            }
+            assertThat(index.hasCandidates(element)).isEqualTo(anyMatch);
+            assertThat(index.withoutCandidates().matches(element)).isEqualTo(!anyMatch);
+        }
+    }
+
+    @Test
+    void testDecomposesNameMatchers() {
+        NamePreFilterIndex index = NamePreFilterIndex.compile(PRE_FILTERS);
+
+        // if this fails after a Byte Buddy update, the fields read via reflection have likely changed
+        assertThat(index.size()).isEqualTo(PRE_FILTERS.size());
+        assertThat(index.getLiteralCount()).isEqualTo(11);
+        // the conjunctions, the negation, the case-insensitive and the custom pre-filter
+        assertThat(index.getExpressionCount()).isEqualTo(4);
+    }
+
+    @Test
+    void testOverlappingLiterals() {
+        List<ElementMatcher<? super NamedElement>> preFilters = new ArrayList<>();
+        for (String literal : List.of("he", "she", "his", "hers", "s", "ushers")) {
+            preFilters.add(nameContains(literal));
+            preFilters.add(nameStartsWith(literal));
+            preFilters.add(nameEndsWith(literal));
+            preFilters.add(named(literal));
+        }
+        NamePreFilterIndex index = NamePreFilterIndex.compile(preFilters);
+
+        for (String name : List.of("ushers", "hishers", "she", "sh", "hhers", "s", "xhe", "ushe")) {
+            NamedElement element = namedElement(name);
+            for (int i = 0; i < preFilters.size(); i++) {
+                assertThat(index.isCandidate(i, element))
+                    .describedAs("%s for %s", preFilters.get(i), name)
+                    .isEqualTo(preFilters.get(i).matches(element));
+            }
+        }
+    }
+
+    @Test
+    void testConcurrentEvaluationsDontInterfere() throws Exception {
+        NamePreFilterIndex index = NamePreFilterIndex.compile(PRE_FILTERS);
+        NamedElement servlet = namedElement("javax.servlet.http.HttpServlet");
+        NamedElement connection = namedElement("java.sql.Connection");
+
+        assertThat(index.isCandidate(0, servlet)).isTrue();
+        // the evaluation of another thread does not replace the one of this thread
+        CompletableFuture.runAsync(() -> {
+            assertThat(index.isCandidate(0, connection)).isFalse();
+            assertThat(index.isCandidate(2, connection)).isTrue();
+        }).get();
+        assertThat(index.isCandidate(2, servlet)).isFalse();
+        assertThat(index.isCandidate(9, servlet)).isTrue();
+        assertThat(index.isCandidate(2, connection)).isTrue();
+        assertThat(index.isCandidate(0, connection)).isFalse();
+    }
+
+    @Test
+    void testWithoutPreFilters() {
+        NamePreFilterIndex index = NamePreFilterIndex.compile(List.<ElementMatcher<? super NamedElement>>of());
+
+        assertThat(index.hasCandidates(namedElement("com.example.Foo"))).isFalse();
+    }
+
+    private static NamedElement namedElement(String name) {
+        return () -> name;
+    }
+
+    private static ElementMatcher<NamedElement> nameHasLength(int length) {
+        return target -> target.getActualName().length() == length;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TypeMatchingCacheTest {
+
+    private static final String FINGERPRINT = TypeMatchingCache.fingerprint(List.of("1.0.0", "FooInstrumentation"));
+    private static final TypeDescription NON_MATCHING = TypeDescription.ForLoadedType.of(String.class);
+    private static final TypeDescription MATCHING = TypeDescription.ForLoadedType.of(Integer.class);
+
+    @TempDir
+    Path tempDir;
+
+    private File cacheFile;
+    private Path jar;
+    private ProtectionDomain protectionDomain;
+    @Nullable
+    private ClassLoader classLoader;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheFile = tempDir.resolve("type-matching.cache").toFile();
+        jar = Files.write(tempDir.resolve("lib.jar"), new byte[]{1, 2, 3});
+        protectionDomain = new ProtectionDomain(new CodeSource(jar.toUri().toURL(), (Certificate[]) null), null);
+    }
+
+    @Test
+    void testSkipsKnownNonMatchesAfterRestart() {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(simulateMatching(cache, NON_MATCHING, false)).isFalse();
+        assertThat(simulateMatching(cache, MATCHING, true)).isFalse();
+        assertThat(cache.getRecordedNonMatches()).isEqualTo(1);
+        cache.save();
+
+        TypeMatchingCache restarted = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(restarted.getKnownNonMatches()).isEqualTo(1);
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isTrue();
+        assertThat(simulateMatching(restarted, MATCHING, true)).isFalse();
+        assertThat(restarted.getSkippedTypes()).isEqualTo(1);
+        assertThat(restarted.getRecordedNonMatches()).isZero();
+        assertThat(restarted.getEstimatedSavedNanos()).isNotNegative();
+    }
+
+    @Test
+    void testInvalidatedWhenFingerprintChanges() {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        simulateMatching(cache, NON_MATCHING, false);
+        cache.save();
+
+        String otherFingerprint = TypeMatchingCache.fingerprint(List.of("1.0.1", "FooInstrumentation"));
+        assertThat(otherFingerprint).isNotEqualTo(FINGERPRINT);
+        TypeMatchingCache restarted = TypeMatchingCache.load(cacheFile, otherFingerprint);
+        assertThat(restarted.getKnownNonMatches()).isZero();
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isFalse();
+    }
+
+    @Test
+    void testInvalidatedWhenJarChanges() throws IOException {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        simulateMatching(cache, NON_MATCHING, false);
+        cache.save();
+
+        Files.write(jar, new byte[]{4}, StandardOpenOption.APPEND);
+        TypeMatchingCache restarted = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(restarted.getKnownNonMatches()).isEqualTo(1);
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isFalse();
+        assertThat(restarted.getRecordedNonMatches()).isEqualTo(1);
+    }
+
+    @Test
+    void testTypesNotLoadedFromJarAreNotCached() throws IOException {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        protectionDomain = new ProtectionDomain(new CodeSource(tempDir.toUri().toURL(), (Certificate[]) null), null);
+        assertThat(simulateMatching(cache, NON_MATCHING, false)).isFalse();
+        protectionDomain = null;
+        assertThat(simulateMatching(cache, NON_MATCHING, false)).isFalse();
+        assertThat(cache.getRecordedNonMatches()).isZero();
+    }
+
+    @Test
+    void testInvalidatedWhenClassPathChanges() throws IOException {
+        Path dependency = Files.write(tempDir.resolve("dependency.jar"), new byte[]{1, 2, 3});
+        URL[] classPath = {jar.toUri().toURL(), dependency.toUri().toURL()};
+        classLoader = new URLClassLoader(classPath, null);
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        simulateMatching(cache, NON_MATCHING, false);
+        cache.save();
+
+        classLoader = new URLClassLoader(classPath, null);
+        TypeMatchingCache restarted = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isTrue();
+
+        // a supertype or a class a class loader matcher looks for may have changed
+        Files.write(dependency, new byte[]{4}, StandardOpenOption.APPEND);
+        classLoader = new URLClassLoader(classPath, null);
+        restarted = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isFalse();
+        assertThat(restarted.getRecordedNonMatches()).isEqualTo(1);
+    }
+
+    @Test
+    void testInvalidatedWhenClassPathOfParentChanges() throws IOException {
+        Path dependency = Files.write(tempDir.resolve("dependency.jar"), new byte[]{1, 2, 3});
+        classLoader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, new URLClassLoader(new URL[]{dependency.toUri().toURL()}, null));
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        simulateMatching(cache, NON_MATCHING, false);
+        cache.save();
+
+        Files.write(dependency, new byte[]{4}, StandardOpenOption.APPEND);
+        classLoader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, new URLClassLoader(new URL[]{dependency.toUri().toURL()}, null));
+        TypeMatchingCache restarted = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(simulateMatching(restarted, NON_MATCHING, false)).isFalse();
+    }
+
+    @Test
+    void testTypesOfUnsupportedClassLoadersAreNotCached() {
+        classLoader = new ClassLoader(null) {
+        };
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(simulateMatching(cache, NON_MATCHING, false)).isFalse();
+        assertThat(cache.getRecordedNonMatches()).isZero();
+    }
+
+    @Test
+    void testIgnoresCorruptFile() throws IOException {
+        Files.write(cacheFile.toPath(), new byte[]{1, 2, 3});
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheFile, FINGERPRINT);
+        assertThat(cache.getKnownNonMatches()).isZero();
+        simulateMatching(cache, NON_MATCHING, false);
+        cache.save();
+        assertThat(TypeMatchingCache.load(cacheFile, FINGERPRINT).getKnownNonMatches()).isEqualTo(1);
+    }
+
+    @Test
+    void testFingerprintDependsOnComponentBoundaries() {
+        assertThat(TypeMatchingCache.fingerprint(Arrays.asList("ab", "c")))
+            .isNotEqualTo(TypeMatchingCache.fingerprint(Arrays.asList("a", "bc")));
+    }
+
+    /**
+     * Simulates the callbacks Byte Buddy invokes when a class is loaded
+     *
+     * @return whether the cache made Byte Buddy ignore the type
+     */
+    private boolean simulateMatching(TypeMatchingCache cache, TypeDescription type, boolean matchesInstrumentation) {
+        boolean ignored = cache.matches(type, classLoader, null, null, protectionDomain);
+        if (ignored || !matchesInstrumentation) {
+            cache.onIgnored(type, classLoader, null, false);
+        } else {
+            cache.onTransformation(type, classLoader, null, false, null);
+        }
+        cache.onComplete(type.getName(), classLoader, null, false);
+        return ignored;
+    }
+}
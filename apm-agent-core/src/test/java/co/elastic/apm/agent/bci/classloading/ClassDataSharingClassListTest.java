@@ -0,0 +1,161 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.classloading;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClassDataSharingClassListTest {
+
+    @TempDir
+    Path tempDir;
+
+    private URLClassLoader agentClassLoader;
+    private URLClassLoader otherClassLoader;
+
+    @BeforeEach
+    void setUp() {
+        URL testClasses = ClassDataSharingClassListTest.class.getProtectionDomain().getCodeSource().getLocation();
+        agentClassLoader = new URLClassLoader(new URL[]{testClasses}, null);
+        otherClassLoader = new URLClassLoader(new URL[]{testClasses}, null);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        agentClassLoader.close();
+        otherClassLoader.close();
+    }
+
+    @Test
+    void testWritesAgentClassesWithSuperTypes() throws Exception {
+        Class<?> agentClass = agentClassLoader.loadClass(AgentClass.class.getName());
+        Runnable lambda = () -> {
+        };
+
+        int agentClasses = ClassDataSharingClassList.write(new Class<?>[]{agentClass, String.class, int[].class, lambda.getClass()},
+            agentClassLoader, null, tempDir.toFile());
+
+        assertThat(agentClasses).isEqualTo(2);
+        List<String> lines = readClassList();
+        String jar = tempDir.resolve(ClassDataSharingClassList.CLASSES_JAR_FILE_NAME).toFile().getAbsolutePath();
+        assertThat(lines).containsExactly(
+            "# Generated by the Elastic APM Java agent, see the documentation of the class_data_sharing_dir option",
+            "java/lang/Object id: 0",
+            "co/elastic/apm/agent/bci/classloading/ClassDataSharingClassListTest$AgentSuperClass id: 1 super: 0 source: " + jar,
+            "java/lang/Runnable id: 2",
+            "co/elastic/apm/agent/bci/classloading/ClassDataSharingClassListTest$AgentClass id: 3 super: 1 interfaces: 2 source: " + jar,
+            "java/lang/String id: 4");
+        assertThat(extractedClassFile(AgentClass.class)).isEqualTo(originalClassFile(AgentClass.class));
+        assertThat(extractedClassFile(AgentSuperClass.class)).isEqualTo(originalClassFile(AgentSuperClass.class));
+    }
+
+    @Test
+    void testWritesObjectAsSuperClassOfAgentInterfaces() throws Exception {
+        Class<?> agentInterface = agentClassLoader.loadClass(AgentInterface.class.getName());
+
+        int agentClasses = ClassDataSharingClassList.write(new Class<?>[]{agentInterface}, agentClassLoader, null, tempDir.toFile());
+
+        assertThat(agentClasses).isEqualTo(1);
+        String jar = tempDir.resolve(ClassDataSharingClassList.CLASSES_JAR_FILE_NAME).toFile().getAbsolutePath();
+        assertThat(readClassList()).containsSequence(
+            "java/lang/Object id: 0",
+            "co/elastic/apm/agent/bci/classloading/ClassDataSharingClassListTest$AgentInterface id: 1 super: 0 source: " + jar);
+    }
+
+    @Test
+    void testOmitsAgentClassesWithSuperTypesOfOtherClassLoaders() throws Exception {
+        ClassLoader parent = new ClassLoader(null) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.equals(AgentSuperClass.class.getName())) {
+                    return otherClassLoader.loadClass(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+        URL testClasses = ClassDataSharingClassListTest.class.getProtectionDomain().getCodeSource().getLocation();
+        try (URLClassLoader childClassLoader = new URLClassLoader(new URL[]{testClasses}, parent)) {
+            Class<?> agentClass = childClassLoader.loadClass(AgentClass.class.getName());
+            assertThat(agentClass.getSuperclass().getClassLoader()).isSameAs(otherClassLoader);
+
+            int agentClasses = ClassDataSharingClassList.write(new Class<?>[]{agentClass}, childClassLoader, null, tempDir.toFile());
+
+            assertThat(agentClasses).isZero();
+            assertThat(readClassList()).noneMatch(line -> line.contains("$Agent"));
+        }
+    }
+
+    @Test
+    void testOmitsClassesOfUnknownClassLoaders() throws Exception {
+        Class<?> otherClass = otherClassLoader.loadClass(AgentClass.class.getName());
+
+        int agentClasses = ClassDataSharingClassList.write(new Class<?>[]{otherClass}, agentClassLoader, null, tempDir.toFile());
+
+        assertThat(agentClasses).isZero();
+        assertThat(readClassList()).noneMatch(line -> line.contains("$AgentClass"));
+    }
+
+    private List<String> readClassList() throws IOException {
+        return Files.readAllLines(tempDir.resolve(ClassDataSharingClassList.CLASS_LIST_FILE_NAME), StandardCharsets.UTF_8);
+    }
+
+    private byte[] extractedClassFile(Class<?> type) throws IOException {
+        try (JarFile jarFile = new JarFile(tempDir.resolve(ClassDataSharingClassList.CLASSES_JAR_FILE_NAME).toFile())) {
+            ZipEntry entry = jarFile.getEntry(type.getName().replace('.', '/') + ".class");
+            assertThat(entry).isNotNull();
+            try (InputStream is = jarFile.getInputStream(entry)) {
+                return is.readAllBytes();
+            }
+        }
+    }
+
+    private static byte[] originalClassFile(Class<?> type) throws IOException {
+        try (InputStream is = type.getResourceAsStream(type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class")) {
+            return is.readAllBytes();
+        }
+    }
+
+    public static class AgentSuperClass {
+    }
+
+    public interface AgentInterface {
+    }
+
+    public static class AgentClass extends AgentSuperClass implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static co.elastic.apm.agent.collections.CachedKeyWeakConcurrentMap.MAX_EXPUNGED_ENTRIES_PER_OPERATION;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class CachedKeyWeakConcurrentMapTest {
+
+    @Test
+    void expungeStaleEntriesIncrementallyOnPut() {
+        CachedKeyWeakConcurrentMap<Object, String> map = new CachedKeyWeakConcurrentMap<>(new ConcurrentHashMap<>());
+        Object liveKey = new Object();
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 10 * MAX_EXPUNGED_ENTRIES_PER_OPERATION; i++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, "value");
+        }
+        assertThat(map.approximateSize()).isEqualTo(keys.size());
+
+        keys.clear();
+
+        await().untilAsserted(() -> {
+            System.gc();
+            int sizeBefore = map.approximateSize();
+            map.put(liveKey, "value");
+            assertThat(sizeBefore - map.approximateSize()).isLessThanOrEqualTo(MAX_EXPUNGED_ENTRIES_PER_OPERATION);
+            assertThat(map.approximateSize()).isEqualTo(1);
+        });
+        assertThat(map.get(liveKey)).isEqualTo("value");
+    }
+
+    @Test
+    void expungeStaleEntriesOnRead() {
+        CachedKeyWeakConcurrentMap<Object, String> map = new CachedKeyWeakConcurrentMap<>(new ConcurrentHashMap<>());
+        Object liveKey = new Object();
+        map.put(liveKey, "value");
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 10 * MAX_EXPUNGED_ENTRIES_PER_OPERATION; i++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, "value");
+        }
+        keys.clear();
+
+        // the map is not modified anymore, only read
+        await().untilAsserted(() -> {
+            System.gc();
+            assertThat(map.get(liveKey)).isEqualTo("value");
+            assertThat(map.getIfPresent(liveKey)).isEqualTo("value");
+            assertThat(map.containsKey(liveKey)).isTrue();
+            assertThat(map.approximateSize()).isEqualTo(1);
+        });
+    }
+
+    @Test
+    void expungeStaleEntriesWhenAddingDefaultValue() {
+        NullSafeWeakConcurrentMap<Object, String> map = new NullSafeWeakConcurrentMap<>(new ConcurrentHashMap<>(), key -> "default");
+        Object key = new Object();
+        assertThat(map.get(key)).isEqualTo("default");
+        key = null;
+
+        await().untilAsserted(() -> {
+            System.gc();
+            map.get(new Object());
+            assertThat(map.approximateSize()).isEqualTo(1);
+        });
+    }
+}
@@ -21,11 +21,13 @@ package co.elastic.apm.agent.impl;
 import co.elastic.apm.agent.MockReporter;
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
@@ -375,6 +377,43 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testBreakdown_selfTimeHistogram() {
+        doReturn(true).when(tracer.getConfig(MetricsConfiguration.class)).isSpanSelfTimeHistogramEnabled();
+        for (int i = 0; i < 2; i++) {
+            final Transaction transaction = createTransaction();
+            transaction.getTraceContext().setServiceInfo("service_name", null);
+            transaction.createSpan(10).withType("db").withSubtype("mysql").end(20 + i);
+            transaction.createSpan(20).withType("db").withSubtype("mysql").end(25);
+            transaction.end(30);
+        }
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            // the timer is aggregated per transaction, the histogram records each span
+            assertThat(getTimer(metricSets, "span.self_time", "service_name", null, "db", "mysql").getCount()).isEqualTo(4);
+            final MetricSet metricSet = metricSets.get(Labels.Mutable.of().serviceName("service_name").spanType("db").spanSubType("mysql"));
+            assertThat(metricSet).isNotNull();
+            final Histogram histogram = metricSet.getHistograms().get("span.self_time");
+            assertThat(histogram.getTotalCount()).isEqualTo(4);
+            assertThat(histogram.getValueAtPercentile(50)).isEqualTo(5);
+            assertThat(histogram.getValueAtPercentile(99)).isEqualTo(11);
+            assertThat(metricSets.get(Labels.Mutable.of().serviceName("service_name").spanType("app")).getHistograms().get("span.self_time").getTotalCount())
+                .isEqualTo(2);
+        });
+    }
+
+    @Test
+    void testBreakdown_selfTimeHistogramDisabledByDefault() {
+        final Transaction transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getCount()).isEqualTo(1);
+            assertThat(metricSets.get(Labels.Mutable.of().spanType("db").spanSubType("mysql"))).isNull();
+        });
+    }
+
     private Transaction createTransaction() {
         return tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
             .withName("test")
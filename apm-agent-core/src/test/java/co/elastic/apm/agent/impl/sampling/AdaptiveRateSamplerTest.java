@@ -0,0 +1,172 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AdaptiveRateSamplerTest {
+
+    private long nanoTime;
+    private Id traceId;
+
+    @BeforeEach
+    void setUp() {
+        nanoTime = 0;
+        traceId = Id.new128BitId();
+    }
+
+    @Test
+    void testStartsWithMaxSampleRate() {
+        AdaptiveRateSampler sampler = createSampler(10, 0.5);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.5));
+    }
+
+    @Test
+    void testAdaptsToTarget() {
+        AdaptiveRateSampler sampler = createSampler(10, 1.0);
+        int sampled = 0;
+        for (int second = 0; second < 30; second++) {
+            sampled = sampleForOneSecond(sampler, 1000);
+        }
+        assertThat(sampler.getObservedPerSecond()).isEqualTo(1000);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.01);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.01));
+        assertThat(sampled).isBetween(0, 40);
+    }
+
+    @Test
+    void testSlidingWindow() {
+        AdaptiveRateSampler sampler = createSampler(10, 1.0);
+        for (int second = 0; second < AdaptiveRateSampler.WINDOW_INTERVALS; second++) {
+            sampleForOneSecond(sampler, 100);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+
+        // one interval with a tenth of the load only lowers the average slightly
+        sampleForOneSecond(sampler, 10);
+        // an interval is completed by the first transaction of the next interval
+        sampler.isSampled(traceId);
+        assertThat(sampler.getObservedPerSecond()).isCloseTo(91, within(1d));
+
+        for (int second = 0; second < AdaptiveRateSampler.WINDOW_INTERVALS; second++) {
+            sampleForOneSecond(sampler, 5);
+        }
+        assertThat(sampler.getObservedPerSecond()).isCloseTo(5, within(1d));
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testMaxSampleRateIsUpperBound() {
+        AdaptiveRateSampler sampler = createSampler(100, 0.2);
+        for (int second = 0; second < 3; second++) {
+            sampleForOneSecond(sampler, 10);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(0.2);
+
+        sampler.setMaxSampleRate(0.5);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+
+        sampler.setTargetPerSecond(1);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+    }
+
+    @Test
+    void testSparseTraffic() {
+        AdaptiveRateSampler sampler = createSampler(0.1, 1.0);
+        // one transaction every five seconds
+        for (int i = 0; i < 30; i++) {
+            traceId.setToRandomValue();
+            sampler.isSampled(traceId);
+            nanoTime += 5 * AdaptiveRateSampler.INTERVAL_NANOS;
+        }
+        assertThat(sampler.getObservedPerSecond()).isCloseTo(0.2, within(0.01));
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testIdleTimeLowersObservedRate() {
+        AdaptiveRateSampler sampler = createSampler(10, 1.0);
+        for (int second = 0; second < AdaptiveRateSampler.WINDOW_INTERVALS; second++) {
+            sampleForOneSecond(sampler, 100);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+
+        // no traffic for a minute, the next transaction completes the interval
+        nanoTime += 60 * AdaptiveRateSampler.INTERVAL_NANOS;
+        sampler.isSampled(traceId);
+        assertThat(sampler.getObservedPerSecond()).isZero();
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testSampleRateDoesNotDropToZero() {
+        AdaptiveRateSampler sampler = createSampler(10, 1.0);
+        for (int second = 0; second < 3; second++) {
+            sampleForOneSecond(sampler, 1000);
+        }
+        sampler.setTargetPerSecond(0);
+        assertThat(sampler.getSampleRate()).isEqualTo(AdaptiveRateSampler.MIN_SAMPLE_RATE);
+        assertThat(sampler.getDecisionSampler()).isInstanceOf(ProbabilitySampler.class);
+
+        sampler.setMaxSampleRate(0);
+        assertThat(sampler.getSampleRate()).isZero();
+    }
+
+    @Test
+    void testDecisionSamplerKeepsItsSampleRate() {
+        AdaptiveRateSampler sampler = createSampler(10, 1.0);
+        Sampler decisionSampler = sampler.getDecisionSampler();
+        for (int second = 0; second < 3; second++) {
+            sampleForOneSecond(sampler, 1000);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(0.01);
+        assertThat(decisionSampler.getSampleRate()).isEqualTo(1.0);
+        assertThat(decisionSampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(1.0));
+        assertThat(decisionSampler.isSampled(traceId)).isTrue();
+    }
+
+    private int sampleForOneSecond(AdaptiveRateSampler sampler, int transactions) {
+        int sampled = 0;
+        for (int i = 0; i < transactions; i++) {
+            traceId.setToRandomValue();
+            if (sampler.isSampled(traceId)) {
+                sampled++;
+            }
+            nanoTime += AdaptiveRateSampler.INTERVAL_NANOS / transactions;
+        }
+        nanoTime += AdaptiveRateSampler.INTERVAL_NANOS % transactions;
+        return sampled;
+    }
+
+    private AdaptiveRateSampler createSampler(double targetPerSecond, double maxSampleRate) {
+        return new AdaptiveRateSampler(targetPerSecond, maxSampleRate) {
+            @Override
+            long nanoTime() {
+                return nanoTime;
+            }
+        };
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Counter;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.tracer.Outcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class TailSamplerTest {
+
+    private static final int BUFFER_SIZE = 100;
+
+    private MockReporter reporter;
+    private ElasticApmTracer tracer;
+    private TailSampler tailSampler;
+
+    @BeforeEach
+    void setUp() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        doReturn(true).when(coreConfiguration).isTailSamplingEnabled();
+        doReturn(BUFFER_SIZE).when(coreConfiguration).getTailSamplingBufferSize();
+        reporter = new MockReporter();
+        tracer = MockTracer.createRealTracer(reporter, config);
+        assertThat(tracer.getSampler()).isInstanceOf(TailSampler.class);
+        tailSampler = (TailSampler) tracer.getSampler();
+        tailSampler.setHeadSampler(ConstantSampler.of(false));
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracer.stop();
+    }
+
+    @Test
+    void testKeepFailedTransaction() {
+        Transaction transaction = startTransaction();
+        assertThat(transaction.isSampled()).isTrue();
+        assertThat(transaction.getTraceContext().isTailSamplingCandidate()).isTrue();
+
+        transaction.createSpan(10).withName("span").end(20);
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(tailSampler.getBufferedSpans()).isEqualTo(1);
+
+        transaction.withOutcome(Outcome.FAILURE).end(30);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(tailSampler.getBufferedSpans()).isZero();
+        assertThat(getDecisions("keep", "failure")).isEqualTo(1);
+    }
+
+    @Test
+    void testKeepTransactionWithError() {
+        Transaction transaction = startTransaction();
+        Span span = transaction.createSpan(10).withName("span");
+        span.captureException(new Exception("test"));
+        span.withOutcome(Outcome.SUCCESS).end(20);
+        transaction.withOutcome(Outcome.SUCCESS).end(30);
+
+        assertThat(reporter.getErrors()).hasSize(1);
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(getDecisions("keep", "error")).isEqualTo(1);
+    }
+
+    @Test
+    void testDropFastSuccessfulTransaction() {
+        Transaction transaction = startTransaction();
+        transaction.createSpan(10).withName("span").end(20);
+        transaction.withOutcome(Outcome.SUCCESS).end(30);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getTransactions()).allMatch(t -> !t.isSampled());
+        assertThat(tailSampler.getBufferedSpans()).isZero();
+        assertThat(getDecisions("drop", "none")).isEqualTo(1);
+    }
+
+    @Test
+    void testKeepSlowTransaction() {
+        for (int i = 0; i < TailSampler.DURATION_WINDOW_SIZE; i++) {
+            startTransaction().withOutcome(Outcome.SUCCESS).end(100);
+        }
+        assertThat(tailSampler.getSlowThresholdUs()).isBetween(90L, 110L);
+        reporter.reset();
+
+        Transaction slow = startTransaction();
+        slow.createSpan(10).withName("span").end(20);
+        slow.withOutcome(Outcome.SUCCESS).end(1000);
+        assertThat(reporter.getSpans()).hasSize(1);
+
+        Transaction fast = startTransaction();
+        fast.createSpan(10).withName("span").end(20);
+        fast.withOutcome(Outcome.SUCCESS).end(50);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testSpanEndedAfterDecision() {
+        Transaction transaction = startTransaction();
+        Span span = transaction.createSpan(10).withName("span");
+        transaction.withOutcome(Outcome.FAILURE).end(30);
+        assertThat(reporter.getSpans()).isEmpty();
+
+        span.end(40);
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(tailSampler.getBufferedSpans()).isZero();
+    }
+
+    @Test
+    void testHeadSampledTransactionIsNotBuffered() {
+        tailSampler.setHeadSampler(ConstantSampler.of(true));
+        Transaction transaction = startTransaction();
+        assertThat(transaction.getTraceContext().isTailSamplingCandidate()).isFalse();
+        transaction.createSpan(10).withName("span").end(20);
+        assertThat(reporter.getSpans()).hasSize(1);
+        transaction.withOutcome(Outcome.SUCCESS).end(30);
+    }
+
+    @Test
+    void testOutgoingHeadersAreNotSampled() {
+        Transaction transaction = startTransaction();
+        Span span = transaction.createSpan(10).withName("span");
+        Map<String, String> headers = new HashMap<>();
+        span.propagateContext(headers, TextHeaderMapAccessor.INSTANCE, null);
+
+        assertThat(headers.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME))
+            .endsWith("-" + transaction.getTraceContext().getId() + "-00");
+        span.end(20);
+        transaction.withOutcome(Outcome.SUCCESS).end(30);
+    }
+
+    @Test
+    void testBufferIsBounded() {
+        Transaction transaction = startTransaction();
+        for (int i = 0; i < BUFFER_SIZE + 50; i++) {
+            transaction.createSpan(10).withName("span").end(20);
+            assertThat(tailSampler.getBufferedSpans()).isLessThanOrEqualTo(BUFFER_SIZE);
+        }
+        assertThat(tailSampler.isTailSamplingCandidate()).isFalse();
+        Transaction notCandidate = startTransaction();
+        assertThat(notCandidate.isSampled()).isFalse();
+
+        transaction.withOutcome(Outcome.FAILURE).end(30);
+        assertThat(reporter.getSpans()).hasSize(BUFFER_SIZE);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getDropped().get()).isEqualTo(50);
+        assertThat(tailSampler.getBufferedSpans()).isZero();
+        assertThat(tailSampler.isTailSamplingCandidate()).isTrue();
+        notCandidate.withOutcome(Outcome.SUCCESS).end(30);
+    }
+
+    @Test
+    void testBufferIsBoundedUnderConcurrentLoad() throws Exception {
+        int threads = 4;
+        int transactionsPerThread = 50;
+        AtomicInteger maxBuffered = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < transactionsPerThread; i++) {
+                    Transaction transaction = startTransaction();
+                    for (int j = 0; j < 20; j++) {
+                        transaction.createSpan(10).withName("span").end(20);
+                        maxBuffered.accumulateAndGet(tailSampler.getBufferedSpans(), Math::max);
+                    }
+                    transaction.withOutcome(i % 10 == 0 ? Outcome.FAILURE : Outcome.SUCCESS).end(30);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(maxBuffered.get()).isPositive().isLessThanOrEqualTo(BUFFER_SIZE);
+        assertThat(tailSampler.getBufferedSpans()).isZero();
+        assertThat(reporter.getSpans()).allMatch(span -> span.getTraceContext().isSampled());
+    }
+
+    private Transaction startTransaction() {
+        return tracer.startRootTransaction(tracer.getSampler(), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+    }
+
+    private long getDecisions(String decision, String reason) {
+        Labels labels = Labels.Mutable.of("decision", decision).add("reason", reason);
+        long[] count = new long[1];
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            MetricSet metricSet = metricSets.get(labels);
+            if (metricSet != null) {
+                Counter counter = metricSet.getCounters().get(TailSampler.DECISIONS_METRIC);
+                count[0] = counter != null ? counter.get() : 0;
+            }
+        });
+        return count[0];
+    }
+}
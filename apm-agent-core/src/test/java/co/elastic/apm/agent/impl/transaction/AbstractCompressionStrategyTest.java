@@ -29,6 +29,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.nio.CharBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.function.Consumer;
@@ -436,6 +437,29 @@ abstract class AbstractCompressionStrategyTest {
         assertThat(spanCount.getDropped().get()).isEqualTo(1);
     }
 
+    @Test
+    void testStatementOfBufferedSpanIsMovedOffHeap() {
+        doReturn(true).when(tracer.getConfig(SpanConfiguration.class)).isSpanCompressionBufferOffHeap();
+        String statement = "{\"query\":{\"match\":{\"name\":\"J\u00fcrgen \ud83d\ude00\"}}}";
+        try {
+            runInTransactionScope(t -> {
+                Span span = startExitSpan(t);
+                span.getContext().getDb().withStatementBuffer().append(statement).flip();
+                span.end();
+                startExitSpan(t).withSubtype("another_subtype").end();
+            });
+        } finally {
+            doReturn(false).when(tracer.getConfig(SpanConfiguration.class)).isSpanCompressionBufferOffHeap();
+        }
+
+        List<Span> reportedSpans = reporter.getSpans();
+        assertThat(reportedSpans).hasSize(2);
+        CharBuffer statementBuffer = reportedSpans.get(0).getContext().getDb().getStatementBuffer();
+        assertThat((CharSequence) statementBuffer).isNotNull();
+        assertThat(statementBuffer.toString()).isEqualTo(statement);
+        assertThat((CharSequence) reportedSpans.get(1).getContext().getDb().getStatementBuffer()).isNull();
+    }
+
     protected static void runInTransactionScope(Consumer<AbstractSpan<?>> r) {
         Transaction transaction = tracer.startRootTransaction(null).withName("Some Transaction");
         try {
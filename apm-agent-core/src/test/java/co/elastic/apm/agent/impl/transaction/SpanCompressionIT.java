@@ -31,6 +31,7 @@ import org.junit.jupiter.api.RepeatedTest;
 
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
@@ -111,6 +112,56 @@ public class SpanCompressionIT {
     }
 
 
+    @RepeatedTest(3)
+    void testCompressionOfParallelFanOut() throws Exception {
+        int threads = 8;
+        int transactions = 100;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService fanOutExecutor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < transactions; i++) {
+                Transaction transaction = tracer.startRootTransaction(null).withName("Some Transaction");
+                try {
+                    CompletableFuture<?>[] tasks = new CompletableFuture<?>[threads];
+                    for (int j = 0; j < threads; ++j) {
+                        long startTimestamp = j;
+                        tasks[j] = CompletableFuture.runAsync(() -> {
+                            Span span = transaction.createSpan().asExit().withName("Some Other Name").withType("db").withSubtype("postgresql");
+                            span.getContext().getDestination().withAddress("127.0.0.1").withPort(5432);
+                            span.setStartTimestamp(startTimestamp);
+                            try {
+                                // all spans of the fan-out end at the same time
+                                barrier.await();
+                            } catch (Exception e) {
+                                throw new IllegalStateException(e);
+                            }
+                            span.end(1000L + startTimestamp);
+                        }, fanOutExecutor);
+                    }
+                    CompletableFuture.allOf(tasks).join();
+                } finally {
+                    transaction.end();
+                }
+            }
+        } finally {
+            ExecutorUtils.shutdownAndWaitTermination(fanOutExecutor);
+        }
+
+        List<Span> reportedSpans = reporter.getSpans();
+        int endedSpans = threads * transactions;
+        assertThat(reportedSpans.stream().mapToInt(s -> s.isComposite() ? s.getComposite().getCount() : 1).sum()).isEqualTo(endedSpans);
+        // a span only fails to update the compression buffer if a sibling has been buffered concurrently,
+        // it is then compressed into that sibling on the next attempt,
+        // so all spans of a transaction are compressed into one composite span
+        assertThat(reportedSpans).hasSize(transactions)
+            .allSatisfy(span -> {
+                assertThat(span.isComposite()).isTrue();
+                assertThat(span.getComposite().getCount()).isEqualTo(threads);
+            });
+        assertThat(reporter.getTransactions().stream().mapToInt(t -> t.getSpanCount().getDropped().get()).sum())
+            .isEqualTo(endedSpans - transactions);
+    }
+
     private static void runInTransactionScope(BiFunction<AbstractSpan<?>, Integer, Runnable> r) {
         Transaction transaction = tracer.startRootTransaction(null).withName("Some Transaction");
         try {
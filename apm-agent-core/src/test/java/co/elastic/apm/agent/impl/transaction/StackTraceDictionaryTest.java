@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceDictionaryTest {
+
+    private final StackTraceDictionary dictionary = new StackTraceDictionary(3, 3);
+
+    @Test
+    void testInternFrames() {
+        StackFrame frame = StackFrame.of("foo.Bar", "baz");
+        assertThat(dictionary.intern(frame)).isSameAs(frame);
+        assertThat(dictionary.intern(StackFrame.of("foo.Bar", "baz"))).isSameAs(frame);
+        assertThat(dictionary.getFrameCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testStackTracesShareCallers() {
+        StackTraceDictionary.InternedStackTrace main = dictionary.intern(StackFrame.of("foo.Main", "main"), null);
+        StackTraceDictionary.InternedStackTrace a = dictionary.intern(StackFrame.of("foo.Bar", "a"), main);
+        StackTraceDictionary.InternedStackTrace b = dictionary.intern(StackFrame.of("foo.Bar", "b"), dictionary.intern(StackFrame.of("foo.Main", "main"), null));
+
+        assertThat(b.getCaller()).isSameAs(a.getCaller()).isSameAs(main);
+        assertThat(dictionary.intern(StackFrame.of("foo.Bar", "a"), main)).isSameAs(a);
+        assertThat(dictionary.getStackTraceCount()).isEqualTo(3);
+
+        assertThat(b).hasSize(2);
+        assertThat(b).containsExactly(StackFrame.of("foo.Bar", "b"), StackFrame.of("foo.Main", "main"));
+        assertThat(b.get(1)).isSameAs(main.getFrame());
+        assertThat(b).isEqualTo(Arrays.asList(StackFrame.of("foo.Bar", "b"), StackFrame.of("foo.Main", "main")));
+    }
+
+    @Test
+    void testBounded() {
+        StackTraceDictionary.InternedStackTrace stackTrace = null;
+        for (int i = 0; i < 5; i++) {
+            stackTrace = dictionary.intern(StackFrame.of("foo.Bar", "method" + i), stackTrace);
+        }
+        assertThat(dictionary.isFull()).isTrue();
+        assertThat(dictionary.getFrameCount()).isEqualTo(3);
+        assertThat(dictionary.getStackTraceCount()).isEqualTo(3);
+        // stack traces are still created when the dictionary is full, they are just not interned anymore
+        assertThat(stackTrace).hasSize(5);
+        assertThat(stackTrace.getFrame().getMethodName()).isEqualTo("method4");
+
+        dictionary.clear();
+        assertThat(dictionary.isFull()).isFalse();
+        assertThat(stackTrace).hasSize(5);
+    }
+}
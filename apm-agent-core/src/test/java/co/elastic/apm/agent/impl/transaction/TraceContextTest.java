@@ -501,6 +501,7 @@ class TraceContextTest {
         final TraceContext traceContext = TraceContext.with64BitId(tracer);
 
         Sampler sampler = mock(Sampler.class);
+        doReturn(sampler).when(sampler).getDecisionSampler();
         doReturn(true).when(sampler).isSampled(any(Id.class));
         doReturn(sampleRate).when(sampler).getSampleRate();
         doReturn(TraceState.getHeaderValue(sampleRate)).when(sampler).getTraceStateHeader();
@@ -607,6 +608,7 @@ class TraceContextTest {
     @Test
     void testRootContextSampleRateFromSampler() {
         Sampler sampler = mock(Sampler.class);
+        doReturn(sampler).when(sampler).getDecisionSampler();
         doReturn(true).when(sampler).isSampled(any(Id.class));
         doReturn(0.42d).when(sampler).getSampleRate();
 
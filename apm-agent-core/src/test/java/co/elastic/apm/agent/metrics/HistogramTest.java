@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+class HistogramTest {
+
+    @Test
+    void testSmallValuesAreExact() {
+        for (int i = 0; i < Histogram.SUB_BUCKET_COUNT; i++) {
+            assertThat(Histogram.getBucketIndex(i)).isEqualTo(i);
+            assertThat(Histogram.getBucketValue(i)).isEqualTo(i);
+        }
+        assertThat(Histogram.getBucketIndex(-1)).isEqualTo(0);
+    }
+
+    @Test
+    void testBucketLayoutIsContiguous() {
+        for (int i = 1; i < Histogram.getBucketCount(); i++) {
+            assertThat(Histogram.getBucketLowerBound(i))
+                .isEqualTo(Histogram.getBucketLowerBound(i - 1) + Histogram.getBucketWidth(i - 1));
+            assertThat(Histogram.getBucketIndex(Histogram.getBucketLowerBound(i))).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(Histogram.getBucketLowerBound(i) - 1)).isEqualTo(i - 1);
+        }
+        int lastBucket = Histogram.getBucketCount() - 1;
+        assertThat(Histogram.getBucketLowerBound(lastBucket) + Histogram.getBucketWidth(lastBucket) - 1).isEqualTo(Histogram.MAX_TRACKABLE_VALUE);
+        assertThat(Histogram.getBucketIndex(Histogram.MAX_TRACKABLE_VALUE)).isEqualTo(lastBucket);
+        assertThat(Histogram.getBucketIndex(Long.MAX_VALUE)).isEqualTo(lastBucket);
+    }
+
+    @Test
+    void testRelativeError() {
+        for (int i = 0; i < 10_000; i++) {
+            long value = ThreadLocalRandom.current().nextLong(Histogram.MAX_TRACKABLE_VALUE);
+            assertThat(Histogram.getBucketValue(Histogram.getBucketIndex(value))).isCloseTo(value, withinPercentage(100.0 / Histogram.SUB_BUCKET_COUNT));
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.update(i * 1000);
+        }
+        assertThat(histogram.hasContent()).isTrue();
+        assertThat(histogram.getTotalCount()).isEqualTo(1000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(500_000, withinPercentage(100.0 / Histogram.SUB_BUCKET_COUNT));
+        assertThat(histogram.getValueAtPercentile(95)).isCloseTo(950_000, withinPercentage(100.0 / Histogram.SUB_BUCKET_COUNT));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(990_000, withinPercentage(100.0 / Histogram.SUB_BUCKET_COUNT));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(1_000_000, withinPercentage(100.0 / Histogram.SUB_BUCKET_COUNT));
+
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            assertThat(histogram.getCount(i)).isZero();
+        }
+    }
+}
@@ -121,6 +121,29 @@ class LabelsTest {
         assertNotEqual(l1, l2);
     }
 
+    @Test
+    void testCachedHashCodeIsInvalidatedOnChange() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar").transactionName("baz");
+        int hashCode = labels.hashCode();
+
+        labels.spanType("db");
+        assertEqualsHashCode(labels, Labels.Mutable.of("foo", "bar").transactionName("baz").spanType("db"));
+        labels.spanType(null);
+        assertThat(labels.hashCode()).isEqualTo(hashCode);
+
+        labels.add("qux", "quux");
+        assertEqualsHashCode(labels, Labels.Mutable.of("foo", "bar").transactionName("baz").add("qux", "quux"));
+        labels.serviceName("service").serviceVersion("1.0").transactionType("request");
+        assertEqualsHashCode(labels, Labels.Mutable.of("foo", "bar").transactionName("baz")
+            .serviceName("service").serviceVersion("1.0").transactionType("request").add("qux", "quux"));
+        labels.transactionName("other");
+        assertEqualsHashCode(labels, Labels.Mutable.of("foo", "bar").transactionName("other")
+            .serviceName("service").serviceVersion("1.0").transactionType("request").add("qux", "quux"));
+
+        labels.resetState();
+        assertEqualsHashCode(labels, Labels.EMPTY);
+    }
+
     private void assertNotEqual(Labels l1, Labels l2) {
         assertThat(l1.hashCode()).isNotEqualTo(l2.hashCode());
         assertThat(l1).isNotEqualTo(l2);
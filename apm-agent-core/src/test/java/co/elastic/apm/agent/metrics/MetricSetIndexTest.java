@@ -0,0 +1,78 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetricSetIndexTest {
+
+    private final MetricSetIndex index = new MetricSetIndex(100);
+
+    @Test
+    void testLookupWithMutableLabels() {
+        for (int i = 0; i < 100; i++) {
+            add(Labels.Mutable.of().transactionName("transaction-" + i).spanType("db"));
+        }
+        assertThat(index.size()).isEqualTo(100);
+
+        Labels.Mutable labels = Labels.Mutable.of();
+        for (int i = 0; i < 100; i++) {
+            labels.resetState();
+            labels.transactionName(new StringBuilder("transaction-").append(i)).spanType("db");
+            MetricSet metricSet = index.get(labels);
+            assertThat(metricSet).isNotNull();
+            assertThat(metricSet.getLabels()).isEqualTo(labels);
+            // served from the index the second time
+            assertThat(index.get(labels)).isSameAs(metricSet);
+        }
+        assertThat(index.get(labels.spanType("app"))).isNull();
+    }
+
+    @Test
+    void testHashCollisions() {
+        // "Aa" and "BB" have the same hash code
+        MetricSet aa = add(Labels.Mutable.of("key", "Aa"));
+        MetricSet bb = add(Labels.Mutable.of("key", "BB"));
+        assertThat(Labels.Mutable.of("key", "Aa").hashCode()).isEqualTo(Labels.Mutable.of("key", "BB").hashCode());
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(index.get(Labels.Mutable.of("key", "Aa"))).isSameAs(aa);
+            assertThat(index.get(Labels.Mutable.of("key", "BB"))).isSameAs(bb);
+            assertThat(index.get(Labels.Mutable.of("key", "C#"))).isNull();
+        }
+    }
+
+    @Test
+    void testPutIfAbsent() {
+        Labels.Immutable labels = Labels.Mutable.of("foo", "bar").immutableCopy();
+        MetricSet metricSet = new MetricSet(labels);
+        assertThat(index.putIfAbsent(labels, metricSet)).isNull();
+        assertThat(index.putIfAbsent(labels, new MetricSet(labels))).isSameAs(metricSet);
+        assertThat(index.getMetricSets()).containsEntry(labels, metricSet);
+    }
+
+    private MetricSet add(Labels labels) {
+        Labels.Immutable immutableLabels = labels.immutableCopy();
+        MetricSet metricSet = new MetricSet(immutableLabels);
+        assertThat(index.putIfAbsent(immutableLabels, metricSet)).isNull();
+        return metricSet;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedCellsTest {
+
+    @Test
+    void testUncontendedUpdatesDontCreateCells() {
+        StripedCells cells = new StripedCells();
+        for (int i = 0; i < 1000; i++) {
+            cells.add(3, 1);
+        }
+        assertThat(cells.getCellCount()).isZero();
+        assertThat(cells.sumValue()).isEqualTo(3000);
+        assertThat(cells.sumCount()).isEqualTo(1000);
+
+        cells.reset();
+        assertThat(cells.sumValue()).isZero();
+        assertThat(cells.sumCount()).isZero();
+    }
+
+    @Test
+    void testConcurrentUpdates() throws Exception {
+        StripedCells cells = new StripedCells();
+        int threadCount = 8;
+        int iterations = 100_000;
+        CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    barrier.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < iterations; i++) {
+                    cells.add(2, 1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(cells.sumValue()).isEqualTo(2L * threadCount * iterations);
+        assertThat(cells.sumCount()).isEqualTo((long) threadCount * iterations);
+        assertThat(cells.getCellCount()).isLessThanOrEqualTo(Math.max(2, StripedCells.getMaxCells()));
+
+        int cellCount = cells.getCellCount();
+        cells.reset();
+        assertThat(cells.sumValue()).isZero();
+        assertThat(cells.sumCount()).isZero();
+        assertThat(cells.getCellCount()).isEqualTo(cellCount);
+    }
+
+    @Test
+    void testTimerAndCounter() {
+        Timer timer = new Timer();
+        timer.update(42, 2);
+        timer.update(8);
+        assertThat(timer.getTotalTimeUs()).isEqualTo(50);
+        assertThat(timer.getCount()).isEqualTo(3);
+        assertThat(timer.hasContent()).isTrue();
+        timer.resetState();
+        assertThat(timer.hasContent()).isFalse();
+
+        Counter counter = new Counter();
+        counter.add(5);
+        counter.add(2);
+        assertThat(counter.get()).isEqualTo(7);
+        counter.resetState();
+        assertThat(counter.get()).isZero();
+    }
+}
@@ -84,19 +84,19 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "transaction")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(2));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(2));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "span")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(3));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(3));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "error")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(4));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(4));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "metricset")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(5));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(5));
         });
 
     }
@@ -116,7 +116,7 @@ public class AgentReporterMetricsTest {
         reportAndCheckMetrics(metricSets -> {
             assertThat(metricSets.get(Labels.Mutable.of("reason", "queue")).getCounters())
                 .extractingByKey("agent.events.dropped")
-                .satisfies(counter -> assertThat(counter).hasValue(14));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(14));
         });
     }
 
@@ -147,7 +147,7 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("reason", "error")).getCounters())
                 .extractingByKey("agent.events.dropped")
                 //14 events dropped after dequeue, 140 sent, server responded with 100 accepted
-                .satisfies(counter -> assertThat(counter).hasValue(14 + 140 - 100));
+                .satisfies(counter -> assertThat(counter.get()).isEqualTo(14 + 140 - 100));
         });
     }
 
@@ -169,20 +169,37 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("success", "true")).getCounters())
                 .hasSize(2)
                 .satisfies(counters -> {
-                    assertThat(counters.get("agent.events.requests.count")).hasValue(3);
-                    assertThat(counters.get("agent.events.requests.bytes")).hasValue(70);
+                    assertThat(counters.get("agent.events.requests.count").get()).isEqualTo(3);
+                    assertThat(counters.get("agent.events.requests.bytes").get()).isEqualTo(70);
                 });
 
             assertThat(metricSets.get(Labels.Mutable.of("success", "false")).getCounters())
                 .hasSize(2)
                 .satisfies(counters -> {
-                    assertThat(counters.get("agent.events.requests.count")).hasValue(2);
-                    assertThat(counters.get("agent.events.requests.bytes")).hasValue(300);
+                    assertThat(counters.get("agent.events.requests.count").get()).isEqualTo(2);
+                    assertThat(counters.get("agent.events.requests.bytes").get()).isEqualTo(300);
                 });
         });
     }
 
 
+    @Test
+    public void checkSpillMetrics() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+
+        reporterMetrics.spillSegmentWritten(10, 100);
+        reporterMetrics.spillSegmentWritten(20, 200);
+        reporterMetrics.spillSegmentReplayed(10, 100);
+        reporterMetrics.spillSegmentEvicted(20, 200);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("operation", "spilled")).getCounters().get("agent.events.spill.bytes").get()).isEqualTo(300);
+            assertThat(metricSets.get(Labels.Mutable.of("operation", "replayed")).getCounters().get("agent.events.spill.bytes").get()).isEqualTo(100);
+            assertThat(metricSets.get(Labels.Mutable.of("operation", "evicted")).getCounters().get("agent.events.spill.bytes").get()).isEqualTo(200);
+            assertThat(metricSets.get(Labels.Mutable.of("reason", "evicted")).getCounters().get("agent.events.dropped").get()).isEqualTo(20);
+        });
+    }
     @Test
     public void checkQueueUtilizationCorrectlyReset() {
         doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
@@ -52,6 +52,14 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
         return wrappedPool;
     }
 
+    @Override
+    public <T extends Recyclable> ObjectPool<T> createThreadLocalRecyclableObjectPool(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        ObjectPool<T> pool = super.createThreadLocalRecyclableObjectPool(maxCapacity, magazineSize, allocator);
+        BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
+        createdPools.add(wrappedPool);
+        return wrappedPool;
+    }
+
     public List<BookkeeperObjectPool<?>> getCreatedPools() {
         return createdPools;
     }
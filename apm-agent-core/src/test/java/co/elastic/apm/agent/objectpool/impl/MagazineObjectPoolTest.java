@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MagazineObjectPoolTest {
+
+    private static final int MAGAZINE_SIZE = 4;
+
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    @Test
+    void testRecycle() {
+        MagazineObjectPool<TestRecyclable> pool = createObjectPool(16);
+        TestRecyclable instance = pool.createInstance();
+        instance.setState(1);
+        pool.recycle(instance);
+
+        assertThat(instance.getState()).isEqualTo(0);
+        assertThat(pool.getObjectsInPool()).isEqualTo(1);
+        assertThat(pool.createInstance()).isSameAs(instance);
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testMagazinesAreHandedOverToCreatingThread() throws Exception {
+        MagazineObjectPool<TestRecyclable> pool = createObjectPool(16);
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < MAGAZINE_SIZE * 3; i++) {
+            instances.add(pool.createInstance());
+        }
+        Thread recycler = new Thread(() -> instances.forEach(pool::recycle));
+        recycler.start();
+        recycler.join();
+
+        // the recycling thread keeps two magazines and hands the third one over to the depot
+        assertThat(pool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+        for (int i = 0; i < MAGAZINE_SIZE; i++) {
+            assertThat(instances).containsOnlyOnce(pool.createInstance());
+        }
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+        assertThat(instances).doesNotContain(pool.createInstance());
+        assertThat(pool.getGarbageCreated()).isEqualTo(0);
+    }
+
+    @Test
+    void testDepotCapacity() {
+        MagazineObjectPool<TestRecyclable> pool = createObjectPool(MAGAZINE_SIZE * 2);
+        // two magazines cached by the current thread and two magazines in the depot
+        int capacity = MAGAZINE_SIZE * 4;
+        for (int i = 0; i < capacity + 1; i++) {
+            pool.recycle(new TestRecyclable());
+        }
+
+        assertThat(pool.getObjectsInPool()).isEqualTo(capacity);
+        assertThat(pool.getGarbageCreated()).isEqualTo(1);
+
+        pool.clear();
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testProducerAndConsumerOnDifferentThreads() throws Exception {
+        MagazineObjectPool<TestRecyclable> pool = createObjectPool(64);
+        BlockingQueue<TestRecyclable> handOff = new ArrayBlockingQueue<>(32);
+        Set<TestRecyclable> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        AtomicInteger duplicates = new AtomicInteger();
+        int objects = 100_000;
+
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < objects; i++) {
+                    TestRecyclable instance = handOff.take();
+                    inUse.remove(instance);
+                    pool.recycle(instance);
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < objects; i++) {
+            TestRecyclable instance = pool.createInstance();
+            if (!inUse.add(instance)) {
+                duplicates.incrementAndGet();
+            }
+            handOff.put(instance);
+        }
+        consumer.join();
+
+        assertThat(duplicates.get()).isEqualTo(0);
+        // the objects are reused although they are created and recycled on different threads
+        assertThat(allocated.get()).isLessThan(objects / 10);
+    }
+
+    private MagazineObjectPool<TestRecyclable> createObjectPool(int maxCapacity) {
+        return MagazineObjectPool.ofRecyclable(maxCapacity, MAGAZINE_SIZE, () -> {
+            allocated.incrementAndGet();
+            return new TestRecyclable();
+        });
+    }
+}
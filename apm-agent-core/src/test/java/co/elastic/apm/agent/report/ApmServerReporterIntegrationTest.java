@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataMock;
@@ -31,6 +32,7 @@ import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import io.undertow.Undertow;
 import io.undertow.server.HttpHandler;
@@ -86,6 +88,8 @@ class ApmServerReporterIntegrationTest {
     private ReporterMonitor mockMonitor;
 
     private IntakeV2ReportingEventHandler v2handler;
+    private ApmServerClient apmServerClient;
+    private DslJsonSerializer payloadSerializer;
 
     private final AtomicReference<String> token = new AtomicReference<>();
     private final AtomicReference<TimeDuration> timeout = new AtomicReference<>();
@@ -136,6 +140,7 @@ class ApmServerReporterIntegrationTest {
         });
 
         ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        SerializationConstants.init(config.getConfig(CoreConfiguration.class));
         reporterConfiguration = config.getConfig(ReporterConfiguration.class);
 
         // mockito mocking does not seem to reliably work here
@@ -149,17 +154,20 @@ class ApmServerReporterIntegrationTest {
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final Service service = new Service();
         final ProcessInfo title = new ProcessInfo("title");
-        final ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(config);
-        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient = new ApmServerClient(config);
         apmServerClient.start();
-        DslJsonSerializer payloadSerializer = new DslJsonSerializer(
+        payloadSerializer = new DslJsonSerializer(
             mock(StacktraceConfiguration.class),
             apmServerClient,
             MetaDataMock.create(title, service, system, null, Collections.emptyMap(), null)
         );
+        startReporter();
+    }
+
+    private void startReporter() {
         v2handler = new IntakeV2ReportingEventHandler(
             reporterConfiguration,
-            processorEventHandler,
+            ProcessorEventHandler.loadProcessors(tracer.getConfigurationRegistry()),
             payloadSerializer,
             apmServerClient);
         mockMonitor = Mockito.mock(ReporterMonitor.class);
@@ -194,6 +202,49 @@ class ApmServerReporterIntegrationTest {
         verify(mockMonitor).requestFinished(eq(payload), eq(1L), gt(0L), eq(true));
     }
 
+    @Test
+    void testReportTransactionsAndSpans_withShardedQueue() {
+        reporter.close();
+        doReturn(4).when(reporterConfiguration).getQueueShards();
+        startReporter();
+
+        for (int i = 0; i < 8; i++) {
+            reporter.report(new Transaction(tracer));
+            reporter.report(new Span(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(16);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+
+        verify(mockMonitor, times(8)).eventCreated(eq(ReportingEvent.ReportingEventType.TRANSACTION), eq(64L), anyLong());
+        verify(mockMonitor, times(8)).eventDequeued(eq(ReportingEvent.ReportingEventType.SPAN), eq(64L), anyLong());
+    }
+
+    @Test
+    void testReportTransactionsAndSpans_withNioTransport() {
+        reporter.close();
+        doReturn(ReporterConfiguration.HttpTransportType.NIO).when(reporterConfiguration).getHttpTransport();
+        apmServerClient = new ApmServerClient(tracer.getConfigurationRegistry());
+        apmServerClient.start();
+        startReporter();
+
+        try {
+            for (int i = 0; i < 2; i++) {
+                reporter.report(new Transaction(tracer));
+                reporter.report(new Span(tracer));
+                assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+            }
+            assertThat(reporter.getDropped()).isEqualTo(0);
+            assertThat(reporter.getReported()).isEqualTo(4);
+            assertThat(receivedIntakeApiCalls.get()).isEqualTo(2);
+            // metadata, transaction and span per request
+            assertThat(receivedEvents.get()).isEqualTo(6);
+        } finally {
+            apmServerClient.close();
+        }
+    }
+
     @Test
     void testReportTransaction_withFlushRequest() {
         reporter.report(new Transaction(tracer));
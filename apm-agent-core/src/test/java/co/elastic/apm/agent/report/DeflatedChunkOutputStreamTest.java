@@ -0,0 +1,153 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeflatedChunkOutputStreamTest {
+
+    @Test
+    void testConcatenatedChunksInflateToOriginal() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DeflatedChunkOutputStream os = new DeflatedChunkOutputStream(body, new Deflater(Deflater.BEST_SPEED, true));
+        StringBuilder expected = new StringBuilder();
+
+        write(os, "{\"metadata\":{}}\n", expected);
+        for (int i = 0; i < 10; i++) {
+            String chunk = "{\"span\":{\"id\":\"" + i + "\"}}\n{\"span\":{\"id\":\"" + i + "\"}}\n";
+            writeChunk(os, chunk);
+            expected.append(chunk);
+            if (i % 3 == 0) {
+                write(os, "{\"log\":{}}\n", expected);
+            }
+        }
+        os.close();
+
+        assertThat(inflate(body.toByteArray())).isEqualTo(expected.toString());
+    }
+
+    @Test
+    void testDictionaryPrimesFollowingChunk() throws IOException {
+        byte[] metaData = "{\"metadata\":{\"service\":{\"name\":\"my-service\"}}}\n".getBytes(StandardCharsets.UTF_8);
+        CompressionDictionary dictionary = new CompressionDictionary();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DeflatedChunkOutputStream os = new DeflatedChunkOutputStream(body, new Deflater(Deflater.BEST_SPEED, true));
+        StringBuilder expected = new StringBuilder(new String(metaData, StandardCharsets.UTF_8));
+
+        os.writeDictionary(dictionary.update(metaData, metaData.length));
+        CompressionDictionary.State state = os.takeDictionary();
+        assertThat(state).isNotNull();
+        assertThat(os.takeDictionary()).isNull();
+        String chunk = "{\"span\":{\"service\":{\"name\":\"my-service\"}}}\n";
+        writeChunk(os, chunk, state);
+        expected.append(chunk);
+        write(os, "{\"log\":{}}\n", expected);
+        writeChunk(os, chunk, null);
+        expected.append(chunk);
+        os.close();
+
+        assertThat(inflate(body.toByteArray())).isEqualTo(expected.toString());
+    }
+
+    @Test
+    void testDictionaryPrimesFollowingWrites() throws IOException {
+        byte[] metaData = "{\"metadata\":{\"service\":{\"name\":\"my-service\"}}}\n".getBytes(StandardCharsets.UTF_8);
+        CompressionDictionary dictionary = new CompressionDictionary();
+        CompressionDictionary.State state = dictionary.update(metaData, metaData.length);
+        assertThat(dictionary.update(metaData.clone(), metaData.length)).isSameAs(state);
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DeflatedChunkOutputStream os = new DeflatedChunkOutputStream(body, new Deflater(Deflater.BEST_SPEED, true));
+            StringBuilder expected = new StringBuilder(new String(metaData, StandardCharsets.UTF_8));
+            os.writeDictionary(state);
+            write(os, "{\"span\":{\"service\":{\"name\":\"my-service\"}}}\n", expected);
+            assertThat(os.takeDictionary()).isNull();
+            writeChunk(os, "{\"log\":{}}\n", null);
+            expected.append("{\"log\":{}}\n");
+            write(os, "{\"span\":{\"service\":{\"name\":\"my-service\"}}}\n", expected);
+            os.close();
+
+            assertThat(inflate(body.toByteArray())).isEqualTo(expected.toString());
+        }
+    }
+
+    @Test
+    void testCombineChecksums() {
+        byte[] first = "hello ".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "world".getBytes(StandardCharsets.UTF_8);
+        Adler32 combined = new Adler32();
+        combined.update(first);
+        combined.update(second);
+
+        assertThat(DeflatedChunkOutputStream.combine(checksum(first), checksum(second), second.length)).isEqualTo(combined.getValue());
+        assertThat(DeflatedChunkOutputStream.combine(1, checksum(second), second.length)).isEqualTo(checksum(second));
+    }
+
+    private static void write(DeflatedChunkOutputStream os, String s, StringBuilder expected) throws IOException {
+        os.write(s.getBytes(StandardCharsets.UTF_8));
+        expected.append(s);
+    }
+
+    private static String inflate(byte[] body) throws IOException {
+        // the InflaterInputStream verifies the Adler-32 checksum of the trailer
+        InflaterInputStream is = new InflaterInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int read = is.read(buffer); read != -1; read = is.read(buffer)) {
+            inflated.write(buffer, 0, read);
+        }
+        return inflated.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void writeChunk(DeflatedChunkOutputStream os, String s) throws IOException {
+        writeChunk(os, s, null);
+    }
+
+    private static void writeChunk(DeflatedChunkOutputStream os, String s, @Nullable CompressionDictionary.State dictionary) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        if (dictionary != null) {
+            dictionary.setDictionary(deflater);
+        }
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(chunk, deflater, true);
+        deflaterOutputStream.write(bytes);
+        deflaterOutputStream.flush();
+        os.writeDeflatedChunk(chunk.toByteArray(), 0, chunk.size(), checksum(bytes), bytes.length);
+    }
+
+    private static long checksum(byte[] bytes) {
+        Adler32 adler32 = new Adler32();
+        adler32.update(bytes);
+        return adler32.getValue();
+    }
+}
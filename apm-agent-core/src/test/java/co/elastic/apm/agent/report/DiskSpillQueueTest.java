@@ -0,0 +1,114 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DiskSpillQueueTest {
+
+    private DiskSpillQueue queue;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        queue = new DiskSpillQueue(16);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        queue.close();
+    }
+
+    @Test
+    void testFifo() throws IOException {
+        add("foo", 1);
+        add("barbaz", 2);
+
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.getUsedBytes()).isEqualTo(9);
+        assertThat(readOldest()).isEqualTo("foo");
+        assertThat(queue.removeOldest().getEventCount()).isEqualTo(1);
+        assertThat(readOldest()).isEqualTo("barbaz");
+        assertThat(queue.removeOldest().getEventCount()).isEqualTo(2);
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.peek()).isNull();
+    }
+
+    @Test
+    void testWrapAround() throws IOException {
+        add("0123456789", 1);
+        queue.removeOldest();
+
+        // the segment starts at offset 10 and wraps around the end of the file
+        assertThat(queue.hasSpaceFor(12)).isTrue();
+        add("abcdefghijkl", 1);
+
+        assertThat(readOldest()).isEqualTo("abcdefghijkl");
+    }
+
+    @Test
+    void testEvictOldestWhenFull() throws IOException {
+        add("0123456789", 1);
+
+        assertThat(queue.hasSpaceFor(8)).isFalse();
+        assertThatThrownBy(() -> add("abcdefgh", 1)).isInstanceOf(IllegalStateException.class);
+
+        queue.removeOldest();
+        add("abcdefgh", 1);
+        assertThat(readOldest()).isEqualTo("abcdefgh");
+        assertThat(queue.canHold(16)).isTrue();
+        assertThat(queue.canHold(17)).isFalse();
+    }
+
+    @Test
+    void testFileDeletedOnClose() throws IOException {
+        Path file = queue.getFile();
+
+        queue.close();
+
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    @Test
+    void testRejectsCapacityThatDoesNotFitAnInt() {
+        assertThatThrownBy(() -> new DiskSpillQueue(DiskSpillQueue.MAX_CAPACITY + 1L)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new DiskSpillQueue(Integer.MAX_VALUE + 1L)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private void add(String data, int eventCount) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        queue.add(bytes, bytes.length, eventCount);
+    }
+
+    private String readOldest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        queue.writeTo(queue.peek(), os);
+        return os.toString(StandardCharsets.UTF_8);
+    }
+}
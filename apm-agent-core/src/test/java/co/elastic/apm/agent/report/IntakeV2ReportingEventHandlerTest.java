@@ -22,6 +22,7 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.common.util.Version;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataMock;
 import co.elastic.apm.agent.impl.metadata.ProcessInfo;
@@ -32,6 +33,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -39,10 +41,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -52,12 +57,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.InflaterInputStream;
 
 import static co.elastic.apm.agent.report.IntakeV2ReportingEventHandler.INTAKE_V2_URL;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
@@ -66,7 +73,10 @@ import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 class IntakeV2ReportingEventHandlerTest {
@@ -105,6 +115,7 @@ class IntakeV2ReportingEventHandlerTest {
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
         final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         final CoreConfiguration coreConfiguration = configurationRegistry.getConfig(CoreConfiguration.class);
+        SerializationConstants.init(coreConfiguration);
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final ProcessInfo title = new ProcessInfo("title");
         final Service service = new Service();
@@ -186,6 +197,118 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(5).get("metrics")).isNotNull();
     }
 
+    @Test
+    void testReportWithSerializationPipeline() throws Exception {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        doReturn(2).when(reporterConfiguration).getSerializationThreads();
+        IntakeV2ReportingEventHandler pipelinedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+        try {
+            reportingEventHandler = pipelinedReportingEventHandler;
+            int spans = SerializationPipeline.MAX_BATCH_SIZE * 5;
+            reportTransaction(pipelinedReportingEventHandler);
+            ElasticApmTracer tracer = MockTracer.create();
+            for (int i = 0; i < spans; i++) {
+                final ReportingEvent reportingEvent = new ReportingEvent();
+                reportingEvent.setSpan(new Span(tracer));
+                pipelinedReportingEventHandler.onEvent(reportingEvent, -1, i == spans - 1);
+            }
+            reportError();
+            reportLog();
+            reportMetrics();
+            pipelinedReportingEventHandler.endRequest();
+
+            final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+            assertThat(ndJsonNodes).hasSize(5 + spans);
+            assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+            assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+            for (int i = 0; i < spans; i++) {
+                assertThat(ndJsonNodes.get(2 + i).get("span")).isNotNull();
+            }
+            assertThat(ndJsonNodes.get(2 + spans).get("error")).isNotNull();
+            assertThat(ndJsonNodes.get(3 + spans).get("log")).isNotNull();
+            assertThat(ndJsonNodes.get(4 + spans).get("metrics")).isNotNull();
+            assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(4 + spans);
+        } finally {
+            pipelinedReportingEventHandler.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4, 16})
+    void testCompressionDictionary(int eventsPerBatch) throws Exception {
+        byte[] body = reportCompressed(eventsPerBatch, false);
+        byte[] primedBody = reportCompressed(eventsPerBatch, true);
+
+        // a regular deflate stream that can be decoded without knowing the dictionary
+        String ndJson = inflate(body);
+        assertThat(inflate(primedBody)).isEqualTo(ndJson);
+        List<JsonNode> ndJsonNodes = ndJson.lines().map(IntakeV2ReportingEventHandlerTest::getReadTree).collect(Collectors.toList());
+        assertThat(ndJsonNodes).hasSize(13);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(12).get("error")).isNotNull();
+        // the first chunk refers to the metadata, which is not possible without a dictionary as it is compressed on another thread
+        // for this payload, that saves between 5 and 11 bytes depending on the batch size
+        assertThat(primedBody.length).isLessThanOrEqualTo(body.length - 5);
+    }
+
+    private byte[] reportCompressed(int eventsPerBatch, boolean compressionDictionary) throws Exception {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        doReturn(2).when(reporterConfiguration).getSerializationThreads();
+        doReturn(compressionDictionary).when(reporterConfiguration).isCompressionDictionary();
+        ApmServerClient compressingApmServerClient = new ApmServerClient(configurationRegistry);
+        // requests to localhost are not compressed
+        compressingApmServerClient.start(List.of(new URL("http://[::ffff:127.0.0.1]:" + mockApmServer1.port())));
+        assertThat(compressingApmServerClient.getApmServerVersion(10, TimeUnit.SECONDS)).isNotNull();
+        IntakeV2ReportingEventHandler compressingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                compressingApmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            compressingApmServerClient);
+        try {
+            mockApmServer1.resetRequests();
+            ElasticApmTracer tracer = MockTracer.create();
+            int events = 12;
+            for (int i = 0; i < events; i++) {
+                ReportingEvent reportingEvent = new ReportingEvent();
+                if (i == 0) {
+                    reportingEvent.setTransaction(new Transaction(tracer));
+                } else if (i < events - 1) {
+                    reportingEvent.setSpan(new Span(tracer));
+                } else {
+                    reportingEvent.setError(new ErrorCapture(tracer));
+                }
+                compressingReportingEventHandler.onEvent(reportingEvent, -1, (i + 1) % eventsPerBatch == 0 || i == events - 1);
+            }
+            compressingReportingEventHandler.endRequest();
+
+            List<LoggedRequest> requests = mockApmServer1.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+            assertThat(requests).hasSize(1);
+            assertThat(requests.get(0).getHeader("Content-Encoding")).isEqualTo("deflate");
+            return requests.get(0).getBody();
+        } finally {
+            compressingReportingEventHandler.close();
+        }
+    }
+
+    private static String inflate(byte[] body) throws IOException {
+        return new String(new InflaterInputStream(new ByteArrayInputStream(body)).readAllBytes(), StandardCharsets.UTF_8);
+    }
+
     @Test
     void testNoopWhenNotConnected() throws Exception {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -223,6 +346,65 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
     }
 
+    @Test
+    void testSpillWhileServerUnavailable() throws Exception {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        doReturn(1024L * 1024).when(reporterConfiguration).getSpillQueueSize();
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+        try {
+            reportingEventHandler = spillingReportingEventHandler;
+            mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+            mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+            // the first error does not back off, the second one backs off for one second
+            reportTransaction(spillingReportingEventHandler);
+            spillingReportingEventHandler.endRequest();
+            reportTransaction(spillingReportingEventHandler);
+            spillingReportingEventHandler.endRequest();
+            assertThat(spillingReportingEventHandler.isHealthy()).isFalse();
+
+            reportSpan();
+            reportError();
+            sendEndRequestEvent();
+
+            mockApmServer1.resetRequests();
+            mockApmServer2.resetRequests();
+            mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+            mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
+
+            await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+                sendWakeupEvent();
+                assertThat(spillingReportingEventHandler.isHealthy()).isTrue();
+                assertThat(spillingReportingEventHandler.getReported()).isEqualTo(2);
+            });
+
+            List<LoggedRequest> requests = Stream.of(mockApmServer1, mockApmServer2)
+                .flatMap(apmServer -> apmServer.findAll(postRequestedFor(urlMatching(".*" + INTAKE_V2_URL))).stream())
+                .collect(Collectors.toList());
+            assertThat(requests).hasSize(1);
+            assertThat(requests.get(0).getHeader("Content-Encoding")).isEqualTo("deflate");
+            List<JsonNode> ndJsonNodes = new BufferedReader(new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(requests.get(0).getBody()))))
+                .lines()
+                .map(IntakeV2ReportingEventHandlerTest::getReadTree)
+                .collect(Collectors.toList());
+            assertThat(ndJsonNodes).hasSize(3);
+            assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+            assertThat(ndJsonNodes.get(1).get("span")).isNotNull();
+            assertThat(ndJsonNodes.get(2).get("error")).isNotNull();
+        } finally {
+            spillingReportingEventHandler.close();
+        }
+    }
+
     @Test
     void testExponentialBackoff() {
         assertThat(IntakeV2ReportingEventHandler.getBackoffTimeSeconds(0)).isEqualTo(0);
@@ -277,6 +459,18 @@ class IntakeV2ReportingEventHandlerTest {
         reportingEventHandler.onEvent(reportingEvent, -1, true);
     }
 
+    private void sendEndRequestEvent() throws Exception {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setEndRequestEvent();
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
+    private void sendWakeupEvent() throws Exception {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setWakeupEvent();
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
     private void sendShutdownEvent() throws Exception {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.shutdownEvent();
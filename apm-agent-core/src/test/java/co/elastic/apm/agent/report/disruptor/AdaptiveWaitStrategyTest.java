@@ -0,0 +1,97 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class AdaptiveWaitStrategyTest {
+
+    private final AtomicLong processedEvents = new AtomicLong();
+    // blocking for a long time without being signalled would make the tests time out
+    private final AdaptiveWaitStrategy waitStrategy = new AdaptiveWaitStrategy(
+        TimeUnit.MICROSECONDS.toNanos(20), TimeUnit.MICROSECONDS.toNanos(200), TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MINUTES.toNanos(1));
+    private Disruptor<long[]> disruptor;
+    private RingBuffer<long[]> ringBuffer;
+    private Thread consumerThread;
+
+    @BeforeEach
+    void setUp() {
+        disruptor = new Disruptor<>(() -> new long[1], 64, (ThreadFactory) runnable -> consumerThread = new Thread(runnable, "adaptive-wait-strategy-test"),
+            ProducerType.MULTI, waitStrategy);
+        disruptor.handleEventsWith(new EventHandler<long[]>() {
+            @Override
+            public void onEvent(long[] event, long sequence, boolean endOfBatch) {
+                processedEvents.incrementAndGet();
+            }
+        });
+        ringBuffer = disruptor.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        disruptor.halt();
+    }
+
+    @Test
+    void testBlockedConsumerIsSignalledByProducer() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            // the consumer escalates to blocking, as it doesn't receive events within the park phase
+            Thread.sleep(20);
+            ringBuffer.publishEvent((event, sequence) -> event[0] = sequence);
+            long expectedEvents = i;
+            await().atMost(1, TimeUnit.SECONDS).until(() -> processedEvents.get() == expectedEvents);
+        }
+        assertThat(waitStrategy.getAverageWaitNs()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    void testAverageWaitTimeDecreasesUnderLoad() throws Exception {
+        Thread.sleep(20);
+        ringBuffer.publishEvent((event, sequence) -> event[0] = sequence);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> processedEvents.get() == 1);
+        long idleAverage = waitStrategy.getAverageWaitNs();
+
+        for (int i = 0; i < 10_000; i++) {
+            ringBuffer.publishEvent((event, sequence) -> event[0] = sequence);
+        }
+        await().atMost(1, TimeUnit.SECONDS).until(() -> processedEvents.get() == 10_001);
+        assertThat(waitStrategy.getAverageWaitNs()).isLessThan(idleAverage);
+    }
+
+    @Test
+    void testHaltWakesUpBlockedConsumer() throws Exception {
+        Thread.sleep(20);
+        disruptor.halt();
+        consumerThread.join(TimeUnit.SECONDS.toMillis(5));
+        assertThat(consumerThread.isAlive()).isFalse();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import co.elastic.apm.agent.util.ExecutorUtils;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.RingBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class ShardedRingBufferTest {
+
+    private static final long CONTROL = -1;
+
+    private final AtomicLong processedEvents = new AtomicLong();
+    private final AtomicLong eventsBeforeLastControlEvent = new AtomicLong();
+    private final List<Long> handlerSequences = new ArrayList<>();
+    private ShardedRingBuffer<long[]> ringBuffer;
+
+    @BeforeEach
+    void setUp() {
+        ringBuffer = new ShardedRingBuffer<>(
+            () -> new long[1],
+            new EventHandler<long[]>() {
+                @Override
+                public void onEvent(long[] event, long sequence, boolean endOfBatch) {
+                    handlerSequences.add(sequence);
+                    if (event[0] == CONTROL) {
+                        eventsBeforeLastControlEvent.set(processedEvents.get());
+                    } else {
+                        processedEvents.incrementAndGet();
+                    }
+                }
+            },
+            4, 1024, 16,
+            new ExecutorUtils.SingleNamedThreadFactory("sharded-ring-buffer-test"),
+            100_000, 1_000_000);
+        ringBuffer.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        ringBuffer.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testCapacity() {
+        assertThat(ringBuffer.getShardCount()).isEqualTo(4);
+        assertThat(ringBuffer.getBufferSize()).isEqualTo(4 * 1024);
+        assertThat(ringBuffer.getElementCount()).isZero();
+    }
+
+    @Test
+    void testAllEventsPublishedBeforeControlEventAreProcessedFirst() throws Exception {
+        int threads = 8;
+        int eventsPerThread = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                RingBuffer<long[]> shard = ringBuffer.getShardForCurrentThread();
+                for (int j = 0; j < eventsPerThread; j++) {
+                    shard.publishEvent((event, sequence) -> event[0] = 1);
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        RingBuffer<long[]> control = ringBuffer.getControlRingBuffer();
+        long controlSequence = control.next();
+        control.get(controlSequence)[0] = CONTROL;
+        control.publish(controlSequence);
+
+        await().until(() -> ringBuffer.isControlEventProcessed(controlSequence));
+        assertThat(eventsBeforeLastControlEvent.get()).isEqualTo(threads * eventsPerThread);
+        assertThat(ringBuffer.getElementCount()).isZero();
+        for (int i = 1; i < handlerSequences.size(); i++) {
+            assertThat(handlerSequences.get(i)).isEqualTo(handlerSequences.get(i - 1) + 1);
+        }
+    }
+
+    @Test
+    void testThreadsArePinnedToShard() {
+        assertThat(ringBuffer.getShardForCurrentThread()).isSameAs(ringBuffer.getShardForCurrentThread());
+    }
+}
@@ -53,6 +53,7 @@ import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.OTelSpanKind;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.ApmServerClient;
@@ -81,6 +82,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
@@ -508,6 +510,29 @@ class DslJsonSerializerTest {
         }
     }
 
+    @Test
+    void testStringCacheDoesNotChangeOutput() throws Exception {
+        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        DslJsonSerializer.Writer cachingWriter = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData, 16).newWriter();
+        cachingWriter.blockUntilReady();
+
+        Span span = new Span(MockTracer.create());
+        span.withName("SELECT FROM \"users\"").withType("db.sql").withSubtype("my.sql").withAction("query");
+        span.getTraceContext().setServiceInfo("service-name", "1.0");
+        span.getContext().getDestination().withAddress("db.example.com").withPort(3306);
+        span.getContext().getServiceTarget().withType("mysql").withName("users");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(cachingWriter.toJsonString(span)).isEqualTo(writer.toJsonString(span));
+        }
+
+        // the service target name is a mutable StringBuilder that must not be served from the cache after it has changed
+        span.getContext().getServiceTarget().withName("orders");
+        String json = cachingWriter.toJsonString(span);
+        assertThat(json).isEqualTo(writer.toJsonString(span));
+        assertThat(readJsonString(json).get("context").get("service").get("target").get("name").textValue()).isEqualTo("orders");
+    }
+
     @Test
     void testTransactionNullFrameworkNameSerialization() {
         Transaction transaction = new Transaction(tracer);
@@ -1384,6 +1409,37 @@ class DslJsonSerializerTest {
         assertThat(jsonStackTrace.get(1).get("module")).isNull();
     }
 
+    @Test
+    void testStackFrameCacheDoesNotChangeOutput() {
+        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        doReturn(15).when(stacktraceConfiguration).getStackTraceLimit();
+        doReturn(List.of("foo")).when(stacktraceConfiguration).getApplicationPackages();
+        DslJsonSerializer.Writer cachingWriter = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData, 0, 4).newWriter();
+        DslJsonSerializer.Writer uncachedWriter = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData).newWriter();
+
+        StackTraceDictionary dictionary = new StackTraceDictionary(16, 16);
+        Span span = new Span(tracer);
+        span.setStackTrace(dictionary.intern(StackFrame.of("foo.Bar$Baz", "qux"), dictionary.intern(StackFrame.of("foo.Bar", "baz"), null)));
+        ErrorCapture error = new ErrorCapture(tracer).withTimestamp(5000);
+        error.setException(new Exception("test"));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(cachingWriter.toJsonString(span)).isEqualTo(uncachedWriter.toJsonString(span));
+            assertThat(cachingWriter.toJsonString(error)).isEqualTo(uncachedWriter.toJsonString(error));
+        }
+        JsonNode jsonStackTrace = readJsonString(cachingWriter.toJsonString(span)).get("stacktrace");
+        assertThat(jsonStackTrace).hasSize(2);
+        assertThat(jsonStackTrace.get(0).get("function").textValue()).isEqualTo("qux");
+        assertThat(jsonStackTrace.get(1).get("function").textValue()).isEqualTo("baz");
+        assertThat(jsonStackTrace.get(0).get("library_frame").booleanValue()).isFalse();
+
+        // the cached frames have to be invalidated when the application packages change
+        doReturn(List.of("bar")).when(stacktraceConfiguration).getApplicationPackages();
+        jsonStackTrace = readJsonString(cachingWriter.toJsonString(span)).get("stacktrace");
+        assertThat(jsonStackTrace.get(0).get("library_frame").booleanValue()).isTrue();
+        assertThat(cachingWriter.toJsonString(error)).isEqualTo(uncachedWriter.toJsonString(error));
+    }
+
     @Test
     void testSampledRootTransaction() {
         // take sampler rate when sampled
@@ -1395,6 +1451,7 @@ class DslJsonSerializerTest {
 
     private void testRootTransactionSampleRate(boolean sampled, double samplerRate, @Nullable Double expectedRate) {
         Sampler sampler = mock(Sampler.class);
+        doReturn(sampler).when(sampler).getDecisionSampler();
         doReturn(sampled).when(sampler).isSampled(any(Id.class));
         doReturn(samplerRate).when(sampler).getSampleRate();
 
@@ -1416,6 +1473,7 @@ class DslJsonSerializerTest {
     void testSampledSpan_rateFromParent() {
 
         Sampler sampler = mock(Sampler.class);
+        doReturn(sampler).when(sampler).getDecisionSampler();
         doReturn(true).when(sampler).isSampled(any(Id.class));
         doReturn(0.42d).when(sampler).getSampleRate();
 
@@ -1435,6 +1493,7 @@ class DslJsonSerializerTest {
     @Test
     void testNonSampledTransaction() {
         Sampler sampler = mock(Sampler.class);
+        doReturn(sampler).when(sampler).getDecisionSampler();
         doReturn(false).when(sampler).isSampled(any(Id.class));
         doReturn(0.42d).when(sampler).getSampleRate();
         Transaction transaction = createRootTransaction(sampler);
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EncodedStringCacheTest {
+
+    private JsonWriter jw;
+    private EncodedStringCache cache;
+
+    @BeforeEach
+    void setUp() {
+        jw = new DslJson<>(new DslJson.Settings<>()).newWriter();
+        cache = new EncodedStringCache(1);
+    }
+
+    @Test
+    void testEncodesLikeJsonWriter() {
+        String value = "quote \" backslash \\ newline \n unicode ä€";
+        for (int i = 0; i < 3; i++) {
+            assertThat(write(value)).isEqualTo(encode(value));
+        }
+    }
+
+    @Test
+    void testComparesContentOfMutableValues() {
+        StringBuilder value = new StringBuilder("foo");
+        assertThat(write(value)).isEqualTo("\"foo\"");
+        assertThat(write(value)).isEqualTo("\"foo\"");
+        assertThat(write(value)).isEqualTo("\"foo\"");
+
+        value.setLength(0);
+        value.append("bar");
+        assertThat(write(value)).isEqualTo("\"bar\"");
+        assertThat(write(new StringBuilder("foo"))).isEqualTo("\"foo\"");
+    }
+
+    @Test
+    void testReplacesEntryOfSameSlot() {
+        // the cache has a single slot, so that all values compete for it
+        write("foo");
+        write("foo");
+        assertThat(write("bar")).isEqualTo("\"bar\"");
+        assertThat(write("bar")).isEqualTo("\"bar\"");
+        assertThat(write("foo")).isEqualTo("\"foo\"");
+    }
+
+    @Test
+    void testDoesNotCacheLongValues() {
+        String value = "x".repeat(EncodedStringCache.MAX_CACHED_VALUE_LENGTH + 1);
+        assertThat(cache.writeString(value, jw)).isFalse();
+        assertThat(jw.size()).isZero();
+    }
+
+    private String write(CharSequence value) {
+        jw.reset();
+        assertThat(cache.writeString(value, jw)).isTrue();
+        return jw.toString();
+    }
+
+    private static String encode(String value) {
+        JsonWriter jw = new DslJson<>(new DslJson.Settings<>()).newWriter();
+        jw.writeString(value);
+        return jw.toString();
+    }
+}
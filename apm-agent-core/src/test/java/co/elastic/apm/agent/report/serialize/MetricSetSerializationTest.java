@@ -38,6 +38,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 
@@ -200,6 +201,30 @@ class MetricSetSerializationTest {
     }
 
 
+    @Test
+    void testSerializeHistogram() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of().spanType("db").spanSubType("mysql");
+        registry.updateTimer("foo", labels, 42);
+        registry.updateHistogram("foo", labels, 3);
+        registry.updateHistogram("foo", labels, 3);
+        registry.updateHistogram("foo", labels, 1000);
+
+        JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        JsonNode samples = jsonNode.get("metricset").get("samples");
+        assertThat(samples.get("foo.sum.us").get("value").intValue()).isEqualTo(42);
+        JsonNode histogram = samples.get("foo.histogram");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(3);
+        assertThat(histogram.get("values").get(1).doubleValue()).isCloseTo(1000, withinPercentage(5));
+        assertThat(histogram.get("counts")).hasSize(2);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+
+        assertThat(reportAsJson()).isNull();
+    }
+
     @Test
     void testRawMetricReset() throws Exception {
 
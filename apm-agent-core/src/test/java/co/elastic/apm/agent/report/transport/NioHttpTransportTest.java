@@ -0,0 +1,170 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.binaryEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NioHttpTransportTest {
+
+    @RegisterExtension
+    static WireMockExtension apmServer = WireMockExtension.newInstance()
+        .options(wireMockConfig().dynamicPort())
+        .build();
+
+    private NioHttpTransport transport;
+
+    @BeforeEach
+    void setUp() {
+        transport = new NioHttpTransport(new UrlConnectionHttpTransport(), 1024 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    void testGet() throws IOException {
+        apmServer.stubFor(get(urlEqualTo("/"))
+            .withHeader("User-Agent", equalTo("apm-agent-java"))
+            .willReturn(aResponse().withStatus(200).withHeader("X-Test", "foo").withBody("{\"version\":\"8.7.0\"}")));
+
+        HttpURLConnection connection = transport.openConnection(url("/"));
+        connection.setRequestProperty("User-Agent", "apm-agent-java");
+
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(connection.getHeaderField("x-test")).isEqualTo("foo");
+        assertThat(connection.getInputStream()).hasContent("{\"version\":\"8.7.0\"}");
+    }
+
+    @Test
+    void testPostChunked() throws IOException {
+        apmServer.stubFor(post(urlEqualTo("/intake/v2/events")).willReturn(aResponse().withStatus(202)));
+        byte[] body = new byte[100_000];
+        Arrays.fill(body, (byte) 'a');
+
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = transport.openConnection(url("/intake/v2/events"));
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(4096);
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.connect();
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body, 0, 10);
+                os.write(body, 10, body.length - 10);
+            }
+            assertThat(connection.getResponseCode()).isEqualTo(202);
+        }
+
+        apmServer.verify(3, postRequestedFor(urlEqualTo("/intake/v2/events"))
+            .withHeader("Transfer-Encoding", equalTo("chunked"))
+            .withHeader("Content-Type", equalTo("application/x-ndjson"))
+            .withRequestBody(binaryEqualTo(body)));
+    }
+
+    @Test
+    void testHeaderBeforeResponseCode() throws IOException {
+        apmServer.stubFor(post(urlEqualTo("/config/v1/agents"))
+            .willReturn(aResponse().withStatus(304).withHeader("ETag", "\"abc\"")));
+
+        HttpURLConnection connection = transport.openConnection(url("/config/v1/agents"));
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("If-None-Match", "\"abc\"");
+        connection.getOutputStream().write("{}".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(connection.getHeaderField("ETag")).isEqualTo("\"abc\"");
+        assertThat(connection.getResponseCode()).isEqualTo(304);
+        apmServer.verify(postRequestedFor(urlEqualTo("/config/v1/agents")).withRequestBody(equalTo("{}")));
+    }
+
+    @Test
+    void testErrorResponse() throws IOException {
+        apmServer.stubFor(get(urlEqualTo("/not-found")).willReturn(aResponse().withStatus(404).withBody("not found")));
+
+        HttpURLConnection connection = transport.openConnection(url("/not-found"));
+
+        assertThat(connection.getResponseCode()).isEqualTo(404);
+        assertThatThrownBy(connection::getInputStream).isInstanceOf(FileNotFoundException.class);
+        assertThat(connection.getErrorStream()).hasContent("not found");
+    }
+
+    @Test
+    void testReadTimeout() throws IOException {
+        apmServer.stubFor(get(urlEqualTo("/slow")).willReturn(aResponse().withStatus(200).withFixedDelay(2000)));
+
+        HttpURLConnection connection = transport.openConnection(url("/slow"));
+        connection.setReadTimeout(100);
+
+        assertThatThrownBy(connection::getResponseCode).isInstanceOf(SocketTimeoutException.class);
+    }
+
+    @Test
+    void testConnectionsAreReused() throws IOException {
+        URL url = url("/");
+        NioConnection connection = transport.acquire(url, 1000);
+        transport.release(connection);
+
+        assertThat(transport.acquire(url, 1000)).isSameAs(connection);
+    }
+
+    @Test
+    void testConnectionRefused() throws IOException {
+        HttpURLConnection connection = transport.openConnection(new URL("http", "localhost", 1, "/"));
+
+        assertThatThrownBy(connection::getResponseCode).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testHttpsFallsBackToBlockingTransport() throws IOException {
+        assertThat(transport.openConnection(new URL("https", "localhost", apmServer.getPort(), "/")))
+            .isInstanceOf(HttpsURLConnection.class);
+    }
+
+    private static URL url(String path) throws IOException {
+        return new URL(apmServer.getRuntimeInfo().getHttpBaseUrl() + path);
+    }
+}
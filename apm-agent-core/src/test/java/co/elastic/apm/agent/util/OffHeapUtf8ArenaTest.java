@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OffHeapUtf8ArenaTest {
+
+    private final OffHeapUtf8Arena arena = new OffHeapUtf8Arena(1024, 4);
+
+    @Test
+    void testRoundTrip() {
+        String text = "SELECT * FROM t WHERE name = 'Jürgen' AND emoji = '😀' AND yen = '¥€'";
+        ByteBuffer record = arena.encode(text);
+        assertThat(record).isNotNull();
+        assertThat(record.isDirect()).isTrue();
+        assertThat(record.remaining()).isEqualTo(text.getBytes(StandardCharsets.UTF_8).length);
+
+        assertThat(decode(record, 256)).isEqualTo(text);
+        // decoding does not consume the record
+        assertThat(decode(record, 256)).isEqualTo(text);
+    }
+
+    @Test
+    void testLoneSurrogateIsReplaced() {
+        ByteBuffer record = arena.encode("a\ud83db");
+        assertThat(record).isNotNull();
+        assertThat(decode(record, 16)).isEqualTo("a?b");
+    }
+
+    @Test
+    void testDecodeIntoSmallerBuffer() {
+        ByteBuffer record = arena.encode("abc😀");
+        assertThat(record).isNotNull();
+        assertThat(decode(record, 2)).isEqualTo("ab");
+        // surrogate pairs are not split
+        assertThat(decode(record, 4)).isEqualTo("abc");
+    }
+
+    @Test
+    void testSizeClasses() {
+        ByteBuffer small = arena.encode("a");
+        assertThat(small).isNotNull();
+        assertThat(small.capacity()).isEqualTo(256);
+
+        ByteBuffer medium = arena.encode(repeat('a', 257));
+        assertThat(medium).isNotNull();
+        assertThat(medium.capacity()).isEqualTo(512);
+
+        ByteBuffer large = arena.encode(repeat('ü', 512));
+        assertThat(large).isNotNull();
+        assertThat(large.capacity()).isEqualTo(1024);
+
+        assertThat(arena.encode(repeat('a', 1025))).isNull();
+    }
+
+    @Test
+    void testReleasedRecordsAreReused() {
+        ByteBuffer record = arena.encode("foo");
+        assertThat(record).isNotNull();
+        arena.release(record);
+
+        ByteBuffer reused = arena.encode("bar");
+        assertThat(reused).isSameAs(record);
+        assertThat(decode(reused, 16)).isEqualTo("bar");
+    }
+
+    private static String decode(ByteBuffer record, int capacity) {
+        CharBuffer target = CharBuffer.allocate(capacity);
+        OffHeapUtf8Arena.decode(record, target);
+        ((Buffer) target).flip();
+        return target.toString();
+    }
+
+    private static String repeat(char c, int times) {
+        StringBuilder sb = new StringBuilder(times);
+        for (int i = 0; i < times; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
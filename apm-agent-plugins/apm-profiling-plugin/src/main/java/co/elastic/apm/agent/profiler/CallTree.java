@@ -22,6 +22,7 @@ import co.elastic.apm.agent.sdk.internal.collections.LongList;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.profiler.collections.LongHashSet;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -416,9 +417,15 @@ public class CallTree implements Recyclable {
         if (!root.rootContext.idEquals(parentContext)) {
             // we're never spanifying the root
             assert this.parent != null;
-            List<StackFrame> stackTrace = new ArrayList<>();
-            this.parent.fillStackTrace(stackTrace);
-            span.setStackTrace(stackTrace);
+            StackTraceDictionary stackTraceDictionary = root.stackTraceDictionary;
+            if (stackTraceDictionary != null) {
+                StackTraceDictionary.InternedStackTrace stackTrace = this.parent.internStackTrace(stackTraceDictionary);
+                span.setStackTrace(stackTrace != null ? stackTrace : Collections.<StackFrame>emptyList());
+            } else {
+                List<StackFrame> stackTrace = new ArrayList<>();
+                this.parent.fillStackTrace(stackTrace);
+                span.setStackTrace(stackTrace);
+            }
         } else {
             span.setStackTrace(Collections.<StackFrame>emptyList());
         }
@@ -435,6 +442,20 @@ public class CallTree implements Recyclable {
         }
     }
 
+    /**
+     * Interns the stack trace up to the parent span,
+     * so that the stack traces of spans which have been called from the same code path share their frames.
+     *
+     * @return the stack trace or {@code null} if this node is the parent span
+     */
+    @Nullable
+    private StackTraceDictionary.InternedStackTrace internStackTrace(StackTraceDictionary stackTraceDictionary) {
+        if (parent != null && !this.isSpan) {
+            return stackTraceDictionary.intern(frame, parent.internStackTrace(stackTraceDictionary));
+        }
+        return null;
+    }
+
     /**
      * Recycles this subtree to the provided pool recursively.
      * Note that this method ends by recycling {@code this} node (i.e. - this subtree root), which means that
@@ -585,6 +606,10 @@ public class CallTree implements Recyclable {
          * The timestamp of when {@link #activeSpan} got activated
          */
         private long activationTimestamp = -1;
+        /**
+         * The timestamp of the most recent activation, deactivation or stack trace of this thread
+         */
+        private long lastEventTimestamp = -1;
         /**
          * The context of the transaction or span which is currently {@link ElasticApmTracer#getActive() active},
          * in its {@linkplain TraceContext#serialize serialized} form.
@@ -596,9 +621,19 @@ public class CallTree implements Recyclable {
         private CallTree topOfStack;
 
         private final LongHashSet activeSet = new LongHashSet();
+        /**
+         * Deduplicates the stack traces of the inferred spans, {@code null} to create a new list for each span
+         */
+        @Nullable
+        private final StackTraceDictionary stackTraceDictionary;
 
         public Root(ElasticApmTracer tracer) {
+            this(tracer, null);
+        }
+
+        public Root(ElasticApmTracer tracer, @Nullable StackTraceDictionary stackTraceDictionary) {
             this.rootContext = TraceContext.with64BitId(tracer);
+            this.stackTraceDictionary = stackTraceDictionary;
         }
 
         private void set(byte[] traceContext, @Nullable String serviceName, @Nullable String serviceVersion, long nanoTime) {
@@ -609,6 +644,7 @@ public class CallTree implements Recyclable {
 
         public void setActiveSpan(byte[] activeSpanSerialized, long timestamp) {
             activationTimestamp = timestamp;
+            lastEventTimestamp = timestamp;
             System.arraycopy(activeSpanSerialized, 0, this.activeSpanSerialized, 0, activeSpanSerialized.length);
             this.activeSpan = null;
         }
@@ -662,6 +698,7 @@ public class CallTree implements Recyclable {
             // only "materialize" trace context if there's actually an associated stack trace to the activation
             // avoids allocating a TraceContext for very short activations which have no effect on the CallTree anyway
             boolean firstFrameAfterActivation = false;
+            lastEventTimestamp = nanoTime;
             if (activeSpan == null) {
                 firstFrameAfterActivation = true;
                 activeSpan = TraceContext.with64BitId(tracer);
@@ -728,6 +765,10 @@ public class CallTree implements Recyclable {
             return rootContext;
         }
 
+        public long getLastEventTimestamp() {
+            return lastEventTimestamp;
+        }
+
         public long getEpochMicros(long nanoTime) {
             return rootContext.getClock().getEpochMicros(nanoTime);
         }
@@ -759,6 +800,7 @@ public class CallTree implements Recyclable {
             rootContext.resetState();
             activeSpan = null;
             activationTimestamp = -1;
+            lastEventTimestamp = -1;
             Arrays.fill(activeSpanSerialized, (byte) 0);
             previousTopOfStack = null;
             topOfStack = null;
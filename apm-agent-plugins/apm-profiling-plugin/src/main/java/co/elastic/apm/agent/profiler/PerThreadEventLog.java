@@ -0,0 +1,421 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.DetachedThreadLocal;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventTranslatorTwoArg;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A log of fixed-size events that application threads write into a memory-mapped file
+ * without contending on a shared sequence for each event.
+ * <p>
+ * The file is divided into segments which can hold {@link #eventsPerSegment} events each.
+ * A thread claims a segment and writes its events into it until the segment is full.
+ * Only then, the thread claims the next segment which is the only point of coordination between the writing threads.
+ * As a segment is written by a single thread, its events are in time order.
+ * For that to work, each serialized event has to start with its {@link System#nanoTime()} timestamp.
+ * </p>
+ * <p>
+ * The events of a session are read by merging the segments by the timestamp of their events.
+ * {@link #startReading()} ends the current session so that threads claim new segments for the events of the next session.
+ * </p>
+ * <p>
+ * The segments form a ring: they are claimed in order and are {@linkplain #finishReading() released} in order after they have been read.
+ * A segment can only be claimed again after it has been released.
+ * If all segments are claimed, events are discarded.
+ * </p>
+ * <p>
+ * Implementation notes:
+ * </p>
+ * The claim of a segment, a pending flag, and the number of events committed to it are a single atomic value.
+ * Before serializing an event, a writer reserves the next slot by setting the pending flag with a compare-and-set,
+ * which fails if the segment has been released and claimed by another writer in the meantime.
+ * After the reservation, the writer checks again that the segment belongs to the current session.
+ * If it doesn't, the writer drops the reservation and discards the event.
+ * Otherwise, it serializes the event and publishes it by incrementing the number of committed events, which clears the flag.
+ * Before segments are released, the reader waits until none of them have a pending write.
+ * As a new session starts before its segments are released, a writer either sees the new session after its reservation
+ * or the reader sees the reservation.
+ * Therefore, a segment is never written to after it has been released, so that no writer can corrupt the events of another one.
+ * An event whose reservation races with the start of a session may be lost,
+ * which is the same as if it had been discarded because the log is full.
+ *
+ * @param <E> the type of the event which is translated and then serialized into the log
+ */
+class PerThreadEventLog<E> {
+
+    private static final int COMMITTED_EVENTS_BITS = 20;
+    private static final long COMMITTED_EVENTS_MASK = (1L << COMMITTED_EVENTS_BITS) - 1;
+    private static final long PENDING = 1L << COMMITTED_EVENTS_BITS;
+    private static final int CLAIM_SHIFT = COMMITTED_EVENTS_BITS + 1;
+
+    private final int eventSize;
+    private final int eventsPerSegment;
+    private final Segment[] segments;
+    private final EventFactory<E> eventFactory;
+    private final EventSerializer<E> serializer;
+    private final DetachedThreadLocal<Writer<E>> writers = WeakConcurrent.buildThreadLocal();
+    /**
+     * The number of segments that have ever been claimed.
+     * The segment of a claim is located at {@code claim % segments.length}.
+     */
+    private final AtomicLong claims = new AtomicLong();
+    /**
+     * Segments claimed before this claim belong to a session that is currently being read or has been read.
+     */
+    private volatile long sessionStart;
+    /**
+     * Segments claimed before this claim have been read and can be claimed again.
+     */
+    private volatile long released;
+    @Nullable
+    private volatile ByteBuffer mapped;
+
+    // the read state is only accessed by the thread that reads the log
+    /**
+     * A binary min-heap of segment indices, keyed by the timestamp of the next event in the segment
+     */
+    private final int[] heap;
+    private final int[] readEvents;
+    private int heapSize;
+    private long readStart;
+    private long readEnd;
+    @Nullable
+    private ByteBuffer readBuffer;
+
+    PerThreadEventLog(int eventSize, int eventsPerSegment, int maxEvents, EventFactory<E> eventFactory, EventSerializer<E> serializer) {
+        if (eventsPerSegment > COMMITTED_EVENTS_MASK) {
+            throw new IllegalArgumentException("A segment can hold at most " + COMMITTED_EVENTS_MASK + " events");
+        }
+        this.eventSize = eventSize;
+        this.eventsPerSegment = eventsPerSegment;
+        this.eventFactory = eventFactory;
+        this.serializer = serializer;
+        int segmentCount = Math.max(1, maxEvents / eventsPerSegment);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(i * eventsPerSegment * eventSize);
+        }
+        heap = new int[segmentCount];
+        readEvents = new int[segmentCount];
+    }
+
+    /**
+     * Maps the log into memory, the log discards all events until this has been called.
+     *
+     * @param channel the channel of the file that backs the log
+     */
+    void map(FileChannel channel) throws IOException {
+        if (mapped == null) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSizeInBytes());
+        }
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    long getSizeInBytes() {
+        return (long) segments.length * eventsPerSegment * eventSize;
+    }
+
+    /**
+     * Writes an event into the segment of the current thread.
+     * This is the only method which is executed in a multi-threaded context.
+     *
+     * @param translator translates the arguments into the event that is serialized into the log
+     * @return {@code true}, if the event has been written, {@code false} if the event has been discarded,
+     * either because all segments are claimed or because the segment of the current thread has been claimed by another thread
+     */
+    <A, B> boolean write(EventTranslatorTwoArg<E, A, B> translator, A arg0, B arg1) {
+        ByteBuffer mapped = this.mapped;
+        if (mapped == null) {
+            return false;
+        }
+        Writer<E> writer = writers.get();
+        if (writer == null) {
+            writer = new Writer<>(eventFactory.newInstance(), mapped.duplicate());
+            writers.set(writer);
+        }
+        Segment segment = writer.segment;
+        long state = segment != null ? segment.state.get() : 0;
+        if (segment == null || writer.claim < sessionStart || getClaim(state) != writer.claim || getCommittedEvents(state) == eventsPerSegment) {
+            segment = claimSegment(writer);
+            if (segment == null) {
+                return false;
+            }
+            state = toState(writer.claim, 0);
+        }
+        int index = getCommittedEvents(state);
+        translator.translateTo(writer.event, writer.claim * eventsPerSegment + index, arg0, arg1);
+        // reserves the slot, unless the segment has been claimed by another writer in the meantime
+        if (!segment.state.compareAndSet(state, state | PENDING)) {
+            return false;
+        }
+        if (writer.claim < sessionStart) {
+            // the segment may already have been read, the reader doesn't release it before the reservation is dropped
+            segment.state.set(state);
+            return false;
+        }
+        ByteBuffer buffer = writer.buffer;
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).position(segment.offset + index * eventSize);
+        serializer.serialize(writer.event, buffer);
+        // publishes the serialized event to the reading thread and clears the pending flag
+        segment.state.set(state + 1);
+        return true;
+    }
+
+    @Nullable
+    private Segment claimSegment(Writer<E> writer) {
+        long claim;
+        do {
+            claim = claims.get();
+            if (claim - released >= segments.length) {
+                return null;
+            }
+        } while (!claims.compareAndSet(claim, claim + 1));
+        Segment segment = segments[(int) (claim % segments.length)];
+        segment.state.set(toState(claim, 0));
+        writer.segment = segment;
+        writer.claim = claim;
+        return segment;
+    }
+
+    /**
+     * Ends the current session and starts reading its events in time order.
+     * Events written after calling this method belong to the next session.
+     */
+    void startReading() {
+        ByteBuffer mapped = this.mapped;
+        if (mapped == null) {
+            return;
+        }
+        if (readBuffer == null) {
+            readBuffer = mapped.duplicate();
+        }
+        readStart = sessionStart;
+        readEnd = claims.get();
+        sessionStart = readEnd;
+        rewind();
+    }
+
+    /**
+     * Restarts reading the events of the session from the beginning.
+     */
+    void rewind() {
+        heapSize = 0;
+        for (long claim = readStart; claim < readEnd; claim++) {
+            int index = (int) (claim % segments.length);
+            Segment segment = segments[index];
+            readEvents[index] = 0;
+            long state = segment.state.get();
+            // skips a segment whose claim has not been completed yet
+            if (getClaim(state) == claim && getCommittedEvents(state) > 0) {
+                heap[heapSize] = index;
+                siftUp(heapSize++);
+            }
+        }
+    }
+
+    boolean hasNext() {
+        return heapSize > 0;
+    }
+
+    /**
+     * @return the timestamp of the next event in time order, must only be called if there is a {@linkplain #hasNext() next event}
+     */
+    long peekTimestamp() {
+        return timestampOfNextEvent(heap[0]);
+    }
+
+    /**
+     * Moves to the next event in time order.
+     * Must only be called if there is a {@linkplain #hasNext() next event}.
+     *
+     * @return a buffer positioned at the start of the serialized event, only valid until the next invocation of this method
+     */
+    ByteBuffer next() {
+        ByteBuffer readBuffer = this.readBuffer;
+        int index = heap[0];
+        ((Buffer) readBuffer).clear();
+        ((Buffer) readBuffer).position(getEventOffset(index));
+        if (++readEvents[index] < getCommittedEvents(segments[index].state.get())) {
+            siftDown(0);
+        } else {
+            heap[0] = heap[--heapSize];
+            siftDown(0);
+        }
+        return readBuffer;
+    }
+
+    /**
+     * Writes the events of the session in time order and {@linkplain #rewind() rewinds} afterwards.
+     */
+    void writeTo(FileChannel channel) throws IOException {
+        while (hasNext()) {
+            ByteBuffer event = next();
+            ((Buffer) event).limit(event.position() + eventSize);
+            channel.write(event);
+        }
+        rewind();
+    }
+
+    /**
+     * Releases the segments of the session that has been read so that they can be claimed again.
+     */
+    void finishReading() {
+        heapSize = 0;
+        awaitPendingWrites(released, readEnd);
+        released = readEnd;
+    }
+
+    /**
+     * Discards all events that have been written.
+     */
+    void clear() {
+        heapSize = 0;
+        long claim = claims.get();
+        readStart = claim;
+        readEnd = claim;
+        sessionStart = claim;
+        awaitPendingWrites(released, claim);
+        released = claim;
+    }
+
+    /**
+     * Waits until no segment of the provided claims has a reserved slot that is being written to.
+     * Writers hold a reservation only while serializing a single event.
+     */
+    private void awaitPendingWrites(long fromClaim, long toClaim) {
+        for (long claim = fromClaim; claim < toClaim; claim++) {
+            Segment segment = segments[(int) (claim % segments.length)];
+            while ((segment.state.get() & PENDING) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return the claim and the number of committed events of a segment without a pending write as a single value
+     */
+    private static long toState(long claim, int committedEvents) {
+        return ((claim + 1) << CLAIM_SHIFT) | committedEvents;
+    }
+
+    /**
+     * @return the claim of a segment state, {@code -1} if the segment has never been claimed
+     */
+    private static long getClaim(long state) {
+        return (state >>> CLAIM_SHIFT) - 1;
+    }
+
+    private static int getCommittedEvents(long state) {
+        return (int) (state & COMMITTED_EVENTS_MASK);
+    }
+
+    private long timestampOfNextEvent(int index) {
+        return readBuffer.getLong(getEventOffset(index));
+    }
+
+    private int getEventOffset(int index) {
+        return segments[index].offset + readEvents[index] * eventSize;
+    }
+
+    private void siftUp(int i) {
+        int index = heap[i];
+        long timestamp = timestampOfNextEvent(index);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (timestampOfNextEvent(heap[parent]) <= timestamp) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = index;
+    }
+
+    private void siftDown(int i) {
+        if (heapSize == 0) {
+            return;
+        }
+        int index = heap[i];
+        long timestamp = timestampOfNextEvent(index);
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            long childTimestamp = timestampOfNextEvent(heap[child]);
+            int right = child + 1;
+            if (right < heapSize) {
+                long rightTimestamp = timestampOfNextEvent(heap[right]);
+                if (rightTimestamp < childTimestamp) {
+                    child = right;
+                    childTimestamp = rightTimestamp;
+                }
+            }
+            if (timestamp <= childTimestamp) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+
+    interface EventSerializer<E> {
+        void serialize(E event, ByteBuffer buffer);
+    }
+
+    private static class Segment {
+        private final int offset;
+        /**
+         * The claim of the segment, whether a slot is reserved and the number of events that have been committed to it
+         *
+         * @see #toState(long, int)
+         */
+        private final AtomicLong state = new AtomicLong();
+
+        private Segment(int offset) {
+            this.offset = offset;
+        }
+    }
+
+    private static class Writer<E> {
+        private final E event;
+        private final ByteBuffer buffer;
+        @Nullable
+        private Segment segment;
+        private long claim = -1;
+
+        private Writer(E event, ByteBuffer buffer) {
+            this.event = event;
+            this.buffer = buffer;
+        }
+    }
+}
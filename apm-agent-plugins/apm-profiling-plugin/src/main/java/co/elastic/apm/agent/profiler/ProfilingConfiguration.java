@@ -19,6 +19,8 @@
 package co.elastic.apm.agent.profiler;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.tracer.configuration.ByteValue;
+import co.elastic.apm.agent.tracer.configuration.ByteValueConverter;
 import co.elastic.apm.agent.tracer.configuration.ListValueConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
@@ -26,6 +28,7 @@ import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 
@@ -35,6 +38,7 @@ import static co.elastic.apm.agent.tracer.configuration.RangeValidator.min;
 public class ProfilingConfiguration extends ConfigurationOptionProvider {
 
     private static final String PROFILING_CATEGORY = "Profiling";
+    private static final long MAX_POOLED_BUFFER_SIZE = 1024 * 1024 * 1024;
 
     private final ConfigurationOption<Boolean> profilingEnabled = ConfigurationOption.<Boolean>booleanOption()
         .key("profiling_inferred_spans_enabled")
@@ -90,6 +94,38 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.18.0]", "internal")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> perThreadActivationEvents = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_inferred_spans_per_thread_activation_events")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .description("By default, the activations and deactivations of spans are recorded through a ring buffer that is shared by all threads.\n" +
+            "When enabled, each thread writes these events into its own segments of a memory-mapped file instead.\n" +
+            "This avoids the contention on the ring buffer in applications with many concurrently active threads.")
+        .tags("performance", "added[1.43.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> maxPooledBufferSize = ByteValueConverter.byteOption()
+        .key("profiling_inferred_spans_max_pooled_buffer_size")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .description("The maximum size of a direct buffer which the parser of the recorded stack traces retains for the next profiling session.\n" +
+            "The parser keeps one buffer per internal lookup table, which grows with the number of frames, stack traces and symbols of a session.\n" +
+            "Larger buffers are freed after each session and have to be allocated again in the next one.\n" +
+            "\n" +
+            "The maximum value is `1gb`.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .addValidator(new ConfigurationOption.Validator<ByteValue>() {
+            @Override
+            public void assertValid(@Nullable ByteValue value) {
+                if (value != null && value.getBytes() > MAX_POOLED_BUFFER_SIZE) {
+                    throw new IllegalArgumentException("The maximum pooled buffer size must not be larger than 1gb");
+                }
+            }
+        })
+        .tags("performance", "added[1.43.0]", "experimental")
+        .buildWithDefault(ByteValue.of("16mb"));
+
     private final ConfigurationOption<TimeDuration> samplingInterval = TimeDurationValueConverter.durationOption("ms")
         .key("profiling_inferred_spans_sampling_interval")
         .configurationCategory(PROFILING_CATEGORY)
@@ -151,6 +187,19 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.caseSensitiveMatcher("io.undertow.*")
         ));
 
+    private final ConfigurationOption<Boolean> continuousProfiling = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_inferred_spans_continuous")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(true)
+        .description("By default, async-profiler is stopped after each profiling session while the recorded stack traces are processed.\n" +
+            "No inferred spans are created for what runs in the meantime.\n" +
+            "When enabled, async-profiler keeps recording into an alternate file while the previous one is processed.\n" +
+            "Sessions then follow each other without gaps and call trees of threads that are not active anymore are evicted.\n" +
+            "\n" +
+            "As the profiler never pauses, consider increasing <<config-profiling-inferred-spans-sampling-interval, `profiling_inferred_spans_sampling_interval`>> to limit the overhead.")
+        .tags("performance", "added[1.43.0]", "experimental")
+        .buildWithDefault(false);
+
     private final ConfigurationOption<TimeDuration> profilerInterval = TimeDurationValueConverter.durationOption("s")
         .key("profiling_inferred_spans_interval")
         .description("The interval at which profiling sessions should be started.")
@@ -226,7 +275,11 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
     }
 
     public boolean isNonStopProfiling() {
-        return getProfilingDuration().getMillis() >= getProfilingInterval().getMillis();
+        return isContinuousProfiling() || getProfilingDuration().getMillis() >= getProfilingInterval().getMillis();
+    }
+
+    public boolean isContinuousProfiling() {
+        return continuousProfiling.get();
     }
 
     public boolean isBackupDiagnosticFiles() {
@@ -237,6 +290,14 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         return profilerLibDirectory.isDefault() ? System.getProperty("java.io.tmpdir") : profilerLibDirectory.get();
     }
 
+    public boolean isPerThreadActivationEvents() {
+        return perThreadActivationEvents.get();
+    }
+
+    public long getMaxPooledBufferSize() {
+        return maxPooledBufferSize.get().getBytes();
+    }
+
     public boolean isPostProcessingEnabled() {
         return postProcessingEnabled.get();
     }
@@ -23,13 +23,18 @@ import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.profiler.asyncprofiler.AsyncProfiler;
 import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+import co.elastic.apm.agent.profiler.collections.LongHashSet;
+import co.elastic.apm.agent.sdk.internal.collections.LongList;
 import co.elastic.apm.agent.sdk.internal.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.tracer.configuration.CoreConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
@@ -54,7 +59,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -86,6 +91,11 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * This process is completely garbage free thanks to the {@link RingBuffer} acting as an object pool for {@link ActivationEvent}s.
  * </p>
  * <p>
+ * If {@link ProfilingConfiguration#isPerThreadActivationEvents()} is enabled, the threads don't go through the ring buffer.
+ * Instead, they write the {@link ActivationEvent}s into their own segments of the memory-mapped {@linkplain #activationEventsFile file}.
+ * See {@link PerThreadEventLog} for more details.
+ * </p>
+ * <p>
  * Recording stack traces:
  * </p>
  * <p>
@@ -95,6 +105,12 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * by async-profiler with {@link JfrParser}.
  * </p>
  * <p>
+ * If {@link ProfilingConfiguration#isContinuousProfiling()} is enabled, async-profiler is immediately restarted with the
+ * {@linkplain #alternateJfrFile alternate JFR file} so that the profiling sessions are not interrupted while the previous file is processed.
+ * The {@link CallTree.Root}s are retained across the sessions,
+ * except for threads that neither {@linkplain #rootThreads have an active root} nor had any events in the last session.
+ * </p>
+ * <p>
  * Correlating {@link ActivationEvent}s with the traces recorded by {@link AsyncProfiler}:
  * </p>
  * <p>
@@ -121,9 +137,20 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private static final Logger logger = LoggerFactory.getLogger(SamplingProfiler.class);
     private static final int ACTIVATION_EVENTS_IN_FILE = 1_000_000;
     private static final int MAX_STACK_DEPTH = 256;
+    /**
+     * The number of stack trace events that are buffered to restore their time order.
+     * async-profiler writes the events from a small number of buffers,
+     * so that an event is usually at most a few buffer sizes away from its position in time order.
+     * If that's not the case for a file, all of its events are sorted instead.
+     */
+    private static final int STACK_TRACE_EVENT_WINDOW_SIZE = 32 * 1024;
     private static final int PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB = 10;
     private static final int MAX_ACTIVATION_EVENTS_FILE_SIZE = ACTIVATION_EVENTS_IN_FILE * ActivationEvent.SERIALIZED_SIZE;
     private static final int ACTIVATION_EVENTS_BUFFER_SIZE = ActivationEvent.SERIALIZED_SIZE * 4 * 1024;
+    // a segment of the per-thread activation event log is about 27KiB
+    private static final int ACTIVATION_EVENTS_PER_SEGMENT = 256;
+    private static final int STACK_TRACE_DICTIONARY_MAX_FRAMES = 16 * 1024;
+    private static final int STACK_TRACE_DICTIONARY_MAX_STACK_TRACES = 64 * 1024;
     private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> ACTIVATION_EVENT_TRANSLATOR =
         new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
             @Override
@@ -146,6 +173,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private final ScheduledExecutorService scheduler;
     private final Long2ObjectHashMap<CallTree.Root> profiledThreads = new Long2ObjectHashMap<>();
     private final RingBuffer<ActivationEvent> eventBuffer;
+    @Nullable
+    private final PerThreadEventLog<ActivationEvent> activationEventLog;
     private volatile boolean profilingSessionOngoing = false;
     private final Sequence sequence;
     private final ElasticApmTracer tracer;
@@ -156,9 +185,30 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     @Nullable
     private File jfrFile;
     private boolean canDeleteJfrFile;
+    /**
+     * The file async-profiler records into while {@link #jfrFile} is processed in continuous mode
+     */
+    @Nullable
+    private File alternateJfrFile;
+    private boolean canDeleteAlternateJfrFile;
+    /**
+     * Whether async-profiler is still recording into {@link #jfrFile} since the last profiling session in continuous mode
+     */
+    private boolean recordingContinuously;
+    /**
+     * The threads which have activated a root span in continuous mode, and whether they currently have an active root span.
+     * Used to restore the filter of async-profiler when restarting it in continuous mode
+     * because the {@link #profiledThreads} are only up-to-date after the activation events have been processed.
+     * A thread is only added on its first root activation, so that activating and deactivating root spans doesn't allocate.
+     */
+    private final WeakMap<Thread, ActiveRootFlag> rootThreads = WeakConcurrent.buildMap();
+    private final LongHashSet activeRootThreadIds = new LongHashSet();
+    private final LongList idleThreadIds = new LongList();
     private final WriteActivationEventToFileHandler writeActivationEventToFileHandler = new WriteActivationEventToFileHandler();
     @Nullable
     private JfrParser jfrParser;
+    @Nullable
+    private StackTraceEventWindow stackTraceEventWindow;
     private volatile int profilingSessions;
 
     private final ByteBuffer activationEventsBuffer;
@@ -172,6 +222,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     @Nullable
     private FileChannel activationEventsFileChannel;
     private final ObjectPool<CallTree> callTreePool;
+    /**
+     * Shared by the {@link JfrParser} and the {@link CallTree.Root}s
+     * so that the frames and stack traces of the inferred spans are deduplicated across profiling sessions
+     */
+    private final StackTraceDictionary stackTraceDictionary;
     private final TraceContext contextForLogging;
 
     private boolean previouslyEnabled = false;
@@ -207,7 +262,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         // tells the ring buffer to not override slots which have not been read yet
         this.eventBuffer.addGatingSequences(sequence);
         this.poller = eventBuffer.newPoller();
+        this.activationEventLog = config.isPerThreadActivationEvents() ? createActivationEventLog() : null;
         contextForLogging = TraceContext.with64BitId(tracer);
+        this.stackTraceDictionary = new StackTraceDictionary(STACK_TRACE_DICTIONARY_MAX_FRAMES, STACK_TRACE_DICTIONARY_MAX_STACK_TRACES);
         this.callTreePool = tracer.getObjectPoolFactory().createRecyclableObjectPool(2 * 1024, new Allocator<CallTree>() {
             @Override
             public CallTree createInstance() {
@@ -218,7 +275,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         this.rootPool = tracer.getObjectPoolFactory().createRecyclableObjectPool(512, new Allocator<CallTree.Root>() {
             @Override
             public CallTree.Root createInstance() {
-                return new CallTree.Root(tracer);
+                return new CallTree.Root(tracer, stackTraceDictionary);
             }
         });
         this.jfrFile = jfrFile;
@@ -226,6 +283,22 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         this.activationEventsFile = activationEventsFile;
     }
 
+    private static PerThreadEventLog<ActivationEvent> createActivationEventLog() {
+        return new PerThreadEventLog<>(ActivationEvent.SERIALIZED_SIZE, ACTIVATION_EVENTS_PER_SEGMENT, ACTIVATION_EVENTS_IN_FILE,
+            new EventFactory<ActivationEvent>() {
+                @Override
+                public ActivationEvent newInstance() {
+                    return new ActivationEvent();
+                }
+            },
+            new PerThreadEventLog.EventSerializer<ActivationEvent>() {
+                @Override
+                public void serialize(ActivationEvent event, ByteBuffer buffer) {
+                    event.serialize(buffer);
+                }
+            });
+    }
+
     /**
      * For testing only!
      * This method must only be called in tests and some period after activation / deactivation events, as otherwise it is racy.
@@ -243,6 +316,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             jfrFile.deleteOnExit();
             canDeleteJfrFile = true;
         }
+        if (config.isContinuousProfiling() && (alternateJfrFile == null || !alternateJfrFile.exists())) {
+            alternateJfrFile = File.createTempFile("apm-traces-", ".jfr");
+            alternateJfrFile.deleteOnExit();
+            canDeleteAlternateJfrFile = true;
+        }
         if (activationEventsFile == null || !activationEventsFile.exists()) {
             activationEventsFile = File.createTempFile("apm-activation-events-", ".bin");
             activationEventsFile.deleteOnExit();
@@ -254,6 +332,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (activationEventsFileChannel.size() == 0) {
             preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
         }
+        if (activationEventLog != null && !activationEventLog.isMapped()) {
+            activationEventLog.map(activationEventsFileChannel);
+        }
     }
 
     // visible for benchmarks
@@ -301,10 +382,21 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).enableProfilingCurrentThread();
+                if (config.isContinuousProfiling()) {
+                    Thread thread = Thread.currentThread();
+                    ActiveRootFlag activeRoot = rootThreads.get(thread);
+                    if (activeRoot == null) {
+                        activeRoot = new ActiveRootFlag();
+                        rootThreads.put(thread, activeRoot);
+                    }
+                    activeRoot.active = true;
+                }
             }
-            boolean success = eventBuffer.tryPublishEvent(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = activationEventLog != null
+                ? activationEventLog.write(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive)
+                : eventBuffer.tryPublishEvent(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
             if (!success && logger.isDebugEnabled()) {
-                logger.debug("Could not add activation event to ring buffer as no slots are available");
+                logger.debug("Could not add activation event as no slots are available");
             }
             return success;
         }
@@ -326,10 +418,16 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).disableProfilingCurrentThread();
+                ActiveRootFlag activeRoot = rootThreads.get(Thread.currentThread());
+                if (activeRoot != null) {
+                    activeRoot.active = false;
+                }
             }
-            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = activationEventLog != null
+                ? activationEventLog.write(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive)
+                : eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
             if (!success && logger.isDebugEnabled()) {
-                logger.debug("Could not add deactivation event to ring buffer as no slots are available");
+                logger.debug("Could not add deactivation event as no slots are available");
             }
             return success;
         }
@@ -344,9 +442,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         previouslyEnabled = enabled;
 
         if (!enabled) {
+            stopRecordingContinuously();
             if (jfrParser != null) {
+                jfrParser.freePooledBuffers();
                 jfrParser = null;
             }
+            stackTraceEventWindow = null;
             if (!scheduler.isShutdown()) {
                 scheduler.schedule(this, config.getProfilingInterval().getMillis(), TimeUnit.MILLISECONDS);
             }
@@ -396,7 +497,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         setProfilingSessionOngoing(continueProfilingSession);
 
         if (!interrupted && !scheduler.isShutdown()) {
-            long delay = config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
+            long delay = recordingContinuously ? 0 : config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
             scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
         }
     }
@@ -404,15 +505,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private void profile(TimeDuration profilingDuration) throws Exception {
         AsyncProfiler asyncProfiler = AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode());
         try {
-            String startCommand = createStartCommand();
-            String startMessage = asyncProfiler.execute(startCommand);
-            logger.debug(startMessage);
-            if (!profiledThreads.isEmpty()) {
-                restoreFilterState(asyncProfiler);
+            // in continuous mode, async-profiler has already been restarted at the end of the previous session
+            if (!recordingContinuously) {
+                startAsyncProfiler(asyncProfiler);
             }
             // Doesn't need to be atomic as this field is being updated only by a single thread
             //noinspection NonAtomicOperationOnVolatileField
             profilingSessions++;
+            long sessionStart = nanoClock.nanoTime();
 
             // When post-processing is disabled activation events are ignored, but we still need to invoke this method
             // as it is the one enforcing the sampling session duration. As a side effect it will also consume
@@ -421,11 +521,28 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
             String stopMessage = asyncProfiler.execute("stop");
             logger.debug(stopMessage);
+            recordingContinuously = false;
+
+            File recordedJfrFile = jfrFile;
+            if (config.isContinuousProfiling() && config.isProfilingEnabled() && alternateJfrFile != null) {
+                // keeps recording into the alternate file while processing the one that has just been recorded
+                boolean canDeleteRecordedJfrFile = canDeleteJfrFile;
+                jfrFile = alternateJfrFile;
+                canDeleteJfrFile = canDeleteAlternateJfrFile;
+                alternateJfrFile = recordedJfrFile;
+                canDeleteAlternateJfrFile = canDeleteRecordedJfrFile;
+                startAsyncProfiler(asyncProfiler);
+                recordingContinuously = true;
+            }
 
             // When post-processing is disabled, jfr file will not be parsed and the heavy processing will not occur
             // as this method aborts when no activation events are buffered
-            processTraces();
+            processTraces(recordedJfrFile);
+            if (recordingContinuously) {
+                evictIdleRoots(sessionStart);
+            }
         } catch (InterruptedException | ClosedByInterruptException e) {
+            recordingContinuously = false;
             try {
                 asyncProfiler.stop();
             } catch (IllegalStateException ignore) {
@@ -434,6 +551,58 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
     }
 
+    private void startAsyncProfiler(AsyncProfiler asyncProfiler) throws IOException {
+        String startCommand = createStartCommand();
+        String startMessage = asyncProfiler.execute(startCommand);
+        logger.debug(startMessage);
+        if (!profiledThreads.isEmpty() || config.isContinuousProfiling()) {
+            restoreFilterState(asyncProfiler);
+        }
+    }
+
+    private void stopRecordingContinuously() {
+        if (recordingContinuously) {
+            recordingContinuously = false;
+            try {
+                AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).stop();
+            } catch (IllegalStateException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Evicts the call trees of threads which don't have an active root span and had no events during the last profiling session.
+     * This may happen if the deactivation event of a root span got lost, for example because the activation events were full.
+     * In the regular mode, the call trees are discarded after each session that is followed by a pause.
+     * In continuous mode, there's no such pause.
+     *
+     * @param sessionStart the timestamp of when the last profiling session has started
+     */
+    private void evictIdleRoots(long sessionStart) {
+        activeRootThreadIds.clear();
+        for (Map.Entry<Thread, ActiveRootFlag> entry : rootThreads) {
+            if (entry.getValue().active) {
+                activeRootThreadIds.add(entry.getKey().getId());
+            }
+        }
+        for (Long2ObjectHashMap<CallTree.Root>.EntryIterator iterator = profiledThreads.entrySet().iterator(); iterator.hasNext(); ) {
+            iterator.next();
+            if (iterator.getValue().getLastEventTimestamp() < sessionStart && !activeRootThreadIds.contains(iterator.getLongKey())) {
+                idleThreadIds.add(iterator.getLongKey());
+            }
+        }
+        for (int i = 0, size = idleThreadIds.getSize(); i < size; i++) {
+            CallTree.Root root = profiledThreads.remove(idleThreadIds.get(i));
+            if (root != null) {
+                root.recycle(callTreePool, rootPool);
+            }
+        }
+        if (idleThreadIds.getSize() > 0 && logger.isDebugEnabled()) {
+            logger.debug("Evicted the call trees of {} idle threads", idleThreadIds.getSize());
+        }
+        idleThreadIds.clear();
+    }
+
     String createStartCommand() {
         StringBuilder startCommand = new StringBuilder("start,jfr,event=wall,cstack=n,interval=")
             .append(config.getSamplingInterval().getMillis()).append("ms,filter,file=")
@@ -445,19 +614,24 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return startCommand.toString();
     }
 
+    private boolean hasActiveRoot(Thread thread) {
+        ActiveRootFlag activeRoot = rootThreads.get(thread);
+        return activeRoot != null && activeRoot.active;
+    }
+
     /**
      * When doing continuous profiling (interval=duration),
      * we have to tell async-profiler which threads it should profile after re-starting it.
      */
     private void restoreFilterState(AsyncProfiler asyncProfiler) {
         threadMatcher.forEachThread(
-            new ThreadMatcher.NonCapturingPredicate<Thread, Long2ObjectHashMap<?>.KeySet>() {
+            new ThreadMatcher.NonCapturingPredicate<Thread, SamplingProfiler>() {
                 @Override
-                public boolean test(Thread thread, Long2ObjectHashMap<?>.KeySet profiledThreads) {
-                    return profiledThreads.contains(thread.getId());
+                public boolean test(Thread thread, SamplingProfiler profiler) {
+                    return profiler.profiledThreads.containsKey(thread.getId()) || profiler.hasActiveRoot(thread);
                 }
             },
-            profiledThreads.keySet(),
+            this,
             new ThreadMatcher.NonCapturingConsumer<Thread, AsyncProfiler>() {
                 @Override
                 public void accept(Thread thread, AsyncProfiler asyncProfiler) {
@@ -500,8 +674,15 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     public void processTraces() throws IOException {
+        processTraces(jfrFile);
+    }
+
+    private void processTraces(File jfrFile) throws IOException {
         if (jfrParser == null) {
-            jfrParser = new JfrParser();
+            jfrParser = new JfrParser(stackTraceDictionary, config.getMaxPooledBufferSize());
+        }
+        if (stackTraceEventWindow == null) {
+            stackTraceEventWindow = new StackTraceEventWindow(STACK_TRACE_EVENT_WINDOW_SIZE);
         }
         if (Thread.currentThread().isInterrupted()) {
             return;
@@ -509,7 +690,10 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         createFilesIfRequired();
 
         long eof = startProcessingActivationEventsFile();
-        if (eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
+        boolean hasActivationEvents = activationEventLog != null
+            ? activationEventLog.hasNext()
+            : eof > 0 || activationEventsBuffer.limit() > 0;
+        if (!hasActivationEvents && profiledThreads.isEmpty()) {
             logger.debug("No activation events during this period. Skip processing stack traces.");
             return;
         }
@@ -517,40 +701,19 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         List<WildcardMatcher> excludedClasses = config.getExcludedClasses();
         List<WildcardMatcher> includedClasses = config.getIncludedClasses();
         if (config.isBackupDiagnosticFiles()) {
-            backupDiagnosticFiles(eof);
+            backupDiagnosticFiles(eof, jfrFile);
         }
         try {
             jfrParser.parse(jfrFile, excludedClasses, includedClasses);
-            final List<StackTraceEvent> stackTraceEvents = getSortedStackTraceEvents(jfrParser);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Processing {} stack traces", stackTraceEvents.size());
-            }
-            List<StackFrame> stackFrames = new ArrayList<>();
-            ElasticApmTracer tracer = this.tracer;
             ActivationEvent event = new ActivationEvent();
-            long inferredSpansMinDuration = getInferredSpansMinDurationNs();
-            for (StackTraceEvent stackTrace : stackTraceEvents) {
-                processActivationEventsUpTo(stackTrace.nanoTime, event, eof);
-                CallTree.Root root = profiledThreads.get(stackTrace.threadId);
-                if (root != null) {
-                    jfrParser.resolveStackTrace(stackTrace.stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
-                    if (stackFrames.size() == MAX_STACK_DEPTH) {
-                        logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
-                    }
-                    // stack frames may not contain any Java frames
-                    // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
-                    if (!stackFrames.isEmpty()) {
-                        try {
-                            root.addStackTrace(tracer, stackFrames, stackTrace.nanoTime, callTreePool, inferredSpansMinDuration);
-                        } catch (Exception e) {
-                            logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
-                                stackTrace.threadId, e.getClass(), e.getMessage());
-                            logger.debug(e.getMessage(), e);
-                            profiledThreads.remove(stackTrace.threadId);
-                        }
-                    }
-                }
-                stackFrames.clear();
+            // streams the stack trace events through a bounded window which restores their time order
+            // so that the memory needed to process them does not grow with the number of events
+            OrderedStackTraceProcessor processor = new OrderedStackTraceProcessor(jfrParser, stackTraceEventWindow, event, eof);
+            jfrParser.consumeStackTraces(processor);
+            processor.processRemaining();
+            if (processor.skippedEvents > 0) {
+                logger.warn("Skipped {} of {} stack traces which were too far out of order",
+                    processor.skippedEvents, processor.skippedEvents + processor.processedEvents);
             }
             // process all activation events that happened after the last stack trace event
             // otherwise we may miss root deactivations
@@ -560,17 +723,24 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
             }
             jfrParser.resetState();
+            stackTraceEventWindow.clear();
             resetActivationEventBuffer();
+            if (stackTraceDictionary.isFull()) {
+                // start over so that the dictionary adapts to the frames of the current workload
+                stackTraceDictionary.clear();
+            }
         }
     }
 
-    private void backupDiagnosticFiles(long eof) throws IOException {
+    private void backupDiagnosticFiles(long eof, File jfrFile) throws IOException {
         String now = String.format("%tFT%<tT.%<tL", new Date());
         Path profilerDir = Paths.get(System.getProperty("java.io.tmpdir"), "profiler");
         profilerDir.toFile().mkdir();
 
         try (FileChannel activationsFile = FileChannel.open(profilerDir.resolve(now + "-activations.dat"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            if (eof > 0) {
+            if (activationEventLog != null) {
+                activationEventLog.writeTo(activationsFile);
+            } else if (eof > 0) {
                 activationEventsFileChannel.transferTo(0, eof, activationsFile);
             } else {
                 int position = activationEventsBuffer.position();
@@ -585,31 +755,18 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return Math.max(config.getInferredSpansMinDuration().getMillis(), coreConfig.getSpanMinDuration().getMillis()) * 1_000_000;
     }
 
-    /**
-     * Returns stack trace events of relevant threads sorted by timestamp.
-     * The events in the JFR file are not in order.
-     * Even for the same thread, a more recent event might come before an older event.
-     * In order to be able to correlate stack trace events and activation events, both need to be in order.
-     * <p>
-     * Returns only events for threads where at least one activation happened (because only those are profiled by async-profiler)
-     */
-    private List<StackTraceEvent> getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
-        final List<StackTraceEvent> stackTraceEvents = new ArrayList<>();
-        jfrParser.consumeStackTraces(new JfrParser.StackTraceConsumer() {
-            @Override
-            public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
-                stackTraceEvents.add(new StackTraceEvent(nanoTime, stackTraceId, threadId));
-            }
-        });
-        Collections.sort(stackTraceEvents);
-        return stackTraceEvents;
-    }
-
     void processActivationEventsUpTo(long timestamp, long eof) throws IOException {
         processActivationEventsUpTo(timestamp, new ActivationEvent(), eof);
     }
 
     public void processActivationEventsUpTo(long timestamp, ActivationEvent event, long eof) throws IOException {
+        if (activationEventLog != null) {
+            while (activationEventLog.hasNext() && activationEventLog.peekTimestamp() <= timestamp) {
+                event.deserialize(activationEventLog.next());
+                handleActivationEvent(event);
+            }
+            return;
+        }
         FileChannel activationEventsFileChannel = this.activationEventsFileChannel;
         ByteBuffer buf = activationEventsBuffer;
         long previousTimestamp = 0;
@@ -624,20 +781,24 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             previousTimestamp = eventTimestamp;
             if (eventTimestamp <= timestamp) {
                 event.deserialize(buf);
-                try {
-                    event.handle(this);
-                } catch (Exception e) {
-                    logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
-                        event.threadId, e.getClass(), e.getMessage());
-                    logger.debug(e.getMessage(), e);
-                    profiledThreads.remove(event.threadId);
-                }
+                handleActivationEvent(event);
             } else {
                 return;
             }
         }
     }
 
+    private void handleActivationEvent(ActivationEvent event) {
+        try {
+            event.handle(this);
+        } catch (Exception e) {
+            logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
+                event.threadId, e.getClass(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+            profiledThreads.remove(event.threadId);
+        }
+    }
+
     private void readActivationEventsToBuffer(FileChannel activationEventsFileChannel, long eof, ByteBuffer byteBuffer) throws IOException {
         Buffer buf = byteBuffer;
         buf.clear();
@@ -660,6 +821,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     public void resetActivationEventBuffer() throws IOException {
         ((Buffer) activationEventsBuffer).clear();
+        if (activationEventLog != null) {
+            activationEventLog.finishReading();
+        }
         if (activationEventsFileChannel != null && activationEventsFileChannel.isOpen()) {
             activationEventsFileChannel.position(0L);
         }
@@ -675,6 +839,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     long startProcessingActivationEventsFile() throws IOException {
         Buffer activationEventsBuffer = this.activationEventsBuffer;
+        if (activationEventLog != null) {
+            activationEventLog.startReading();
+            activationEventsBuffer.limit(0);
+            return 0;
+        }
         if (activationEventsFileChannel.position() > 0) {
             flushActivationEvents();
             activationEventsBuffer.limit(0);
@@ -706,6 +875,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         // cancels/interrupts the profiling thread
         // implicitly clears profiled threads
         ExecutorUtils.shutdownAndWaitTermination(scheduler);
+        stopRecordingContinuously();
 
         if (activationEventsFileChannel != null) {
             activationEventsFileChannel.close();
@@ -714,6 +884,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (jfrFile != null && canDeleteJfrFile) {
             jfrFile.delete();
         }
+        if (alternateJfrFile != null && canDeleteAlternateJfrFile) {
+            alternateJfrFile.delete();
+        }
         if (activationEventsFile != null && canDeleteActivationEventsFile) {
             activationEventsFile.delete();
         }
@@ -754,9 +927,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             throw new RuntimeException(e);
         }
         resetActivationEventBuffer();
+        if (activationEventLog != null) {
+            activationEventLog.clear();
+        }
         profiledThreads.clear();
         callTreePool.clear();
         rootPool.clear();
+        stackTraceDictionary.clear();
     }
 
     int getProfilingSessions() {
@@ -764,32 +941,101 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
     // --
 
-    public static class StackTraceEvent implements Comparable<StackTraceEvent> {
-        private final long nanoTime;
-        private final long stackTraceId;
-        private final long threadId;
+    /**
+     * Correlates the stack trace events with the activation events in time order.
+     * The stack trace events of the JFR file are not in order.
+     * Even for the same thread, a more recent event might come before an older event.
+     * Therefore, they are streamed through a {@link StackTraceEventWindow} before being processed.
+     * The window is sized upfront so that it is large enough to put all events in order.
+     * <p>
+     * Only processes events for threads where at least one activation happened (because only those are profiled by async-profiler)
+     * </p>
+     */
+    private class OrderedStackTraceProcessor implements JfrParser.StackTraceConsumer {
+
+        private final JfrParser jfrParser;
+        private final StackTraceEventWindow window;
+        private final ActivationEvent event;
+        private final long eof;
+        private final List<StackFrame> stackFrames = new ArrayList<>();
+        private final long inferredSpansMinDuration = getInferredSpansMinDurationNs();
+        private int processedEvents;
+        private int skippedEvents;
+
+        private OrderedStackTraceProcessor(JfrParser jfrParser, StackTraceEventWindow window, ActivationEvent event, long eof) {
+            this.jfrParser = jfrParser;
+            this.window = window;
+            this.event = event;
+            this.eof = eof;
+        }
 
-        private StackTraceEvent(long nanoTime, long stackTraceId, long threadId) {
-            this.nanoTime = nanoTime;
-            this.stackTraceId = stackTraceId;
-            this.threadId = threadId;
+        @Override
+        public void onCallTree(long threadId, long stackTraceId, long nanoTime) throws IOException {
+            if (window.isFull()) {
+                processOldest();
+            }
+            if (!window.add(nanoTime, stackTraceId, threadId)) {
+                processLate(threadId, stackTraceId, nanoTime);
+            }
         }
 
-        public long getThreadId() {
-            return threadId;
+        /**
+         * Activation events up to a later timestamp have already been processed.
+         * If there was no activation, deactivation, or stack trace of the same thread since the event,
+         * the call tree of that thread is in the same state as it was at the time of the event,
+         * so the event can be processed anyway without having to grow the window.
+         */
+        private void processLate(long threadId, long stackTraceId, long nanoTime) throws IOException {
+            CallTree.Root root = profiledThreads.get(threadId);
+            if (root == null) {
+                // the thread has not been profiled at the time of the event or its root has since been deactivated
+                return;
+            }
+            if (nanoTime < root.getLastEventTimestamp()) {
+                skippedEvents++;
+                return;
+            }
+            processedEvents++;
+            addStackTrace(root, threadId, stackTraceId, nanoTime);
         }
 
-        public long getNanoTime() {
-            return nanoTime;
+        void processRemaining() throws IOException {
+            while (!window.isEmpty()) {
+                processOldest();
+            }
         }
 
-        public long getStackTraceId() {
-            return stackTraceId;
+        private void processOldest() throws IOException {
+            long nanoTime = window.peekNanoTime();
+            long stackTraceId = window.peekStackTraceId();
+            long threadId = window.peekThreadId();
+            window.removeOldest();
+            processedEvents++;
+            processActivationEventsUpTo(nanoTime, event, eof);
+            CallTree.Root root = profiledThreads.get(threadId);
+            if (root != null) {
+                addStackTrace(root, threadId, stackTraceId, nanoTime);
+            }
         }
 
-        @Override
-        public int compareTo(StackTraceEvent o) {
-            return Long.compare(nanoTime, o.nanoTime);
+        private void addStackTrace(CallTree.Root root, long threadId, long stackTraceId, long nanoTime) throws IOException {
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+            if (stackFrames.size() == MAX_STACK_DEPTH) {
+                logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
+            }
+            // stack frames may not contain any Java frames
+            // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
+            if (!stackFrames.isEmpty()) {
+                try {
+                    root.addStackTrace(tracer, stackFrames, nanoTime, callTreePool, inferredSpansMinDuration);
+                } catch (Exception e) {
+                    logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
+                        threadId, e.getClass(), e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    profiledThreads.remove(threadId);
+                }
+            }
+            stackFrames.clear();
         }
     }
 
@@ -804,11 +1050,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 Long.SIZE / Byte.SIZE + // threadId
                 1; // activation
 
-        private static final Map<String, Short> serviceNameMap = new HashMap<>();
-        private static final Map<Short, String> serviceNameBackMap = new HashMap<>();
-
-        private static final Map<String, Short> serviceVersionMap = new HashMap<>();
-        private static final Map<Short, String> serviceVersionBackMap = new HashMap<>();
+        // events may be serialized by application threads, see PerThreadEventLog
+        private static final StringIndex serviceNames = new StringIndex();
+        private static final StringIndex serviceVersions = new StringIndex();
 
         private long timestamp;
         @Nullable
@@ -820,6 +1064,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         private boolean rootContext;
         private long threadId;
         private boolean activation;
+        // caches the last index lookup as the service name of consecutive events is mostly the same
+        @Nullable
+        private String lastServiceName;
+        private short lastServiceNameIndex = -1;
+        @Nullable
+        private String lastServiceVersion;
+        private short lastServiceVersionIndex = -1;
 
         public void activation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
             set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime);
@@ -943,8 +1194,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
         public void deserialize(ByteBuffer buf) {
             timestamp = buf.getLong();
-            serviceName = serviceNameBackMap.get(buf.getShort());
-            serviceVersion = serviceVersionBackMap.get(buf.getShort());
+            serviceName = serviceNames.getValue(buf.getShort());
+            serviceVersion = serviceVersions.getValue(buf.getShort());
             buf.get(traceContextBuffer);
             buf.get(previousContextBuffer);
             rootContext = buf.get() == 1;
@@ -953,24 +1204,60 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
 
         private short getServiceNameIndex() {
-            Short index = serviceNameMap.get(serviceName);
-            if (index == null) {
-                index = (short) serviceNameMap.size();
-                serviceNameMap.put(serviceName, index);
-                serviceNameBackMap.put(index, serviceName);
+            if (lastServiceNameIndex < 0 || lastServiceName != serviceName) {
+                lastServiceNameIndex = serviceNames.getIndex(serviceName);
+                lastServiceName = serviceName;
             }
-            return index;
+            return lastServiceNameIndex;
         }
 
         private short getServiceVersionIndex() {
-            Short index = serviceVersionMap.get(serviceVersion);
+            if (lastServiceVersionIndex < 0 || lastServiceVersion != serviceVersion) {
+                lastServiceVersionIndex = serviceVersions.getIndex(serviceVersion);
+                lastServiceVersion = serviceVersion;
+            }
+            return lastServiceVersionIndex;
+        }
+
+    }
+
+    /**
+     * Assigns a stable index to each distinct string, so that events can be serialized with a fixed size.
+     * Looking up the value of an index doesn't take a lock, as it happens for every deserialized event.
+     * Assigning an index takes a lock but happens rarely, as serializers cache the index of the last value.
+     */
+    /**
+     * Whether a thread currently has an active root span.
+     * Only written by the thread itself and read by the profiling thread.
+     */
+    private static class ActiveRootFlag {
+        private volatile boolean active;
+    }
+
+    private static class StringIndex {
+
+        // guarded by this
+        private final Map<String, Short> indices = new HashMap<>();
+        private volatile String[] values = new String[0];
+
+        synchronized short getIndex(@Nullable String value) {
+            Short index = indices.get(value);
             if (index == null) {
-                index = (short) serviceVersionMap.size();
-                serviceVersionMap.put(serviceVersion, index);
-                serviceVersionBackMap.put(index, serviceVersion);
+                String[] values = this.values;
+                index = (short) values.length;
+                String[] newValues = Arrays.copyOf(values, values.length + 1);
+                newValues[index] = value;
+                indices.put(value, index);
+                this.values = newValues;
             }
             return index;
         }
+
+        @Nullable
+        String getValue(short index) {
+            String[] values = this.values;
+            return index >= 0 && index < values.length ? values[index] : null;
+        }
     }
 
     /**
@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import java.util.Arrays;
+
+/**
+ * A bounded window of stack trace events which restores their time order.
+ * <p>
+ * The stack trace events in a JFR file are not in order,
+ * but an event is usually not far away from its position in time order.
+ * Instead of collecting and sorting all events of a profiling session,
+ * the events are streamed through this window.
+ * Once the window is full, the oldest event is removed to make space for the next one.
+ * This keeps the memory that's required to order the events constant, regardless of the number of events.
+ * </p>
+ * <p>
+ * async-profiler writes the events from a fixed number of buffers, each one being flushed when it's full.
+ * Therefore, the events of a buffer that only fills up slowly can be arbitrarily far away from their position in time order.
+ * Such events are {@linkplain #add rejected} by the window.
+ * The events of a thread are usually written from the same buffer and are therefore in time order relative to each other.
+ * This lets the caller decide per thread whether a rejected event can be processed anyway.
+ * </p>
+ * <p>
+ * Implementation notes:
+ * </p>
+ * The window is a binary min-heap, keyed by the timestamp of the events.
+ * The events are stored in primitive arrays to avoid allocating an object per event.
+ * The arrays grow on demand up to the capacity so that a window that only sees a few events stays small.
+ */
+class StackTraceEventWindow {
+
+    private static final int INITIAL_LENGTH = 1024;
+
+    private long[] nanoTimes;
+    private long[] stackTraceIds;
+    private long[] threadIds;
+    private final int capacity;
+    private int size;
+    private long lastRemovedNanoTime = Long.MIN_VALUE;
+
+    StackTraceEventWindow(int capacity) {
+        this.capacity = capacity;
+        allocate(Math.min(capacity, INITIAL_LENGTH));
+    }
+
+    private void allocate(int length) {
+        nanoTimes = Arrays.copyOf(nanoTimes != null ? nanoTimes : new long[0], length);
+        stackTraceIds = Arrays.copyOf(stackTraceIds != null ? stackTraceIds : new long[0], length);
+        threadIds = Arrays.copyOf(threadIds != null ? threadIds : new long[0], length);
+    }
+
+    /**
+     * Adds an event to the window.
+     * The window must not be {@linkplain #isFull() full}.
+     *
+     * @return {@code false} if the event is older than an event that has already been removed,
+     * which means that the event can't be put in order
+     */
+    boolean add(long nanoTime, long stackTraceId, long threadId) {
+        if (nanoTime < lastRemovedNanoTime) {
+            return false;
+        }
+        if (size == nanoTimes.length) {
+            allocate((int) Math.min(capacity, 2L * nanoTimes.length));
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (nanoTimes[parent] <= nanoTime) {
+                break;
+            }
+            set(i, parent);
+            i = parent;
+        }
+        nanoTimes[i] = nanoTime;
+        stackTraceIds[i] = stackTraceId;
+        threadIds[i] = threadId;
+        return true;
+    }
+
+    long peekNanoTime() {
+        return nanoTimes[0];
+    }
+
+    long peekStackTraceId() {
+        return stackTraceIds[0];
+    }
+
+    long peekThreadId() {
+        return threadIds[0];
+    }
+
+    /**
+     * Removes the oldest event.
+     * Use {@link #peekNanoTime()}, {@link #peekStackTraceId()}, and {@link #peekThreadId()} to get its values before removing it.
+     */
+    void removeOldest() {
+        lastRemovedNanoTime = nanoTimes[0];
+        int last = --size;
+        long nanoTime = nanoTimes[last];
+        long stackTraceId = stackTraceIds[last];
+        long threadId = threadIds[last];
+        int i = 0;
+        int half = last >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < last && nanoTimes[child + 1] < nanoTimes[child]) {
+                child++;
+            }
+            if (nanoTime <= nanoTimes[child]) {
+                break;
+            }
+            set(i, child);
+            i = child;
+        }
+        nanoTimes[i] = nanoTime;
+        stackTraceIds[i] = stackTraceId;
+        threadIds[i] = threadId;
+    }
+
+    private void set(int to, int from) {
+        nanoTimes[to] = nanoTimes[from];
+        stackTraceIds[to] = stackTraceIds[from];
+        threadIds[to] = threadIds[from];
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+        lastRemovedNanoTime = Long.MIN_VALUE;
+    }
+}
@@ -19,11 +19,14 @@
 package co.elastic.apm.agent.profiler.asyncprofiler;
 
 import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.StackTraceDictionary;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
-import co.elastic.apm.agent.profiler.collections.Int2IntHashMap;
+import co.elastic.apm.agent.profiler.collections.DirectBufferPool;
 import co.elastic.apm.agent.profiler.collections.Int2ObjectHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+import co.elastic.apm.agent.profiler.collections.OffHeapInt2IntHashMap;
+import co.elastic.apm.agent.profiler.collections.OffHeapLong2LongHashMap;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
@@ -55,20 +58,30 @@ public class JfrParser implements Recyclable {
     private static final Set<String> JAVA_FRAME_TYPES = new HashSet<>(Arrays.asList("Interpreted", "JIT compiled", "Inlined"));
     private static final int BIG_FILE_BUFFER_SIZE = 5 * 1024 * 1024;
     private static final int SMALL_FILE_BUFFER_SIZE = 4 * 1024;
+    // the default of profiling_inferred_spans_max_pooled_buffer_size
+    private static final long DEFAULT_MAX_POOLED_BUFFER_BYTES = 16 * 1024 * 1024;
     private static final String SYMBOL_EXCLUDED = "3x cluded";
     private static final String SYMBOL_NULL = "n u11";
     private final static StackFrame FRAME_EXCLUDED = new StackFrame("excluded", "excluded");
     private final static StackFrame FRAME_NULL = new StackFrame("null", "null");
 
     private final BufferedFile bufferedFile;
-    private final Int2IntHashMap classIdToClassNameSymbolId = new Int2IntHashMap(-1);
-    private final Int2IntHashMap symbolIdToPos = new Int2IntHashMap(-1);
+    @Nullable
+    private final StackTraceDictionary stackTraceDictionary;
+    /**
+     * Backs the primitive maps which grow with the number of frames, stack traces and symbols of a JFR file.
+     * Their memory is returned to the pool after each file,
+     * which retains one buffer per map up to a maximum size for the next file and frees larger ones right away.
+     */
+    private final DirectBufferPool bufferPool;
+    private final OffHeapInt2IntHashMap classIdToClassNameSymbolId;
+    private final OffHeapInt2IntHashMap symbolIdToPos;
     private final Int2ObjectHashMap<String> symbolIdToString = new Int2ObjectHashMap<String>();
-    private final Int2IntHashMap stackTraceIdToFilePositions = new Int2IntHashMap(-1);
+    private final OffHeapInt2IntHashMap stackTraceIdToFilePositions;
     private final Long2LongHashMap nativeTidToJavaTid = new Long2LongHashMap(-1);
     private final Long2ObjectHashMap<StackFrame> frameIdToFrame = new Long2ObjectHashMap<StackFrame>();
-    private final Long2LongHashMap frameIdToMethodSymbol = new Long2LongHashMap(-1);
-    private final Long2LongHashMap frameIdToClassId = new Long2LongHashMap(-1);
+    private final OffHeapLong2LongHashMap frameIdToMethodSymbol;
+    private final OffHeapLong2LongHashMap frameIdToClassId;
     // used to resolve a symbol with minimal allocations
     private final StringBuilder symbolBuilder = new StringBuilder();
     private long eventsOffset;
@@ -81,11 +94,39 @@ public class JfrParser implements Recyclable {
     private List<WildcardMatcher> includedClasses;
 
     public JfrParser() {
-        this(ByteBuffer.allocateDirect(BIG_FILE_BUFFER_SIZE), ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE));
+        this(null);
+    }
+
+    /**
+     * @param stackTraceDictionary the dictionary which the resolved frames are interned into,
+     *                             so that frames are shared across parsed files instead of being created once per file
+     */
+    public JfrParser(@Nullable StackTraceDictionary stackTraceDictionary) {
+        this(stackTraceDictionary, DEFAULT_MAX_POOLED_BUFFER_BYTES);
+    }
+
+    /**
+     * @param stackTraceDictionary the dictionary which the resolved frames are interned into,
+     *                             so that frames are shared across parsed files instead of being created once per file
+     * @param maxPooledBufferBytes the maximum size of a buffer backing a primitive map which is retained for the next file
+     */
+    public JfrParser(@Nullable StackTraceDictionary stackTraceDictionary, long maxPooledBufferBytes) {
+        this(ByteBuffer.allocateDirect(BIG_FILE_BUFFER_SIZE), ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE), stackTraceDictionary, maxPooledBufferBytes);
     }
 
     JfrParser(ByteBuffer bigBuffer, ByteBuffer smallBuffer) {
+        this(bigBuffer, smallBuffer, null, DEFAULT_MAX_POOLED_BUFFER_BYTES);
+    }
+
+    JfrParser(ByteBuffer bigBuffer, ByteBuffer smallBuffer, @Nullable StackTraceDictionary stackTraceDictionary, long maxPooledBufferBytes) {
         bufferedFile = new BufferedFile(bigBuffer, smallBuffer);
+        this.stackTraceDictionary = stackTraceDictionary;
+        bufferPool = new DirectBufferPool(maxPooledBufferBytes);
+        classIdToClassNameSymbolId = new OffHeapInt2IntHashMap(bufferPool, -1);
+        symbolIdToPos = new OffHeapInt2IntHashMap(bufferPool, -1);
+        stackTraceIdToFilePositions = new OffHeapInt2IntHashMap(bufferPool, -1);
+        frameIdToMethodSymbol = new OffHeapLong2LongHashMap(bufferPool, -1);
+        frameIdToClassId = new OffHeapLong2LongHashMap(bufferPool, -1);
     }
 
     /**
@@ -387,6 +428,9 @@ public class JfrParser implements Recyclable {
         } else {
             String method = resolveSymbol((int) frameIdToMethodSymbol.get(frameId), false);
             stackFrame = new StackFrame(className, Objects.requireNonNull(method));
+            if (stackTraceDictionary != null) {
+                stackFrame = stackTraceDictionary.intern(stackFrame);
+            }
         }
         frameIdToFrame.put(frameId, stackFrame);
         return stackFrame;
@@ -418,16 +462,26 @@ public class JfrParser implements Recyclable {
         eventsOffset = 0;
         metadataOffset = 0;
         isJavaFrameType = null;
-        classIdToClassNameSymbolId.clear();
-        stackTraceIdToFilePositions.clear();
+        classIdToClassNameSymbolId.release();
+        stackTraceIdToFilePositions.release();
         frameIdToFrame.clear();
-        frameIdToMethodSymbol.clear();
-        frameIdToClassId.clear();
+        frameIdToFrame.compact();
+        frameIdToMethodSymbol.release();
+        frameIdToClassId.release();
         symbolBuilder.setLength(0);
         excludedClasses = null;
         includedClasses = null;
-        symbolIdToPos.clear();
+        symbolIdToPos.release();
         symbolIdToString.clear();
+        symbolIdToString.compact();
+    }
+
+    /**
+     * Frees the direct buffers which are retained for the next parsed file.
+     * Must only be called after {@link #resetState()}, when this parser is not going to be used anymore.
+     */
+    public void freePooledBuffers() {
+        bufferPool.clear();
     }
 
     public interface StackTraceConsumer {
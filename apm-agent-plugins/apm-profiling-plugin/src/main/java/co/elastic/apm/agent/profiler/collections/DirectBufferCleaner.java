@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler.collections;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees the native memory of a direct {@link ByteBuffer} right away instead of when the buffer gets garbage collected.
+ * <p>
+ * Uses {@code sun.misc.Unsafe#invokeCleaner} on Java 9+ and the buffer's {@code Cleaner} on Java 7 and 8.
+ * If neither is accessible, freeing the memory is left to the garbage collector.
+ * </p>
+ */
+class DirectBufferCleaner {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectBufferCleaner.class);
+
+    @Nullable
+    private static final Object UNSAFE;
+    @Nullable
+    private static final Method INVOKE_CLEANER;
+    @Nullable
+    private static final Method CLEANER;
+    @Nullable
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception e2) {
+                logger.debug("Can't free direct buffers explicitly, leaving it to the garbage collector: {}", e2.getMessage());
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private DirectBufferCleaner() {
+    }
+
+    /**
+     * Frees the native memory of the buffer.
+     * The buffer and any of its duplicates or slices must not be used afterwards.
+     *
+     * @param buffer a direct buffer which has been allocated via {@link ByteBuffer#allocateDirect(int)}
+     */
+    static void clean(ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null && CLEAN != null) {
+                Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Failed to free direct buffer: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A pool of direct {@link ByteBuffer}s which back the off-heap collections,
+ * like {@link OffHeapLong2LongHashMap} and {@link OffHeapInt2IntHashMap}.
+ * <p>
+ * Each collection gets its own {@linkplain #newSlot() slot} in the pool.
+ * When a collection is {@linkplain OffHeapLong2LongHashMap#release() released}, its buffer is retained in its slot,
+ * so that the next usage of the collection can reuse it instead of allocating new direct memory.
+ * This is what avoids allocating and freeing the large buffers of the collections over and over again.
+ * Only buffers up to a maximum size are retained.
+ * Larger buffers, the buffers a collection has outgrown, and the buffers of the pool when it's {@linkplain #clear() cleared}
+ * are freed right away via {@link DirectBufferCleaner}, instead of waiting for the garbage collector to free their native memory.
+ * </p>
+ */
+public class DirectBufferPool {
+
+    private final long maxPooledBufferBytes;
+    private ByteBuffer[] slots = new ByteBuffer[0];
+
+    /**
+     * @param maxPooledBufferBytes the maximum capacity of a buffer which is retained in a slot
+     */
+    public DirectBufferPool(long maxPooledBufferBytes) {
+        this.maxPooledBufferBytes = maxPooledBufferBytes;
+    }
+
+    /**
+     * @return the id of a new slot which retains the buffer of a single collection
+     */
+    public synchronized int newSlot() {
+        slots = Arrays.copyOf(slots, slots.length + 1);
+        return slots.length - 1;
+    }
+
+    /**
+     * Acquires a buffer in native byte order whose contents are undefined.
+     * Returns the buffer retained in the slot if it's at least as large as requested.
+     *
+     * @param slot     the slot of the collection
+     * @param capacity the minimum capacity in bytes, must be a power of two
+     * @return a buffer whose capacity is a power of two of at least the requested capacity
+     */
+    public synchronized ByteBuffer acquire(int slot, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        ByteBuffer buffer = slots[slot];
+        if (buffer != null) {
+            slots[slot] = null;
+            if (buffer.capacity() >= capacity) {
+                return buffer;
+            }
+            DirectBufferCleaner.clean(buffer);
+        }
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Retains a buffer which has been {@linkplain #acquire(int, int) acquired} from this pool in the slot of the collection,
+     * or frees it if it's larger than the maximum size.
+     * The buffer must not be used after it has been released.
+     *
+     * @param slot   the slot of the collection
+     * @param buffer the buffer to release
+     */
+    public synchronized void release(int slot, ByteBuffer buffer) {
+        ByteBuffer retained = slots[slot];
+        slots[slot] = null;
+        if (retained != null) {
+            DirectBufferCleaner.clean(retained);
+        }
+        if (buffer.capacity() <= maxPooledBufferBytes) {
+            slots[slot] = buffer;
+        } else {
+            DirectBufferCleaner.clean(buffer);
+        }
+    }
+
+    /**
+     * Frees a buffer which has been {@linkplain #acquire(int, int) acquired} from this pool and which is not going to be reused,
+     * for example because the collection has outgrown it.
+     * The buffer must not be used after it has been freed.
+     *
+     * @param buffer the buffer to free
+     */
+    public void free(ByteBuffer buffer) {
+        DirectBufferCleaner.clean(buffer);
+    }
+
+    public synchronized long getPooledBytes() {
+        long pooledBytes = 0;
+        for (ByteBuffer buffer : slots) {
+            if (buffer != null) {
+                pooledBytes += buffer.capacity();
+            }
+        }
+        return pooledBytes;
+    }
+
+    /**
+     * Frees all retained buffers
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                DirectBufferCleaner.clean(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler.collections;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash map with linear probing for primitive {@code long} keys and values,
+ * which stores its entries in a direct {@link ByteBuffer} of a {@link DirectBufferPool} instead of a heap array.
+ * <p>
+ * Has the same primitive API and probing scheme as {@link Long2LongHashMap}.
+ * In contrast to {@link Long2LongHashMap#clear()}, which retains the capacity the map has grown to,
+ * {@link #release()} gives the memory back to the pool, which either retains it for the next usage of the map or frees it.
+ * That allows maps which are only needed during a short period of time,
+ * like while parsing a JFR file, to reuse their memory without keeping buffers larger than the pool's limit resident in between.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class OffHeapLong2LongHashMap {
+
+    static final int MIN_CAPACITY = 8;
+    private static final int ENTRY_SHIFT = 3;
+
+    private final DirectBufferPool pool;
+    private final int poolSlot;
+    private final long missingValue;
+    private final float loadFactor;
+    @Nullable
+    private ByteBuffer entries;
+    /**
+     * The number of slots for keys and values, twice the capacity
+     */
+    private int slots;
+    private int resizeThreshold;
+    private int size;
+    /**
+     * The capacity which fits the entries of the map before the last {@link #release()},
+     * so that the next usage does not have to grow through all sizes again
+     */
+    private int initialCapacity = MIN_CAPACITY;
+
+    public OffHeapLong2LongHashMap(DirectBufferPool pool, long missingValue) {
+        this(pool, missingValue, Hashing.DEFAULT_LOAD_FACTOR);
+    }
+
+    public OffHeapLong2LongHashMap(DirectBufferPool pool, long missingValue, float loadFactor) {
+        CollectionUtil.validateLoadFactor(loadFactor);
+        this.pool = pool;
+        this.poolSlot = pool.newSlot();
+        this.missingValue = missingValue;
+        this.loadFactor = loadFactor;
+    }
+
+    public long missingValue() {
+        return missingValue;
+    }
+
+    /**
+     * @return the number of entries the map can hold before growing, {@code 0} if the map does not hold memory
+     */
+    public int capacity() {
+        return slots >> 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(final long key) {
+        final ByteBuffer entries = this.entries;
+        if (entries == null) {
+            return missingValue;
+        }
+        final long missingValue = this.missingValue;
+        final int mask = slots - 1;
+        int index = Hashing.evenHash(key, mask);
+        long value;
+        while ((value = entries.getLong((index + 1) << ENTRY_SHIFT)) != missingValue) {
+            if (entries.getLong(index << ENTRY_SHIFT) == key) {
+                return value;
+            }
+            index = next(index, mask);
+        }
+        return missingValue;
+    }
+
+    public boolean containsKey(final long key) {
+        return get(key) != missingValue;
+    }
+
+    /**
+     * Put a key value pair in the map.
+     *
+     * @param key   lookup key
+     * @param value new value, must not be {@link #missingValue()}
+     * @return the previous value associated with the key, or {@link #missingValue()} if none found
+     * @throws IllegalArgumentException if value is {@link #missingValue()}
+     */
+    public long put(final long key, final long value) {
+        if (value == missingValue) {
+            throw new IllegalArgumentException("cannot accept missingValue");
+        }
+        ByteBuffer entries = this.entries;
+        if (entries == null) {
+            allocate(initialCapacity);
+            entries = this.entries;
+            assert entries != null;
+        }
+        final long missingValue = this.missingValue;
+        final int mask = slots - 1;
+        int index = Hashing.evenHash(key, mask);
+        long oldValue;
+        while ((oldValue = entries.getLong((index + 1) << ENTRY_SHIFT)) != missingValue) {
+            if (entries.getLong(index << ENTRY_SHIFT) == key) {
+                break;
+            }
+            index = next(index, mask);
+        }
+        if (oldValue == missingValue) {
+            ++size;
+            entries.putLong(index << ENTRY_SHIFT, key);
+        }
+        entries.putLong((index + 1) << ENTRY_SHIFT, value);
+        if (size > resizeThreshold) {
+            rehash(slots);
+        }
+        return oldValue;
+    }
+
+    public long remove(final long key) {
+        final ByteBuffer entries = this.entries;
+        if (entries == null) {
+            return missingValue;
+        }
+        final long missingValue = this.missingValue;
+        final int mask = slots - 1;
+        int index = Hashing.evenHash(key, mask);
+        long value;
+        while ((value = entries.getLong((index + 1) << ENTRY_SHIFT)) != missingValue) {
+            if (entries.getLong(index << ENTRY_SHIFT) == key) {
+                entries.putLong((index + 1) << ENTRY_SHIFT, missingValue);
+                size--;
+                compactChain(entries, index);
+                return value;
+            }
+            index = next(index, mask);
+        }
+        return missingValue;
+    }
+
+    private void compactChain(ByteBuffer entries, int deleteIndex) {
+        final long missingValue = this.missingValue;
+        final int mask = slots - 1;
+        int index = deleteIndex;
+        while (true) {
+            index = next(index, mask);
+            long value = entries.getLong((index + 1) << ENTRY_SHIFT);
+            if (value == missingValue) {
+                break;
+            }
+            long key = entries.getLong(index << ENTRY_SHIFT);
+            final int hash = Hashing.evenHash(key, mask);
+            if ((index < hash && (hash <= deleteIndex || deleteIndex <= index)) || (hash <= deleteIndex && deleteIndex <= index)) {
+                entries.putLong(deleteIndex << ENTRY_SHIFT, key);
+                entries.putLong((deleteIndex + 1) << ENTRY_SHIFT, value);
+                entries.putLong((index + 1) << ENTRY_SHIFT, missingValue);
+                deleteIndex = index;
+            }
+        }
+    }
+
+    /**
+     * Primitive specialised forEach implementation.
+     *
+     * @param consumer a callback called for each key/value pair in the map.
+     */
+    public void longForEach(final LongLongConsumer consumer) {
+        final ByteBuffer entries = this.entries;
+        if (entries == null) {
+            return;
+        }
+        for (int index = 0; index < slots; index += 2) {
+            long value = entries.getLong((index + 1) << ENTRY_SHIFT);
+            if (value != missingValue) {
+                consumer.accept(entries.getLong(index << ENTRY_SHIFT), value);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries but retains the memory of the map.
+     */
+    public void clear() {
+        if (size > 0) {
+            fill(entries, slots);
+            size = 0;
+        }
+    }
+
+    /**
+     * Removes all entries and returns the memory of the map to the pool.
+     * The map can still be used afterwards and acquires new memory on the next {@link #put},
+     * with a capacity that fits the number of entries the map had before it has been released.
+     */
+    public void release() {
+        ByteBuffer entries = this.entries;
+        if (entries != null) {
+            this.entries = null;
+            initialCapacity = CollectionUtil.findNextPositivePowerOfTwo(Math.max(MIN_CAPACITY, (int) (size / loadFactor) + 1));
+            pool.release(poolSlot, entries);
+        }
+        slots = 0;
+        resizeThreshold = 0;
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        // the buffer retained from the previous usage may be larger than requested
+        ByteBuffer entries = pool.acquire(poolSlot, (capacity << 1) << ENTRY_SHIFT);
+        int slots = entries.capacity() >> ENTRY_SHIFT;
+        fill(entries, slots);
+        this.entries = entries;
+        this.slots = slots;
+        this.resizeThreshold = (int) ((slots >> 1) * loadFactor);
+    }
+
+    private void rehash(int newCapacity) {
+        final ByteBuffer oldEntries = entries;
+        final int oldSlots = slots;
+        assert oldEntries != null;
+        allocate(newCapacity);
+        final ByteBuffer newEntries = entries;
+        assert newEntries != null;
+        final long missingValue = this.missingValue;
+        final int mask = slots - 1;
+        for (int oldIndex = 0; oldIndex < oldSlots; oldIndex += 2) {
+            long value = oldEntries.getLong((oldIndex + 1) << ENTRY_SHIFT);
+            if (value != missingValue) {
+                long key = oldEntries.getLong(oldIndex << ENTRY_SHIFT);
+                int index = Hashing.evenHash(key, mask);
+                while (newEntries.getLong((index + 1) << ENTRY_SHIFT) != missingValue) {
+                    index = next(index, mask);
+                }
+                newEntries.putLong(index << ENTRY_SHIFT, key);
+                newEntries.putLong((index + 1) << ENTRY_SHIFT, value);
+            }
+        }
+        pool.free(oldEntries);
+    }
+
+    private void fill(@Nullable ByteBuffer entries, int slots) {
+        if (entries == null) {
+            return;
+        }
+        for (int index = 1; index < slots; index += 2) {
+            entries.putLong(index << ENTRY_SHIFT, missingValue);
+        }
+    }
+
+    private static int next(final int index, final int mask) {
+        return (index + 2) & mask;
+    }
+}
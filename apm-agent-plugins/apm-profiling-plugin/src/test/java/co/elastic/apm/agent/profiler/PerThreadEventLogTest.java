@@ -0,0 +1,171 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import com.lmax.disruptor.EventTranslatorTwoArg;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PerThreadEventLogTest {
+
+    private static final EventTranslatorTwoArg<long[], Long, Long> TRANSLATOR = (event, sequence, timestamp, threadId) -> {
+        event[0] = timestamp;
+        event[1] = threadId;
+    };
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testMergesThreadsInTimeOrder() throws Exception {
+        PerThreadEventLog<long[]> log = createLog(16, 8192);
+        AtomicLong clock = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    assertThat(log.write(TRANSLATOR, clock.incrementAndGet(), Thread.currentThread().getId())).isTrue();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        log.startReading();
+        List<Long> timestamps = readAll(log);
+        assertThat(timestamps).hasSize(4000).isSorted();
+        assertThat(timestamps.get(0)).isEqualTo(1);
+        assertThat(timestamps.get(3999)).isEqualTo(4000);
+    }
+
+    @Test
+    void testSessions() throws Exception {
+        PerThreadEventLog<long[]> log = createLog(4, 8);
+        assertThat(log.write(TRANSLATOR, 1L, 1L)).isTrue();
+        assertThat(log.write(TRANSLATOR, 2L, 1L)).isTrue();
+
+        log.startReading();
+        // belongs to the next session
+        assertThat(log.write(TRANSLATOR, 3L, 1L)).isTrue();
+        assertThat(log.peekTimestamp()).isEqualTo(1);
+        assertThat(readAll(log)).containsExactly(1L, 2L);
+        // all segments are claimed until the first session has been released
+        assertThat(log.write(TRANSLATOR, 4L, 1L)).isTrue();
+        assertThat(log.write(TRANSLATOR, 5L, 1L)).isTrue();
+        assertThat(log.write(TRANSLATOR, 6L, 1L)).isTrue();
+        assertThat(log.write(TRANSLATOR, 7L, 1L)).isFalse();
+        log.finishReading();
+        assertThat(log.write(TRANSLATOR, 8L, 1L)).isTrue();
+
+        log.startReading();
+        assertThat(readAll(log)).containsExactly(3L, 4L, 5L, 6L, 8L);
+        log.rewind();
+        assertThat(readAll(log)).containsExactly(3L, 4L, 5L, 6L, 8L);
+        log.finishReading();
+
+        log.clear();
+        log.startReading();
+        assertThat(log.hasNext()).isFalse();
+    }
+
+    @Test
+    void testPreemptedWriterDoesNotPublishToReclaimedSegment() throws Exception {
+        PerThreadEventLog<long[]> log = createLog(4, 4);
+        assertThat(log.write(TRANSLATOR, 1L, 1L)).isTrue();
+
+        // the writer is preempted while the segment is read, released and claimed by another thread
+        EventTranslatorTwoArg<long[], Long, Long> preempted = (event, sequence, timestamp, threadId) -> {
+            TRANSLATOR.translateTo(event, sequence, timestamp, threadId);
+            log.startReading();
+            assertThat(readAll(log)).containsExactly(1L);
+            log.finishReading();
+            Thread thread = new Thread(() -> {
+                for (long i = 10; i < 13; i++) {
+                    assertThat(log.write(TRANSLATOR, i, 2L)).isTrue();
+                }
+            });
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        assertThat(log.write(preempted, 2L, 1L)).isFalse();
+
+        log.startReading();
+        // the events of the new owner are intact
+        assertThat(readAll(log)).containsExactly(10L, 11L, 12L);
+    }
+
+    @Test
+    void testWriterDiscardsEventWhenSessionEndsBeforeReservation() throws Exception {
+        PerThreadEventLog<long[]> log = createLog(4, 8);
+        assertThat(log.write(TRANSLATOR, 1L, 1L)).isTrue();
+
+        // the session ends after the writer has checked its segment but before it has reserved the slot
+        EventTranslatorTwoArg<long[], Long, Long> preempted = (event, sequence, timestamp, threadId) -> {
+            TRANSLATOR.translateTo(event, sequence, timestamp, threadId);
+            log.startReading();
+        };
+        assertThat(log.write(preempted, 2L, 1L)).isFalse();
+        assertThat(readAll(log)).containsExactly(1L);
+        // doesn't wait for the dropped reservation
+        log.finishReading();
+
+        assertThat(log.write(TRANSLATOR, 3L, 1L)).isTrue();
+        log.startReading();
+        assertThat(readAll(log)).containsExactly(3L);
+    }
+
+    private PerThreadEventLog<long[]> createLog(int eventsPerSegment, int maxEvents) throws Exception {
+        PerThreadEventLog<long[]> log = new PerThreadEventLog<>(2 * Long.BYTES, eventsPerSegment, maxEvents,
+            () -> new long[2],
+            (event, buffer) -> buffer.putLong(event[0]).putLong(event[1]));
+        assertThat(log.write(TRANSLATOR, 0L, 0L)).isFalse();
+        try (FileChannel channel = FileChannel.open(tempDir.resolve("events.bin"), CREATE, READ, WRITE)) {
+            log.map(channel);
+        }
+        return log;
+    }
+
+    private static List<Long> readAll(PerThreadEventLog<long[]> log) {
+        List<Long> timestamps = new ArrayList<>();
+        while (log.hasNext()) {
+            ByteBuffer event = log.next();
+            timestamps.add(event.getLong());
+        }
+        return timestamps;
+    }
+}
@@ -163,6 +163,35 @@ class SamplingProfilerTest {
         setupProfiler(true);
         awaitProfilerStarted(profiler);
 
+        profileTransaction();
+    }
+
+    @Test
+    void testProfileTransactionWithPerThreadActivationEvents() throws Exception {
+        setupProfiler(true, true);
+        awaitProfilerStarted(profiler);
+
+        profileTransaction();
+    }
+
+    @Test
+    void testProfileTransactionInContinuousMode() throws Exception {
+        setupProfiler(true);
+        doReturn(true).when(profilingConfig).isContinuousProfiling();
+        awaitProfilerStarted(profiler);
+
+        profileTransaction();
+
+        assertThat(getProfilerTempFiles())
+            .describedAs("should record into an alternate file while processing the previous one")
+            .hasSize(3);
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> assertThat(profiler.isProfilingActiveOnThread(Thread.currentThread())).isFalse());
+    }
+
+    private void profileTransaction() throws Exception {
         Transaction transaction = tracer.startRootTransaction(null).withName("transaction");
         try (Scope scope = transaction.activateInScope()) {
             // makes sure that the rest will be captured by another profiling session
@@ -179,7 +208,7 @@ class SamplingProfilerTest {
             .timeout(5000, TimeUnit.MILLISECONDS)
             .untilAsserted(() -> assertThat(reporter.getSpans()).hasSize(5));
 
-        Optional<Span> testProfileTransaction = reporter.getSpans().stream().filter(s -> s.getNameAsString().equals("SamplingProfilerTest#testProfileTransaction")).findAny();
+        Optional<Span> testProfileTransaction = reporter.getSpans().stream().filter(s -> s.getNameAsString().equals("SamplingProfilerTest#profileTransaction")).findAny();
         assertThat(testProfileTransaction).isPresent();
         assertThat(testProfileTransaction.get().isChildOf(transaction)).isTrue();
 
@@ -279,10 +308,15 @@ class SamplingProfilerTest {
 
 
     private void setupProfiler(boolean enabled) {
+        setupProfiler(enabled, false);
+    }
+
+    private void setupProfiler(boolean enabled, boolean perThreadActivationEvents) {
         reporter = new MockReporter();
         ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
         profilingConfig = config.getConfig(ProfilingConfiguration.class);
 
+        doReturn(perThreadActivationEvents).when(profilingConfig).isPerThreadActivationEvents();
         doReturn(List.of(WildcardMatcher.valueOf(getClass().getName()))).when(profilingConfig).getIncludedClasses();
         doReturn(enabled).when(profilingConfig).isProfilingEnabled();
         doReturn(TimeDuration.of("500ms")).when(profilingConfig).getProfilingDuration();
@@ -0,0 +1,130 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceEventWindowTest {
+
+    @Test
+    void testRestoresOrderWithinWindow() {
+        StackTraceEventWindow window = new StackTraceEventWindow(16);
+        List<Long> timestamps = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            timestamps.add(i);
+        }
+        // shuffle within blocks that are smaller than the window
+        Random random = new Random(42);
+        for (int i = 0; i < timestamps.size(); i += 8) {
+            Collections.shuffle(timestamps.subList(i, Math.min(i + 8, timestamps.size())), random);
+        }
+
+        List<Long> ordered = new ArrayList<>();
+        for (Long timestamp : timestamps) {
+            if (window.isFull()) {
+                ordered.add(removeOldest(window));
+            }
+            assertThat(window.add(timestamp, timestamp * 10, timestamp * 100)).isTrue();
+        }
+        while (!window.isEmpty()) {
+            ordered.add(removeOldest(window));
+        }
+
+        assertThat(ordered).hasSize(1000).isSorted();
+    }
+
+    @Test
+    void testRejectsEventsOlderThanRemovedOnes() {
+        StackTraceEventWindow window = new StackTraceEventWindow(2);
+        assertThat(window.add(10, 100, 1000)).isTrue();
+        assertThat(window.add(20, 200, 2000)).isTrue();
+        assertThat(window.isFull()).isTrue();
+
+        assertThat(removeOldest(window)).isEqualTo(10);
+        assertThat(window.add(5, 50, 500)).isFalse();
+        assertThat(window.add(10, 100, 1000)).isTrue();
+        assertThat(window.size()).isEqualTo(2);
+
+        window.clear();
+        assertThat(window.isEmpty()).isTrue();
+        assertThat(window.add(5, 50, 500)).isTrue();
+    }
+
+    @Test
+    void testRejectedEventsOfBuffersAreNewerThanRemovedEventsOfSameThread() {
+        // mimics how async-profiler writes events from one buffer per thread group,
+        // each one being written to the file when it's full and the remaining ones at the end of the recording
+        int buffers = 16;
+        int eventsPerBuffer = 64;
+        Random random = new Random(42);
+        List<List<Long>> pending = new ArrayList<>();
+        for (int i = 0; i < buffers; i++) {
+            pending.add(new ArrayList<>());
+        }
+        List<Long> timestamps = new ArrayList<>();
+        for (long nanoTime = 0; nanoTime < 100_000; nanoTime++) {
+            // the last buffer only receives few events, so it's only written at the end
+            int buffer = random.nextInt(1000) == 0 ? buffers - 1 : random.nextInt(buffers - 1);
+            List<Long> events = pending.get(buffer);
+            // encodes the buffer, which stands in for the thread, into the timestamp
+            events.add(nanoTime * buffers + buffer);
+            if (events.size() == eventsPerBuffer) {
+                timestamps.addAll(events);
+                events.clear();
+            }
+        }
+        for (List<Long> events : pending) {
+            timestamps.addAll(events);
+        }
+
+        StackTraceEventWindow window = new StackTraceEventWindow(buffers * eventsPerBuffer);
+        Map<Long, Long> lastTimestampByThread = new HashMap<>();
+        int rejected = 0;
+        for (Long timestamp : timestamps) {
+            if (window.isFull()) {
+                long nanoTime = removeOldest(window);
+                lastTimestampByThread.put(nanoTime % buffers, nanoTime);
+            }
+            if (!window.add(timestamp, timestamp * 10, timestamp * 100)) {
+                rejected++;
+                assertThat(timestamp).isGreaterThan(lastTimestampByThread.getOrDefault(timestamp % buffers, -1L));
+                lastTimestampByThread.put(timestamp % buffers, timestamp);
+            }
+        }
+        assertThat(rejected).isPositive();
+        assertThat(window.size()).isEqualTo(buffers * eventsPerBuffer);
+    }
+
+    private long removeOldest(StackTraceEventWindow window) {
+        long nanoTime = window.peekNanoTime();
+        assertThat(window.peekStackTraceId()).isEqualTo(nanoTime * 10);
+        assertThat(window.peekThreadId()).isEqualTo(nanoTime * 100);
+        window.removeOldest();
+        return nanoTime;
+    }
+}
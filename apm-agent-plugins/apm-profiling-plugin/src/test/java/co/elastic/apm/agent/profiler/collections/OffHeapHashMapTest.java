@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapHashMapTest {
+
+    private final DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+
+    @Test
+    void testLong2LongBehavesLikeHeapMap() {
+        OffHeapLong2LongHashMap offHeap = new OffHeapLong2LongHashMap(pool, -1);
+        Long2LongHashMap heap = new Long2LongHashMap(-1);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(10_000);
+            if (random.nextInt(4) == 0) {
+                assertThat(offHeap.remove(key)).isEqualTo(heap.remove(key));
+            } else {
+                long value = random.nextInt(Integer.MAX_VALUE);
+                assertThat(offHeap.put(key, value)).isEqualTo(heap.put(key, value));
+            }
+            assertThat(offHeap.size()).isEqualTo(heap.size());
+        }
+        for (long key = 0; key < 10_000; key++) {
+            assertThat(offHeap.get(key)).isEqualTo(heap.get(key));
+        }
+        Map<Long, Long> entries = new HashMap<>();
+        offHeap.longForEach(entries::put);
+        assertThat(entries).isEqualTo(heap);
+    }
+
+    @Test
+    void testInt2IntBehavesLikeHeapMap() {
+        OffHeapInt2IntHashMap offHeap = new OffHeapInt2IntHashMap(pool, -1);
+        Int2IntHashMap heap = new Int2IntHashMap(-1);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(10_000);
+            if (random.nextInt(4) == 0) {
+                assertThat(offHeap.remove(key)).isEqualTo(heap.remove(key));
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                assertThat(offHeap.put(key, value)).isEqualTo(heap.put(key, value));
+            }
+        }
+        for (int key = 0; key < 10_000; key++) {
+            assertThat(offHeap.get(key)).isEqualTo(heap.get(key));
+        }
+        assertThat(offHeap.size()).isEqualTo(heap.size());
+    }
+
+    @Test
+    void testReleaseReturnsMemoryToPool() {
+        OffHeapLong2LongHashMap map = new OffHeapLong2LongHashMap(pool, -1);
+        for (long i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        assertThat(map.capacity()).isEqualTo(2048);
+        map.release();
+        assertThat(map.capacity()).isZero();
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.get(42)).isEqualTo(-1);
+        // only the buffer of the final size is retained, the buffers the map has outgrown are freed
+        assertThat(pool.getPooledBytes()).isEqualTo(2048L * 2 * 8);
+
+        map.put(42, 1);
+        assertThat(map.get(42)).isEqualTo(1);
+        assertThat(map.get(43)).isEqualTo(-1);
+        // the retained buffer is reused
+        assertThat(map.capacity()).isEqualTo(2048);
+        assertThat(pool.getPooledBytes()).isZero();
+    }
+
+    @Test
+    void testPoolIsBounded() {
+        DirectBufferPool pool = new DirectBufferPool(1024);
+        int small = pool.newSlot();
+        int large = pool.newSlot();
+        pool.release(small, pool.acquire(small, 512));
+        pool.release(large, pool.acquire(large, 2048));
+        assertThat(pool.getPooledBytes()).isEqualTo(512);
+
+        ByteBuffer buffer = pool.acquire(small, 256);
+        assertThat(buffer.capacity()).isEqualTo(512);
+        assertThat(pool.getPooledBytes()).isZero();
+        pool.release(small, buffer);
+
+        // a slot retains a single buffer
+        pool.release(small, pool.acquire(large, 1024));
+        assertThat(pool.getPooledBytes()).isEqualTo(1024);
+
+        pool.clear();
+        assertThat(pool.getPooledBytes()).isZero();
+    }
+
+    @Test
+    void testAcquireRequiresPowerOfTwo() {
+        DirectBufferPool pool = new DirectBufferPool(1024);
+        assertThatThrownBy(() -> pool.acquire(pool.newSlot(), 100)).isInstanceOf(IllegalArgumentException.class);
+    }
+}